@@ -0,0 +1,59 @@
+package org.activityinfo.model.table.columns;
+
+import org.activityinfo.model.table.ColumnType;
+import org.activityinfo.model.table.ColumnView;
+
+import java.util.Date;
+
+/**
+ * Array of dates, stored as primitive timestamps, with a bitmap
+ * of the missing values.
+ */
+public class DateArrayColumnView implements ColumnView {
+
+    private long[] times;
+    private NullBitmap missing;
+
+    public DateArrayColumnView(long[] times, NullBitmap missing) {
+        this.times = times;
+        this.missing = missing;
+    }
+
+    @Override
+    public ColumnType getType() {
+        return ColumnType.DATE;
+    }
+
+    @Override
+    public int numRows() {
+        return times.length;
+    }
+
+    @Override
+    public Object get(int row) {
+        return getDate(row);
+    }
+
+    @Override
+    public double getDouble(int row) {
+        return Double.NaN;
+    }
+
+    @Override
+    public String getString(int row) {
+        return null;
+    }
+
+    @Override
+    public Date getDate(int row) {
+        if(missing.isNull(row)) {
+            return null;
+        }
+        return new Date(times[row]);
+    }
+
+    @Override
+    public String toString() {
+        return "[ " + numRows() + " dates ]";
+    }
+}
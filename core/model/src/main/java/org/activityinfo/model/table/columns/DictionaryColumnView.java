@@ -0,0 +1,116 @@
+package org.activityinfo.model.table.columns;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.activityinfo.model.table.ColumnType;
+import org.activityinfo.model.table.ColumnView;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Array of String values, stored as an index into a dictionary
+ * of the distinct values. Well suited to columns with many repeated
+ * values, such as the names of partners or selected attributes.
+ */
+public class DictionaryColumnView implements ColumnView {
+
+    public static final int MISSING = -1;
+
+    private String[] dictionary;
+    private int[] codes;
+
+    /**
+     * @param dictionary the distinct values of this column
+     * @param codes the index in {@code dictionary} of the value of each row, or {@code MISSING}
+     */
+    public DictionaryColumnView(String[] dictionary, int[] codes) {
+        this.dictionary = dictionary;
+        this.codes = codes;
+    }
+
+    @Override
+    public ColumnType getType() {
+        return ColumnType.STRING;
+    }
+
+    @Override
+    public int numRows() {
+        return codes.length;
+    }
+
+    @Override
+    public Object get(int row) {
+        return getString(row);
+    }
+
+    @Override
+    public double getDouble(int row) {
+        return Double.NaN;
+    }
+
+    @Override
+    public String getString(int row) {
+        int code = codes[row];
+        if(code == MISSING) {
+            return null;
+        }
+        return dictionary[code];
+    }
+
+    @Override
+    public Date getDate(int row) {
+        return null;
+    }
+
+    /**
+     * @return the number of distinct values in this column
+     */
+    public int getDictionarySize() {
+        return dictionary.length;
+    }
+
+    /**
+     * @return the index of the given row's value in the dictionary, or {@code MISSING}
+     */
+    public int getCode(int row) {
+        return codes[row];
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(dictionary) + " x " + numRows();
+    }
+
+    public static class Builder {
+        private final Map<String, Integer> index = Maps.newHashMap();
+        private final List<String> dictionary = Lists.newArrayList();
+        private final int[] codes;
+
+        public Builder(int numRows) {
+            codes = new int[numRows];
+            Arrays.fill(codes, MISSING);
+        }
+
+        public Builder set(int row, String value) {
+            if(value == null) {
+                codes[row] = MISSING;
+            } else {
+                Integer code = index.get(value);
+                if(code == null) {
+                    code = dictionary.size();
+                    dictionary.add(value);
+                    index.put(value, code);
+                }
+                codes[row] = code;
+            }
+            return this;
+        }
+
+        public DictionaryColumnView build() {
+            return new DictionaryColumnView(dictionary.toArray(new String[dictionary.size()]), codes);
+        }
+    }
+}
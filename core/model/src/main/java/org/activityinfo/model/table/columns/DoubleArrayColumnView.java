@@ -0,0 +1,59 @@
+package org.activityinfo.model.table.columns;
+
+import org.activityinfo.model.table.ColumnType;
+import org.activityinfo.model.table.ColumnView;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Array of numbers, stored as primitive doubles. Missing
+ * values are stored as {@code NaN}
+ */
+public class DoubleArrayColumnView implements ColumnView {
+
+    private double[] values;
+
+    public DoubleArrayColumnView(double[] values) {
+        this.values = values;
+    }
+
+    @Override
+    public ColumnType getType() {
+        return ColumnType.NUMBER;
+    }
+
+    @Override
+    public int numRows() {
+        return values.length;
+    }
+
+    @Override
+    public Object get(int row) {
+        double value = values[row];
+        if(Double.isNaN(value)) {
+            return null;
+        }
+        return value;
+    }
+
+    @Override
+    public double getDouble(int row) {
+        return values[row];
+    }
+
+    @Override
+    public String getString(int row) {
+        return null;
+    }
+
+    @Override
+    public Date getDate(int row) {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
@@ -0,0 +1,22 @@
+package org.activityinfo.model.table.columns;
+
+/**
+ * Bitmap marking the rows of a column which have no value,
+ * for columns of primitives which have no natural missing value.
+ */
+public final class NullBitmap {
+
+    private final int[] bits;
+
+    public NullBitmap(int numRows) {
+        this.bits = new int[(numRows + 31) / 32];
+    }
+
+    public void setNull(int row) {
+        bits[row >> 5] |= (1 << (row & 31));
+    }
+
+    public boolean isNull(int row) {
+        return (bits[row >> 5] & (1 << (row & 31))) != 0;
+    }
+}
@@ -14,11 +14,7 @@ public class UniqueValueColumnView implements ColumnView {
     private static final double EPSILON = Double.MIN_VALUE;
 
     public UniqueValueColumnView(Set<ColumnView> columnViews) {
-        int columnIndex = 0;
-        for(ColumnView columnView : columnViews) {
-            columns[columnIndex] = columnView;
-            columnIndex++;
-        }
+        columns = columnViews.toArray(new ColumnView[columnViews.size()]);
         type = columns[0].getType();
     }
 
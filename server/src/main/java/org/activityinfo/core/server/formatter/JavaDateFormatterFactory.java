@@ -40,13 +40,18 @@ public class JavaDateFormatterFactory implements DateFormatterFactory {
         return new DateFormatter() {
             @Override
             public String format(Date value) {
-                return JAVA_FORMAT.format(value);
+                // SimpleDateFormat is not thread-safe
+                synchronized (JAVA_FORMAT) {
+                    return JAVA_FORMAT.format(value);
+                }
             }
 
             @Override
             public Date parse(String valueAsString) {
                 try {
-                    return JAVA_FORMAT.parse(valueAsString);
+                    synchronized (JAVA_FORMAT) {
+                        return JAVA_FORMAT.parse(valueAsString);
+                    }
                 } catch (ParseException e) {
                     e.printStackTrace(); // todo log
                     return null;
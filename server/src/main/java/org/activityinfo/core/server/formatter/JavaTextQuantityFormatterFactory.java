@@ -16,7 +16,10 @@ public class JavaTextQuantityFormatterFactory implements QuantityFormatterFactor
         return new QuantityFormatter() {
             @Override
             public String format(Double value) {
-                return format.format(value);
+                // NumberFormat is not thread-safe
+                synchronized (format) {
+                    return format.format(value);
+                }
             }
 
             @Override
@@ -27,7 +30,9 @@ public class JavaTextQuantityFormatterFactory implements QuantityFormatterFactor
                     if (valueAsString.indexOf("-") > 1 || valueAsString.contains("/")) {
                         return null;
                     }
-                    return format.parse(valueAsString).doubleValue();
+                    synchronized (format) {
+                        return format.parse(valueAsString).doubleValue();
+                    }
                 } catch (ParseException e) {
                     return null;
                 }
@@ -0,0 +1,18 @@
+package org.activityinfo.core.shared.expr;
+
+/**
+ * An expression compiled by the {@link ExprCompiler}, whose placeholders have been
+ * bound to indexes in an array of slots.
+ *
+ * <p>Unlike {@link ExprNode#evalReal()}, evaluating a compiled expression neither
+ * resolves placeholders by name nor boxes values, so a single instance can be
+ * evaluated against many rows by refilling the same slot array.</p>
+ */
+public abstract class CompiledExpr {
+
+    /**
+     * Evaluates the expression against the given slot values.
+     */
+    public abstract double evaluate(double[] slots);
+
+}
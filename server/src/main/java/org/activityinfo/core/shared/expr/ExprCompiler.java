@@ -0,0 +1,175 @@
+package org.activityinfo.core.shared.expr;
+
+import org.activityinfo.core.shared.expr.functions.ArithmeticFunctions;
+import org.activityinfo.core.shared.expr.functions.BinaryInfixFunction;
+
+import java.util.List;
+
+/**
+ * Compiles a parsed {@link ExprNode} tree into a {@link CompiledExpr} over a
+ * {@code double[]} slot array. Placeholders are bound to their slots once, at
+ * compile time, by the {@link SlotResolver}.
+ */
+public class ExprCompiler {
+
+    /**
+     * Maps placeholders to slot indexes.
+     */
+    public interface SlotResolver {
+
+        /**
+         * @return the index of the slot holding the value of {@code placeholder}
+         * @throws UnsupportedOperationException if the placeholder cannot be resolved
+         */
+        int getSlot(String placeholder);
+    }
+
+    private final SlotResolver slotResolver;
+
+    public ExprCompiler(SlotResolver slotResolver) {
+        this.slotResolver = slotResolver;
+    }
+
+    public CompiledExpr compile(ExprNode node) {
+        if (node instanceof ConstantExpr) {
+            return new Constant(((ConstantExpr) node).getValue());
+
+        } else if (node instanceof GroupExpr) {
+            return compile(((GroupExpr) node).getExpr());
+
+        } else if (node instanceof PlaceholderExpr) {
+            return new Slot(slotResolver.getSlot(((PlaceholderExpr) node).getPlaceholder()));
+
+        } else if (node instanceof FunctionCallNode) {
+            return compileCall((FunctionCallNode) node);
+
+        } else {
+            throw new UnsupportedOperationException("Cannot compile " + node);
+        }
+    }
+
+    private CompiledExpr compileCall(FunctionCallNode call) {
+        ExprFunction function = call.getFunction();
+        List<ExprNode> arguments = call.getArguments();
+        if (!(function instanceof BinaryInfixFunction) || arguments.size() != 2) {
+            throw new UnsupportedOperationException("Cannot compile function " + function.getName());
+        }
+        CompiledExpr x = compile(arguments.get(0));
+        CompiledExpr y = compile(arguments.get(1));
+
+        if (function == ArithmeticFunctions.BINARY_PLUS) {
+            return new Plus(x, y);
+        } else if (function == ArithmeticFunctions.BINARY_MINUS) {
+            return new Minus(x, y);
+        } else if (function == ArithmeticFunctions.MULTIPLY) {
+            return new Multiply(x, y);
+        } else if (function == ArithmeticFunctions.DIVIDE) {
+            return new Divide(x, y);
+        } else {
+            return new Infix((BinaryInfixFunction) function, x, y);
+        }
+    }
+
+    private static class Constant extends CompiledExpr {
+        private final double value;
+
+        private Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double evaluate(double[] slots) {
+            return value;
+        }
+    }
+
+    private static class Slot extends CompiledExpr {
+        private final int index;
+
+        private Slot(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public double evaluate(double[] slots) {
+            return slots[index];
+        }
+    }
+
+    private static class Plus extends CompiledExpr {
+        private final CompiledExpr x;
+        private final CompiledExpr y;
+
+        private Plus(CompiledExpr x, CompiledExpr y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public double evaluate(double[] slots) {
+            return x.evaluate(slots) + y.evaluate(slots);
+        }
+    }
+
+    private static class Minus extends CompiledExpr {
+        private final CompiledExpr x;
+        private final CompiledExpr y;
+
+        private Minus(CompiledExpr x, CompiledExpr y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public double evaluate(double[] slots) {
+            return x.evaluate(slots) - y.evaluate(slots);
+        }
+    }
+
+    private static class Multiply extends CompiledExpr {
+        private final CompiledExpr x;
+        private final CompiledExpr y;
+
+        private Multiply(CompiledExpr x, CompiledExpr y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public double evaluate(double[] slots) {
+            return x.evaluate(slots) * y.evaluate(slots);
+        }
+    }
+
+    private static class Divide extends CompiledExpr {
+        private final CompiledExpr x;
+        private final CompiledExpr y;
+
+        private Divide(CompiledExpr x, CompiledExpr y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public double evaluate(double[] slots) {
+            return x.evaluate(slots) / y.evaluate(slots);
+        }
+    }
+
+    private static class Infix extends CompiledExpr {
+        private final BinaryInfixFunction function;
+        private final CompiledExpr x;
+        private final CompiledExpr y;
+
+        private Infix(BinaryInfixFunction function, CompiledExpr x, CompiledExpr y) {
+            this.function = function;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public double evaluate(double[] slots) {
+            return function.applyReal(x.evaluate(slots), y.evaluate(slots));
+        }
+    }
+}
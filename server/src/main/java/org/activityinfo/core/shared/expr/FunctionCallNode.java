@@ -22,6 +22,11 @@ public class FunctionCallNode extends ExprNode {
         this(function, Arrays.asList(arguments));
     }
 
+    @Nonnull
+    public ExprFunction getFunction() {
+        return function;
+    }
+
     @Nonnull
     public List<ExprNode> getArguments() {
         return arguments;
@@ -12,6 +12,10 @@ public class GroupExpr extends ExprNode {
         this.expr = expr;
     }
 
+    public ExprNode getExpr() {
+        return expr;
+    }
+
     @Override
     public String toString() {
         return "(" + expr.toString() + ")";
@@ -0,0 +1,93 @@
+package org.activityinfo.core.shared.importing.match.names;
+
+import com.google.common.collect.Sets;
+
+import java.util.Set;
+
+/**
+ * Computes blocking keys for names written in a Latin script.
+ *
+ * <p>Two names can only have a {@link LatinPlaceNameScorer} score above zero if they
+ * share at least one key, so the keys can be used to find the candidates for a match
+ * without scoring every pair of names.</p>
+ *
+ * <p>Each alphabetic part of a name is keyed by its consonant skeleton: the consonants
+ * which {@link LatinWordDistance} can neither drop nor substitute with a different
+ * consonant, with repeated consonants collapsed. Numeric parts, and parts which are
+ * roman numerals, are keyed by their value.</p>
+ */
+public class LatinPlaceNameKeys {
+
+    private static final String NUMBER_PREFIX = "#";
+    private static final String EXACT_PREFIX = "=";
+
+    /**
+     * Consonants which can be inserted in some contexts or substituted
+     * for another consonant in this list
+     */
+    private static final String WEAK_CONSONANTS = "DHMNTY";
+
+    private final LatinPlaceName name = new LatinPlaceName();
+
+    private final StringBuilder skeleton = new StringBuilder();
+
+    public Set<String> keys(String value) {
+        Set<String> keys = Sets.newHashSet();
+        name.set(value);
+
+        if (name.isEmpty()) {
+            // can still be an exact match
+            keys.add(EXACT_PREFIX + value);
+            return keys;
+        }
+
+        for (int part = 0; part != name.partCount(); ++part) {
+            if (name.isPartNumeric(part)) {
+                keys.add(numberKey(part));
+            } else {
+                keys.add(skeleton(part));
+                int romanNumeral = name.tryParsePartAsRomanNumeral(part);
+                if (romanNumeral != -1) {
+                    keys.add(NUMBER_PREFIX + romanNumeral);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the leading digits of the part, without leading zeros
+     */
+    private String numberKey(int part) {
+        int start = name.partStart(part);
+        int end = name.partStart(part + 1);
+        while (start < end - 1 && name.chars[start] == '0' && isDigit(name.chars[start + 1])) {
+            start++;
+        }
+        int digitsEnd = start;
+        while (digitsEnd < end && isDigit(name.chars[digitsEnd])) {
+            digitsEnd++;
+        }
+        return NUMBER_PREFIX + new String(name.chars, start, digitsEnd - start);
+    }
+
+    private String skeleton(int part) {
+        skeleton.setLength(0);
+        char last = 0;
+        for (int i = 0; i != name.charCount(part); ++i) {
+            char c = name.charAt(part, i);
+            if (c == 'Q') {
+                c = 'K';
+            }
+            if (!LatinWordDistance.isVowelChar(c) && WEAK_CONSONANTS.indexOf(c) == -1 && c != last) {
+                skeleton.append(c);
+                last = c;
+            }
+        }
+        return skeleton.toString();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,111 @@
+package org.activityinfo.core.shared.importing.strategy;
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import org.activityinfo.core.shared.importing.match.names.LatinPlaceNameKeys;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the reference values of an {@link InstanceScoreSource} by their blocking keys, used
+ * to find the reference instances which can possibly match an imported row.
+ *
+ * @see LatinPlaceNameKeys
+ */
+public class InstanceScoreIndex {
+
+    /**
+     * For each column, the indexes of the reference instances with each key, in ascending order
+     */
+    private final List<Map<String, int[]>> columns = Lists.newArrayList();
+
+    public InstanceScoreIndex(int columnCount, List<String[]> referenceValues) {
+        LatinPlaceNameKeys keys = new LatinPlaceNameKeys();
+        for (int column = 0; column != columnCount; ++column) {
+            Map<String, List<Integer>> postings = Maps.newHashMap();
+            for (int i = 0; i != referenceValues.size(); ++i) {
+                String value = referenceValues.get(i)[column];
+                if (value != null) {
+                    for (String key : keys.keys(value)) {
+                        List<Integer> list = postings.get(key);
+                        if (list == null) {
+                            list = Lists.newArrayList();
+                            postings.put(key, list);
+                        }
+                        list.add(i);
+                    }
+                }
+            }
+            Map<String, int[]> index = Maps.newHashMap();
+            for (Map.Entry<String, List<Integer>> entry : postings.entrySet()) {
+                index.put(entry.getKey(), Ints.toArray(entry.getValue()));
+            }
+            columns.add(index);
+        }
+    }
+
+    /**
+     * @return the indexes of all the reference instances which share a key with the
+     * imported value of at least one column, in ascending order
+     */
+    public int[] candidates(String[] imported) {
+        LatinPlaceNameKeys keys = new LatinPlaceNameKeys();
+        List<int[]> matching = Lists.newArrayList();
+        int count = 0;
+        for (int column = 0; column != imported.length; ++column) {
+            if (imported[column] != null) {
+                for (String key : keys.keys(imported[column])) {
+                    int[] postings = columns.get(column).get(key);
+                    if (postings != null) {
+                        matching.add(postings);
+                        count += postings.length;
+                    }
+                }
+            }
+        }
+        if (matching.size() == 1) {
+            return matching.get(0);
+        }
+
+        int[] candidates = new int[count];
+        int offset = 0;
+        for (int[] postings : matching) {
+            System.arraycopy(postings, 0, candidates, offset, postings.length);
+            offset += postings.length;
+        }
+        Arrays.sort(candidates);
+
+        // remove duplicates
+        int unique = 0;
+        for (int i = 0; i != candidates.length; ++i) {
+            if (unique == 0 || candidates[i] != candidates[unique - 1]) {
+                candidates[unique++] = candidates[i];
+            }
+        }
+        return Arrays.copyOf(candidates, unique);
+    }
+}
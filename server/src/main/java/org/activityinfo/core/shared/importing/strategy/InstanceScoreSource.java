@@ -33,6 +33,7 @@ public class InstanceScoreSource {
     private List<ColumnAccessor> sources;
     private List<ResourceId> referenceInstanceIds;
     private List<String[]> referenceValues;
+    private InstanceScoreIndex index;
 
     public InstanceScoreSource() {
     }
@@ -49,6 +50,7 @@ public class InstanceScoreSource {
 
     public void setSources(List<ColumnAccessor> sources) {
         this.sources = sources;
+        this.index = null;
     }
 
     public List<ResourceId> getReferenceInstanceIds() {
@@ -65,5 +67,16 @@ public class InstanceScoreSource {
 
     public void setReferenceValues(List<String[]> referenceValues) {
         this.referenceValues = referenceValues;
+        this.index = null;
+    }
+
+    /**
+     * @return the index of the reference values, built on first use
+     */
+    public synchronized InstanceScoreIndex getIndex() {
+        if (index == null) {
+            index = new InstanceScoreIndex(sources.size(), referenceValues);
+        }
+        return index;
     }
 }
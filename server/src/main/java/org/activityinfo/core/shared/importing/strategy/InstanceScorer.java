@@ -76,7 +76,9 @@ public class InstanceScorer {
         String[] imported = toArray(row);
 
         if (imported != null) {
-            for (int i = 0; i != source.getReferenceInstanceIds().size(); ++i) {
+            // only score the reference instances that can possibly match, in the same
+            // order as the reference values so that ties are broken in the same way
+            for (int i : source.getIndex().candidates(imported)) {
                 double[] score = scorePotentialMatch(imported, source.getReferenceValues().get(i));
                 if (score != null) {
                     double total = sum(score);
@@ -38,7 +38,6 @@ public class SingleClassImporter implements FieldImporter {
     private Map<FieldPath, Integer> referenceFields;
 
     private InstanceScoreSource scoreSource;
-    private InstanceScorer instanceScorer = null;
 
     public SingleClassImporter(ResourceId rangeClassId,
                                boolean required,
@@ -64,7 +63,6 @@ public class SingleClassImporter implements FieldImporter {
             @Override
             public Void apply(List<Projection> projections) {
                 scoreSource = new InstanceScoreSourceBuilder(referenceFields, sources).build(projections);
-                instanceScorer = new InstanceScorer(scoreSource);
                 return null;
             }
         });
@@ -87,7 +85,9 @@ public class SingleClassImporter implements FieldImporter {
 
     @Override
     public void validateInstance(SourceRow row, List<ValidationResult> results) {
-        final InstanceScorer.Score score = instanceScorer.score(row);
+        // a scorer keeps per-row state and is not thread-safe, so each row gets its own scorer;
+        // this lets rows be validated concurrently
+        final InstanceScorer.Score score = new InstanceScorer(scoreSource).score(row);
         final int bestMatchIndex = score.getBestMatchIndex();
 
         for (int i = 0; i != sources.size(); ++i) {
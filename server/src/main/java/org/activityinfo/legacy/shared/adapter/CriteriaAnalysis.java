@@ -2,12 +2,14 @@ package org.activityinfo.legacy.shared.adapter;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import org.activityinfo.model.resource.ResourceId;
 import org.activityinfo.core.shared.criteria.*;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -30,6 +32,19 @@ public class CriteriaAnalysis extends CriteriaVisitor {
      */
     private final Multimap<Character, Integer> ids = HashMultimap.create();
 
+    /**
+     * Ids which all instances must be one of. Unlike {@code ids}, these exclude the ids
+     * of a union's elements unless the union consists of nothing else.
+     */
+    private final Multimap<Character, Integer> restrictedIds = HashMultimap.create();
+
+    /**
+     * Root fields which must have the given value
+     */
+    private final Map<ResourceId, Object> fieldRestrictions = Maps.newHashMap();
+
+    private int unionDepth = 0;
+
     public ResourceId getParentCriteria() {
         return parentCriteria.iterator().next();
     }
@@ -38,6 +53,14 @@ public class CriteriaAnalysis extends CriteriaVisitor {
         return rootOnly;
     }
 
+    @Override
+    public void visitFieldCriteria(FieldCriteria criteria) {
+        // only a restriction if all instances must match it
+        if (unionDepth == 0 && !criteria.getFieldPath().isNested()) {
+            fieldRestrictions.put(criteria.getFieldId(), criteria.getValue());
+        }
+    }
+
     @Override
     public void visitClassCriteria(ClassCriteria criteria) {
         classCriteria.add(criteria.getClassId());
@@ -51,6 +74,9 @@ public class CriteriaAnalysis extends CriteriaVisitor {
             assert id != null : "ids cannot be null";
             if (id.getDomain() != CuidAdapter.ACTIVITY_CATEGORY_DOMAIN) {
                 ids.put(id.getDomain(), CuidAdapter.getLegacyIdFromCuid(id));
+                if (unionDepth == 0) {
+                    restrictedIds.put(id.getDomain(), CuidAdapter.getLegacyIdFromCuid(id));
+                }
             }
         }
     }
@@ -75,12 +101,33 @@ public class CriteriaAnalysis extends CriteriaVisitor {
     @Override
     public void visitUnion(CriteriaUnion criteriaUnion) {
         classUnion = true; // todo temp fix! - in general wrong approach, will work in flat case only!
+        if (unionDepth == 0 && isUnionOfIds(criteriaUnion)) {
+            // (A ∪ B) restricts the instances to the ids of A and B
+            for (Criteria criteria : criteriaUnion.getElements()) {
+                for (ResourceId id : ((IdCriteria) criteria).getInstanceIds()) {
+                    if (id.getDomain() != CuidAdapter.ACTIVITY_CATEGORY_DOMAIN) {
+                        restrictedIds.put(id.getDomain(), CuidAdapter.getLegacyIdFromCuid(id));
+                    }
+                }
+            }
+        }
+        unionDepth++;
         for (Criteria criteria : criteriaUnion.getElements()) {
             if (classUnion && !(criteria instanceof ClassCriteria)) {
                 classUnion = false;
             }
             criteria.accept(this);
         }
+        unionDepth--;
+    }
+
+    private static boolean isUnionOfIds(CriteriaUnion criteriaUnion) {
+        for (Criteria criteria : criteriaUnion.getElements()) {
+            if (!(criteria instanceof IdCriteria)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public boolean isEmptySet() {
@@ -139,6 +186,23 @@ public class CriteriaAnalysis extends CriteriaVisitor {
         return Lists.newArrayList(ids.get(domain));
     }
 
+    /**
+     * @return the ids of the given domain to which all matching instances are restricted,
+     * or an empty list if there is no such restriction. Can be passed on to the
+     * commands fetching the instances.
+     */
+    public List<Integer> getRestrictedIds(char domain) {
+        return Lists.newArrayList(restrictedIds.get(domain));
+    }
+
+    /**
+     * @return the value which the given root field must have, or {@code null} if the
+     * field is not restricted
+     */
+    public Object getFieldRestriction(ResourceId fieldId) {
+        return fieldRestrictions.get(fieldId);
+    }
+
     public static CriteriaAnalysis analyze(Criteria criteria) {
         CriteriaAnalysis analysis = new CriteriaAnalysis();
         criteria.accept(analysis);
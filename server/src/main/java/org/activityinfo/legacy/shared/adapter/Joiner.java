@@ -6,8 +6,7 @@ import com.google.common.collect.*;
 import org.activityinfo.core.client.InstanceQuery;
 import org.activityinfo.core.shared.Projection;
 import org.activityinfo.core.shared.application.ApplicationProperties;
-import org.activityinfo.core.shared.criteria.Criteria;
-import org.activityinfo.core.shared.criteria.IdCriteria;
+import org.activityinfo.core.shared.criteria.*;
 import org.activityinfo.core.shared.form.FormInstance;
 import org.activityinfo.legacy.client.Dispatcher;
 import org.activityinfo.legacy.shared.adapter.projection.LocationProjector;
@@ -20,19 +19,39 @@ import org.activityinfo.model.form.FormField;
 import org.activityinfo.model.formTree.FieldPath;
 import org.activityinfo.model.resource.ResourceId;
 import org.activityinfo.promise.BiFunction;
+import org.activityinfo.promise.ConcatList;
 import org.activityinfo.promise.Promise;
 
-import javax.annotation.Nullable;
 import java.util.*;
 
 /**
- * Naive implementation that joins and projects a multi-level
- * instance query.
+ * Joins and projects a multi-level instance query.
+ *
+ * <p>As much of the criteria as possible is applied before joining: criteria on the
+ * root instances are passed on to the commands fetching them where they support it,
+ * and otherwise checked before any referenced instances are fetched. Referenced
+ * instances are then fetched in batches by id, and joined on their id.</p>
  */
 class Joiner implements Function<InstanceQuery, Promise<List<Projection>>> {
 
+    /**
+     * Maximum number of referenced instances to fetch with a single query
+     */
+    static final int JOIN_BATCH_SIZE = 500;
 
     private final Criteria criteria;
+
+    /**
+     * Criteria that can be checked before joining, because they only depend
+     * on the root instance
+     */
+    private final List<Criteria> rootCriteria = Lists.newArrayList();
+
+    /**
+     * Criteria that can only be checked after joining
+     */
+    private final List<Criteria> joinedCriteria = Lists.newArrayList();
+
     private final ClassProvider classProvider;
     private Set<FieldPath> fields;
     private List<FieldPath> joinFields;
@@ -51,6 +70,7 @@ class Joiner implements Function<InstanceQuery, Promise<List<Projection>>> {
         this.fields.addAll(joinFields);
 
         this.criteria = criteria;
+        splitCriteria(criteria);
 
         this.classProvider = new ClassProvider(dispatcher);
     }
@@ -89,6 +109,18 @@ class Joiner implements Function<InstanceQuery, Promise<List<Projection>>> {
         return ordered;
     }
 
+    private void splitCriteria(Criteria criteria) {
+        if (criteria instanceof CriteriaIntersection) {
+            for (Criteria element : ((CriteriaIntersection) criteria).getElements()) {
+                splitCriteria(element);
+            }
+        } else if (NestedFieldFinder.isNested(criteria)) {
+            joinedCriteria.add(criteria);
+        } else {
+            rootCriteria.add(criteria);
+        }
+    }
+
     @Override
     public Promise<List<Projection>> apply(InstanceQuery instanceQuery) {
 
@@ -107,24 +139,17 @@ class Joiner implements Function<InstanceQuery, Promise<List<Projection>>> {
 
         Promise<List<Projection>> results = Promise.fmap(new ProjectFunction(null)).apply(classes, instances);
 
+        // filter out as much as we can before fetching the referenced instances
+        results = results.then(new FilterFunction(rootCriteria));
+
         // now schedule the joins
         for (FieldPath fieldToJoin : joinFields) {
             results = results.join(new FetchAndJoinFunction(fieldToJoin));
         }
 
-        // filter
-        results = results.then(new Function<List<Projection>, List<Projection>>() {
-            @Nullable @Override
-            public List<Projection> apply(@Nullable List<Projection> input) {
-                List<Projection> matching = new ArrayList<Projection>();
-                for (Projection projection : input) {
-                    if (criteria.apply(projection)) {
-                        matching.add(projection);
-                    }
-                }
-                return matching;
-            }
-        });
+        if (!joinedCriteria.isEmpty()) {
+            results = results.then(new FilterFunction(joinedCriteria));
+        }
 
         return results;
     }
@@ -136,6 +161,7 @@ class Joiner implements Function<InstanceQuery, Promise<List<Projection>>> {
 
         Filter filter = new Filter();
         filter.addRestriction(DimensionType.Activity, activityId);
+        restrictSites(criteriaAnalysis, activityId, filter);
 
         GetSites query = new GetSites();
         query.setFilter(filter);
@@ -152,13 +178,41 @@ class Joiner implements Function<InstanceQuery, Promise<List<Projection>>> {
         });
     }
 
+    /**
+     * Restricts the sites fetched to those that can match the criteria, rather than
+     * fetching all the sites of the activity and filtering them once projected.
+     */
+    private static void restrictSites(CriteriaAnalysis criteriaAnalysis, int activityId, Filter filter) {
+        List<Integer> siteIds = criteriaAnalysis.getRestrictedIds(CuidAdapter.SITE_DOMAIN);
+        if (!siteIds.isEmpty()) {
+            filter.addRestriction(DimensionType.Site, siteIds);
+        }
+        restrictByReference(criteriaAnalysis, CuidAdapter.partnerField(activityId),
+                CuidAdapter.PARTNER_DOMAIN, DimensionType.Partner, filter);
+        restrictByReference(criteriaAnalysis, CuidAdapter.projectField(activityId),
+                CuidAdapter.PROJECT_DOMAIN, DimensionType.Project, filter);
+        restrictByReference(criteriaAnalysis, CuidAdapter.locationField(activityId),
+                CuidAdapter.LOCATION_DOMAIN, DimensionType.Location, filter);
+    }
+
+    private static void restrictByReference(CriteriaAnalysis criteriaAnalysis,
+                                            ResourceId fieldId,
+                                            char domain,
+                                            DimensionType dimension,
+                                            Filter filter) {
+        Object value = criteriaAnalysis.getFieldRestriction(fieldId);
+        if (value instanceof ResourceId && ((ResourceId) value).getDomain() == domain) {
+            filter.addRestriction(dimension, CuidAdapter.getLegacyIdFromCuid((ResourceId) value));
+        }
+    }
+
     private Promise<List<Projection>> projectLocations(CriteriaAnalysis criteriaAnalysis, List<FieldPath> fieldPaths) {
         ResourceId locationTypeClass = criteriaAnalysis.getClassRestriction();
         int locationTypeId = CuidAdapter.getLegacyIdFromCuid(locationTypeClass);
 
         GetLocations query = new GetLocations();
         query.setLocationTypeId(locationTypeId);
-        query.setLocationIds(criteriaAnalysis.getIds(CuidAdapter.LOCATION_TYPE_DOMAIN));
+        query.setLocationIds(criteriaAnalysis.getRestrictedIds(CuidAdapter.LOCATION_DOMAIN));
 
         return dispatcher.execute(query).then(new LocationProjector(criteria, fieldPaths));
     }
@@ -261,10 +315,81 @@ class Joiner implements Function<InstanceQuery, Promise<List<Projection>>> {
 
             if (instanceIds.isEmpty()) {
                 return Promise.resolved(projections);
-            } else {
-                return new QueryExecutor(dispatcher, new IdCriteria(instanceIds)).execute()
-                                                                                 .then(new JoinFunction(referenceField,
-                                                                                         projections));
+            }
+
+            List<Promise<List<FormInstance>>> batches = Lists.newArrayList();
+            for (List<ResourceId> batch : Iterables.partition(instanceIds, JOIN_BATCH_SIZE)) {
+                batches.add(new QueryExecutor(dispatcher, new IdCriteria(Sets.newHashSet(batch))).execute());
+            }
+            return Promise.foldLeft(Collections.<FormInstance>emptyList(), new ConcatList<FormInstance>(), batches)
+                          .then(new JoinFunction(referenceField, projections));
+        }
+    }
+
+    private static class FilterFunction implements Function<List<Projection>, List<Projection>> {
+
+        private final List<Criteria> criteria;
+
+        private FilterFunction(List<Criteria> criteria) {
+            this.criteria = criteria;
+        }
+
+        @Override
+        public List<Projection> apply(List<Projection> input) {
+            if (criteria.isEmpty()) {
+                return input;
+            }
+            List<Projection> matching = new ArrayList<Projection>();
+            for (Projection projection : input) {
+                if (matchesAll(projection)) {
+                    matching.add(projection);
+                }
+            }
+            return matching;
+        }
+
+        private boolean matchesAll(Projection projection) {
+            for (Criteria element : criteria) {
+                if (!element.apply(projection)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Finds criteria on the fields of referenced instances, which can only be
+     * checked once they have been joined.
+     */
+    private static class NestedFieldFinder extends CriteriaVisitor {
+
+        private boolean nested = false;
+
+        public static boolean isNested(Criteria criteria) {
+            NestedFieldFinder finder = new NestedFieldFinder();
+            criteria.accept(finder);
+            return finder.nested;
+        }
+
+        @Override
+        public void visitFieldCriteria(FieldCriteria criteria) {
+            if (criteria.getFieldPath().isNested()) {
+                nested = true;
+            }
+        }
+
+        @Override
+        public void visitIntersection(CriteriaIntersection intersection) {
+            for (Criteria element : intersection.getElements()) {
+                element.accept(this);
+            }
+        }
+
+        @Override
+        public void visitUnion(CriteriaUnion union) {
+            for (Criteria element : union.getElements()) {
+                element.accept(this);
             }
         }
     }
@@ -9,13 +9,13 @@ import org.activityinfo.legacy.client.KeyGenerator;
 import org.activityinfo.legacy.shared.adapter.bindings.SiteBinding;
 import org.activityinfo.legacy.shared.adapter.bindings.SiteBindingFactory;
 import org.activityinfo.legacy.shared.command.*;
-import org.activityinfo.legacy.shared.command.result.BatchResult;
 import org.activityinfo.legacy.shared.command.result.CommandResult;
 import org.activityinfo.legacy.shared.model.AdminEntityDTO;
 import org.activityinfo.legacy.shared.model.AdminLevelDTO;
 import org.activityinfo.legacy.shared.model.LocationTypeDTO;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -46,14 +46,16 @@ public class SitePersister {
     }
 
     private Promise<? extends CommandResult> persist(SiteBinding siteBinding, FormInstance instance) {
+        return createCommand(siteBinding, instance).join(dispatcher);
+    }
 
-        Map<String, Object> siteProperties = siteBinding.toChangePropertyMap(instance);
-        siteProperties.put("activityId", siteBinding.getActivity().getId());
-        if (siteProperties.get("reportingPeriodId") == null) {  // indicators are not saved if report id is not set
-            siteProperties.put("reportingPeriodId", new KeyGenerator().generateInt());
-        }
+    /**
+     * Creates the command which persists the given instance, without executing it,
+     * so that the commands of many instances can be batched together.
+     */
+    public Promise<Command> createCommand(SiteBinding siteBinding, FormInstance instance) {
 
-        final CreateSite createSite = new CreateSite(siteProperties);
+        final CreateSite createSite = newCreateSite(siteBinding, instance);
 
         if (siteBinding.getLocationType().isAdminLevel()) {
             // we need to create the dummy location as well
@@ -62,16 +64,56 @@ public class SitePersister {
                                                      .then(new CreateDummyLocation(createSite.getLocationId(),
                                                              siteBinding.getLocationType()));
 
-            return createLocation.join(new Function<Command, Promise<BatchResult>>() {
+            return createLocation.then(new Function<Command, Command>() {
                 @Nullable @Override
-                public Promise<BatchResult> apply(@Nullable Command createLocation) {
-                    return dispatcher.execute(new BatchCommand(createLocation, createSite));
+                public Command apply(@Nullable Command createLocation) {
+                    return new BatchCommand(createLocation, createSite);
                 }
             });
 
         } else {
-            return dispatcher.execute(createSite);
+            return Promise.<Command>resolved(createSite);
+        }
+    }
+
+    /**
+     * Creates the command which persists the given instance, taking the admin entity of the site and its
+     * parents from {@code adminEntities} instead of fetching them, so that the entities of many
+     * instances can be fetched together.
+     *
+     * @param adminEntities the admin entities by id, including all the parents of the site's entity
+     */
+    public Command createCommand(SiteBinding siteBinding, FormInstance instance,
+                                 Map<Integer, AdminEntityDTO> adminEntities) {
+
+        CreateSite createSite = newCreateSite(siteBinding, instance);
+
+        if (siteBinding.getLocationType().isAdminLevel()) {
+            List<AdminEntityDTO> entities = new ArrayList<>();
+            Integer entityId = siteBinding.getAdminEntityId(instance);
+            while (entityId != null) {
+                AdminEntityDTO entity = adminEntities.get(entityId);
+                Preconditions.checkArgument(entity != null, "Admin entity %s was not fetched", entityId);
+                entities.add(entity);
+                entityId = entity.getParentId();
+            }
+            Command createLocation = new CreateDummyLocation(createSite.getLocationId(),
+                    siteBinding.getLocationType()).apply(entities);
+
+            return new BatchCommand(createLocation, createSite);
+
+        } else {
+            return createSite;
+        }
+    }
+
+    private CreateSite newCreateSite(SiteBinding siteBinding, FormInstance instance) {
+        Map<String, Object> siteProperties = siteBinding.toChangePropertyMap(instance);
+        siteProperties.put("activityId", siteBinding.getActivity().getId());
+        if (siteProperties.get("reportingPeriodId") == null) {  // indicators are not saved if report id is not set
+            siteProperties.put("reportingPeriodId", new KeyGenerator().generateInt());
         }
+        return new CreateSite(siteProperties);
     }
 
     private class FetchEntityFunction implements Function<Integer, Promise<List<AdminEntityDTO>>> {
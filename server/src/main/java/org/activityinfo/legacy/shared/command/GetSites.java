@@ -38,6 +38,7 @@ public class GetSites extends PagingGetCommand<SiteResult> implements Cloneable
     private Filter filter = new Filter();
 
     private Integer seekToSiteId;
+    private Integer afterSiteId;
     private boolean fetchAttributes = true;
     private boolean fetchAllIndicators = true;
     private Set<Integer> fetchIndicators;
@@ -120,6 +121,9 @@ public class GetSites extends PagingGetCommand<SiteResult> implements Cloneable
         if (seekToSiteId != null) {
             sb.append("seektoid=").append(seekToSiteId);
         }
+        if (afterSiteId != null) {
+            sb.append(", after=").append(afterSiteId);
+        }
         if (filter != null) {
             sb.append(", filter=").append(filter.toString());
         }
@@ -145,6 +149,9 @@ public class GetSites extends PagingGetCommand<SiteResult> implements Cloneable
         if (seekToSiteId != null ? !seekToSiteId.equals(getSites.seekToSiteId) : getSites.seekToSiteId != null) {
             return false;
         }
+        if (afterSiteId != null ? !afterSiteId.equals(getSites.afterSiteId) : getSites.afterSiteId != null) {
+            return false;
+        }
         return true;
     }
 
@@ -152,6 +159,7 @@ public class GetSites extends PagingGetCommand<SiteResult> implements Cloneable
     public int hashCode() {
         int result = filter.hashCode();
         result = 31 * result + (seekToSiteId != null ? seekToSiteId.hashCode() : 0);
+        result = 31 * result + (afterSiteId != null ? afterSiteId.hashCode() : 0);
         return result;
     }
 
@@ -203,6 +211,19 @@ public class GetSites extends PagingGetCommand<SiteResult> implements Cloneable
         this.seekToSiteId = seekToSiteId;
     }
 
+    public Integer getAfterSiteId() {
+        return afterSiteId;
+    }
+
+    /**
+     * Restricts the results to sites with an id greater than {@code afterSiteId}. Combined with
+     * sorting on "SiteId" and a limit, this pages through large result sets without the cost
+     * of an ever growing offset.
+     */
+    public void setAfterSiteId(Integer afterSiteId) {
+        this.afterSiteId = afterSiteId;
+    }
+
     public boolean isFetchAttributes() {
         return fetchAttributes;
     }
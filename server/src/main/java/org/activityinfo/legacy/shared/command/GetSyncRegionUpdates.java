@@ -27,6 +27,7 @@ import org.activityinfo.legacy.shared.command.result.SyncRegionUpdate;
 public class GetSyncRegionUpdates implements Command<SyncRegionUpdate> {
     private String regionId;
     private String localVersion;
+    private boolean columnar;
 
     public GetSyncRegionUpdates() {
     }
@@ -51,4 +52,16 @@ public class GetSyncRegionUpdates implements Command<SyncRegionUpdate> {
     public void setLocalVersion(String localVersion) {
         this.localVersion = localVersion;
     }
+
+    /**
+     * @return true if inserted rows should be returned as {@link org.activityinfo.legacy.shared.command.result.SyncTable}s
+     * rather than as SQL statements
+     */
+    public boolean isColumnar() {
+        return columnar;
+    }
+
+    public void setColumnar(boolean columnar) {
+        this.columnar = columnar;
+    }
 }
@@ -0,0 +1,66 @@
+package org.activityinfo.legacy.shared.command;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.activityinfo.legacy.shared.command.result.SyncRegionUpdateBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fetches the updates of several sync regions in a single round trip.
+ * <p/>
+ * The regions are updated in order until the estimated size of the updates reaches
+ * {@link #getMaxBytes()}, so the result may hold fewer updates than requested, but
+ * never none. The regions which were not updated should be requested again.
+ */
+public class GetSyncRegionUpdatesBatch implements Command<SyncRegionUpdateBatch> {
+
+    public static final int DEFAULT_MAX_BYTES = 512 * 1024;
+
+    private List<GetSyncRegionUpdates> requests = new ArrayList<GetSyncRegionUpdates>();
+    private int maxBytes = DEFAULT_MAX_BYTES;
+
+    public GetSyncRegionUpdatesBatch() {
+    }
+
+    public List<GetSyncRegionUpdates> getRequests() {
+        return requests;
+    }
+
+    public void setRequests(List<GetSyncRegionUpdates> requests) {
+        this.requests = requests;
+    }
+
+    public void add(GetSyncRegionUpdates request) {
+        requests.add(request);
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+}
@@ -31,6 +31,8 @@ public class SearchLocations implements Command<LocationResult> {
     private String name;
     private int threshold = 300;
     private int locationTypeId = 0;
+    private int offset = 0;
+    private int limit = 0;
 
     public int getThreshold() {
         return threshold;
@@ -62,4 +64,26 @@ public class SearchLocations implements Command<LocationResult> {
         this.locationTypeId = locationTypeId;
         return this;
     }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public SearchLocations setOffset(int offset) {
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of locations to return, or zero to return no locations at all
+     * if there are too many matches to be listed
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public SearchLocations setLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
 }
@@ -0,0 +1,250 @@
+package org.activityinfo.legacy.shared.command.result;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single column of a {@link SyncTable}.
+ *
+ * <p>Integers are delta-encoded against the previous non-null value in the column, so that
+ * ascending ids serialize as small numbers; reals are delta-encoded in the same way when they are
+ * all integral, which is the case for timestamps. Text is dictionary-encoded, each distinct
+ * value being sent only once.</p>
+ */
+public class SyncColumn implements Serializable {
+
+    public static final int INTEGER = 1;
+    public static final int REAL = 2;
+    public static final int TEXT = 3;
+
+    /**
+     * Largest magnitude at which every integer is exactly representable as a double
+     */
+    private static final double MAX_EXACT_INTEGER = 9007199254740992d;
+
+    private String name;
+    private int type;
+
+    /**
+     * For integer and real columns, true for each row which is null; or null if no row is null.
+     */
+    private boolean[] nulls;
+
+    private int[] integers;
+    private double[] reals;
+    private boolean deltaEncoded;
+
+    private String[] dictionary;
+
+    /**
+     * Index of each row's value in the dictionary, or -1 if the row is null
+     */
+    private int[] codes;
+
+    public SyncColumn() {
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public static SyncColumn integers(String name, List<Integer> values) {
+        SyncColumn column = new SyncColumn();
+        column.name = name;
+        column.type = INTEGER;
+        column.nulls = nulls(values);
+        column.integers = new int[values.size()];
+
+        int previous = 0;
+        for (int i = 0; i != values.size(); ++i) {
+            Integer value = values.get(i);
+            if (value != null) {
+                column.integers[i] = value - previous;
+                previous = value;
+            }
+        }
+        return column;
+    }
+
+    public static SyncColumn reals(String name, List<Double> values) {
+        SyncColumn column = new SyncColumn();
+        column.name = name;
+        column.type = REAL;
+        column.nulls = nulls(values);
+        column.reals = new double[values.size()];
+        column.deltaEncoded = allIntegral(values);
+
+        double previous = 0;
+        for (int i = 0; i != values.size(); ++i) {
+            Double value = values.get(i);
+            if (value != null) {
+                if (column.deltaEncoded) {
+                    column.reals[i] = value - previous;
+                    previous = value;
+                } else {
+                    column.reals[i] = value;
+                }
+            }
+        }
+        return column;
+    }
+
+    public static SyncColumn text(String name, List<String> values) {
+        SyncColumn column = new SyncColumn();
+        column.name = name;
+        column.type = TEXT;
+        column.codes = new int[values.size()];
+
+        Map<String, Integer> index = new HashMap<String, Integer>();
+        for (int i = 0; i != values.size(); ++i) {
+            String value = values.get(i);
+            if (value == null) {
+                column.codes[i] = -1;
+            } else {
+                Integer code = index.get(value);
+                if (code == null) {
+                    code = index.size();
+                    index.put(value, code);
+                }
+                column.codes[i] = code;
+            }
+        }
+        column.dictionary = new String[index.size()];
+        for (Map.Entry<String, Integer> entry : index.entrySet()) {
+            column.dictionary[entry.getValue()] = entry.getKey();
+        }
+        return column;
+    }
+
+    /**
+     * @return a rough estimate of the size of this column once serialized, in bytes
+     */
+    public int estimateSize() {
+        int size = name.length();
+        if (nulls != null) {
+            size += nulls.length;
+        }
+        if (integers != null) {
+            size += integers.length * 4;
+        }
+        if (reals != null) {
+            size += reals.length * 8;
+        }
+        if (codes != null) {
+            size += codes.length * 4;
+        }
+        if (dictionary != null) {
+            for (String value : dictionary) {
+                size += value.length() * 2;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the values of this column, as {@code Integer}s, {@code Double}s or {@code String}s
+     */
+    public Object[] decode() {
+        switch (type) {
+            case INTEGER:
+                return decodeIntegers();
+            case REAL:
+                return decodeReals();
+            case TEXT:
+                return decodeText();
+        }
+        throw new IllegalStateException("type: " + type);
+    }
+
+    private Object[] decodeIntegers() {
+        Object[] values = new Object[integers.length];
+        int value = 0;
+        for (int i = 0; i != integers.length; ++i) {
+            if (!isNull(i)) {
+                value += integers[i];
+                values[i] = value;
+            }
+        }
+        return values;
+    }
+
+    private Object[] decodeReals() {
+        Object[] values = new Object[reals.length];
+        double value = 0;
+        for (int i = 0; i != reals.length; ++i) {
+            if (!isNull(i)) {
+                if (deltaEncoded) {
+                    value += reals[i];
+                    values[i] = value;
+                } else {
+                    values[i] = reals[i];
+                }
+            }
+        }
+        return values;
+    }
+
+    private Object[] decodeText() {
+        Object[] values = new Object[codes.length];
+        for (int i = 0; i != codes.length; ++i) {
+            if (codes[i] != -1) {
+                values[i] = dictionary[codes[i]];
+            }
+        }
+        return values;
+    }
+
+    private boolean isNull(int row) {
+        return nulls != null && nulls[row];
+    }
+
+    private static boolean[] nulls(List<?> values) {
+        boolean[] nulls = null;
+        for (int i = 0; i != values.size(); ++i) {
+            if (values.get(i) == null) {
+                if (nulls == null) {
+                    nulls = new boolean[values.size()];
+                }
+                nulls[i] = true;
+            }
+        }
+        return nulls;
+    }
+
+    private static boolean allIntegral(List<Double> values) {
+        for (Double value : values) {
+            if (value != null && (Math.floor(value) != value || Math.abs(value) > MAX_EXACT_INTEGER)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -22,6 +22,9 @@ package org.activityinfo.legacy.shared.command.result;
  * #L%
  */
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author Alex Bertram
  */
@@ -30,6 +33,8 @@ public class SyncRegionUpdate implements CommandResult {
     private String version;
     private boolean complete;
     private String sql;
+    private List<String> statements = new ArrayList<String>();
+    private List<SyncTable> tables = new ArrayList<SyncTable>();
 
     public SyncRegionUpdate() {
     }
@@ -50,6 +55,45 @@ public class SyncRegionUpdate implements CommandResult {
         this.sql = sql;
     }
 
+    /**
+     * @return the statements to execute before inserting the {@link #getTables() tables}, in the same
+     * transaction. Only populated if the client requested the columnar format, in which case
+     * {@link #getSql()} is null.
+     */
+    public List<String> getStatements() {
+        return statements;
+    }
+
+    public void setStatements(List<String> statements) {
+        this.statements = statements;
+    }
+
+    /**
+     * @return rows to insert once the {@link #getStatements() statements} have been executed.
+     * Only populated if the client requested the columnar format.
+     */
+    public List<SyncTable> getTables() {
+        return tables;
+    }
+
+    public void setTables(List<SyncTable> tables) {
+        this.tables = tables;
+    }
+
+    /**
+     * @return a rough estimate of the size of this update once serialized, in bytes
+     */
+    public int estimateSize() {
+        int size = sql == null ? 0 : sql.length() * 2;
+        for (String statement : statements) {
+            size += statement.length() * 2;
+        }
+        for (SyncTable table : tables) {
+            size += table.estimateSize();
+        }
+        return size;
+    }
+
     public boolean isComplete() {
         return complete;
     }
@@ -0,0 +1,139 @@
+package org.activityinfo.legacy.shared.command.result;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rows to insert into (or replace in) a table of the client's local database,
+ * stored column by column.
+ */
+public class SyncTable implements Serializable {
+
+    private String tableName;
+    private int rowCount;
+    private List<SyncColumn> columns = new ArrayList<SyncColumn>();
+
+    public SyncTable() {
+    }
+
+    public SyncTable(String tableName, int rowCount) {
+        this.tableName = tableName;
+        this.rowCount = rowCount;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public List<SyncColumn> getColumns() {
+        return columns;
+    }
+
+    public void addColumn(SyncColumn column) {
+        columns.add(column);
+    }
+
+    /**
+     * @return a rough estimate of the size of this table once serialized, in bytes
+     */
+    public int estimateSize() {
+        int size = tableName.length();
+        for (SyncColumn column : columns) {
+            size += column.estimateSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return the parameterized statement which inserts a single row
+     */
+    public String insertStatement() {
+        StringBuilder sql = new StringBuilder();
+        sql.append("INSERT OR REPLACE INTO ").append(tableName).append(" (");
+        for (int i = 0; i != columns.size(); ++i) {
+            if (i > 0) {
+                sql.append(",");
+            }
+            sql.append(columns.get(i).getName());
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i != columns.size(); ++i) {
+            if (i > 0) {
+                sql.append(",");
+            }
+            sql.append("?");
+        }
+        sql.append(")");
+        return sql.toString();
+    }
+
+    /**
+     * @return the parameterized statement which inserts {@code rowCount} rows at once, as a compound
+     * select which, unlike a multi-row VALUES clause, older versions of SQLite also accept
+     */
+    public String insertStatement(int rowCount) {
+        if (rowCount == 1) {
+            return insertStatement();
+        }
+        StringBuilder sql = new StringBuilder();
+        sql.append("INSERT OR REPLACE INTO ").append(tableName).append(" (");
+        for (int i = 0; i != columns.size(); ++i) {
+            if (i > 0) {
+                sql.append(",");
+            }
+            sql.append(columns.get(i).getName());
+        }
+        sql.append(")");
+        for (int row = 0; row != rowCount; ++row) {
+            sql.append(row == 0 ? " SELECT " : " UNION ALL SELECT ");
+            for (int i = 0; i != columns.size(); ++i) {
+                if (i > 0) {
+                    sql.append(",");
+                }
+                sql.append("?");
+            }
+        }
+        return sql.toString();
+    }
+
+    /**
+     * @return the rows of this table, each as an array of statement parameters
+     */
+    public Object[][] decodeRows() {
+        Object[][] rows = new Object[rowCount][columns.size()];
+        for (int j = 0; j != columns.size(); ++j) {
+            Object[] values = columns.get(j).decode();
+            for (int i = 0; i != rowCount; ++i) {
+                rows[i][j] = values[i];
+            }
+        }
+        return rows;
+    }
+}
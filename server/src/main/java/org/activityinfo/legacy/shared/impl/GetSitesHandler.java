@@ -90,7 +90,7 @@ public class GetSitesHandler implements CommandHandlerAsync<GetSites, SiteResult
             unioned = primaryQuery(context, command);
         }
 
-        if (isMySql() && command.getLimit() >= 0) {
+        if (isMySql() && command.getLimit() >= 0 && command.getAfterSiteId() == null) {
             // with this feature, MySQL will keep track of the total
             // number of rows regardless of our limit statement.
             // This way we don't have to execute the query twice to
@@ -134,7 +134,9 @@ public class GetSitesHandler implements CommandHandlerAsync<GetSites, SiteResult
 
                 List<Promise<Void>> queries = Lists.newArrayList();
 
-                if (command.getLimit() <= 0) {
+                // the total length is not computed when paging by site id, as that would
+                // cost a scan of all the remaining sites for each page
+                if (command.getLimit() <= 0 || command.getAfterSiteId() != null) {
                     result.setTotalLength(results.getRows().size());
                 } else {
                     queries.add(queryTotalLength(tx, command, context, result));
@@ -178,7 +180,11 @@ public class GetSitesHandler implements CommandHandlerAsync<GetSites, SiteResult
         return union.toString();
     }
 
-    private SqlQuery primaryQuery(ExecutionContext context, GetSites command) {
+    /**
+     * Builds the query for the sites (or reporting periods) of the command's own
+     * activities, with permissions and filter applied but without sorting or paging.
+     */
+    public SqlQuery primaryQuery(ExecutionContext context, GetSites command) {
         SqlQuery query = SqlQuery.select()
                 .appendColumn("site.SiteId")
                 .appendColumn("(0)", "Linked")
@@ -243,6 +249,7 @@ public class GetSitesHandler implements CommandHandlerAsync<GetSites, SiteResult
 
         applyPermissions(query, context);
         applyFilter(query, command.getFilter());
+        applyKeyset(query, command);
 
         Optional<Integer> adminLevelId = adminLevelId(command.getSortInfo().getSortField());
          if (command.isFetchAdminEntities() && adminLevelId.isPresent() ) {
@@ -359,10 +366,17 @@ public class GetSitesHandler implements CommandHandlerAsync<GetSites, SiteResult
 
         applyPermissions(query, context);
         applyFilter(query, command.getFilter());
+        applyKeyset(query, command);
 
         return query;
     }
 
+    private void applyKeyset(SqlQuery query, GetSites command) {
+        if (command.getAfterSiteId() != null) {
+            query.where("site.SiteId").greaterThan(command.getAfterSiteId());
+        }
+    }
+
     private void applyPaging(final SqlQuery query, GetSites command) {
         if (command.getOffset() > 0 || command.getLimit() > 0) {
             query.setLimitClause(dialect.limitClause(command.getOffset(), command.getLimit()));
@@ -397,6 +411,8 @@ public class GetSitesHandler implements CommandHandlerAsync<GetSites, SiteResult
 
             if (field.equals("date1")) {
                 query.orderBy("Date1", ascending);
+            } else if (field.equals("SiteId")) {
+                query.orderBy("SiteId", ascending);
             } else if (field.equals("date2")) {
                 query.orderBy("Date2", ascending);
             } else if (field.equals("locationName")) {
@@ -3,40 +3,75 @@ package org.activityinfo.legacy.shared.impl;
 import com.bedatadriven.rebar.sql.client.SqlResultSet;
 import com.bedatadriven.rebar.sql.client.SqlResultSetRow;
 import com.google.common.base.Strings;
-import com.google.common.base.Supplier;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.activityinfo.core.shared.expr.*;
 import org.activityinfo.legacy.shared.Log;
 import org.activityinfo.legacy.shared.adapter.CuidAdapter;
+import org.activityinfo.legacy.shared.model.IndicatorDTO;
 import org.activityinfo.legacy.shared.model.SiteDTO;
 
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
-class IndicatorSymbolResolver implements PlaceholderExprResolver {
+/**
+ * Populates the calculated indicators of an activity's sites.
+ *
+ * <p>Each indicator of the activity is assigned a slot in a {@code double[]}, and the
+ * expressions of the calculated indicators are parsed and compiled against these slots
+ * once, when the resolver is constructed. Calculated indicators are ordered so that
+ * those referring to other calculated indicators are evaluated after them; expressions
+ * which cannot be parsed, refer to unknown indicators, or take part in a circular
+ * reference are invalid, and their value is always {@code null}.</p>
+ *
+ * <p>Populating a site then only needs to copy its values into the slot array and
+ * evaluate the compiled expressions in order.</p>
+ */
+public class IndicatorSymbolResolver {
+
+    private static final Logger LOGGER = Logger.getLogger(IndicatorSymbolResolver.class.getName());
 
     private SiteDTO site;
     private int activityId;
 
-    private Map<String, Supplier<Double>> symbolMap = Maps.newHashMap();
-    private List<Runnable> calculatedValueUpdaters = Lists.newArrayList();
+    private final Map<String, Integer> symbolMap = Maps.newHashMap();
+    private final List<Integer> indicatorIds = Lists.newArrayList();
+    private final List<Calculation> calculations = Lists.newArrayList();
 
-    private static final Logger LOGGER = Logger.getLogger(IndicatorSymbolResolver.class.getName());
+    /**
+     * Slots of the non-calculated indicators which are referred to by valid expressions
+     */
+    private int[] inputSlots;
+    private Calculation[] evaluationOrder;
+    private double[] slots;
 
     public IndicatorSymbolResolver(int activityId, SqlResultSet results) {
         this.activityId = activityId;
         for (final SqlResultSetRow indicatorRow : results.getRows()) {
             if(indicatorRow.getInt("ActivityId") == activityId) {
-                String expression = isCalculated(indicatorRow);
-                if(expression == null) {
-                    addStaticValue(indicatorRow);
-                } else {
-                    addCalculatedIndicator(indicatorRow, expression);
-                }
+                addSlot(indicatorRow.getInt("IndicatorId"),
+                        indicatorRow.<String>get("nameInExpression"),
+                        isCalculated(indicatorRow));
             }
         }
+        this.slots = new double[indicatorIds.size()];
+        compile();
+    }
+
+    /**
+     * Creates a resolver over the given indicators, with the slot of each indicator being its
+     * position in the list.
+     */
+    public IndicatorSymbolResolver(int activityId, List<IndicatorDTO> indicators) {
+        this.activityId = activityId;
+        for (IndicatorDTO indicator : indicators) {
+            addSlot(indicator.getId(),
+                    indicator.getNameInExpression(),
+                    isCalculated(indicator));
+        }
+        this.slots = new double[indicatorIds.size()];
+        compile();
     }
 
     public int getActivityId() {
@@ -47,31 +82,65 @@ class IndicatorSymbolResolver implements PlaceholderExprResolver {
         this.site = site;
     }
 
-    private void addStaticValue(SqlResultSetRow indicatorRow) {
-        add(indicatorRow, new StaticValue(indicatorRow.getInt("IndicatorId")));
+    public void populateCalculatedIndicators() {
+        for (int slot : inputSlots) {
+            Double value = site.getIndicatorDoubleValue(indicatorIds.get(slot));
+            // workaround until we have default values
+            slots[slot] = value == null ? 0d : value;
+        }
+        for (Calculation calculation : evaluationOrder) {
+            slots[calculation.slot] = calculation.compiled.evaluate(slots);
+            site.setIndicatorValue(indicatorIds.get(calculation.slot), slots[calculation.slot]);
+        }
+        for (Calculation calculation : calculations) {
+            if (calculation.invalid) {
+                site.setIndicatorValue(indicatorIds.get(calculation.slot), null);
+            }
+        }
     }
 
-    private void addCalculatedIndicator(SqlResultSetRow indicatorRow, String expression) {
-        CalculatedValue value = new CalculatedValue(expression);
-        add(indicatorRow, value);
-        calculatedValueUpdaters.add(
-                new CalculatedValueUpdater(
-                        indicatorRow.getInt("IndicatorId"), value));
+    /**
+     * Evaluates the calculated indicators in place, given the values of the other indicators
+     * at their slots. Calculations which are invalid evaluate to {@code NaN}.
+     */
+    public void calculate(double[] values) {
+        for (Calculation calculation : evaluationOrder) {
+            values[calculation.slot] = calculation.compiled.evaluate(values);
+        }
+        for (Calculation calculation : calculations) {
+            if (calculation.invalid) {
+                values[calculation.slot] = Double.NaN;
+            }
+        }
     }
 
-    public void populateCalculatedIndicators() {
-        for(Runnable updaters : calculatedValueUpdaters) {
-            updaters.run();
+    public boolean isCalculated(int slot) {
+        for (Calculation calculation : calculations) {
+            if (calculation.slot == slot) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private void add(SqlResultSetRow indicatorRow, Supplier<Double> value) {
-        int indicatorId = indicatorRow.getInt("IndicatorId");
-        symbolMap.put(CuidAdapter.indicatorField(indicatorId).asString(), value);
+    private void addSlot(int indicatorId, String code, String expression) {
+        int slot = indicatorIds.size();
+        indicatorIds.add(indicatorId);
+        symbolMap.put(CuidAdapter.indicatorField(indicatorId).asString(), slot);
 
-        String code = indicatorRow.get("nameInExpression");
         if (!Strings.isNullOrEmpty(code)) {
-            symbolMap.put(code, value);
+            symbolMap.put(code, slot);
+        }
+        if (expression != null) {
+            calculations.add(new Calculation(slot, expression));
+        }
+    }
+
+    private String isCalculated(IndicatorDTO indicator) {
+        if (Boolean.TRUE.equals(indicator.getCalculatedAutomatically()) && indicator.isCalculated()) {
+            return indicator.getExpression();
+        } else {
+            return null;
         }
     }
 
@@ -85,94 +154,106 @@ class IndicatorSymbolResolver implements PlaceholderExprResolver {
         }
     }
 
-
-    @Override
-    public void resolve(PlaceholderExpr placeholderExpr) {
-        String symbol = placeholderExpr.getPlaceholderObj().getPlaceholder();
-        Supplier<Double> value = symbolMap.get(symbol);
-
-        if(value == null) {
-            throw new UnsupportedOperationException("Placeholder is not supported: " + placeholderExpr);
-
-        } else {
-            placeholderExpr.setValue(value.get());
+    /**
+     * Orders the calculations so that each is evaluated after the calculated indicators
+     * it refers to, and collects the slots which must be loaded from the site.
+     */
+    private void compile() {
+        Calculation[] bySlot = new Calculation[slots.length];
+        for (Calculation calculation : calculations) {
+            calculation.parse();
+            bySlot[calculation.slot] = calculation;
         }
-    }
 
-    private class CalculatedValue implements Supplier<Double> {
+        List<Calculation> ordered = Lists.newArrayList();
+        boolean[] evaluated = new boolean[slots.length];
+        boolean[] input = new boolean[slots.length];
 
-        private ExprNode expr;
-        private boolean calculating = false;
-        private boolean invalid = false;
-
-        private CalculatedValue(String expression) {
-            try {
-                ExprParser parser = new ExprParser(new ExprLexer(expression), IndicatorSymbolResolver.this);
-                expr = parser.parse();
-
-            } catch (Exception e) {
-                Log.error(e.getMessage());
-                invalid = true;
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Calculation calculation : calculations) {
+                if (calculation.invalid || evaluated[calculation.slot]) {
+                    continue;
+                }
+                boolean ready = true;
+                for (int dependency : calculation.dependencies) {
+                    Calculation other = bySlot[dependency];
+                    if (other != null && other.invalid) {
+                        calculation.invalid = true;
+                        progress = true;
+                        break;
+                    } else if (other != null && !evaluated[dependency]) {
+                        ready = false;
+                    }
+                }
+                if (ready && !calculation.invalid) {
+                    evaluated[calculation.slot] = true;
+                    ordered.add(calculation);
+                    progress = true;
+                }
             }
         }
 
-        @Override
-        public Double get() {
-            if(invalid) {
-                return null;
+        // Whatever remains takes part in, or depends on, a circular reference
+        for (Calculation calculation : calculations) {
+            if (!calculation.invalid && !evaluated[calculation.slot]) {
+                LOGGER.warning("Circular reference : " + calculation.expression);
+                calculation.invalid = true;
             }
+        }
 
-            if(calculating) {
-                invalid = true;
-                LOGGER.warning("Circular reference : " + expr);
-                return null;
+        int inputCount = 0;
+        for (Calculation calculation : ordered) {
+            for (int dependency : calculation.dependencies) {
+                if (bySlot[dependency] == null && !input[dependency]) {
+                    input[dependency] = true;
+                    inputCount++;
+                }
             }
-            try {
-                calculating = true;
-                return expr.evalReal();
-            } catch(Exception e) {
-                LOGGER.severe("Expression calculating " + expr);
-                invalid = true;
-                return null;
-            } finally {
-                calculating = false;
+        }
+        inputSlots = new int[inputCount];
+        for (int slot = 0, i = 0; slot != slots.length; ++slot) {
+            if (input[slot]) {
+                inputSlots[i++] = slot;
             }
         }
+        evaluationOrder = ordered.toArray(new Calculation[ordered.size()]);
     }
 
-    private class CalculatedValueUpdater implements Runnable {
+    private class Calculation {
 
-        private int integerId;
-        private Supplier<Double> value;
-
-        private CalculatedValueUpdater(int integerId, Supplier<Double> value) {
-            this.integerId = integerId;
-            this.value = value;
-        }
+        private final int slot;
+        private final String expression;
+        private final List<Integer> dependencies = Lists.newArrayList();
+        private CompiledExpr compiled;
+        private boolean invalid = false;
 
-        @Override
-        public void run() {
-            site.setIndicatorValue(integerId, value.get());
+        private Calculation(int slot, String expression) {
+            this.slot = slot;
+            this.expression = expression;
         }
-    }
-
-    private class StaticValue implements Supplier<Double> {
 
-        private final int indicatorId;
-
-        private StaticValue(int indicatorId) {
-            this.indicatorId = indicatorId;
-        }
+        private void parse() {
+            try {
+                ExprParser parser = new ExprParser(new ExprLexer(expression));
+                ExprNode expr = parser.parse();
+                compiled = new ExprCompiler(new ExprCompiler.SlotResolver() {
+                    @Override
+                    public int getSlot(String placeholder) {
+                        Integer slot = symbolMap.get(placeholder);
+                        if (slot == null) {
+                            throw new UnsupportedOperationException("Placeholder is not supported: " + placeholder);
+                        }
+                        dependencies.add(slot);
+                        return slot;
+                    }
+                }).compile(expr);
 
-        @Override
-        public Double get() {
-            Double value = site.getIndicatorDoubleValue(indicatorId);
-            if(value == null) {
-                return 0d; // workaround until we have default values
-            } else {
-                return value;
+            } catch (Exception e) {
+                Log.error(e.getMessage());
+                invalid = true;
             }
         }
     }
-
 }
@@ -73,18 +73,18 @@ public class PivotSitesHandler implements CommandHandlerAsync<PivotSites, PivotS
             return;
         }
 
-        final PivotQueryContext queryContext = new PivotQueryContext(command, context, dialect);
+        final PivotQueryContext queryContext = createQueryContext(command, context);
 
         final List<WorkItem> workList = Lists.newArrayList();
 
         for (BaseTable baseTable : baseTables) {
             if (baseTable.accept(command)) {
-                workList.add(new PivotQuery(queryContext, baseTable));
+                workList.add(createQuery(queryContext, baseTable));
             }
         }
 
         if(command.isPivotedBy(DimensionType.Indicator)) {
-            workList.add(new ErrorLoggingWorkItem(new CalculatedIndicatorsQuery(queryContext)));
+            workList.add(new ErrorLoggingWorkItem(createCalculatedIndicatorsQuery(queryContext)));
         }
 
         if (workList.isEmpty()) {
@@ -122,6 +122,24 @@ public class PivotSitesHandler implements CommandHandlerAsync<PivotSites, PivotS
         }
     }
 
+    protected PivotQueryContext createQueryContext(PivotSites command, ExecutionContext context) {
+        return new PivotQueryContext(command, context, dialect);
+    }
+
+    /**
+     * Creates the {@code WorkItem} which aggregates the given base table. By default,
+     * the query is executed on the command's own transaction, but server-side subclasses
+     * may execute it elsewhere, provided that the resulting buckets are added to the
+     * {@code queryContext} before the work item's callback is invoked.
+     */
+    protected WorkItem createQuery(PivotQueryContext queryContext, BaseTable baseTable) {
+        return new PivotQuery(queryContext, baseTable);
+    }
+
+    protected WorkItem createCalculatedIndicatorsQuery(PivotQueryContext queryContext) {
+        return new CalculatedIndicatorsQuery(queryContext);
+    }
+
     /**
      * Ensure that there is some filtering so that we don't burden the database
      * with a query that returns everything!
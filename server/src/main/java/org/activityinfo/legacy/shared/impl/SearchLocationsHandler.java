@@ -44,7 +44,7 @@ import java.util.Map;
 
 public class SearchLocationsHandler implements CommandHandlerAsync<SearchLocations, LocationResult> {
 
-    private static final int MAX_LOCATIONS = 26;
+    protected static final int MAX_LOCATIONS = 26;
 
     private final SqlDialect dialect;
 
@@ -65,13 +65,15 @@ public class SearchLocationsHandler implements CommandHandlerAsync<SearchLocatio
             @Override
             public void onSuccess(SqlTransaction tx, SqlResultSet results) {
                 int count = results.getRow(0).getInt("count");
-                if (count > MAX_LOCATIONS) {
+                if (command.getLimit() > 0) {
+                    retrieveLocations(command, context, count, callback);
+                } else if (count > MAX_LOCATIONS) {
                     LocationResult result = new LocationResult(new ArrayList<LocationDTO>());
                     result.setOffset(0);
                     result.setTotalLength(count);
                     callback.onSuccess(result);
                 } else {
-                    retrieveLocations(command, context, callback);
+                    retrieveLocations(command, context, count, callback);
                 }
             }
         });
@@ -79,9 +81,12 @@ public class SearchLocationsHandler implements CommandHandlerAsync<SearchLocatio
 
     private void retrieveLocations(final SearchLocations command,
                                    final ExecutionContext context,
+                                   final int count,
                                    final AsyncCallback<LocationResult> callback) {
+        final int offset = command.getLimit() > 0 ? command.getOffset() : 0;
+        int limit = command.getLimit() > 0 ? command.getLimit() : MAX_LOCATIONS;
         SqlQuery query = baseQuery(command).appendColumns("LocationId", "Name", "Axe", "X", "Y", "LocationTypeId")
-                                           .setLimitClause(dialect.limitClause(0, 26));
+                                           .setLimitClause(dialect.limitClause(offset, limit));
 
         query.execute(context.getTransaction(), new SqlResultCallback() {
             @Override
@@ -96,8 +101,8 @@ public class SearchLocationsHandler implements CommandHandlerAsync<SearchLocatio
                 }
 
                 LocationResult result = new LocationResult(locations);
-                result.setOffset(0);
-                result.setTotalLength(results.getRows().size());
+                result.setOffset(offset);
+                result.setTotalLength(count);
 
                 callback.onSuccess(result);
             }
@@ -53,6 +53,26 @@ public abstract class BaseTable {
 
     public abstract TargetCategory getTargetCategory();
 
+    /**
+     * Joins the admin entities of the given level to the query, under the
+     * given alias, with the columns AdminEntityId and Name
+     */
+    public void joinAdminLevel(SqlQuery query, int levelId, String tableAlias) {
+        query.from(new StringBuilder(" LEFT JOIN " +
+                                     "(SELECT L.LocationId, E.AdminEntityId, E.Name " +
+                                     "FROM locationadminlink L " +
+                                     "LEFT JOIN adminentity E ON (L.AdminEntityId=E.AdminEntityID) " +
+                                     "WHERE E.AdminLevelId=").append(levelId)
+                                                             .append(") AS ")
+                                                             .append(tableAlias)
+                                                             .append(" ON (")
+                                                             .append(getDimensionIdColumn(DimensionType.Location))
+                                                             .append(" =")
+                                                             .append(tableAlias)
+                                                             .append(".LocationId)")
+                                                             .toString());
+    }
+
     public SqlQuery createSqlQuery() {
         return new SqlQuery();
     }
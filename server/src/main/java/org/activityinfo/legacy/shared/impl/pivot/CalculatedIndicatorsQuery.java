@@ -200,7 +200,19 @@ public class CalculatedIndicatorsQuery implements WorkItem {
     }
 
     private void querySites() {
+        for (Dimension dim : query.getDimensions()) {
+            if (dim.getType() != DimensionType.Indicator) {
+                dimAccessors.add(createAccessor(dim));
+            }
+        }
+        querySites(createSitesQuery());
+    }
 
+    /**
+     * @return a GetSites command which fetches each reporting period of the sites
+     * to aggregate, with the properties required by the dimension accessors
+     */
+    protected GetSites createSitesQuery() {
         GetSites sitesQuery = new GetSites(composeSiteFilter());
         sitesQuery.setFetchAdminEntities( query.isPivotedBy(DimensionType.AdminLevel) );
         sitesQuery.setFetchAttributes(query.isPivotedBy(DimensionType.AttributeGroup));
@@ -214,13 +226,14 @@ public class CalculatedIndicatorsQuery implements WorkItem {
 
         sitesQuery.setLimit(-1);
 
+        return sitesQuery;
+    }
 
-        for (Dimension dim : query.getDimensions()) {
-            if (dim.getType() != DimensionType.Indicator) {
-                dimAccessors.add(createAccessor(dim));
-            }
-        }
-
+    /**
+     * Queries the sites and aggregates them, calling {@link #aggregateSite(SiteDTO, Map)}
+     * for each reporting period, and then either {@link #onAggregated()} or {@link #onFailure(Throwable)}
+     */
+    protected void querySites(GetSites sitesQuery) {
         queryContext.getExecutionContext().execute(sitesQuery, new AsyncCallback<SiteResult>() {
             @Override
             public void onFailure(Throwable caught) {
@@ -239,6 +252,25 @@ public class CalculatedIndicatorsQuery implements WorkItem {
         });
     }
 
+    protected final void onAggregated() {
+        callback.onSuccess(null);
+    }
+
+    protected final void onFailure(Throwable caught) {
+        callback.onFailure(caught);
+    }
+
+    protected PivotQueryContext getQueryContext() {
+        return queryContext;
+    }
+
+    protected Set<Integer> getActivityIds() {
+        return activityIds;
+    }
+
+    protected Set<Integer> getIndicatorIds() {
+        return indicatorIds;
+    }
 
     private Filter composeSiteFilter() {
         Filter siteFilter = new Filter();
@@ -290,39 +322,44 @@ public class CalculatedIndicatorsQuery implements WorkItem {
 
     private void aggregateSites(SiteResult result) {
 
-
         Map<BucketKey, Bucket> buckets = Maps.newHashMap();
 
         for(int i=0;i!=result.getTotalLength();++i) {
-            SiteDTO site = result.getData().get(i);
+            aggregateSite(result.getData().get(i), buckets);
+        }
+    }
 
-            // These dimensions apply to the site as a whole
-            DimensionCategory siteDims[] = new DimensionCategory[dimAccessors.size()];
-            for (int j = 0; j != dimAccessors.size(); ++j) {
-                siteDims[j] = dimAccessors.get(j).getCategory(site);
-            }
+    /**
+     * Adds the calculated indicator values of a single site (or reporting period)
+     * to the {@code buckets}, keyed by the site's categories.
+     */
+    protected void aggregateSite(SiteDTO site, Map<BucketKey, Bucket> buckets) {
 
-            // Now loop over each value
-            for(EntityCategory indicator : indicatorMap.values()) {
-                Double value = site.getIndicatorDoubleValue(indicator.getId());
-
-                if(value != null) {
-                    BucketKey key = new BucketKey(indicator, siteDims);
-                    Bucket bucket = buckets.get(key);
-                    if (bucket == null) {
-                        bucket = new Bucket();
-                        bucket.setCategory(INDICATOR_DIM, indicator);
-                        for (int j = 0; j != dimAccessors.size(); ++j) {
-                            bucket.setCategory(dimAccessors.get(j).getDimension(), siteDims[j]);
-                        }
-                        buckets.put(key, bucket);
-                        queryContext.addBucket(bucket);
+        // These dimensions apply to the site as a whole
+        DimensionCategory siteDims[] = new DimensionCategory[dimAccessors.size()];
+        for (int j = 0; j != dimAccessors.size(); ++j) {
+            siteDims[j] = dimAccessors.get(j).getCategory(site);
+        }
+
+        // Now loop over each value
+        for(EntityCategory indicator : indicatorMap.values()) {
+            Double value = site.getIndicatorDoubleValue(indicator.getId());
+
+            if(value != null) {
+                BucketKey key = new BucketKey(indicator, siteDims);
+                Bucket bucket = buckets.get(key);
+                if (bucket == null) {
+                    bucket = new Bucket();
+                    bucket.setCategory(INDICATOR_DIM, indicator);
+                    for (int j = 0; j != dimAccessors.size(); ++j) {
+                        bucket.setCategory(dimAccessors.get(j).getDimension(), siteDims[j]);
                     }
-                    bucket.appendValue(value);
+                    buckets.put(key, bucket);
+                    queryContext.addBucket(bucket);
                 }
+                bucket.appendValue(value);
             }
         }
-
     }
 
 }
@@ -63,6 +63,14 @@ public class PivotQuery implements WorkItem {
     private Set<String> dimColumns = Sets.newHashSet();
 
     public PivotQuery(PivotQueryContext context, BaseTable baseTable) {
+        this(context, baseTable, context.getExecutionContext().getTransaction());
+    }
+
+    /**
+     * Creates a new query which executes on the given transaction rather than on
+     * the execution context's own transaction.
+     */
+    public PivotQuery(PivotQueryContext context, BaseTable baseTable, SqlTransaction tx) {
         super();
         this.context = context;
         this.command = context.getCommand();
@@ -70,7 +78,7 @@ public class PivotQuery implements WorkItem {
         this.dimensions = context.getCommand().getDimensions();
         this.dialect = context.getDialect();
         this.userId = context.getExecutionContext().getUser().getUserId();
-        this.tx = context.getExecutionContext().getTransaction();
+        this.tx = tx;
         this.baseTable = baseTable;
 
         this.query = baseTable.createSqlQuery();
@@ -289,20 +297,7 @@ public class PivotQuery implements WorkItem {
 
                 String tableAlias = "AdminLevel" + adminDim.getLevelId();
 
-                query.from(new StringBuilder(" LEFT JOIN " +
-                                             "(SELECT L.LocationId, E.AdminEntityId, E.Name " +
-                                             "FROM locationadminlink L " +
-                                             "LEFT JOIN adminentity E ON (L.AdminEntityId=E.AdminEntityID) " +
-                                             "WHERE E.AdminLevelId=").append(adminDim.getLevelId())
-                                                                     .append(") AS ")
-                                                                     .append(tableAlias)
-                                                                     .append(" ON (")
-                                                                     .append(baseTable.getDimensionIdColumn(
-                                                                             DimensionType.Location))
-                                                                     .append(" =")
-                                                                     .append(tableAlias)
-                                                                     .append(".LocationId)")
-                                                                     .toString());
+                baseTable.joinAdminLevel(query, adminDim.getLevelId(), tableAlias);
 
                 addEntityDimension(dimension, tableAlias + ".AdminEntityId", tableAlias + ".Name");
 
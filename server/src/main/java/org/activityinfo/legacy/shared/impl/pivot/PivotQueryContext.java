@@ -66,6 +66,12 @@ public class PivotQueryContext {
         }
     }
 
+    public void addBuckets(Iterable<Bucket> buckets) {
+        for (Bucket bucket : buckets) {
+            addBucket(bucket);
+        }
+    }
+
     public List<Bucket> getBuckets() {
         return Lists.newArrayList(buckets.values());
     }
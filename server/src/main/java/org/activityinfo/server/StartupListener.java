@@ -28,6 +28,9 @@ import com.google.inject.servlet.GuiceServletContextListener;
 import org.activityinfo.server.attachment.AttachmentModule;
 import org.activityinfo.server.authentication.AuthenticationModule;
 import org.activityinfo.server.branding.BrandingModule;
+import org.activityinfo.server.command.handler.pivot.PivotModule;
+import org.activityinfo.server.command.handler.pivot.PivotCubeUpdater;
+import org.activityinfo.server.command.handler.pivot.PivotQueryExecutor;
 import org.activityinfo.server.database.ServerDatabaseModule;
 import org.activityinfo.server.database.hibernate.HibernateModule;
 import org.activityinfo.server.digest.DigestModule;
@@ -40,9 +43,11 @@ import org.activityinfo.server.endpoint.odk.ODKModule;
 import org.activityinfo.server.endpoint.rest.RestApiModule;
 import org.activityinfo.server.event.EventModule;
 import org.activityinfo.server.geo.GeometryModule;
+import org.activityinfo.server.importer.BulkImportService;
 import org.activityinfo.server.login.LoginModule;
 import org.activityinfo.server.mail.MailModule;
 import org.activityinfo.server.report.ReportModule;
+import org.activityinfo.server.table.TableModule;
 import org.activityinfo.server.util.TemplateModule;
 import org.activityinfo.server.util.blob.BlobServiceModule;
 import org.activityinfo.server.util.config.ConfigModule;
@@ -69,6 +74,19 @@ public class StartupListener extends GuiceServletContextListener {
 
     }
 
+    @Override
+    public void contextDestroyed(ServletContextEvent servletContextEvent) {
+        logger.info("ActivityInfo servlet context is shutting down");
+        Injector injector = (Injector) servletContextEvent.getServletContext()
+                .getAttribute(Injector.class.getName());
+        if (injector != null) {
+            injector.getInstance(PivotQueryExecutor.class).shutdown();
+            injector.getInstance(BulkImportService.class).shutdown();
+            injector.getInstance(PivotCubeUpdater.class).shutdown();
+        }
+        super.contextDestroyed(servletContextEvent);
+    }
+
     @Override
     protected Injector getInjector() {
 
@@ -78,6 +96,7 @@ public class StartupListener extends GuiceServletContextListener {
                 new TemplateModule(),
                 new MailModule(),
                 new ServerDatabaseModule(),
+                new PivotModule(),
                 new ContentModule(),
                 new GeometryModule(),
                 new AuthenticationModule(),
@@ -96,7 +115,8 @@ public class StartupListener extends GuiceServletContextListener {
                 new LocaleModule(),
                 new JaxRsModule(),
                 new RestApiModule(),
-                new ODKModule());
+                new ODKModule(),
+                new TableModule());
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+package org.activityinfo.server.command;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import org.activityinfo.legacy.client.remote.AbstractDispatcher;
+import org.activityinfo.legacy.shared.command.Command;
+import org.activityinfo.legacy.shared.command.result.CommandResult;
+
+/**
+ * Adapts a {@link DispatcherSync} to the asynchronous {@code Dispatcher} interface, so that
+ * shared code written against {@code Dispatcher} can be run on the server. Commands are
+ * executed immediately on the calling thread.
+ */
+public class DispatcherAdapter extends AbstractDispatcher {
+
+    private final DispatcherSync dispatcher;
+
+    public DispatcherAdapter(DispatcherSync dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public <T extends CommandResult> void execute(Command<T> command, AsyncCallback<T> callback) {
+        T result;
+        try {
+            result = dispatcher.execute(command);
+        } catch (Exception e) {
+            callback.onFailure(e);
+            return;
+        }
+        callback.onSuccess(result);
+    }
+}
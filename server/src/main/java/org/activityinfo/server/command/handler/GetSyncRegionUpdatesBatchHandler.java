@@ -0,0 +1,68 @@
+package org.activityinfo.server.command.handler;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.inject.Inject;
+import org.activityinfo.legacy.shared.command.GetSyncRegionUpdates;
+import org.activityinfo.legacy.shared.command.GetSyncRegionUpdatesBatch;
+import org.activityinfo.legacy.shared.command.result.CommandResult;
+import org.activityinfo.legacy.shared.command.result.SyncRegionUpdate;
+import org.activityinfo.legacy.shared.command.result.SyncRegionUpdateBatch;
+import org.activityinfo.legacy.shared.exception.CommandException;
+import org.activityinfo.server.database.hibernate.entity.User;
+
+import java.util.logging.Logger;
+
+/**
+ * @see org.activityinfo.legacy.shared.command.GetSyncRegionUpdatesBatch
+ */
+public class GetSyncRegionUpdatesBatchHandler implements CommandHandler<GetSyncRegionUpdatesBatch> {
+
+    private static final Logger LOGGER = Logger.getLogger(GetSyncRegionUpdatesBatchHandler.class.getName());
+
+    private final GetSyncRegionUpdatesHandler regionHandler;
+
+    @Inject
+    public GetSyncRegionUpdatesBatchHandler(GetSyncRegionUpdatesHandler regionHandler) {
+        this.regionHandler = regionHandler;
+    }
+
+    @Override
+    public CommandResult execute(GetSyncRegionUpdatesBatch cmd, User user) throws CommandException {
+        SyncRegionUpdateBatch batch = new SyncRegionUpdateBatch();
+        int size = 0;
+        for (GetSyncRegionUpdates request : cmd.getRequests()) {
+            if (!batch.getUpdates().isEmpty() && size >= cmd.getMaxBytes()) {
+                break;
+            }
+            SyncRegionUpdate update = (SyncRegionUpdate) regionHandler.execute(request, user);
+            batch.getUpdates().add(update);
+            size += update.estimateSize();
+        }
+
+        LOGGER.fine("Returning updates for " + batch.getUpdates().size() + " of " + cmd.getRequests().size() +
+                    " regions, about " + size + " bytes");
+
+        return batch;
+    }
+}
@@ -41,6 +41,13 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
+/**
+ * Lists the sync regions visible to the user with their current versions.
+ *
+ * <p>The versions of the form-submissions and location regions are read from the
+ * {@code syncregionversion} table, which triggers on the site and location tables keep up
+ * to date, rather than aggregated from the sites and locations on every poll.</p>
+ */
 public class GetSyncRegionsHandler implements CommandHandler<GetSyncRegions> {
 
     private EntityManager entityManager;
@@ -88,12 +95,12 @@ public class GetSyncRegionsHandler implements CommandHandler<GetSyncRegions> {
         List<SyncRegion> locationRegions = new ArrayList<SyncRegion>();
 
         if (CollectionUtil.isNotEmpty(countryIds)) {
-            List<Object[]> regions = entityManager.createNativeQuery("SELECT loc.LocationTypeId, MAX(loc.timeEdited) " +
-                    "FROM location loc " +
-                    "INNER JOIN locationtype t ON loc.LocationTypeId = t.LocationTypeId " +
-                    "WHERE loc.LocationId IN (SELECT LocationId FROM site WHERE dateDeleted is null) " +
+            List<Object[]> regions = entityManager.createNativeQuery("SELECT v.Id, v.Version " +
+                    "FROM syncregionversion v " +
+                    "INNER JOIN locationtype t ON v.Id = t.LocationTypeId " +
+                    "WHERE v.RegionType = 'location' " +
                     " AND t.countryId IN (:countries) " +
-                    "GROUP BY loc.LocationTypeId")
+                    "ORDER BY v.Id")
                     .setParameter("countries", countryIds)
                     .getResultList();
 
@@ -138,12 +145,12 @@ public class GetSyncRegionsHandler implements CommandHandler<GetSyncRegions> {
 
         if (CollectionUtil.isNotEmpty(databases)) {
             // do one sync region per form
-            List<Object[]> regions = entityManager.createQuery("SELECT " +
-                                                               "s.activity.id, " +
-                                                               "MAX(s.timeEdited) " +
-                                                               "FROM Site s " +
-                                                               "WHERE s.activity.database.id in (:dbs) " +
-                                                               "GROUP BY s.activity.id")
+            List<Object[]> regions = entityManager.createNativeQuery("SELECT v.Id, v.Version " +
+                                                                     "FROM syncregionversion v " +
+                                                                     "INNER JOIN activity a ON v.Id = a.ActivityId " +
+                                                                     "WHERE v.RegionType = 'form-submissions' " +
+                                                                     " AND a.DatabaseId IN (:dbs) " +
+                                                                     "ORDER BY v.Id")
                                                   .setParameter("dbs", databases)
                                                   .getResultList();
 
@@ -0,0 +1,88 @@
+package org.activityinfo.server.command.handler;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.bedatadriven.rebar.sql.client.query.SqlDialect;
+import com.google.common.collect.Lists;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.inject.Inject;
+import org.activityinfo.core.shared.workflow.Workflow;
+import org.activityinfo.legacy.shared.command.SearchLocations;
+import org.activityinfo.legacy.shared.command.result.LocationResult;
+import org.activityinfo.legacy.shared.impl.ExecutionContext;
+import org.activityinfo.legacy.shared.impl.SearchLocationsHandler;
+import org.activityinfo.legacy.shared.model.LocationDTO;
+import org.activityinfo.server.geo.LocationTypeIndex;
+import org.activityinfo.server.geo.PlaceNameIndex;
+
+import java.util.List;
+
+/**
+ * Searches the locations of a location type in the {@link PlaceNameIndex} rather than the database.
+ *
+ * <p>Unlike the SQL search, which is still used offline and when there is no location type, the
+ * name may match anywhere in the name or alternate name of a location, ignoring case and diacritics.</p>
+ */
+public class IndexedSearchLocationsHandler extends SearchLocationsHandler {
+
+    private final PlaceNameIndex placeNameIndex;
+
+    @Inject
+    public IndexedSearchLocationsHandler(SqlDialect dialect, PlaceNameIndex placeNameIndex) {
+        super(dialect);
+        this.placeNameIndex = placeNameIndex;
+    }
+
+    @Override
+    public void execute(SearchLocations command, ExecutionContext context, AsyncCallback<LocationResult> callback) {
+        if (command.getLocationTypeId() == 0) {
+            super.execute(command, context, callback);
+            return;
+        }
+
+        LocationTypeIndex index = placeNameIndex.getLocationType(command.getLocationTypeId());
+        boolean paged = command.getLimit() > 0;
+        int offset = paged ? command.getOffset() : 0;
+        LocationTypeIndex.SearchResult searchResult = index.search(command.getName(), command.getAdminEntityIds(),
+                Workflow.VALIDATED, offset, paged ? command.getLimit() : MAX_LOCATIONS);
+
+        List<LocationDTO> locations = Lists.newArrayList();
+        for (LocationTypeIndex.LocationEntry entry : searchResult.getLocations()) {
+            if (!paged && searchResult.getTotalCount() > MAX_LOCATIONS) {
+                // as the SQL search, list the locations only if there are few enough of them
+                break;
+            }
+            locations.add(new LocationDTO().setId(entry.getId())
+                                           .setName(entry.getName())
+                                           .setAxe(entry.getAxe())
+                                           .setLongitude(entry.getLongitude())
+                                           .setLatitude(entry.getLatitude())
+                                           .setLocationTypeId(command.getLocationTypeId()));
+        }
+
+        LocationResult result = new LocationResult(locations);
+        result.setOffset(offset);
+        result.setTotalLength(searchResult.getTotalCount());
+        callback.onSuccess(result);
+    }
+}
@@ -2,7 +2,6 @@ package org.activityinfo.server.command.handler;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import org.activityinfo.legacy.client.KeyGenerator;
 import org.activityinfo.legacy.shared.command.MatchLocation;
@@ -10,39 +9,47 @@ import org.activityinfo.legacy.shared.command.result.CommandResult;
 import org.activityinfo.legacy.shared.exception.CommandException;
 import org.activityinfo.legacy.shared.model.AdminEntityDTO;
 import org.activityinfo.legacy.shared.model.LocationDTO;
-import org.activityinfo.server.database.hibernate.entity.AdminEntity;
-import org.activityinfo.server.database.hibernate.entity.AdminLevel;
-import org.activityinfo.server.database.hibernate.entity.Location;
 import org.activityinfo.server.database.hibernate.entity.User;
-import org.activityinfo.server.util.Jaro;
+import org.activityinfo.server.geo.AdminLevelIndex;
+import org.activityinfo.server.geo.LocationTypeIndex;
+import org.activityinfo.server.geo.PlaceNameIndex;
 
 import javax.persistence.EntityManager;
-import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
+/**
+ * Matches a location by the names of its admin entities and its own name, using the
+ * {@link PlaceNameIndex} rather than the admin entities' collections.
+ */
 public class MatchLocationHandler implements CommandHandler<MatchLocation> {
 
     private EntityManager em;
-    private Jaro jaro = new Jaro();
+    private PlaceNameIndex index;
 
     @Inject
-    public MatchLocationHandler(EntityManager em) {
+    public MatchLocationHandler(EntityManager em, PlaceNameIndex index) {
         super();
         this.em = em;
+        this.index = index;
     }
 
     @Override
     public CommandResult execute(MatchLocation cmd, User user) throws CommandException {
 
-        Map<Integer, AdminEntity> matched = Maps.newHashMap();
+        Map<Integer, AdminLevelIndex> levels = Maps.newHashMap();
+        Map<Integer, Integer> matched = Maps.newHashMap();
 
         // now try and match against the text
         for (Integer levelId : cmd.getAdminLevels().keySet()) {
-            matchEntity(matched, cmd.getAdminLevels(), em.find(AdminLevel.class, levelId));
+            AdminLevelIndex level = level(levels, levelId);
+            if (level != null) {
+                matchEntity(matched, levels, cmd.getAdminLevels(), level);
+            }
         }
 
-        Location matchedLocation = matchLocation(cmd.getLocationType(), cmd.getName(), matched.values());
+        LocationTypeIndex.LocationEntry matchedLocation = index.getLocationType(cmd.getLocationType())
+                                                               .match(cmd.getName(), matched.values());
 
         LocationDTO location = new LocationDTO();
 
@@ -56,128 +63,88 @@ public class MatchLocationHandler implements CommandHandler<MatchLocation> {
             location.setNew(true);
             location.setLocationTypeId(cmd.getLocationType());
 
-            for (AdminEntity entity : matched.values()) {
+            for (Map.Entry<Integer, Integer> entity : matched.entrySet()) {
                 AdminEntityDTO dto = new AdminEntityDTO();
-                dto.setId(entity.getId());
-                dto.setName(entity.getName());
-                dto.setLevelId(entity.getLevel().getId());
-                location.setAdminEntity(entity.getLevel().getId(), dto);
+                dto.setId(entity.getValue());
+                dto.setName(levels.get(entity.getKey()).getName(entity.getValue()));
+                dto.setLevelId(entity.getKey());
+                location.setAdminEntity(entity.getKey(), dto);
             }
         } else {
             location.setNew(false);
             location.setId(matchedLocation.getId());
             location.setName(matchedLocation.getName());
-            location.setLatitude(matchedLocation.getY());
-            location.setLongitude(matchedLocation.getX());
-            location.setLocationTypeId(matchedLocation.getLocationType().getId());
+            location.setLatitude(matchedLocation.getLatitude());
+            location.setLongitude(matchedLocation.getLongitude());
+            location.setLocationTypeId(cmd.getLocationType());
+
+            List<Object[]> entities = em.createNativeQuery(
+                    "SELECT e.AdminEntityId, e.Name, e.AdminLevelId FROM locationadminlink k " +
+                    "INNER JOIN adminentity e ON (e.AdminEntityId = k.AdminEntityId) " +
+                    "WHERE k.LocationId = ?1")
+                    .setParameter(1, matchedLocation.getId())
+                    .getResultList();
 
-            for (AdminEntity entity : matchedLocation.getAdminEntities()) {
+            for (Object[] entity : entities) {
                 AdminEntityDTO dto = new AdminEntityDTO();
-                dto.setId(entity.getId());
-                dto.setName(entity.getName());
-                dto.setLevelId(entity.getLevel().getId());
-                location.setAdminEntity(entity.getLevel().getId(), dto);
+                dto.setId(((Number) entity[0]).intValue());
+                dto.setName((String) entity[1]);
+                dto.setLevelId(((Number) entity[2]).intValue());
+                location.setAdminEntity(dto.getLevelId(), dto);
             }
         }
 
         return location;
     }
 
-    /* try to match to an existing location, based on administrative entity
-     * membership and approximate name match
-     */
-    private Location matchLocation(int locationTypeId, String name, Collection<AdminEntity> entities) {
-
-        // find the set of locations that is present in all matched admin
-        // entities
-        Set<Location> locations = null;
-        for (AdminEntity entity : entities) {
-            if (locations == null) {
-                locations = Sets.newHashSet(entity.getLocations());
-            } else {
-                locations.retainAll(entity.getLocations());
-            }
-        }
-
-        // anything?
-        if (locations == null) {
-            return null;
+    private AdminLevelIndex level(Map<Integer, AdminLevelIndex> levels, int levelId) {
+        if (!levels.containsKey(levelId)) {
+            levels.put(levelId, index.getAdminLevel(levelId));
         }
-
-        // now find the best matching location by name among this set
-        Location bestMatch = null;
-        double bestScore = 0;
-        for (Location location : locations) {
-            if (location.getLocationType().getId() == locationTypeId) {
-                double score = similarity(location.getName(), name);
-                if (score > bestScore) {
-                    bestScore = score;
-                    bestMatch = location;
-                }
-            }
-        }
-
-        return bestMatch;
+        return levels.get(levelId);
     }
 
-    private void matchEntity(Map<Integer, AdminEntity> matched, Map<Integer, String> toMatch, AdminLevel level) {
+    private void matchEntity(Map<Integer, Integer> matched,
+                             Map<Integer, AdminLevelIndex> levels,
+                             Map<Integer, String> toMatch,
+                             AdminLevelIndex level) {
 
         // match parent level first
-        if (level.getParent() != null && !matched.containsKey(level.getParentId())) {
-            matchEntity(matched, toMatch, level.getParent());
+        Integer parentLevelId = level.getParentLevelId();
+        if (parentLevelId != null && !matched.containsKey(parentLevelId)) {
+            AdminLevelIndex parentLevel = level(levels, parentLevelId);
+            if (parentLevel != null) {
+                matchEntity(matched, levels, toMatch, parentLevel);
+            }
         }
 
-        // match by name
-        String name = toMatch.get(level.getId());
+        // match by name, among the children of the parent if it is known
+        String name = toMatch.get(level.getLevelId());
         if (!Strings.isNullOrEmpty(name)) {
-            AdminEntity parent = null;
-            AdminEntity matchedEntity = null;
-            if (level.getParent() != null && matched.containsKey(level.getParentId())) {
-                parent = matched.get(level.getParentId());
-                matchedEntity = match(name, parent.getChildren());
-            } else {
-                matchedEntity = match(name, level.getEntities());
-            }
+            Integer parentId = parentLevelId == null ? null : matched.get(parentLevelId);
+            Integer matchedEntity = level.match(name, parentId);
 
             if (matchedEntity != null) {
-                matched.put(level.getId(), matchedEntity);
+                matched.put(level.getLevelId(), matchedEntity);
 
                 // the import may provide child entities without their parents,
                 // so just be sure to add parents here as well
-                addParent(matched, matchedEntity);
+                addParent(matched, levels, level, matchedEntity);
             }
         }
     }
 
-    private void addParent(Map<Integer, AdminEntity> matched, AdminEntity child) {
-        if (child.getParent() != null) {
-            matched.put(child.getParent().getLevel().getId(), child.getParent());
-            addParent(matched, child.getParent());
-        }
-    }
-
-    private AdminEntity match(String name, Set<AdminEntity> entities) {
-        // look for an exact match first
-        for (AdminEntity entity : entities) {
-            if (entity.getName().equalsIgnoreCase(name)) {
-                return entity;
+    private void addParent(Map<Integer, Integer> matched,
+                           Map<Integer, AdminLevelIndex> levels,
+                           AdminLevelIndex level,
+                           int childId) {
+        Integer parentId = level.getParentId(childId);
+        if (parentId != null && level.getParentLevelId() != null) {
+            AdminLevelIndex parentLevel = level(levels, level.getParentLevelId());
+            if (parentLevel != null && parentLevel.contains(parentId)) {
+                matched.put(parentLevel.getLevelId(), parentId);
+                addParent(matched, levels, parentLevel, parentId);
             }
         }
-
-        // look for the best approximate match
-        double bestFit = 0;
-        AdminEntity bestEntity = null;
-        for (AdminEntity entity : entities) {
-            double similarity = similarity(name, entity.getName());
-            if (similarity > bestFit) {
-                bestFit = similarity;
-                bestEntity = entity;
-            }
-        }
-        return bestEntity;
-    }
-
-    protected float similarity(String s1, String s2) {
-        return jaro.getSimilarity(s1.toLowerCase(), s2.toLowerCase());
     }
 }
@@ -0,0 +1,165 @@
+package org.activityinfo.server.command.handler.pivot;
+
+import com.bedatadriven.rebar.sql.client.query.SqlQuery;
+import org.activityinfo.legacy.shared.command.DimensionType;
+import org.activityinfo.legacy.shared.command.Filter;
+import org.activityinfo.legacy.shared.command.PivotSites;
+import org.activityinfo.legacy.shared.command.PivotSites.ValueType;
+import org.activityinfo.legacy.shared.impl.Tables;
+import org.activityinfo.legacy.shared.impl.pivot.BaseTable;
+import org.activityinfo.legacy.shared.impl.pivot.ValueFields;
+import org.activityinfo.legacy.shared.reports.content.TargetCategory;
+import org.activityinfo.legacy.shared.reports.model.AdminDimension;
+import org.activityinfo.legacy.shared.reports.model.DateDimension;
+import org.activityinfo.legacy.shared.reports.model.DateUnit;
+import org.activityinfo.legacy.shared.reports.model.Dimension;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Answers the same queries as {@code SumAvgIndicatorValues} from the pre-aggregated
+ * {@code pivotcube} table, whenever the requested dimensions are a roll-up of the
+ * cube's grain (indicator x partner x month x admin entity) and the filter can
+ * be applied to the cube's columns.
+ *
+ * <p>The cube table is aliased as "Site" so that PivotQuery's visibility filter,
+ * which refers to Site.PartnerId and Site.ActivityId, applies unchanged.</p>
+ *
+ * @see PivotCubeUpdater
+ */
+public class CubeIndicatorValues extends BaseTable {
+
+    public static final String TABLE = "pivotcube";
+
+    private static final Set<DimensionType> DIMENSIONS = EnumSet.of(
+            DimensionType.Indicator,
+            DimensionType.IndicatorCategory,
+            DimensionType.Activity,
+            DimensionType.ActivityCategory,
+            DimensionType.Database,
+            DimensionType.Partner,
+            DimensionType.Target,
+            DimensionType.Date,
+            DimensionType.AdminLevel);
+
+    private static final Set<DimensionType> RESTRICTIONS = EnumSet.of(
+            DimensionType.Indicator,
+            DimensionType.Activity,
+            DimensionType.Database,
+            DimensionType.Partner);
+
+    private static final Set<DateUnit> DATE_UNITS = EnumSet.of(DateUnit.YEAR, DateUnit.QUARTER, DateUnit.MONTH);
+
+    @Override
+    public boolean accept(PivotSites command) {
+        if (command.getValueType() != ValueType.INDICATOR || command.isPointRequested()) {
+            return false;
+        }
+        int adminDimensions = 0;
+        for (Dimension dimension : command.getDimensions()) {
+            if (!DIMENSIONS.contains(dimension.getType())) {
+                return false;
+            }
+            if (dimension instanceof DateDimension && !DATE_UNITS.contains(((DateDimension) dimension).getUnit())) {
+                return false;
+            }
+            if (dimension.getType() == DimensionType.AdminLevel) {
+                if (!(dimension instanceof AdminDimension) || ++adminDimensions > 1) {
+                    return false;
+                }
+            }
+        }
+        Filter filter = command.getFilter();
+        if (!RESTRICTIONS.containsAll(filter.getRestrictedDimensions())) {
+            return false;
+        }
+        return isStartOfMonth(filter.getMinDate()) && isEndOfMonth(filter.getMaxDate());
+    }
+
+    private static boolean isStartOfMonth(Date date) {
+        if (date == null) {
+            return true;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        return calendar.get(Calendar.DAY_OF_MONTH) == 1;
+    }
+
+    private static boolean isEndOfMonth(Date date) {
+        if (date == null) {
+            return true;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        return calendar.get(Calendar.DAY_OF_MONTH) == calendar.getActualMaximum(Calendar.DAY_OF_MONTH);
+    }
+
+    @Override
+    public void setupQuery(PivotSites command, SqlQuery query) {
+        query.from(TABLE, "Site");
+        query.leftJoin(Tables.INDICATOR, "Indicator").on("Indicator.IndicatorId = Site.IndicatorId");
+        query.leftJoin(Tables.ACTIVITY, "Activity").on("Site.ActivityId = Activity.ActivityId");
+        query.leftJoin(Tables.USER_DATABASE, "UserDatabase").on("Activity.DatabaseId = UserDatabase.DatabaseId");
+
+        query.where("Indicator.DateDeleted is NULL");
+        query.where("Activity.dateDeleted").isNull();
+        query.where("UserDatabase.dateDeleted").isNull();
+
+        // select the totals, or the rows for the requested admin level
+        query.where("Site.AdminLevelId").equalTo(adminLevelId(command));
+
+        query.appendColumn("Indicator.Aggregation", ValueFields.AGGREGATION);
+        query.appendColumn("SUM(Site.Total)", ValueFields.SUM);
+        query.appendColumn("SUM(CASE WHEN Indicator.Aggregation=0 THEN Site.NonZeroCount ELSE Site.ValueCount END)",
+                ValueFields.COUNT);
+
+        query.groupBy("Indicator.IndicatorId");
+        query.groupBy("Indicator.Aggregation");
+
+        // equivalent to excluding zero values of summed indicators before aggregation
+        query.whereTrue(" ((Site.NonZeroCount > 0 and Indicator.Aggregation=0) or Indicator.Aggregation=1) ");
+    }
+
+    private int adminLevelId(PivotSites command) {
+        for (Dimension dimension : command.getDimensions()) {
+            if (dimension instanceof AdminDimension) {
+                return ((AdminDimension) dimension).getLevelId();
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void joinAdminLevel(SqlQuery query, int levelId, String tableAlias) {
+        query.leftJoin(Tables.ADMIN_ENTITY, tableAlias).on(tableAlias + ".AdminEntityId = Site.AdminEntityId");
+    }
+
+    @Override
+    public String getDimensionIdColumn(DimensionType type) {
+        switch (type) {
+            case Partner:
+                return "Site.PartnerId";
+            case Activity:
+                return "Site.ActivityId";
+            case Database:
+                return "Activity.DatabaseId";
+            case Indicator:
+                return "Site.IndicatorId";
+        }
+        throw new UnsupportedOperationException(type.name());
+    }
+
+    @Override
+    public String getDateCompleteColumn() {
+        return "Site.PeriodEnd";
+    }
+
+    @Override
+    public TargetCategory getTargetCategory() {
+        return TargetCategory.REALIZED;
+    }
+
+}
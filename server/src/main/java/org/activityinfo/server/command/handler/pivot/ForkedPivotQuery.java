@@ -0,0 +1,86 @@
+package org.activityinfo.server.command.handler.pivot;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import org.activityinfo.legacy.shared.command.result.Bucket;
+import org.activityinfo.legacy.shared.impl.pivot.BaseTable;
+import org.activityinfo.legacy.shared.impl.pivot.WorkItem;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@code WorkItem} standing in for a {@code PivotQuery} that has already been submitted
+ * to the {@link PivotQueryExecutor}. Executing it waits for the query to complete
+ * and merges its buckets into the command's {@code PivotQueryContext}.
+ *
+ * <p>If the query fails, times out or the waiting thread is interrupted, the command's
+ * other forked queries are cancelled rather than left to run to completion.</p>
+ */
+public class ForkedPivotQuery implements WorkItem {
+
+    private final ForkingPivotQueryContext queryContext;
+    private final BaseTable baseTable;
+    private final Future<List<Bucket>> result;
+    private final long timeoutSeconds;
+
+    ForkedPivotQuery(ForkingPivotQueryContext queryContext,
+                     BaseTable baseTable,
+                     Future<List<Bucket>> result,
+                     long timeoutSeconds) {
+        this.queryContext = queryContext;
+        this.baseTable = baseTable;
+        this.result = result;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    @Override
+    public void execute(AsyncCallback<Void> callback) {
+        List<Bucket> buckets;
+        try {
+            buckets = result.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            queryContext.cancelForkedQueries();
+            callback.onFailure(e.getCause());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queryContext.cancelForkedQueries();
+            callback.onFailure(new RuntimeException("Interrupted while waiting for pivot query on " +
+                                                    baseTable.getClass().getSimpleName(), e));
+            return;
+        } catch (TimeoutException | CancellationException e) {
+            queryContext.cancelForkedQueries();
+            callback.onFailure(new RuntimeException("Pivot query on " + baseTable.getClass().getSimpleName() +
+                                                    " did not complete", e));
+            return;
+        }
+        queryContext.addBuckets(buckets);
+        callback.onSuccess(null);
+    }
+}
@@ -0,0 +1,58 @@
+package org.activityinfo.server.command.handler.pivot;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.bedatadriven.rebar.sql.client.query.SqlDialect;
+import com.google.common.collect.Lists;
+import org.activityinfo.legacy.shared.command.PivotSites;
+import org.activityinfo.legacy.shared.impl.ExecutionContext;
+import org.activityinfo.legacy.shared.impl.pivot.PivotQueryContext;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A {@code PivotQueryContext} which keeps track of the queries forked to the
+ * {@link PivotQueryExecutor} on behalf of its command, so that the remaining
+ * queries can be cancelled as soon as one of them fails.
+ *
+ * <p>Only accessed from the thread executing the command.</p>
+ */
+class ForkingPivotQueryContext extends PivotQueryContext {
+
+    private final List<Future<?>> forkedQueries = Lists.newArrayList();
+
+    ForkingPivotQueryContext(PivotSites command, ExecutionContext context, SqlDialect dialect) {
+        super(command, context, dialect);
+    }
+
+    void addForkedQuery(Future<?> future) {
+        forkedQueries.add(future);
+    }
+
+    void cancelForkedQueries() {
+        for (Future<?> future : forkedQueries) {
+            future.cancel(true);
+        }
+    }
+}
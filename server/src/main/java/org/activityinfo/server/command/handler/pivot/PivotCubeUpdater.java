@@ -0,0 +1,387 @@
+package org.activityinfo.server.command.handler.pivot;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.activityinfo.legacy.shared.command.DimensionType;
+import org.activityinfo.legacy.shared.command.Filter;
+import org.hibernate.ejb.HibernateEntityManager;
+import org.hibernate.jdbc.Work;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Brings the slices of the {@code pivotcube} table needed by a pivot query up to date.
+ *
+ * <p>Once an activity has a {@code pivotcubeslice} row, the site and location triggers queue
+ * the (activity, partner) partitions of every site change in {@code pivotcubechange}, both
+ * before and after the change. A refresh recomputes the queued partitions, and deletes the
+ * queued rows it has read, and only those: a change committed while the refresh is running
+ * stays queued for the next one, however long its transaction took to commit.</p>
+ *
+ * <p>The first use of an activity builds its entire slice on a background thread; until
+ * it is built, queries fall back to reading the sites directly. Refreshes and builds are
+ * committed in their own transactions, so that they are visible to the read-only connections
+ * used by {@link PivotQueryExecutor}. They read the sites with {@code READ COMMITTED}
+ * isolation so that they do not lock the rows being edited, and are serialized per activity
+ * with a named lock which is not waited for: a request does not queue behind another refresh
+ * of the same activity on any server, but falls back to querying the sites directly.</p>
+ */
+@Singleton
+public class PivotCubeUpdater {
+
+    private static final Logger LOGGER = Logger.getLogger(PivotCubeUpdater.class.getName());
+
+    private static final String MONTH = "LAST_DAY(Period.Date2)";
+
+    private static final String VALUES = "FROM indicatorvalue V " +
+                                         "INNER JOIN reportingperiod Period " +
+                                         "  ON (Period.ReportingPeriodId = V.ReportingPeriodId) " +
+                                         "INNER JOIN site Site ON (Period.SiteId = Site.SiteId) ";
+
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    private final EntityManagerFactory emf;
+    private final ExecutorService buildExecutor;
+    private final Set<Integer> pendingBuilds = Sets.newConcurrentHashSet();
+
+    @Inject
+    public PivotCubeUpdater(EntityManagerFactory emf) {
+        this.emf = emf;
+        this.buildExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("pivot-cube-build-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Refreshes the slices of all activities within the given filter's
+     * activity, database or indicator restrictions.
+     *
+     * @return false if one of the slices has not been built yet, in which case its build is
+     * scheduled, or is already being refreshed, in which case the cube should not be used
+     * for this query.
+     */
+    public boolean refresh(Filter filter) {
+        QueryActivitiesWork activities = new QueryActivitiesWork(filter);
+        run(activities);
+
+        boolean built = true;
+        for (Map.Entry<Integer, Boolean> activity : activities.built.entrySet()) {
+            if (!activity.getValue()) {
+                scheduleBuild(activity.getKey());
+                built = false;
+            }
+        }
+        if (!built) {
+            return false;
+        }
+        for (Integer activityId : activities.built.keySet()) {
+            UpdateWork update = new UpdateWork(activityId);
+            run(update);
+            if (!update.locked) {
+                LOGGER.fine("Pivot cube is being refreshed for activity " + activityId + ", skipping");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        buildExecutor.shutdownNow();
+        LOGGER.info("Pivot cube builds shut down");
+    }
+
+    private void scheduleBuild(final int activityId) {
+        if (pendingBuilds.add(activityId)) {
+            buildExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        build(activityId);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.SEVERE, "Failed to build pivot cube for activity " + activityId, e);
+                    } finally {
+                        pendingBuilds.remove(activityId);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Builds the slice of the given activity on the calling thread.
+     *
+     * @return false if the slice is being built or refreshed by another thread
+     */
+    boolean build(int activityId) {
+        BuildWork build = new BuildWork(activityId);
+        run(build);
+        return build.locked;
+    }
+
+    private void run(Work work) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            ((HibernateEntityManager) em).getSession().doWork(work);
+        } finally {
+            em.close();
+        }
+    }
+
+    private static class QueryActivitiesWork implements Work {
+
+        private final Filter filter;
+        private final Map<Integer, Boolean> built = Maps.newHashMap();
+
+        private QueryActivitiesWork(Filter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public void execute(Connection connection) throws SQLException {
+            StringBuilder sql = new StringBuilder("SELECT A.ActivityId, COALESCE(S.Built, 0) FROM activity A " +
+                                                  "LEFT JOIN pivotcubeslice S ON (S.ActivityId = A.ActivityId) " +
+                                                  "WHERE A.DateDeleted IS NULL");
+            if (filter.isRestricted(DimensionType.Activity)) {
+                sql.append(" AND A.ActivityId IN ").append(idList(filter.getRestrictions(DimensionType.Activity)));
+            }
+            if (filter.isRestricted(DimensionType.Database)) {
+                sql.append(" AND A.DatabaseId IN ").append(idList(filter.getRestrictions(DimensionType.Database)));
+            }
+            if (filter.isRestricted(DimensionType.Indicator)) {
+                sql.append(" AND A.ActivityId IN (SELECT I.ActivityId FROM indicator I WHERE I.IndicatorId IN ")
+                   .append(idList(filter.getRestrictions(DimensionType.Indicator)))
+                   .append(")");
+            }
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet rs = statement.executeQuery(sql.toString());
+                while (rs.next()) {
+                    built.put(rs.getInt(1), rs.getBoolean(2));
+                }
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
+    /**
+     * Runs {@link #update(Connection)} in its own {@code READ COMMITTED} transaction
+     * while holding the activity's named lock, if it is free.
+     */
+    private abstract static class SliceWork implements Work {
+
+        protected final int activityId;
+        boolean locked;
+
+        protected SliceWork(int activityId) {
+            this.activityId = activityId;
+        }
+
+        @Override
+        public final void execute(Connection connection) throws SQLException {
+            String lockName = "'activityinfo.pivotcube." + activityId + "'";
+            if (queryInt(connection, "SELECT GET_LOCK(" + lockName + ", 0)") != 1) {
+                return;
+            }
+            locked = true;
+
+            boolean autoCommit = connection.getAutoCommit();
+            int isolation = connection.getTransactionIsolation();
+            try {
+                prepare(connection);
+
+                connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                connection.setAutoCommit(false);
+                try {
+                    update(connection);
+                    connection.commit();
+                } catch (SQLException | RuntimeException e) {
+                    connection.rollback();
+                    throw e;
+                }
+            } finally {
+                try {
+                    connection.setAutoCommit(autoCommit);
+                    connection.setTransactionIsolation(isolation);
+                } finally {
+                    // Named locks outlive transactions, and the connection goes back to the pool
+                    queryInt(connection, "SELECT RELEASE_LOCK(" + lockName + ")");
+                }
+            }
+        }
+
+        /**
+         * Runs before the transaction, with the connection's own commit mode and isolation.
+         */
+        protected void prepare(Connection connection) throws SQLException {
+        }
+
+        protected abstract void update(Connection connection) throws SQLException;
+    }
+
+    private class BuildWork extends SliceWork {
+
+        private BuildWork(int activityId) {
+            super(activityId);
+        }
+
+        @Override
+        protected void prepare(Connection connection) throws SQLException {
+            // Creating the slice row makes the triggers queue this activity's changes from now on.
+            // It waits for the site edits in progress which have already checked for the row,
+            // so every edit is either queued or committed before the sites are read below.
+            executeUpdate(connection, "INSERT IGNORE INTO pivotcubeslice (ActivityId, Built) " +
+                                      "VALUES (" + activityId + ", 0)");
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+        }
+
+        @Override
+        protected void update(Connection connection) throws SQLException {
+            if (queryInt(connection, "SELECT Built FROM pivotcubeslice WHERE ActivityId = " + activityId) != 0) {
+                return;
+            }
+
+            LOGGER.info("Building pivot cube for activity " + activityId);
+
+            // The changes queued so far are covered by the build, as they were committed before it reads the sites
+            List<Long> changes = queryChanges(connection, activityId, null);
+
+            executeUpdate(connection, "DELETE FROM pivotcube WHERE ActivityId = " + activityId);
+            insertCells(connection, "Site.ActivityId = " + activityId);
+            deleteChanges(connection, changes);
+
+            executeUpdate(connection, "UPDATE pivotcubeslice SET Built = 1 WHERE ActivityId = " + activityId);
+        }
+    }
+
+    private class UpdateWork extends SliceWork {
+
+        private UpdateWork(int activityId) {
+            super(activityId);
+        }
+
+        @Override
+        protected void update(Connection connection) throws SQLException {
+            Set<Integer> partners = Sets.newHashSet();
+            List<Long> changes = queryChanges(connection, activityId, partners);
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            LOGGER.fine("Refreshing pivot cube for activity " + activityId + ", partners " + partners);
+
+            executeUpdate(connection, "DELETE FROM pivotcube " +
+                                "WHERE ActivityId = " + activityId + " AND PartnerId IN " + idList(partners));
+            insertCells(connection, "Site.ActivityId = " + activityId + " AND Site.PartnerId IN " + idList(partners));
+            deleteChanges(connection, changes);
+        }
+    }
+
+    /**
+     * Reads the ids of the changes queued for the given activity, and adds their partners to
+     * {@code partners} if it is not null.
+     */
+    private static List<Long> queryChanges(Connection connection, int activityId, Set<Integer> partners)
+            throws SQLException {
+        List<Long> ids = Lists.newArrayList();
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet rs = statement.executeQuery("SELECT Id, PartnerId FROM pivotcubechange " +
+                                                  "WHERE ActivityId = " + activityId);
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+                if (partners != null) {
+                    partners.add(rs.getInt(2));
+                }
+            }
+        } finally {
+            statement.close();
+        }
+        return ids;
+    }
+
+    private static void deleteChanges(Connection connection, List<Long> ids) throws SQLException {
+        for (List<Long> batch : Lists.partition(ids, DELETE_BATCH_SIZE)) {
+            executeUpdate(connection, "DELETE FROM pivotcubechange WHERE Id IN (" + Joiner.on(", ").join(batch) + ")");
+        }
+    }
+
+    /**
+     * Aggregates the indicator values of the sites matching {@code sitePartition}: once
+     * for all admin levels, and once for each admin level of the activity's country.
+     */
+    private static void insertCells(Connection connection, String sitePartition) throws SQLException {
+
+        String columns = "INSERT INTO pivotcube (ActivityId, PartnerId, IndicatorId, PeriodEnd, " +
+                         "AdminLevelId, AdminEntityId, Total, ValueCount, NonZeroCount) ";
+
+        String aggregates = "SUM(V.Value), COUNT(V.Value), SUM(CASE WHEN V.Value <> 0 THEN 1 ELSE 0 END) ";
+
+        executeUpdate(connection, columns +
+                            "SELECT Site.ActivityId, Site.PartnerId, V.IndicatorId, " + MONTH + ", 0, 0, " +
+                            aggregates +
+                            VALUES +
+                            "WHERE Site.DateDeleted IS NULL AND " + sitePartition + " " +
+                            "GROUP BY Site.ActivityId, Site.PartnerId, V.IndicatorId, " + MONTH);
+
+        executeUpdate(connection, columns +
+                            "SELECT Site.ActivityId, Site.PartnerId, V.IndicatorId, " + MONTH + ", " +
+                            "Level.AdminLevelId, COALESCE(Entity.AdminEntityId, 0), " +
+                            aggregates +
+                            VALUES +
+                            "INNER JOIN activity A ON (A.ActivityId = Site.ActivityId) " +
+                            "INNER JOIN locationtype LT ON (LT.LocationTypeId = A.LocationTypeId) " +
+                            "INNER JOIN adminlevel Level ON (Level.CountryId = LT.CountryId) " +
+                            "LEFT JOIN (SELECT Link.LocationId, E.AdminEntityId, E.AdminLevelId " +
+                            "  FROM locationadminlink Link " +
+                            "  INNER JOIN adminentity E ON (E.AdminEntityId = Link.AdminEntityId)) Entity " +
+                            "  ON (Entity.LocationId = Site.LocationId AND Entity.AdminLevelId = Level.AdminLevelId) " +
+                            "WHERE Site.DateDeleted IS NULL AND " + sitePartition + " " +
+                            "GROUP BY Site.ActivityId, Site.PartnerId, V.IndicatorId, " + MONTH + ", " +
+                            "Level.AdminLevelId, Entity.AdminEntityId");
+    }
+
+    private static void executeUpdate(Connection connection, String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.executeUpdate(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static int queryInt(Connection connection, String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet rs = statement.executeQuery(sql);
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static String idList(Set<Integer> ids) {
+        return "(" + Joiner.on(", ").join(ids) + ")";
+    }
+}
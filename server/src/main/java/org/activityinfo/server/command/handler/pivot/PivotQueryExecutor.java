@@ -0,0 +1,193 @@
+package org.activityinfo.server.command.handler.pivot;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.bedatadriven.rebar.sql.client.SqlException;
+import com.bedatadriven.rebar.sql.client.SqlTransaction;
+import com.bedatadriven.rebar.sql.client.SqlTransactionCallback;
+import com.bedatadriven.rebar.sql.server.jdbc.JdbcScheduler;
+import com.bedatadriven.rebar.sql.shared.adapter.SyncTransactionAdapter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import org.activityinfo.legacy.shared.command.result.Bucket;
+import org.activityinfo.legacy.shared.impl.pivot.BaseTable;
+import org.activityinfo.legacy.shared.impl.pivot.PivotQuery;
+import org.activityinfo.legacy.shared.impl.pivot.PivotQueryContext;
+import org.activityinfo.server.database.JdbcConnectionExecutor;
+import org.activityinfo.server.util.config.DeploymentConfiguration;
+
+import java.beans.PropertyVetoException;
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Executes the read-only {@link PivotQuery}s of a PivotSites command in parallel,
+ * each on its own read-only connection drawn from a bounded pool.
+ *
+ * <p>The pool is disabled unless the {@code pivot.parallel.connections} property
+ * is set to a positive value. The connections use the same credentials as Hibernate,
+ * but {@code pivot.parallel.url} can point them at a read replica. A command gives up
+ * waiting for a query after {@code pivot.parallel.timeout} seconds.</p>
+ */
+@Singleton
+public class PivotQueryExecutor {
+
+    public static final String CONNECTIONS_PROPERTY = "pivot.parallel.connections";
+    public static final String URL_PROPERTY = "pivot.parallel.url";
+    public static final String TIMEOUT_PROPERTY = "pivot.parallel.timeout";
+
+    private static final Logger LOGGER = Logger.getLogger(PivotQueryExecutor.class.getName());
+
+    private final ComboPooledDataSource dataSource;
+    private final ExecutorService executor;
+    private final long timeoutSeconds;
+
+    @Inject
+    public PivotQueryExecutor(DeploymentConfiguration config) {
+        int connections = Integer.parseInt(config.getProperty(CONNECTIONS_PROPERTY, "0"));
+        this.timeoutSeconds = Long.parseLong(config.getProperty(TIMEOUT_PROPERTY, "120"));
+        if (connections > 0) {
+            this.dataSource = createDataSource(config, connections);
+            this.executor = Executors.newFixedThreadPool(connections, new ThreadFactoryBuilder()
+                    .setNameFormat("pivot-query-%d")
+                    .setDaemon(true)
+                    .build());
+
+            LOGGER.info("Parallel pivot queries enabled with " + connections + " connections");
+        } else {
+            this.dataSource = null;
+            this.executor = null;
+        }
+    }
+
+    private static ComboPooledDataSource createDataSource(DeploymentConfiguration config, int connections) {
+        ComboPooledDataSource dataSource = new ComboPooledDataSource();
+        try {
+            dataSource.setDriverClass(config.getProperty("hibernate.connection.driver_class"));
+        } catch (PropertyVetoException e) {
+            throw new RuntimeException("Could not load JDBC driver for pivot queries", e);
+        }
+        dataSource.setJdbcUrl(config.getProperty(URL_PROPERTY, config.getProperty("hibernate.connection.url")));
+        dataSource.setUser(config.getProperty("hibernate.connection.username"));
+        dataSource.setPassword(config.getProperty("hibernate.connection.password"));
+        dataSource.setMinPoolSize(0);
+        dataSource.setMaxPoolSize(connections);
+        return dataSource;
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * Submits the query for the given base table to the pool. The buckets are collected
+     * in a private context, and only merged into {@code queryContext} by the returned
+     * work item, on the calling thread.
+     */
+    public ForkedPivotQuery submit(final ForkingPivotQueryContext queryContext, final BaseTable baseTable) {
+        Future<List<Bucket>> result = executor.submit(new Callable<List<Bucket>>() {
+            @Override
+            public List<Bucket> call() throws Exception {
+                return execute(queryContext, baseTable);
+            }
+        });
+        queryContext.addForkedQuery(result);
+        return new ForkedPivotQuery(queryContext, baseTable, result, timeoutSeconds);
+    }
+
+    /**
+     * Interrupts any running queries and closes the pool's connections.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            dataSource.close();
+            LOGGER.info("Parallel pivot queries shut down");
+        }
+    }
+
+    private List<Bucket> execute(PivotQueryContext queryContext, BaseTable baseTable) throws Exception {
+
+        PivotQueryContext forkedContext = new PivotQueryContext(queryContext.getCommand(),
+                queryContext.getExecutionContext(),
+                queryContext.getDialect());
+
+        Connection connection = dataSource.getConnection();
+        try {
+            connection.setReadOnly(true);
+
+            JdbcScheduler scheduler = new JdbcScheduler();
+            SyncTransactionAdapter tx = new SyncTransactionAdapter(new JdbcConnectionExecutor(connection),
+                    scheduler,
+                    new ReadOnlyTransactionCallback());
+            tx.withManualCommitting();
+
+            FailureCollector callback = new FailureCollector();
+            new PivotQuery(forkedContext, baseTable, tx).execute(callback);
+            scheduler.process();
+
+            if (callback.caught != null) {
+                throw new RuntimeException("Pivot query on " + baseTable.getClass().getSimpleName() + " failed",
+                        callback.caught);
+            }
+            return forkedContext.getBuckets();
+
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static class ReadOnlyTransactionCallback extends SqlTransactionCallback {
+
+        @Override
+        public void begin(SqlTransaction tx) {
+        }
+
+        @Override
+        public void onError(SqlException e) {
+            throw e;
+        }
+    }
+
+    private static class FailureCollector implements AsyncCallback<Void> {
+
+        private Throwable caught;
+
+        @Override
+        public void onFailure(Throwable caught) {
+            this.caught = caught;
+        }
+
+        @Override
+        public void onSuccess(Void result) {
+        }
+    }
+}
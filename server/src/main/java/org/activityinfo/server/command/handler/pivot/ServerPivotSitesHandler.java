@@ -0,0 +1,111 @@
+package org.activityinfo.server.command.handler.pivot;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.bedatadriven.rebar.sql.client.query.SqlDialect;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import org.activityinfo.legacy.shared.command.PivotSites;
+import org.activityinfo.legacy.shared.impl.ExecutionContext;
+import org.activityinfo.legacy.shared.impl.PivotSitesHandler;
+import org.activityinfo.legacy.shared.impl.pivot.BaseTable;
+import org.activityinfo.legacy.shared.impl.pivot.PivotQueryContext;
+import org.activityinfo.legacy.shared.impl.pivot.SumAvgIndicatorValues;
+import org.activityinfo.legacy.shared.impl.pivot.WorkItem;
+import org.activityinfo.server.util.config.DeploymentConfiguration;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Server-side {@link PivotSitesHandler} which:
+ * <ul>
+ * <li>answers indicator values from the pre-aggregated pivot cube where possible,
+ * refreshing the cube with the sites edited since it was last used</li>
+ * <li>fans the base table queries out to the {@link PivotQueryExecutor}'s connection pool,
+ * so that the cost of a pivot is that of its slowest query rather than the sum of all of them.</li>
+ * </ul>
+ *
+ * <p>Calculated indicators are still aggregated on the command's own connection, but
+ * streamed one reporting period at a time rather than fetched through a nested
+ * GetSites command.</p>
+ */
+public class ServerPivotSitesHandler extends PivotSitesHandler {
+
+    public static final String CUBE_PROPERTY = "pivot.cube.enabled";
+    public static final String STREAMING_PROPERTY = "pivot.calculated.streaming";
+
+    private final PivotQueryExecutor executor;
+    private final PivotCubeUpdater cubeUpdater;
+    private final CubeIndicatorValues cube = new CubeIndicatorValues();
+    private final boolean cubeEnabled;
+    private final boolean streamingEnabled;
+    private final SqlDialect dialect;
+    private final Provider<EntityManager> entityManager;
+
+    @Inject
+    public ServerPivotSitesHandler(SqlDialect dialect,
+                                   PivotQueryExecutor executor,
+                                   PivotCubeUpdater cubeUpdater,
+                                   Provider<EntityManager> entityManager,
+                                   DeploymentConfiguration config) {
+        super(dialect);
+        this.dialect = dialect;
+        this.entityManager = entityManager;
+        this.executor = executor;
+        this.cubeUpdater = cubeUpdater;
+        this.cubeEnabled = Boolean.parseBoolean(config.getProperty(CUBE_PROPERTY, "false"));
+        this.streamingEnabled = Boolean.parseBoolean(config.getProperty(STREAMING_PROPERTY, "true"));
+    }
+
+    @Override
+    protected PivotQueryContext createQueryContext(PivotSites command, ExecutionContext context) {
+        return new ForkingPivotQueryContext(command, context, dialect);
+    }
+
+    @Override
+    protected WorkItem createCalculatedIndicatorsQuery(PivotQueryContext queryContext) {
+        if (streamingEnabled && queryContext.getExecutionContext().isRemote()) {
+            return new StreamingCalculatedIndicatorsQuery(queryContext, dialect, entityManager);
+        }
+        return super.createCalculatedIndicatorsQuery(queryContext);
+    }
+
+    @Override
+    protected WorkItem createQuery(PivotQueryContext queryContext, BaseTable baseTable) {
+        if (!queryContext.getExecutionContext().isRemote()) {
+            return super.createQuery(queryContext, baseTable);
+        }
+        if (baseTable instanceof SumAvgIndicatorValues && useCube(queryContext.getCommand())) {
+            baseTable = cube;
+        }
+        if (executor.isEnabled()) {
+            return executor.submit((ForkingPivotQueryContext) queryContext, baseTable);
+        } else {
+            return super.createQuery(queryContext, baseTable);
+        }
+    }
+
+    private boolean useCube(PivotSites command) {
+        return cubeEnabled && cube.accept(command) && cubeUpdater.refresh(command.getFilter());
+    }
+}
@@ -0,0 +1,281 @@
+package org.activityinfo.server.command.handler.pivot;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.bedatadriven.rebar.sql.client.SqlResultCallback;
+import com.bedatadriven.rebar.sql.client.SqlResultSet;
+import com.bedatadriven.rebar.sql.client.SqlTransaction;
+import com.bedatadriven.rebar.sql.client.query.SqlDialect;
+import com.bedatadriven.rebar.sql.client.query.SqlQuery;
+import com.bedatadriven.rebar.time.calendar.LocalDate;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Provider;
+import org.activityinfo.legacy.shared.command.DimensionType;
+import org.activityinfo.legacy.shared.command.GetSites;
+import org.activityinfo.legacy.shared.command.PivotSites;
+import org.activityinfo.legacy.shared.command.result.Bucket;
+import org.activityinfo.legacy.shared.impl.ExecutionContext;
+import org.activityinfo.legacy.shared.impl.GetSitesHandler;
+import org.activityinfo.legacy.shared.impl.IndicatorSymbolResolver;
+import org.activityinfo.legacy.shared.impl.Tables;
+import org.activityinfo.legacy.shared.impl.pivot.CalculatedIndicatorsQuery;
+import org.activityinfo.legacy.shared.impl.pivot.PivotQueryContext;
+import org.activityinfo.legacy.shared.impl.pivot.calc.BucketKey;
+import org.activityinfo.legacy.shared.model.AdminEntityDTO;
+import org.activityinfo.legacy.shared.model.PartnerDTO;
+import org.activityinfo.legacy.shared.model.SiteDTO;
+import org.activityinfo.legacy.shared.reports.model.AdminDimension;
+import org.activityinfo.legacy.shared.reports.model.AttributeGroupDimension;
+import org.activityinfo.legacy.shared.reports.model.Dimension;
+import org.hibernate.ejb.HibernateEntityManager;
+import org.hibernate.jdbc.Work;
+
+import javax.persistence.EntityManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Aggregates calculated indicators by streaming the reporting periods and their indicator
+ * values from a forward-only JDBC cursor, rather than materializing a complete {@code SiteResult}.
+ *
+ * <p>Only a single reporting period is held in memory at a time: its calculated indicators
+ * are evaluated and it is added to the buckets before the next period is read, so that
+ * memory is bounded by the number of buckets rather than by the number of sites.</p>
+ */
+public class StreamingCalculatedIndicatorsQuery extends CalculatedIndicatorsQuery {
+
+    private final SqlDialect dialect;
+    private final Provider<EntityManager> entityManager;
+
+    private final Map<Integer, IndicatorSymbolResolver> resolvers = Maps.newHashMap();
+    private final Map<BucketKey, Bucket> buckets = Maps.newHashMap();
+
+    public StreamingCalculatedIndicatorsQuery(PivotQueryContext queryContext,
+                                              SqlDialect dialect,
+                                              Provider<EntityManager> entityManager) {
+        super(queryContext);
+        this.dialect = dialect;
+        this.entityManager = entityManager;
+    }
+
+    @Override
+    protected void querySites(final GetSites sitesQuery) {
+
+        // we need the location to join the admin entities
+        if (getQueryContext().getCommand().isPivotedBy(DimensionType.AdminLevel)) {
+            sitesQuery.setFetchLocation(true);
+        }
+
+        // First fetch all indicators of the activities, which may be referenced by the expressions
+        SqlQuery.select()
+                .appendColumn("I.IndicatorId")
+                .appendColumn("I.ActivityId")
+                .appendColumn("I.Type")
+                .appendColumn("I.Expression")
+                .appendColumn("I.nameInExpression")
+                .appendColumn("I.calculatedAutomatically")
+                .from(Tables.INDICATOR, "I")
+                .where("I.ActivityId").in(getActivityIds())
+                .and("I.dateDeleted IS NULL")
+                .orderBy("I.SortOrder")
+                .execute(getQueryContext().getExecutionContext().getTransaction(), new SqlResultCallback() {
+                    @Override
+                    public void onSuccess(SqlTransaction tx, SqlResultSet results) {
+                        for (int activityId : getActivityIds()) {
+                            resolvers.put(activityId, new IndicatorSymbolResolver(activityId, results));
+                        }
+                        try {
+                            streamSites(sitesQuery);
+                            onAggregated();
+                        } catch (Throwable caught) {
+                            onFailure(caught);
+                        }
+                    }
+                });
+    }
+
+    private void streamSites(GetSites sitesQuery) {
+        ExecutionContext context = getQueryContext().getExecutionContext();
+        final SqlQuery periods = new GetSitesHandler(dialect).primaryQuery(context, sitesQuery);
+        final String sql = composeStreamingSql(periods.sql(), getQueryContext().getCommand());
+
+        ((HibernateEntityManager) entityManager.get()).getSession().doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                PreparedStatement statement = connection.prepareStatement(sql,
+                        ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY);
+                try {
+                    // Instructs MySQL's driver to stream rows rather than reading the whole result
+                    statement.setFetchSize(Integer.MIN_VALUE);
+
+                    int parameterIndex = 1;
+                    for (Object parameter : periods.parameters()) {
+                        statement.setObject(parameterIndex++, toJdbc(parameter));
+                    }
+                    aggregate(statement.executeQuery());
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+    private String composeStreamingSql(String periodsSql, PivotSites command) {
+        StringBuilder columns = new StringBuilder("SELECT s.SiteId, s.ActivityId, s.PeriodId, s.Date1, s.Date2");
+        StringBuilder joins = new StringBuilder();
+
+        if (command.isPivotedBy(DimensionType.Partner)) {
+            columns.append(", s.PartnerId, s.PartnerName");
+        }
+        if (command.isPivotedBy(DimensionType.Location) || command.isPivotedBy(DimensionType.AdminLevel)) {
+            columns.append(", s.LocationId, s.LocationName");
+        }
+        columns.append(", V.IndicatorId, V.Value");
+
+        for (Dimension dim : command.getDimensions()) {
+            if (dim instanceof AdminDimension) {
+                int levelId = ((AdminDimension) dim).getLevelId();
+                columns.append(", E").append(levelId).append(".AdminEntityId AS AdminEntityId").append(levelId)
+                       .append(", E").append(levelId).append(".Name AS AdminEntityName").append(levelId);
+
+                joins.append(" LEFT JOIN (locationadminlink L").append(levelId)
+                     .append(" INNER JOIN adminentity E").append(levelId)
+                     .append(" ON (E").append(levelId).append(".AdminEntityId = L").append(levelId)
+                     .append(".AdminEntityId AND E").append(levelId).append(".AdminLevelId = ").append(levelId)
+                     .append(")) ON (L").append(levelId).append(".LocationId = s.LocationId)");
+            }
+        }
+
+        Set<Integer> groupIds = attributeGroupIds(command);
+        if (!groupIds.isEmpty()) {
+            columns.append(", (SELECT GROUP_CONCAT(av.AttributeId) FROM attributevalue av ")
+                   .append("INNER JOIN attribute a ON (a.AttributeId = av.AttributeId) ")
+                   .append("WHERE av.SiteId = s.SiteId AND av.Value = 1 AND a.AttributeGroupId IN (")
+                   .append(Joiner.on(", ").join(groupIds))
+                   .append(")) AS AttributeIds");
+        }
+
+        return columns.toString() +
+               " FROM (" + periodsSql + ") s" +
+               " LEFT JOIN indicatorvalue V ON (V.ReportingPeriodId = s.PeriodId AND V.Value IS NOT NULL)" +
+               joins.toString() +
+               " ORDER BY s.PeriodId";
+    }
+
+    private Set<Integer> attributeGroupIds(PivotSites command) {
+        Set<Integer> groupIds = Sets.newHashSet();
+        for (Dimension dim : command.getDimensions()) {
+            if (dim instanceof AttributeGroupDimension) {
+                groupIds.add(((AttributeGroupDimension) dim).getAttributeGroupId());
+            }
+        }
+        return groupIds;
+    }
+
+    private void aggregate(ResultSet rs) throws SQLException {
+        PivotSites command = getQueryContext().getCommand();
+        boolean fetchPartner = command.isPivotedBy(DimensionType.Partner);
+        boolean fetchLocation = command.isPivotedBy(DimensionType.Location) ||
+                                command.isPivotedBy(DimensionType.AdminLevel);
+        boolean fetchAttributes = !attributeGroupIds(command).isEmpty();
+
+        SiteDTO site = null;
+        int periodId = -1;
+
+        while (rs.next()) {
+            int rowPeriodId = rs.getInt("PeriodId");
+            if (site == null || rowPeriodId != periodId) {
+                if (site != null) {
+                    aggregatePeriod(site);
+                }
+                periodId = rowPeriodId;
+                site = new SiteDTO();
+                site.setId(rs.getInt("SiteId"));
+                site.setActivityId(rs.getInt("ActivityId"));
+                site.setDate1(rs.getDate("Date1"));
+                site.setDate2(rs.getDate("Date2"));
+
+                if (fetchPartner) {
+                    site.setPartner(new PartnerDTO(rs.getInt("PartnerId"), rs.getString("PartnerName")));
+                }
+                if (fetchLocation) {
+                    site.setLocationId(rs.getInt("LocationId"));
+                    site.setLocationName(rs.getString("LocationName"));
+                }
+                for (Dimension dim : command.getDimensions()) {
+                    if (dim instanceof AdminDimension) {
+                        int levelId = ((AdminDimension) dim).getLevelId();
+                        int entityId = rs.getInt("AdminEntityId" + levelId);
+                        if (!rs.wasNull()) {
+                            site.setAdminEntity(levelId, new AdminEntityDTO(levelId, entityId,
+                                    rs.getString("AdminEntityName" + levelId)));
+                        }
+                    }
+                }
+                if (fetchAttributes) {
+                    String attributeIds = rs.getString("AttributeIds");
+                    if (!Strings.isNullOrEmpty(attributeIds)) {
+                        for (String attributeId : Splitter.on(',').split(attributeIds)) {
+                            site.setAttributeValue(Integer.parseInt(attributeId), true);
+                        }
+                    }
+                }
+            }
+
+            int indicatorId = rs.getInt("IndicatorId");
+            if (!rs.wasNull()) {
+                site.setIndicatorValue(indicatorId, rs.getDouble("Value"));
+            }
+        }
+        if (site != null) {
+            aggregatePeriod(site);
+        }
+    }
+
+    private void aggregatePeriod(SiteDTO site) {
+        IndicatorSymbolResolver resolver = resolvers.get(site.getActivityId());
+        if (resolver != null) {
+            resolver.setSite(site);
+            resolver.populateCalculatedIndicators();
+        }
+        aggregateSite(site, buckets);
+    }
+
+    private static Object toJdbc(Object parameter) {
+        if (parameter instanceof LocalDate) {
+            return new java.sql.Date(((LocalDate) parameter).atMidnightInMyTimezone().getTime());
+        } else if (parameter instanceof java.util.Date) {
+            return new java.sql.Timestamp(((java.util.Date) parameter).getTime());
+        }
+        return parameter;
+    }
+}
@@ -50,7 +50,7 @@ public class AdminUpdateBuilder implements UpdateBuilder {
         localState = new AdminLocalState(request.getLocalVersion());
 
         SyncRegionUpdate update = new SyncRegionUpdate();
-        builder = new SqliteBatchBuilder();
+        builder = new SqliteBatchBuilder(request.isColumnar());
 
         if (localState.getVersion() < LAST_VERSION_NUMBER) {
             /*
@@ -82,7 +82,7 @@ public class AdminUpdateBuilder implements UpdateBuilder {
 
             builder.insert().into(Tables.ADMIN_ENTITY).from(query).execute(em);
 
-            update.setSql(builder.build());
+            builder.applyTo(update);
         }
         update.setComplete(true);
         update.setVersion(Integer.toString(LAST_VERSION_NUMBER));
@@ -23,12 +23,15 @@ package org.activityinfo.server.command.handler.sync;
  */
 
 import com.bedatadriven.rebar.time.calendar.LocalDate;
+import org.activityinfo.legacy.shared.command.result.SyncColumn;
 
 import java.sql.Date;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.List;
 
+@SuppressWarnings("unchecked")
 enum ColumnAppender {
 
     STRING {
@@ -49,6 +52,14 @@ enum ColumnAppender {
                 sb.append('\'');
             }
         }
+
+        @Override Object read(ResultSet rs, int column) throws SQLException {
+            return rs.getString(column);
+        }
+
+        @Override SyncColumn encode(String name, List<?> values) {
+            return SyncColumn.text(name, (List<String>) values);
+        }
     },
     INTEGER {
         @Override void append(StringBuilder sb, ResultSet rs, int column) throws SQLException {
@@ -59,6 +70,15 @@ enum ColumnAppender {
                 sb.append(value);
             }
         }
+
+        @Override Object read(ResultSet rs, int column) throws SQLException {
+            int value = rs.getInt(column);
+            return rs.wasNull() ? null : value;
+        }
+
+        @Override SyncColumn encode(String name, List<?> values) {
+            return SyncColumn.integers(name, (List<Integer>) values);
+        }
     },
     DATE {
         @Override void append(StringBuilder sb, ResultSet rs, int column) throws SQLException {
@@ -70,6 +90,15 @@ enum ColumnAppender {
                 sb.append('\'').append(localDate.toString()).append('\'');
             }
         }
+
+        @Override Object read(ResultSet rs, int column) throws SQLException {
+            Date date = rs.getDate(column);
+            return date == null ? null : new LocalDate(date).toString();
+        }
+
+        @Override SyncColumn encode(String name, List<?> values) {
+            return SyncColumn.text(name, (List<String>) values);
+        }
     },
     REAL {
         @Override void append(StringBuilder sb, ResultSet rs, int column) throws SQLException {
@@ -80,10 +109,26 @@ enum ColumnAppender {
                 sb.append(value);
             }
         }
+
+        @Override Object read(ResultSet rs, int column) throws SQLException {
+            double value = rs.getDouble(column);
+            return rs.wasNull() ? null : value;
+        }
+
+        @Override SyncColumn encode(String name, List<?> values) {
+            return SyncColumn.reals(name, (List<Double>) values);
+        }
     };
 
     abstract void append(StringBuilder sb, ResultSet rs, int column) throws SQLException;
 
+    /**
+     * Reads the column's value in a form that can be passed to {@link #encode(String, java.util.List)}
+     */
+    abstract Object read(ResultSet rs, int column) throws SQLException;
+
+    abstract SyncColumn encode(String name, List<?> values);
+
     public static ColumnAppender forType(int columnType) {
         switch (columnType) {
             case Types.VARCHAR:
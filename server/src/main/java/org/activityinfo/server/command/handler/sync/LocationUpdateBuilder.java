@@ -62,7 +62,7 @@ public class LocationUpdateBuilder implements UpdateBuilder {
 
         typeId = parseTypeId(request);
         localState = new LocalState(request.getLocalVersion());
-        batch = new SqliteBatchBuilder();
+        batch = new SqliteBatchBuilder(request.isColumnar());
 
         SyncRegionUpdate update = new SyncRegionUpdate();
         long latestVersion = queryLatestVersion(update);
@@ -72,7 +72,7 @@ public class LocationUpdateBuilder implements UpdateBuilder {
         }
 
         update.setVersion(Long.toString(latestVersion));
-        update.setSql(batch.build());
+        batch.applyTo(update);
         return update;
     }
 
@@ -40,6 +40,15 @@ import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
 
+/**
+ * Builds the schema region incrementally: only the databases whose version is newer than the
+ * client's, or whose permissions changed, are sent again, together with their activities, indicators,
+ * attributes, projects and locked periods. The rows of these databases are first removed locally
+ * along with those of databases the user can no longer see, so deleted entities disappear as well.
+ *
+ * <p>Every change to a database's schema bumps {@link UserDatabase#getVersion()}, so this is the
+ * finest granularity at which we can tell what has changed.</p>
+ */
 public class SchemaUpdateBuilder implements UpdateBuilder {
 
     private final UserDatabaseDAO userDatabaseDAO;
@@ -50,6 +59,7 @@ public class SchemaUpdateBuilder implements UpdateBuilder {
     private final List<AdminLevel> adminLevels = new ArrayList<AdminLevel>();
 
     private List<UserDatabase> databases = new ArrayList<UserDatabase>();
+    private final List<UserDatabase> changedDatabases = new ArrayList<UserDatabase>();
 
     private final Set<Integer> partnerIds = new HashSet<Integer>();
     private final List<Partner> partners = new ArrayList<Partner>();
@@ -66,6 +76,7 @@ public class SchemaUpdateBuilder implements UpdateBuilder {
     private final List<User> users = new ArrayList<User>();
     private final List<LocationType> locationTypes = new ArrayList<LocationType>();
     private List<UserPermission> userPermissions;
+    private final List<UserPermission> changedPermissions = new ArrayList<UserPermission>();
 
     private static final Logger LOGGER = Logger.getLogger(SchemaUpdateBuilder.class.getName());
 
@@ -118,8 +129,12 @@ public class SchemaUpdateBuilder implements UpdateBuilder {
             update.setComplete(true);
 
             if (localVersion < serverVersion) {
+                findChanges(localVersion);
                 makeEntityLists();
                 update.setSql(buildSql());
+
+                LOGGER.info("Schema update: " + changedDatabases.size() + " of " + databases.size() +
+                            " databases and " + changedPermissions.size() + " permissions changed");
             }
             return update;
         } finally {
@@ -132,25 +147,28 @@ public class SchemaUpdateBuilder implements UpdateBuilder {
 
         for (Class schemaClass : schemaClasses) {
             builder.createTableIfNotExists(schemaClass);
-
-            // Special case: we never delete partners, only add them. This way we always have a label for Partners
-            // See : LocalSiteCreateTest.siteRemovePartnerConflict
-            if (!schemaClass.equals(Partner.class)) {
-                builder.deleteAll(schemaClass);
-            }
         }
+        builder.executeStatement(
+                "create table if not exists IndicatorLink (SourceIndicatorId int, DestinationIndicatorId int) ");
+        builder.executeStatement("create table if not exists PartnerInDatabase (DatabaseId integer, PartnerId int)");
+        builder.executeStatement(
+                "create table if not exists AttributeGroupInActivity (ActivityId integer, AttributeGroupId integer)");
 
-        builder.insert(Country.class, countries);
+        deleteStaleRows(builder);
+
+        builder.insert(" or replace ", Country.class, countries);
         builder.insert(AdminLevel.class, adminLevels);
-        builder.insert(UserDatabase.class, databases);
+        builder.insert(UserDatabase.class, changedDatabases);
+        // Special case: we never delete partners, only add them. This way we always have a label for Partners
+        // See : LocalSiteCreateTest.siteRemovePartnerConflict
         builder.insert(" or replace ", Partner.class, partners);
         builder.insert(Activity.class, activities);
         builder.insert(Indicator.class, indicators);
-        builder.insert(AttributeGroup.class, attributeGroups);
-        builder.insert(Attribute.class, attributes);
+        builder.insert(" or replace ", AttributeGroup.class, attributeGroups);
+        builder.insert(" or replace ", Attribute.class, attributes);
         builder.insert(LocationType.class, locationTypes);
-        builder.insert(User.class, users);
-        builder.insert(UserPermission.class, userPermissions);
+        builder.insert(" or replace ", User.class, users);
+        builder.insert(UserPermission.class, changedPermissions);
         builder.insert(Project.class, projects);
         builder.insert(LockedPeriod.class, allLockedPeriods);
 
@@ -172,11 +190,67 @@ public class SchemaUpdateBuilder implements UpdateBuilder {
         return builder.asJson();
     }
 
-    private void createAndSyncIndicatorlinks(JpaUpdateBuilder builder) throws JSONException {
-        builder.executeStatement(
-                "create table if not exists IndicatorLink (SourceIndicatorId int, DestinationIndicatorId int) ");
-        builder.executeStatement("delete from IndicatorLink");
+    /**
+     * Removes the local rows belonging to databases that have changed, and to databases that have been
+     * deleted or are no longer visible to the user. The rows of the changed databases are inserted again
+     * afterwards.
+     */
+    private void deleteStaleRows(JpaUpdateBuilder builder) throws JSONException {
+        List<Integer> changedIds = new ArrayList<Integer>();
+        for (UserDatabase db : changedDatabases) {
+            changedIds.add(db.getId());
+        }
+        List<Integer> visibleIds = new ArrayList<Integer>();
+        List<Integer> ownerIds = new ArrayList<Integer>();
+        for (UserDatabase db : databases) {
+            visibleIds.add(db.getId());
+            ownerIds.add(db.getOwner().getId());
+        }
+
+        String changed = SqlQueryUtil.toIdSet(changedIds);
+        String visible = SqlQueryUtil.toIdSet(visibleIds);
+        String staleDatabase = "(DatabaseId in " + changed + " or DatabaseId not in " + visible + ")";
+        String staleActivities = "(select ActivityId from Activity where " + staleDatabase + ")";
+        String staleIndicators = "(select IndicatorId from Indicator where ActivityId in " + staleActivities + ")";
+        String staleGroups = "(select AttributeGroupId from AttributeGroupInActivity where ActivityId in " +
+                             staleActivities + ")";
+
+        // children first, as they are found through the rows of their parents
+        builder.executeStatement("delete from IndicatorLink where SourceIndicatorId in " + staleIndicators +
+                                 " or DestinationIndicatorId in " + staleIndicators);
+        builder.executeStatement("delete from Attribute where AttributeGroupId in " + staleGroups);
+        builder.executeStatement("delete from AttributeGroup where AttributeGroupId in " + staleGroups);
+        builder.executeStatement("delete from AttributeGroupInActivity where ActivityId in " + staleActivities);
+        builder.executeStatement("delete from Indicator where ActivityId in " + staleActivities);
+        builder.executeStatement("delete from LockedPeriod where UserDatabaseId in " + changed +
+                                 " or UserDatabaseId not in " + visible +
+                                 " or ActivityId in " + staleActivities +
+                                 " or ProjectId in (select ProjectId from Project where " + staleDatabase + ")");
+        builder.executeStatement("delete from Project where " + staleDatabase);
+        builder.executeStatement("delete from Activity where " + staleDatabase);
+        builder.executeStatement("delete from PartnerInDatabase where " + staleDatabase);
+        builder.executeStatement("delete from UserDatabase where " + staleDatabase);
+
+        List<Integer> changedPermissionIds = new ArrayList<Integer>();
+        for (UserPermission permission : changedPermissions) {
+            changedPermissionIds.add(permission.getId());
+        }
+        List<Integer> permissionIds = new ArrayList<Integer>();
+        for (UserPermission permission : userPermissions) {
+            permissionIds.add(permission.getId());
+        }
+        builder.executeStatement("delete from UserPermission where UserPermissionId in " +
+                                 SqlQueryUtil.toIdSet(changedPermissionIds) +
+                                 " or UserPermissionId not in " + SqlQueryUtil.toIdSet(permissionIds));
+        builder.executeStatement("delete from UserLogin where UserId not in " + SqlQueryUtil.toIdSet(ownerIds));
+
+        // admin levels and location types are sent again for each country they belong to
+        String changedCountries = SqlQueryUtil.toIdSet(new ArrayList<Integer>(countryIds));
+        builder.executeStatement("delete from AdminLevel where CountryId in " + changedCountries);
+        builder.executeStatement("delete from LocationType where CountryId in " + changedCountries);
+    }
 
+    private void createAndSyncIndicatorlinks(JpaUpdateBuilder builder) throws JSONException {
         if (!indicatorLinks.isEmpty()) {
             builder.beginPreparedStatement(
                     "insert into IndicatorLink (SourceIndicatorId, DestinationIndicatorId) values (?, ?) ");
@@ -188,12 +262,9 @@ public class SchemaUpdateBuilder implements UpdateBuilder {
     }
 
     private void createAndSyncPartnerInDatabase(JpaUpdateBuilder builder) throws JSONException {
-        builder.executeStatement("create table if not exists PartnerInDatabase (DatabaseId integer, PartnerId int)");
-        builder.executeStatement("delete from PartnerInDatabase");
-
         if (anyPartners()) {
             builder.beginPreparedStatement("insert into PartnerInDatabase (DatabaseId, PartnerId) values (?, ?) ");
-            for (UserDatabase db : databases) {
+            for (UserDatabase db : changedDatabases) {
                 for (Partner partner : db.getPartners()) {
                     builder.addExecution(db.getId(), partner.getId());
                 }
@@ -203,14 +274,10 @@ public class SchemaUpdateBuilder implements UpdateBuilder {
     }
 
     private void createAndSyncAttributeGroupInActivity(JpaUpdateBuilder builder) throws JSONException {
-        builder.executeStatement(
-                "create table if not exists AttributeGroupInActivity (ActivityId integer, AttributeGroupId integer)");
-        builder.executeStatement("delete from AttributeGroupInActivity");
-
         if (anyAttributes()) {
             builder.beginPreparedStatement(
                     "insert into AttributeGroupInActivity (ActivityId, AttributeGroupId) values (?,?)");
-            for (UserDatabase db : databases) {
+            for (UserDatabase db : changedDatabases) {
                 for (Activity activity : db.getActivities()) {
                     for (AttributeGroup group : activity.getAttributeGroups()) {
                         builder.addExecution(activity.getId(), group.getId());
@@ -222,7 +289,7 @@ public class SchemaUpdateBuilder implements UpdateBuilder {
     }
 
     private boolean anyPartners() {
-        for (UserDatabase db : databases) {
+        for (UserDatabase db : changedDatabases) {
             if (!db.getPartners().isEmpty()) {
                 return true;
             }
@@ -231,7 +298,7 @@ public class SchemaUpdateBuilder implements UpdateBuilder {
     }
 
     private boolean anyAttributes() {
-        for (UserDatabase db : databases) {
+        for (UserDatabase db : changedDatabases) {
             for (Activity activity : db.getActivities()) {
                 if (!activity.getAttributeGroups().isEmpty()) {
                     return true;
@@ -241,8 +308,27 @@ public class SchemaUpdateBuilder implements UpdateBuilder {
         return false;
     }
 
-    private void makeEntityLists() {
+    /**
+     * Selects the databases and permissions that have changed since {@code localVersion}. A database is
+     * also sent again when the user's permission on it changed, for example when access was just granted.
+     */
+    private void findChanges(long localVersion) {
+        Set<Integer> permissionChanged = new HashSet<Integer>();
+        for (UserPermission permission : userPermissions) {
+            if (permission.getVersion() > localVersion) {
+                changedPermissions.add(permission);
+                permissionChanged.add(permission.getDatabase().getId());
+            }
+        }
         for (UserDatabase database : databases) {
+            if (database.getVersion() > localVersion || permissionChanged.contains(database.getId())) {
+                changedDatabases.add(database);
+            }
+        }
+    }
+
+    private void makeEntityLists() {
+        for (UserDatabase database : changedDatabases) {
             if (!userIds.contains(database.getOwner().getId())) {
                 User u = database.getOwner();
                 // don't send hashed password to client
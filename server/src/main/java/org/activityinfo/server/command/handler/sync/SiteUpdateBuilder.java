@@ -23,55 +23,85 @@ package org.activityinfo.server.command.handler.sync;
  */
 
 import com.bedatadriven.rebar.sql.client.query.SqlQuery;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import org.activityinfo.legacy.shared.command.GetSyncRegionUpdates;
 import org.activityinfo.legacy.shared.command.result.SyncRegionUpdate;
 import org.activityinfo.legacy.shared.impl.Tables;
 import org.activityinfo.server.database.hibernate.entity.User;
+import org.hibernate.ejb.HibernateEntityManager;
+import org.hibernate.jdbc.Work;
 
 import javax.persistence.EntityManager;
 import java.io.IOException;
-
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Builds the updates to the sites of an activity, in chunks of at most {@code chunkSize} sites.
+ *
+ * <p>Sites are sent in order of (timeEdited, SiteId), and the version of an incomplete update is
+ * a cursor at the last site sent, so that an interrupted initial sync of a large activity resumes
+ * where it left off.</p>
+ */
 public class SiteUpdateBuilder implements UpdateBuilder {
 
+    private static final int DEFAULT_CHUNK_SIZE = 500; // sites in chunk
+
     private final EntityManager entityManager;
+    private final int chunkSize;
 
     private int activityId;
     private SqliteBatchBuilder batch;
-    private long localVersion;
+    private LocalState localState;
+    private List<Integer> chunkIds;
 
     @Inject
     public SiteUpdateBuilder(EntityManager entityManager) {
+        this(entityManager, DEFAULT_CHUNK_SIZE);
+    }
+
+    public SiteUpdateBuilder(EntityManager entityManager, int chunkSize) {
         this.entityManager = entityManager;
+        this.chunkSize = chunkSize;
     }
 
     @Override
     public SyncRegionUpdate build(User user, GetSyncRegionUpdates request) throws IOException {
-        batch = new SqliteBatchBuilder();
+        batch = new SqliteBatchBuilder(request.isColumnar());
         activityId = parseActivityId(request.getRegionId());
-        localVersion = TimestampHelper.fromString(request.getLocalVersion());
+        localState = new LocalState(request.getLocalVersion());
 
         SyncRegionUpdate update = new SyncRegionUpdate();
         long latestVersion = queryLatestVersion();
 
-        if (latestVersion > localVersion) {
+        if (latestVersion > localState.lastTimeEdited || localState.lastSiteId != null) {
 
-            if(localVersion > 0) {
-                SqlQuery updatedQuery = updatedSites();
-                String updatedIds = SqlQueryUtil.queryIdSet(entityManager, updatedQuery);
+            LocalState nextState = queryChunk();
 
-                deleteUpdated(updatedIds);
-            }
+            if (!chunkIds.isEmpty()) {
+                if (localState.lastTimeEdited > 0) {
+                    deleteUpdated(SqlQueryUtil.toIdSet(chunkIds));
+                }
 
-            insertUpdatedSites();
-            insertUpdatedReportingPeriods();
-            insertUpdatedAttributeValues();
-            insertUpdatedIndicatorValues();
+                insertUpdatedSites();
+                insertUpdatedReportingPeriods();
+                insertUpdatedAttributeValues();
+                insertUpdatedIndicatorValues();
 
-            update.setSql(batch.build());
+                batch.applyTo(update);
+            }
+
+            if (nextState != null) {
+                update.setComplete(false);
+                update.setVersion(nextState.toVersionString());
+                return update;
+            }
         }
         update.setComplete(true);
-        update.setVersion(Long.toString(latestVersion));
+        update.setVersion(Long.toString(Math.max(latestVersion, localState.lastTimeEdited)));
         return update;
     }
 
@@ -80,6 +110,53 @@ public class SiteUpdateBuilder implements UpdateBuilder {
         return Integer.parseInt(parts[1]);
     }
 
+    /**
+     * Selects the ids of the next chunk of sites after the local state.
+     *
+     * @return the state after this chunk if there are sites beyond it, or {@code null}
+     * if this chunk is the last
+     */
+    private LocalState queryChunk() {
+        final SqlQuery query = SqlQuery.select()
+                                       .appendColumn("s.SiteId")
+                                       .appendColumn("s.timeEdited")
+                                       .from(Tables.SITE, "s")
+                                       .where("s.ActivityId")
+                                       .equalTo(activityId);
+
+        if (localState.lastSiteId == null) {
+            query.where("s.timeEdited").greaterThan(localState.lastTimeEdited);
+        } else {
+            query.whereTrue("(s.timeEdited > ? OR (s.timeEdited = ? AND s.SiteId > ?))");
+            query.appendParameter(localState.lastTimeEdited);
+            query.appendParameter(localState.lastTimeEdited);
+            query.appendParameter(localState.lastSiteId);
+        }
+        query.orderBy("s.timeEdited, s.SiteId");
+        query.setLimitClause("LIMIT " + (chunkSize + 1));
+
+        chunkIds = Lists.newArrayList();
+        final LocalState[] next = new LocalState[1];
+
+        ((HibernateEntityManager) entityManager).getSession().doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                ResultSet rs = SqlQueryUtil.query(connection, query);
+                long lastTimeEdited = 0;
+                while (rs.next()) {
+                    if (chunkIds.size() == chunkSize) {
+                        // there is at least one more site, so resume after the last one in this chunk
+                        next[0] = new LocalState(lastTimeEdited, chunkIds.get(chunkIds.size() - 1));
+                        break;
+                    }
+                    chunkIds.add(rs.getInt(1));
+                    lastTimeEdited = rs.getLong(2);
+                }
+            }
+        });
+        return next[0];
+    }
+
     private void insertUpdatedIndicatorValues() {
         SqlQuery ivQuery = updatedIndicatorValueQuery();
 
@@ -118,18 +195,6 @@ public class SiteUpdateBuilder implements UpdateBuilder {
                            "(select reportingperiodid from reportingperiod)");
     }
 
-    private SqlQuery updatedSites() {
-        return SqlQuery.select()
-                       .from(Tables.SITE, "s")
-                       .leftJoin(Tables.ACTIVITY, "a")
-                       .on("a.ActivityId=s.ActivityId")
-                       .appendColumn("s.SiteId")
-                       .where("a.ActivityId")
-                       .equalTo(activityId)
-                       .where("s.timeEdited")
-                       .greaterThan(localVersion);
-    }
-
     private SqlQuery updatedIndicatorValueQuery() {
         return SqlQuery.select()
                        .from(Tables.INDICATOR_VALUE, "iv")
@@ -137,17 +202,13 @@ public class SiteUpdateBuilder implements UpdateBuilder {
                        .on("rp.ReportingPeriodId=iv.ReportingPeriodId")
                        .leftJoin(Tables.SITE, "s")
                        .on("rp.SiteId = s.SiteId")
-                       .leftJoin(Tables.ACTIVITY, "a")
-                       .on("s.ActivityId = a.ActivityId")
                        .appendColumn("iv.IndicatorId")
                        .appendColumn("iv.ReportingPeriodId")
                        .appendColumn("iv.Value")
                        .appendColumn("iv.TextValue")
                        .appendColumn("iv.DateValue")
-                       .where("a.ActivityId")
-                       .equalTo(activityId)
-                       .where("s.timeEdited")
-                       .greaterThan(localVersion)
+                       .where("s.SiteId")
+                       .in(chunkIds)
                        .whereTrue("s.dateDeleted IS NULL");
     }
 
@@ -156,16 +217,12 @@ public class SiteUpdateBuilder implements UpdateBuilder {
                        .from(Tables.REPORTING_PERIOD, "rp")
                        .leftJoin(Tables.SITE, "s")
                        .on("rp.SiteId = s.SiteId")
-                       .leftJoin(Tables.ACTIVITY, "a")
-                       .on("s.ActivityId = a.ActivityId")
                        .appendColumn("rp.ReportingPeriodId")
                        .appendColumn("rp.SiteId")
                        .appendColumn("rp.Date1")
                        .appendColumn("rp.Date2")
-                       .where("a.ActivityId")
-                       .equalTo(activityId)
-                       .where("s.timeEdited")
-                       .greaterThan(localVersion)
+                       .where("s.SiteId")
+                       .in(chunkIds)
                        .whereTrue("s.dateDeleted IS NULL");
     }
 
@@ -174,15 +231,11 @@ public class SiteUpdateBuilder implements UpdateBuilder {
                        .from(Tables.ATTRIBUTE_VALUE, "av")
                        .leftJoin(Tables.SITE, "s")
                        .on("av.SiteId = s.SiteId")
-                       .leftJoin(Tables.ACTIVITY, "a")
-                       .on("s.ActivityId = a.ActivityId")
                        .appendColumn("av.AttributeId")
                        .appendColumn("av.SiteId")
                        .appendColumn("av.Value")
-                       .where("a.ActivityId")
-                       .equalTo(activityId)
-                       .where("s.timeEdited")
-                       .greaterThan(localVersion)
+                       .where("s.SiteId")
+                       .in(chunkIds)
                        .whereTrue("av.Value=1")
                        .whereTrue("s.dateDeleted IS NULL");
     }
@@ -190,8 +243,6 @@ public class SiteUpdateBuilder implements UpdateBuilder {
     private SqlQuery updatedSitesQuery() {
         return SqlQuery.select()
                        .from(Tables.SITE, "s")
-                       .leftJoin(Tables.ACTIVITY, "a")
-                       .on("a.ActivityId=s.ActivityId")
                        .appendColumn("s.SiteId")
                        .appendColumn("s.Date1")
                        .appendColumn("s.Date2")
@@ -201,10 +252,8 @@ public class SiteUpdateBuilder implements UpdateBuilder {
                        .appendColumn("s.ProjectId")
                        .appendColumn("s.Comments")
                        .appendColumn("s.timeEdited")
-                       .where("s.timeEdited")
-                       .greaterThan(localVersion)
-                       .where("a.ActivityId")
-                       .equalTo(activityId)
+                       .where("s.SiteId")
+                       .in(chunkIds)
                        .whereTrue("s.dateDeleted IS NULL");
     }
 
@@ -220,4 +269,37 @@ public class SiteUpdateBuilder implements UpdateBuilder {
         return SqlQueryUtil.queryLong(entityManager, query);
 
     }
+
+    /**
+     * The position of the client in the (timeEdited, SiteId) ordering of the activity's sites. The
+     * version string is either the timeEdited of a complete update, or "timeEdited:SiteId" if the
+     * client is part way through the sites edited at that time.
+     */
+    private static class LocalState {
+        private long lastTimeEdited;
+        private Integer lastSiteId;
+
+        public LocalState(long lastTimeEdited, int lastSiteId) {
+            this.lastTimeEdited = lastTimeEdited;
+            this.lastSiteId = lastSiteId;
+        }
+
+        public LocalState(String cookie) {
+            if (cookie == null) {
+                lastTimeEdited = 0;
+            } else {
+                int separator = cookie.indexOf(':');
+                if (separator == -1) {
+                    lastTimeEdited = TimestampHelper.fromString(cookie);
+                } else {
+                    lastTimeEdited = Long.parseLong(cookie.substring(0, separator));
+                    lastSiteId = Integer.parseInt(cookie.substring(separator + 1));
+                }
+            }
+        }
+
+        public String toVersionString() {
+            return TimestampHelper.toString(lastTimeEdited) + ":" + lastSiteId;
+        }
+    }
 }
@@ -69,6 +69,21 @@ public class SqlQueryUtil {
         return set.toString();
     }
 
+    /**
+     * @return the ids formatted as a SQL set literal, for example "(1,2,3)"
+     */
+    public static String toIdSet(List<Integer> ids) {
+        StringBuilder set = new StringBuilder("(");
+        for (int i = 0; i != ids.size(); ++i) {
+            if (i > 0) {
+                set.append(',');
+            }
+            set.append(ids.get(i));
+        }
+        set.append(")");
+        return set.toString();
+    }
+
     public static long queryLong(EntityManager entityManager, final SqlQuery query) {
         return queryLongList(entityManager, query).get(0);
     }
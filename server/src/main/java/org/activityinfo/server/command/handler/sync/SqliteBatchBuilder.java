@@ -22,10 +22,14 @@ package org.activityinfo.server.command.handler.sync;
  * #L%
  */
 
+import com.google.common.collect.Lists;
 import com.google.gson.stream.JsonWriter;
+import org.activityinfo.legacy.shared.command.result.SyncRegionUpdate;
+import org.activityinfo.legacy.shared.command.result.SyncTable;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,14 +40,31 @@ public class SqliteBatchBuilder {
     private StringWriter stringWriter;
     private JsonWriter jsonWriter;
 
+    private final boolean columnar;
+    private final List<String> statements = Lists.newArrayList();
+    private final List<SyncTable> tables = Lists.newArrayList();
+
     public SqliteBatchBuilder() throws IOException {
+        this(false);
+    }
+
+    /**
+     * @param columnar true if inserted rows should be collected as {@link SyncTable}s
+     *                 rather than rendered as SQL statements
+     */
+    public SqliteBatchBuilder(boolean columnar) throws IOException {
         super();
+        this.columnar = columnar;
         this.stringWriter = new StringWriter();
         this.jsonWriter = new JsonWriter(stringWriter);
         this.jsonWriter.beginArray();
     }
 
     public void addStatement(String sqlState) throws IOException {
+        if (columnar) {
+            statements.add(sqlState);
+            return;
+        }
         jsonWriter.beginObject();
         jsonWriter.name("statement");
         jsonWriter.value(sqlState);
@@ -55,6 +76,36 @@ public class SqliteBatchBuilder {
         }
     }
 
+    public boolean isColumnar() {
+        return columnar;
+    }
+
+    void addTable(SyncTable table) {
+        if (table.getRowCount() > 0) {
+            tables.add(table);
+        }
+    }
+
+    /**
+     * @return the tables collected in columnar mode, which are to be applied after the statements
+     */
+    public List<SyncTable> getTables() {
+        return tables;
+    }
+
+    /**
+     * Sets the contents of this batch on the update: as a JSON array of statements, or in columnar
+     * mode as the list of statements and the tables, which the client applies in one transaction.
+     */
+    public void applyTo(SyncRegionUpdate update) throws IOException {
+        if (columnar) {
+            update.setStatements(statements);
+            update.setTables(tables);
+        } else {
+            update.setSql(build());
+        }
+    }
+
     public SqliteInsertBuilder insert() {
         return new SqliteInsertBuilder(this);
     }
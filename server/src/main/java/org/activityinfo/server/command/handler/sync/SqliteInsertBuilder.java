@@ -23,6 +23,8 @@ package org.activityinfo.server.command.handler.sync;
  */
 
 import com.bedatadriven.rebar.sql.client.query.SqlQuery;
+import com.google.common.collect.Lists;
+import org.activityinfo.legacy.shared.command.result.SyncTable;
 import org.hibernate.ejb.HibernateEntityManager;
 import org.hibernate.jdbc.Work;
 
@@ -31,6 +33,7 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -69,6 +72,11 @@ public class SqliteInsertBuilder {
                 rs = SqlQueryUtil.query(connection, query);
                 numColumns = rs.getMetaData().getColumnCount();
                 setupAppenders();
+
+                if (batch.isColumnar()) {
+                    batch.addTable(readTable());
+                    return;
+                }
                 composeInsertStatement();
 
                 try {
@@ -103,6 +111,25 @@ public class SqliteInsertBuilder {
         }
     }
 
+    private SyncTable readTable() throws SQLException {
+        List<List<Object>> values = Lists.newArrayList();
+        for (int i = 0; i != numColumns; ++i) {
+            values.add(Lists.newArrayList());
+        }
+        int rowCount = 0;
+        while (rs.next()) {
+            for (int i = 0; i != numColumns; ++i) {
+                values.get(i).add(appenders[i].read(rs, i + 1));
+            }
+            rowCount++;
+        }
+        SyncTable table = new SyncTable(tableName, rowCount);
+        for (int i = 0; i != numColumns; ++i) {
+            table.addColumn(appenders[i].encode(rs.getMetaData().getColumnName(i + 1), values.get(i)));
+        }
+        return table;
+    }
+
     public void appendRows() throws SQLException, IOException {
         sql = new StringBuilder();
         int rowCount = 0;
@@ -0,0 +1,59 @@
+package org.activityinfo.server.database;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.bedatadriven.rebar.sql.client.SqlResultSet;
+import com.bedatadriven.rebar.sql.server.jdbc.JdbcExecutor;
+
+import java.sql.Connection;
+
+/**
+ * Executes statements against a single, plain JDBC connection which
+ * is managed by the caller, outside of the Hibernate session.
+ */
+public class JdbcConnectionExecutor extends JdbcExecutor {
+
+    private final Connection connection;
+
+    public JdbcConnectionExecutor(Connection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public SqlResultSet execute(String statement, Object[] params) throws Exception {
+        return doExecute(connection, statement, params);
+    }
+
+    @Override
+    public boolean begin() throws Exception {
+        return true;
+    }
+
+    @Override
+    public void commit() throws Exception {
+    }
+
+    @Override
+    public void rollback() throws Exception {
+    }
+}
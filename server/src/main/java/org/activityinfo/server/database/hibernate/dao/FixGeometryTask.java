@@ -1,12 +1,14 @@
 package org.activityinfo.server.database.hibernate.dao;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.sun.jersey.api.core.InjectParam;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Polygon;
 import org.activityinfo.server.database.hibernate.entity.AdminEntity;
+import org.activityinfo.server.database.hibernate.entity.AdminLevel;
 
 import javax.persistence.EntityManager;
 import javax.ws.rs.GET;
@@ -14,6 +16,7 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Some how alot of our geometry has been corrupted, and stored
@@ -36,8 +39,14 @@ public class FixGeometryTask {
                     "select * from adminentity where GeometryType(Geometry) = 'GEOMETRYCOLLECTION' limit 50",
                     AdminEntity.class).getResultList();
 
+            Set<AdminLevel> levels = Sets.newHashSet();
             for (AdminEntity entity : entities) {
                 entity.setGeometry(fixGeometry((GeometryCollection) entity.getGeometry()));
+                levels.add(entity.getLevel());
+            }
+            // so that the geometry caches reload the levels
+            for (AdminLevel level : levels) {
+                level.setVersion(level.getVersion() + 1);
             }
 
             em.getTransaction().commit();
@@ -0,0 +1,55 @@
+package org.activityinfo.server.digest;
+
+import com.google.common.base.Objects;
+
+import java.util.Date;
+
+/**
+ * Identifies the digest of a database for a date and period, as seen by users
+ * with the same visibility of that database.
+ */
+public final class DatabaseDigestKey {
+
+    /**
+     * The visibility of users who can see the sites of all partners
+     */
+    public static final int ALL_PARTNERS = 0;
+
+    private final int databaseId;
+    private final long date;
+    private final int days;
+    private final int visibility;
+
+    /**
+     * @param visibility {@link #ALL_PARTNERS}, or the id of the only partner whose sites are visible
+     */
+    public DatabaseDigestKey(int databaseId, Date date, int days, int visibility) {
+        this.databaseId = databaseId;
+        this.date = date.getTime();
+        this.days = days;
+        this.visibility = visibility;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DatabaseDigestKey)) {
+            return false;
+        }
+        DatabaseDigestKey other = (DatabaseDigestKey) o;
+        return databaseId == other.databaseId && date == other.date && days == other.days &&
+               visibility == other.visibility;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(databaseId, date, days, visibility);
+    }
+
+    @Override
+    public String toString() {
+        return "database " + databaseId + " on " + date + " for " + days + " day(s), visibility " + visibility;
+    }
+}
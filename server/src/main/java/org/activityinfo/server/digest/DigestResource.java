@@ -28,9 +28,13 @@ public abstract class DigestResource {
 
         Queue queue = QueueFactory.getQueue(USERDIGEST_QUEUE);
 
+        // all digests of a run share the same date, so that the users of a database can share
+        // the digest of that database
+        String now = String.valueOf(System.currentTimeMillis());
+
         for (Integer userId : userIds) {
             TaskOptions taskoptions = withUrl(getUserDigestEndpoint()).param(UserDigestResource.PARAM_USER,
-                    String.valueOf(userId)).method(Method.GET);
+                    String.valueOf(userId)).param(UserDigestResource.PARAM_NOW, now).method(Method.GET);
             queue.add(taskoptions);
         }
         return msg;
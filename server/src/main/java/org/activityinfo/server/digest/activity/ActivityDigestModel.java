@@ -219,7 +219,10 @@ public class ActivityDigestModel implements DigestModel {
         private final User user;
         private final Map<Integer, Integer> map = new HashMap<Integer, Integer>();
 
-        public ActivityMap(DatabaseModel databaseModel, User user, List<SiteHistory> histories) {
+        /**
+         * @param editsPerDay the number of edits by the user, by the number of days before the digest date
+         */
+        public ActivityMap(DatabaseModel databaseModel, User user, Map<Integer, Integer> editsPerDay) {
             this.databaseModel = databaseModel;
             this.user = user;
 
@@ -227,12 +230,12 @@ public class ActivityDigestModel implements DigestModel {
                 map.put(i, 0);
             }
 
-            if (histories != null && !histories.isEmpty()) {
-                for (SiteHistory history : histories) {
-                    int daysBetween = DateCalc.absoluteDaysBetween(databaseModel.getModel().getDate(),
-                            history.getTimeCreated());
-                    Integer old = map.get(daysBetween);
-                    map.put(daysBetween, old + 1);
+            if (editsPerDay != null) {
+                for (Entry<Integer, Integer> edits : editsPerDay.entrySet()) {
+                    Integer old = map.get(edits.getKey());
+                    if (old != null) {
+                        map.put(edits.getKey(), old + edits.getValue());
+                    }
                 }
             }
         }
@@ -1,12 +1,19 @@
 package org.activityinfo.server.digest.activity;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.Singleton;
 import org.activityinfo.server.database.hibernate.entity.Partner;
 import org.activityinfo.server.database.hibernate.entity.SiteHistory;
 import org.activityinfo.server.database.hibernate.entity.User;
 import org.activityinfo.server.database.hibernate.entity.UserDatabase;
+import org.activityinfo.server.database.hibernate.entity.UserPermission;
+import org.activityinfo.server.digest.DatabaseDigestKey;
 import org.activityinfo.server.digest.DigestModelBuilder;
 import org.activityinfo.server.digest.activity.ActivityDigestModel.ActivityMap;
 import org.activityinfo.server.digest.activity.ActivityDigestModel.DatabaseModel;
@@ -17,14 +24,38 @@ import javax.persistence.Query;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+/**
+ * Builds the activity digest of a user in two phases. The activity of each database is read once
+ * for a digest date and period, and kept for {@link #CACHE_MINUTES} minutes; the digest of each
+ * user is then assembled from the activity of their databases.
+ *
+ * <p>The cached activity holds detached users and partners, of which only the names and email
+ * addresses are read.</p>
+ */
+@Singleton
 public class ActivityDigestModelBuilder implements DigestModelBuilder {
     private static final Logger LOGGER = Logger.getLogger(ActivityDigestModelBuilder.class.getName());
 
+    public static final int CACHE_MINUTES = 60;
+
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
     private final Provider<EntityManager> entityManager;
 
+    private final Cache<DatabaseDigestKey, DatabaseActivity> activities = CacheBuilder.newBuilder()
+                                                                                     .expireAfterWrite(CACHE_MINUTES,
+                                                                                             TimeUnit.MINUTES)
+                                                                                     .maximumSize(1000)
+                                                                                     .build();
+
     @Inject
     public ActivityDigestModelBuilder(Provider<EntityManager> entityManager) {
         this.entityManager = entityManager;
@@ -39,40 +70,63 @@ public class ActivityDigestModelBuilder implements DigestModelBuilder {
 
         if (!databases.isEmpty()) {
             for (UserDatabase database : databases) {
-                createDatabaseModel(model, database);
+                createDatabaseModel(model, database, getActivity(model, database));
             }
         }
 
         return model;
     }
 
-    private void createDatabaseModel(ActivityDigestModel model, UserDatabase database) throws IOException {
+    private DatabaseActivity getActivity(final ActivityDigestModel model, final UserDatabase database)
+            throws IOException {
+        DatabaseDigestKey key = new DatabaseDigestKey(database.getId(), model.getDate(), model.getDays(),
+                DatabaseDigestKey.ALL_PARTNERS);
+        try {
+            return activities.get(key, new Callable<DatabaseActivity>() {
+                @Override
+                public DatabaseActivity call() {
+                    return readActivity(model, database);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read the activity of database " + database.getId(), e.getCause());
+        }
+    }
 
-        SiteHistory lastEdit = findLastEdit(database);
+    private DatabaseActivity readActivity(ActivityDigestModel model, UserDatabase database) {
+        DatabaseActivity activity = new DatabaseActivity(findLastEdit(database));
         // only include databases that are known to be edited at least once
-        if (lastEdit != null) {
-            DatabaseModel databaseModel = new DatabaseModel(model, database, lastEdit);
-
-            List<SiteHistory> ownerHistories = findSiteHistory(databaseModel, database.getOwner());
-            ActivityMap ownerActivityMap = new ActivityMap(databaseModel, database.getOwner(), ownerHistories);
-            databaseModel.setOwnerActivityMap(ownerActivityMap);
-
-            List<Partner> partners = findPartners(databaseModel);
-            LOGGER.finest("building user activity digest for user " + model.getUser().getId() +
-                          " and database " + database.getId() + " - found " + partners.size() + " partner(s)");
-            if (!partners.isEmpty()) {
-                for (Partner partner : partners) {
-                    PartnerActivityModel partnerModel = new PartnerActivityModel(databaseModel, partner);
-
-                    List<User> partnerUsers = findUsers(partnerModel);
-                    LOGGER.finest("found users " + partnerUsers + " for partner " + partner.getName());
-                    if (!partnerUsers.isEmpty()) {
-                        for (User partnerUser : partnerUsers) {
-                            List<SiteHistory> histories = findSiteHistory(databaseModel, partnerUser);
-                            ActivityMap activityMap = new ActivityMap(databaseModel, partnerUser, histories);
-                            partnerModel.addActivityMap(activityMap);
-                        }
-                    }
+        if (activity.lastEdit != null) {
+            activity.editsPerUser = findEditsPerUser(database, model.getDate(), model.getFrom());
+            for (UserPermission permission : findPermissions(database)) {
+                List<User> editors = activity.partners.get(permission.getPartner());
+                if (editors == null) {
+                    editors = Lists.newArrayList();
+                    activity.partners.put(permission.getPartner(), editors);
+                }
+                if (permission.isAllowEdit()) {
+                    editors.add(permission.getUser());
+                }
+            }
+            LOGGER.finest("read activity of database " + database.getId() + " - found " +
+                          activity.partners.size() + " partner(s)");
+        }
+        return activity;
+    }
+
+    private void createDatabaseModel(ActivityDigestModel model, UserDatabase database, DatabaseActivity activity) {
+        if (activity.lastEdit != null) {
+            DatabaseModel databaseModel = new DatabaseModel(model, database, activity.lastEdit);
+
+            User owner = database.getOwner();
+            databaseModel.setOwnerActivityMap(new ActivityMap(databaseModel, owner,
+                    activity.editsPerUser.get(owner.getId())));
+
+            for (Map.Entry<Partner, List<User>> partner : activity.partners.entrySet()) {
+                PartnerActivityModel partnerModel = new PartnerActivityModel(databaseModel, partner.getKey());
+                for (User partnerUser : partner.getValue()) {
+                    partnerModel.addActivityMap(new ActivityMap(databaseModel, partnerUser,
+                            activity.editsPerUser.get(partnerUser.getId())));
                 }
             }
         }
@@ -102,54 +156,54 @@ public class ActivityDigestModelBuilder implements DigestModelBuilder {
 
     /**
      * @param database
-     * @return the partners linked to the specified database via a userpermission
+     * @return the userpermissions of the specified database, with their partners and users, in order of partner
+     * name and user name.
      */
-    @VisibleForTesting @SuppressWarnings("unchecked") List<Partner> findPartners(DatabaseModel databaseModel) {
+    @VisibleForTesting @SuppressWarnings("unchecked") List<UserPermission> findPermissions(UserDatabase database) {
 
-        Query query = entityManager.get().createQuery("select distinct p.partner from UserPermission p " +
+        Query query = entityManager.get().createQuery("select p from UserPermission p " +
+                                                      "join fetch p.partner join fetch p.user " +
                                                       "where p.database = :database " +
-                                                      "order by p.partner.name");
-        query.setParameter("database", databaseModel.getDatabase());
-
-        return query.getResultList();
-    }
-
-    /**
-     * @param database
-     * @return the users linked to the specified database and partner via a userpermission where allowEdit is set to
-     * true.
-     */
-    @VisibleForTesting @SuppressWarnings("unchecked") List<User> findUsers(PartnerActivityModel partnerModel) {
-
-        Query query = entityManager.get().createQuery("select distinct p.user from UserPermission p " +
-                                                      "where p.database = :database and p.partner = :partner and p" +
-                                                      ".allowEdit = true " +
-                                                      "order by p.user.name");
-        query.setParameter("database", partnerModel.getDatabaseModel().getDatabase());
-        query.setParameter("partner", partnerModel.getPartner());
+                                                      "order by p.partner.name, p.user.name");
+        query.setParameter("database", database);
 
         return query.getResultList();
     }
 
     /**
      * @param database
-     * @param user
+     * @param date
      * @param from
-     * @return the sitehistory edited since the specified timestamp (milliseconds) and linked to the specified database
-     * and user.
+     * @return the number of sitehistory entries linked to the specified database which were created since the
+     * specified timestamp (milliseconds), by user id and then by the number of days before the specified date.
      */
     @VisibleForTesting @SuppressWarnings("unchecked")
-    List<SiteHistory> findSiteHistory(DatabaseModel databaseModel, User editor) {
-
-        Query query = entityManager.get().createQuery("select distinct h from SiteHistory h " +
-                                                      "where h.site.activity.database = :database and h.user = :user " +
-                                                      "and h.timeCreated >= :from " +
-                                                      "order by h.timeCreated");
-        query.setParameter("database", databaseModel.getDatabase());
-        query.setParameter("user", editor);
-        query.setParameter("from", databaseModel.getModel().getFrom());
-
-        return query.getResultList();
+    Map<Integer, Map<Integer, Integer>> findEditsPerUser(UserDatabase database, Date date, long from) {
+
+        Query query = entityManager.get().createNativeQuery("select h.userId, " +
+                                                            "truncate((?1 - h.timeCreated) / ?2, 0) as daysAgo, " +
+                                                            "count(*) " +
+                                                            "from sitehistory h " +
+                                                            "inner join site s on (s.SiteId = h.siteId) " +
+                                                            "inner join activity a on (a.ActivityId = s.ActivityId) " +
+                                                            "where a.DatabaseId = ?3 and h.timeCreated >= ?4 " +
+                                                            "group by h.userId, daysAgo");
+        query.setParameter(1, date.getTime());
+        query.setParameter(2, MILLIS_PER_DAY);
+        query.setParameter(3, database.getId());
+        query.setParameter(4, from);
+
+        Map<Integer, Map<Integer, Integer>> edits = Maps.newHashMap();
+        for (Object[] row : (List<Object[]>) query.getResultList()) {
+            int userId = ((Number) row[0]).intValue();
+            Map<Integer, Integer> perDay = edits.get(userId);
+            if (perDay == null) {
+                perDay = Maps.newHashMap();
+                edits.put(userId, perDay);
+            }
+            perDay.put(((Number) row[1]).intValue(), ((Number) row[2]).intValue());
+        }
+        return edits;
     }
 
     @VisibleForTesting @SuppressWarnings("unchecked") SiteHistory findLastEdit(UserDatabase database) {
@@ -163,4 +217,17 @@ public class ActivityDigestModelBuilder implements DigestModelBuilder {
         List<SiteHistory> list = query.getResultList();
         return (list != null && list.size() == 1) ? list.get(0) : null;
     }
+
+    /**
+     * The activity of a database, which is the same in the digest of each of its users
+     */
+    private static class DatabaseActivity {
+        private final SiteHistory lastEdit;
+        private final LinkedHashMap<Partner, List<User>> partners = Maps.newLinkedHashMap();
+        private Map<Integer, Map<Integer, Integer>> editsPerUser;
+
+        DatabaseActivity(SiteHistory lastEdit) {
+            this.lastEdit = lastEdit;
+        }
+    }
 }
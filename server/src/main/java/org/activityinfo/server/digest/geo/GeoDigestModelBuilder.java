@@ -1,8 +1,11 @@
 package org.activityinfo.server.digest.geo;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.Singleton;
 import org.activityinfo.legacy.shared.command.DimensionType;
 import org.activityinfo.legacy.shared.command.Filter;
 import org.activityinfo.legacy.shared.command.GenerateElement;
@@ -15,6 +18,8 @@ import org.activityinfo.legacy.shared.reports.model.layers.BubbleMapLayer;
 import org.activityinfo.server.command.DispatcherSync;
 import org.activityinfo.server.database.hibernate.entity.User;
 import org.activityinfo.server.database.hibernate.entity.UserDatabase;
+import org.activityinfo.server.database.hibernate.entity.UserPermission;
+import org.activityinfo.server.digest.DatabaseDigestKey;
 import org.activityinfo.server.digest.DigestModelBuilder;
 import org.activityinfo.server.digest.geo.GeoDigestModel.DatabaseModel;
 import org.activityinfo.server.report.output.StorageProvider;
@@ -28,19 +33,35 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+/**
+ * Builds the geo digest of a user. The map of a database is generated and rendered once for all
+ * users who see the sites of the same partners, and kept for {@link #CACHE_MINUTES} minutes.
+ */
+@Singleton
 public class GeoDigestModelBuilder implements DigestModelBuilder {
     private static final String BUBBLE_COLOR = "67a639";
     private static final int BUBBLE_SIZE = 20;
 
     private static final Logger LOGGER = Logger.getLogger(GeoDigestModelBuilder.class.getName());
 
+    public static final int CACHE_MINUTES = 60;
+
     private final Provider<EntityManager> entityManager;
     private final DispatcherSync dispatcher;
     private final ImageMapRenderer imageMapRenderer;
     private final StorageProvider storageProvider;
 
+    private final Cache<DatabaseDigestKey, DatabaseMap> maps = CacheBuilder.newBuilder()
+                                                                       .expireAfterWrite(CACHE_MINUTES,
+                                                                               TimeUnit.MINUTES)
+                                                                       .maximumSize(1000)
+                                                                       .build();
+
     @Inject
     public GeoDigestModelBuilder(Provider<EntityManager> entityManager,
                                  DispatcherSync dispatcher,
@@ -70,15 +91,40 @@ public class GeoDigestModelBuilder implements DigestModelBuilder {
         return model;
     }
 
-    private void createDatabaseModel(GeoDigestModel model, UserDatabase database) throws IOException {
+    private void createDatabaseModel(GeoDigestModel model, final UserDatabase database) throws IOException {
 
         DatabaseModel databaseModel = new DatabaseModel(model, database);
 
-        List<Integer> siteIds = findSiteIds(database, model.getFrom());
+        DatabaseDigestKey key = new DatabaseDigestKey(database.getId(), model.getDate(), model.getDays(),
+                findVisibility(model.getUser(), database));
+        final long from = model.getFrom();
+        DatabaseMap map;
+        try {
+            map = maps.get(key, new Callable<DatabaseMap>() {
+                @Override
+                public DatabaseMap call() throws IOException {
+                    return createMap(database, from);
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+        databaseModel.setContent(map.content);
+        databaseModel.setUrl(map.url);
+    }
 
-        LOGGER.finest("rendering geo digest for user " + model.getUser().getId() + " and database " + database.getId() +
+    private DatabaseMap createMap(UserDatabase database, long from) throws IOException {
+        DatabaseMap map = new DatabaseMap();
+
+        List<Integer> siteIds = findSiteIds(database, from);
+
+        LOGGER.finest("rendering geo digest map for database " + database.getId() +
                       " - found " + siteIds.size() + " site(s) that were edited since " +
-                      DateFormatter.formatDateTime(model.getFrom()));
+                      DateFormatter.formatDateTime(new Date(from)));
 
         if (!siteIds.isEmpty()) {
             MapReportElement reportModel = new MapReportElement();
@@ -88,7 +134,7 @@ public class GeoDigestModelBuilder implements DigestModelBuilder {
             reportModel.setLayers(layer);
 
             MapContent content = dispatcher.execute(new GenerateElement<MapContent>(reportModel));
-            databaseModel.setContent(content);
+            map.content = content;
 
             if (!content.getMarkers().isEmpty()) {
                 reportModel.setContent(content);
@@ -97,9 +143,10 @@ public class GeoDigestModelBuilder implements DigestModelBuilder {
                 imageMapRenderer.render(reportModel, storage.getOutputStream());
                 storage.getOutputStream().close();
 
-                databaseModel.setUrl(storage.getUrl());
+                map.url = storage.getUrl();
             }
         }
+        return map;
     }
 
     private BubbleMapLayer createLayer(List<Integer> siteIds) {
@@ -136,6 +183,30 @@ public class GeoDigestModelBuilder implements DigestModelBuilder {
         return query.getResultList();
     }
 
+    /**
+     * @return {@link DatabaseDigestKey#ALL_PARTNERS} if the user owns the database or has a UserPermission with
+     * allowViewAll set to true, the id of the partner of the user's UserPermission, or the negated user id if the
+     * user has no UserPermission, so that the map is not shared.
+     */
+    @VisibleForTesting @SuppressWarnings("unchecked") int findVisibility(User user, UserDatabase database) {
+        if (database.getOwner().getId() == user.getId()) {
+            return DatabaseDigestKey.ALL_PARTNERS;
+        }
+
+        Query query = entityManager.get().createNamedQuery("findUserPermissionByUserIdAndDatabaseId");
+        query.setParameter("databaseId", database.getId());
+        query.setParameter("userId", user.getId());
+
+        List<UserPermission> permissions = query.getResultList();
+        if (permissions.isEmpty()) {
+            return -user.getId();
+        }
+        if (permissions.get(0).isAllowViewAll()) {
+            return DatabaseDigestKey.ALL_PARTNERS;
+        }
+        return permissions.get(0).getPartner().getId();
+    }
+
     /**
      * @param database the database the sites should be linked to (via an activity)
      * @param from     the timestamp (millis) to start searching from for edited sites
@@ -152,4 +223,12 @@ public class GeoDigestModelBuilder implements DigestModelBuilder {
 
         return query.getResultList();
     }
+
+    /**
+     * The map of a database, which is the same in the digest of all users with the same visibility
+     */
+    private static class DatabaseMap {
+        private MapContent content;
+        private String url;
+    }
 }
@@ -0,0 +1,156 @@
+package org.activityinfo.server.endpoint.export;
+
+import org.activityinfo.i18n.shared.I18N;
+import org.activityinfo.legacy.shared.model.ActivityDTO;
+import org.activityinfo.legacy.shared.model.AdminLevelDTO;
+import org.activityinfo.legacy.shared.model.AttributeDTO;
+import org.activityinfo.legacy.shared.model.IndicatorDTO;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Writes the sites of a single activity as comma-separated values, with the same
+ * columns as the Excel export.
+ */
+public class CsvSiteRowWriter implements SiteRowWriter {
+
+    public static final String CONTENT_TYPE = "text/csv; charset=UTF-8";
+
+    private final Writer writer;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+    private SiteColumns columns;
+
+    public CsvSiteRowWriter(Writer writer) {
+        this.writer = writer;
+        this.timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override
+    public void startActivity(ActivityDTO activity, SiteColumns columns) throws IOException {
+        if (this.columns != null) {
+            throw new IllegalStateException("A CSV export can only contain the sites of a single activity");
+        }
+        this.columns = columns;
+
+        writeValue("SiteId");
+        writeSeparator();
+        writeValue("DateCreated");
+        writeSeparator();
+        writeValue("Date1");
+        writeSeparator();
+        writeValue("Date2");
+        writeSeparator();
+        writeValue("Partner");
+        writeSeparator();
+        writeValue(activity.getLocationType().getName());
+        writeSeparator();
+        writeValue("Axe");
+
+        for (IndicatorDTO indicator : columns.getIndicators()) {
+            writeSeparator();
+            writeValue(indicator.getName());
+        }
+        for (AttributeDTO attrib : columns.getAttributes()) {
+            writeSeparator();
+            writeValue(attrib.getName());
+        }
+        for (AdminLevelDTO level : columns.getAdminLevels()) {
+            writeSeparator();
+            writeValue("Code " + level.getName());
+            writeSeparator();
+            writeValue(level.getName());
+        }
+        writeSeparator();
+        writeValue(I18N.CONSTANTS.longitude());
+        writeSeparator();
+        writeValue(I18N.CONSTANTS.latitude());
+        writeSeparator();
+        writeValue(I18N.CONSTANTS.comments());
+        writer.write("\n");
+    }
+
+    @Override
+    public void writeRow(SiteRow row) throws IOException {
+        writer.write(Integer.toString(row.getSiteId()));
+        writeSeparator();
+        writeDate(timestampFormat, row.getDateCreated());
+        writeSeparator();
+        writeDate(dateFormat, row.getDate1());
+        writeSeparator();
+        writeDate(dateFormat, row.getDate2());
+        writeSeparator();
+        writeValue(row.getPartnerName());
+        writeSeparator();
+        writeValue(row.getLocationName());
+        writeSeparator();
+        writeValue(row.getLocationAxe());
+
+        for (int i = 0; i != columns.getIndicators().size(); ++i) {
+            writeSeparator();
+            Object value = row.getIndicatorValue(i);
+            if (value instanceof Double) {
+                writeNumber((Double) value);
+            } else if (value instanceof Date) {
+                writeDate(dateFormat, (Date) value);
+            } else if (value instanceof String) {
+                writeValue((String) value);
+            }
+        }
+        for (int i = 0; i != columns.getAttributes().size(); ++i) {
+            writeSeparator();
+            writer.write(row.getAttributeValue(i) ? "1" : "0");
+        }
+        for (int i = 0; i != columns.getAdminLevels().size(); ++i) {
+            writeSeparator();
+            writeValue(row.getAdminEntityCode(i));
+            writeSeparator();
+            writeValue(row.getAdminEntityName(i));
+        }
+        writeSeparator();
+        if (row.hasLatLong()) {
+            writeNumber(row.getLongitude());
+        }
+        writeSeparator();
+        if (row.hasLatLong()) {
+            writeNumber(row.getLatitude());
+        }
+        writeSeparator();
+        writeValue(row.getComments());
+        writer.write("\n");
+    }
+
+    private void writeSeparator() throws IOException {
+        writer.write(',');
+    }
+
+    private void writeValue(String value) throws IOException {
+        if (value != null) {
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+    }
+
+    private void writeNumber(double value) throws IOException {
+        if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+            writer.write(Double.toString(value));
+        }
+    }
+
+    private void writeDate(SimpleDateFormat format, Date date) throws IOException {
+        if (date != null) {
+            writer.write(format.format(date));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.flush();
+    }
+}
@@ -90,7 +90,7 @@ public class ExportSitesServlet extends HttpServlet {
         options.param("userId", Integer.toString(authenticatedUserProvider.get().getId()));
         options.param("userEmail", authenticatedUserProvider.get().getEmail());
         options.param("exportId", exportId);
-        options.param("filename", fileName());
+        options.param("filename", fileName(req.getParameter("format")));
         options.retryOptions(RetryOptions.Builder.withTaskRetryLimit(3));
 
         QueueFactory.getDefaultQueue().add(options);
@@ -135,9 +135,10 @@ public class ExportSitesServlet extends HttpServlet {
         }
     }
 
-    private String fileName() {
+    private String fileName(String format) {
         String date = new SimpleDateFormat("YYYY-MM-dd_HHmmss").format(new Date());
-        return ("ActivityInfo_Export_" + date + ".xls").replace(" ", "_");
+        String extension = ExportSitesTask.FORMAT_XLSX.equals(format) ? ".xlsx" : ".xls";
+        return ("ActivityInfo_Export_" + date + extension).replace(" ", "_");
     }
 
 }
\ No newline at end of file
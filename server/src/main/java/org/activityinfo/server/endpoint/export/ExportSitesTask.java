@@ -28,6 +28,8 @@ public class ExportSitesTask extends HttpServlet {
 
     public static final String EXPORT_BUCKET_NAME = "activityinfo-generated";
 
+    public static final String FORMAT_XLSX = "xlsx";
+
     private Provider<DispatcherSync> dispatcher;
     private ServerSideAuthProvider authProvider;
 
@@ -46,21 +48,26 @@ public class ExportSitesTask extends HttpServlet {
                 req.getParameter("userEmail")));
 
 
-        // create the workbook
         Filter filter = FilterUrlSerializer.fromQueryParameter(req.getParameter("filter"));
-        SiteExporter export = new SiteExporter(dispatcher.get()).buildExcelWorkbook(filter);
+        boolean xlsx = FORMAT_XLSX.equals(req.getParameter("format"));
 
         // Save to GCS
         GcsService gcs = GcsServiceFactory.createGcsService();
         GcsFileOptions fileOptions = new GcsFileOptions.Builder()
-                .mimeType("application/vnd.ms-excel")
+                .mimeType(xlsx ? XlsxSiteExporter.CONTENT_TYPE : "application/vnd.ms-excel")
                 .contentDisposition("attachment; filename=" + req.getParameter("filename"))
                 .build();
         GcsFilename fileName = new GcsFilename(EXPORT_BUCKET_NAME,
                 req.getParameter("exportId"));
 
         try(OutputStream outputStream = Channels.newOutputStream(gcs.createOrReplace(fileName, fileOptions))) {
-            export.getBook().write(outputStream);
+            if (xlsx) {
+                // stream the workbook to GCS as the sites are fetched
+                new XlsxSiteExporter(dispatcher.get(), outputStream).exportWorkbook(filter);
+            } else {
+                SiteExporter export = new SiteExporter(dispatcher.get()).buildExcelWorkbook(filter);
+                export.getBook().write(outputStream);
+            }
         }
     }
 }
@@ -0,0 +1,130 @@
+package org.activityinfo.server.endpoint.export;
+
+import org.activityinfo.legacy.shared.model.ActivityDTO;
+import org.activityinfo.legacy.shared.model.AdminLevelDTO;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Writes sites as newline-delimited JSON: one object per site, each on its own line.
+ * Unlike the CSV export, the sites of several activities can be written to the same stream.
+ */
+public class JsonLinesSiteRowWriter implements SiteRowWriter {
+
+    public static final String CONTENT_TYPE = "application/x-ndjson; charset=UTF-8";
+
+    private final JsonGenerator json;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+    private ActivityDTO activity;
+    private SiteColumns columns;
+
+    public JsonLinesSiteRowWriter(Writer writer) throws IOException {
+        this.json = new JsonFactory().createJsonGenerator(writer);
+        this.json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        this.json.setPrettyPrinter(new LinePrinter());
+        this.timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override
+    public void startActivity(ActivityDTO activity, SiteColumns columns) throws IOException {
+        this.activity = activity;
+        this.columns = columns;
+    }
+
+    @Override
+    public void writeRow(SiteRow row) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("id", row.getSiteId());
+        json.writeNumberField("activity", activity.getId());
+        json.writeNumberField("database", activity.getDatabaseId());
+        writeDateField("dateCreated", timestampFormat, row.getDateCreated());
+        writeDateField("startDate", dateFormat, row.getDate1());
+        writeDateField("endDate", dateFormat, row.getDate2());
+
+        json.writeObjectFieldStart("location");
+        json.writeStringField("name", row.getLocationName());
+        json.writeStringField("code", row.getLocationAxe());
+        if (row.hasLatLong()) {
+            json.writeNumberField("latitude", row.getLatitude());
+            json.writeNumberField("longitude", row.getLongitude());
+        }
+        json.writeEndObject();
+
+        json.writeObjectFieldStart("partner");
+        json.writeStringField("name", row.getPartnerName());
+        json.writeEndObject();
+
+        json.writeArrayFieldStart("attributes");
+        for (int i = 0; i != columns.getAttributes().size(); ++i) {
+            if (row.getAttributeValue(i)) {
+                json.writeNumber(columns.getAttributes().get(i).getId());
+            }
+        }
+        json.writeEndArray();
+
+        json.writeObjectFieldStart("indicatorValues");
+        for (int i = 0; i != columns.getIndicators().size(); ++i) {
+            String field = Integer.toString(columns.getIndicators().get(i).getId());
+            Object value = row.getIndicatorValue(i);
+            if (value instanceof Double) {
+                double doubleValue = (Double) value;
+                if (!Double.isNaN(doubleValue) && !Double.isInfinite(doubleValue)) {
+                    json.writeNumberField(field, doubleValue);
+                }
+            } else if (value instanceof Date) {
+                writeDateField(field, dateFormat, (Date) value);
+            } else if (value instanceof String) {
+                json.writeStringField(field, (String) value);
+            }
+        }
+        json.writeEndObject();
+
+        json.writeObjectFieldStart("adminEntities");
+        for (int i = 0; i != columns.getAdminLevels().size(); ++i) {
+            if (row.getAdminEntityName(i) != null) {
+                AdminLevelDTO level = columns.getAdminLevels().get(i);
+                json.writeObjectFieldStart(Integer.toString(level.getId()));
+                json.writeStringField("code", row.getAdminEntityCode(i));
+                json.writeStringField("name", row.getAdminEntityName(i));
+                json.writeEndObject();
+            }
+        }
+        json.writeEndObject();
+
+        if (row.getComments() != null) {
+            json.writeStringField("comments", row.getComments());
+        }
+        json.writeEndObject();
+        json.writeRaw('\n');
+    }
+
+    private void writeDateField(String field, SimpleDateFormat format, Date date) throws IOException {
+        if (date != null) {
+            json.writeStringField(field, format.format(date));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        json.flush();
+    }
+
+    /**
+     * Writes each object compactly, without the space that would otherwise separate
+     * consecutive root values; the objects are terminated by newlines instead.
+     */
+    private static class LinePrinter extends MinimalPrettyPrinter {
+        @Override
+        public void writeRootValueSeparator(JsonGenerator jg) {
+        }
+    }
+}
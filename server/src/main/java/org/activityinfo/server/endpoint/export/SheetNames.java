@@ -0,0 +1,44 @@
+package org.activityinfo.server.endpoint.export;
+
+import org.activityinfo.legacy.shared.model.ActivityDTO;
+import org.apache.poi.ss.util.WorkbookUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Composes unique, Excel-safe worksheet names for the activities of a workbook
+ */
+class SheetNames {
+
+    private static final int MAX_WORKSHEET_LENGTH = 31;
+
+    private final Map<String, Integer> sheetNames = new HashMap<String, Integer>();
+
+    public String uniqueName(ActivityDTO activity) {
+        String sheetName = activity.getDatabaseName() + " - " + activity.getName();
+
+        // to avoid conflict with our own disambiguation scheme, remove any trailing "(n)"
+        // from sheet names
+        sheetName = sheetName.replaceFirst("\\((\\d+)\\)$", "$1");
+
+        // shorten and translate the name to meet excel requirements
+        String safeName = WorkbookUtil.createSafeSheetName(sheetName);
+
+        // assure that the sheet name is unique
+        if (!sheetNames.containsKey(safeName)) {
+            sheetNames.put(safeName, 1);
+            return safeName;
+        } else {
+            int index = sheetNames.get(safeName) + 1;
+            sheetNames.put(safeName, index);
+
+            String disambiguatedNamed = safeName + " (" + index + ")";
+            if (disambiguatedNamed.length() > MAX_WORKSHEET_LENGTH) {
+                int toTrim = disambiguatedNamed.length() - MAX_WORKSHEET_LENGTH;
+                disambiguatedNamed = safeName.substring(0, safeName.length() - toTrim) + " (" + index + ")";
+            }
+            return disambiguatedNamed;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.activityinfo.server.endpoint.export;
+
+import org.activityinfo.legacy.shared.model.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The variable columns of an activity's site export, in the order in which they are exported:
+ * indicators (only for activities which are reported once), attributes, and admin levels.
+ */
+public class SiteColumns {
+
+    private final List<IndicatorGroup> indicatorGroups = new ArrayList<>();
+    private final List<IndicatorDTO> indicators = new ArrayList<>();
+    private final List<AttributeGroupDTO> attributeGroups = new ArrayList<>();
+    private final List<AttributeDTO> attributes = new ArrayList<>();
+    private final List<AdminLevelDTO> levels = new ArrayList<>();
+
+    public SiteColumns(ActivityDTO activity) {
+        if (activity.getReportingFrequency() == ActivityDTO.REPORT_ONCE) {
+            for (IndicatorGroup group : activity.groupIndicators()) {
+                indicatorGroups.add(group);
+                indicators.addAll(group.getIndicators());
+            }
+        }
+        for (AttributeGroupDTO group : activity.getAttributeGroups()) {
+            if (group.getAttributes().size() != 0) {
+                attributeGroups.add(group);
+                attributes.addAll(group.getAttributes());
+            }
+        }
+        levels.addAll(activity.getAdminLevels());
+    }
+
+    public List<IndicatorGroup> getIndicatorGroups() {
+        return indicatorGroups;
+    }
+
+    public List<IndicatorDTO> getIndicators() {
+        return indicators;
+    }
+
+    public List<AttributeGroupDTO> getAttributeGroups() {
+        return attributeGroups;
+    }
+
+    public List<AttributeDTO> getAttributes() {
+        return attributes;
+    }
+
+    public List<AdminLevelDTO> getAdminLevels() {
+        return levels;
+    }
+}
@@ -44,13 +44,8 @@ import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.ss.util.WorkbookUtil;
 
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,8 +56,6 @@ public class SiteExporter {
 
     private static final Logger LOGGER = Logger.getLogger(SiteExporter.class.getName());
 
-    private static final int MAX_WORKSHEET_LENGTH = 31;
-
     private static final short FONT_SIZE = 8;
     private static final short TITLE_FONT_SIZE = 12;
 
@@ -82,7 +75,7 @@ public class SiteExporter {
     private final HSSFWorkbook book;
     private final CreationHelper creationHelper;
 
-    private Map<String, Integer> sheetNames;
+    private final SheetNames sheetNames = new SheetNames();
 
     private CellStyle titleStyle;
 
@@ -99,9 +92,7 @@ public class SiteExporter {
 
     private CellStyle attribValueStyle;
 
-    private List<Integer> indicators;
-    private List<Integer> attributes;
-    private List<Integer> levels;
+    private SiteColumns columns;
     private HSSFCellStyle dateTimeStyle;
 
     public SiteExporter(DispatcherSync dispatcher) {
@@ -110,8 +101,6 @@ public class SiteExporter {
         book = new HSSFWorkbook();
         creationHelper = book.getCreationHelper();
 
-        sheetNames = new HashMap<String, Integer>();
-
         declareStyles();
     }
 
@@ -169,7 +158,7 @@ public class SiteExporter {
 
     public void export(ActivityDTO activity, Filter filter) {
 
-        HSSFSheet sheet = book.createSheet(composeUniqueSheetName(activity));
+        HSSFSheet sheet = book.createSheet(sheetNames.uniqueName(activity));
         sheet.createFreezePane(4, 2);
 
         // initConditionalFormatting(sheet);
@@ -178,33 +167,6 @@ public class SiteExporter {
 
     }
 
-    private String composeUniqueSheetName(ActivityDTO activity) {
-        String sheetName = activity.getDatabaseName() + " - " + activity.getName();
-
-        // to avoid conflict with our own disambiguation scheme, remove any trailing "(n)" 
-        // from sheet names
-        sheetName = sheetName.replaceFirst("\\((\\d+)\\)$", "$1");
-
-        // shorten and translate the name to meet excel requirements
-        String safeName = WorkbookUtil.createSafeSheetName(sheetName);
-
-        // assure that the sheet name is unique
-        if (!sheetNames.containsKey(safeName)) {
-            sheetNames.put(safeName, 1);
-            return safeName;
-        } else {
-            int index = sheetNames.get(safeName) + 1;
-            sheetNames.put(safeName, index);
-
-            String disambiguatedNamed = safeName + " (" + index + ")";
-            if (disambiguatedNamed.length() > MAX_WORKSHEET_LENGTH) {
-                int toTrim = disambiguatedNamed.length() - MAX_WORKSHEET_LENGTH;
-                disambiguatedNamed = safeName.substring(0, safeName.length() - toTrim) + " (" + index + ")";
-            }
-            return disambiguatedNamed;
-        }
-    }
-
     private void createHeaders(ActivityDTO activity, HSSFSheet sheet) {
 
         // / The HEADER rows
@@ -240,46 +202,37 @@ public class SiteExporter {
 
         createHeaderCell(headerRow2, column++, "Axe");
 
-        indicators = new ArrayList<Integer>(activity.getIndicators().size());
-        if (activity.getReportingFrequency() == ActivityDTO.REPORT_ONCE) {
-            for (IndicatorGroup group : activity.groupIndicators()) {
-                if (group.getName() != null) {
-                    // create a merged cell on the top row spanning all members
-                    // of the group
-                    createHeaderCell(headerRow1, column, group.getName());
-                    sheet.addMergedRegion(new CellRangeAddress(0,
-                            0,
-                            column,
-                            column + group.getIndicators().size() - 1));
-                }
-                for (IndicatorDTO indicator : group.getIndicators()) {
-                    indicators.add(indicator.getId());
-                    createHeaderCell(headerRow2, column, indicator.getName(), indicatorHeaderStyle);
-                    sheet.setColumnWidth(column, characters(INDICATOR_COLUMN_WIDTH));
-                    column++;
-                }
+        columns = new SiteColumns(activity);
+        for (IndicatorGroup group : columns.getIndicatorGroups()) {
+            if (group.getName() != null) {
+                // create a merged cell on the top row spanning all members
+                // of the group
+                createHeaderCell(headerRow1, column, group.getName());
+                sheet.addMergedRegion(new CellRangeAddress(0,
+                        0,
+                        column,
+                        column + group.getIndicators().size() - 1));
+            }
+            for (IndicatorDTO indicator : group.getIndicators()) {
+                createHeaderCell(headerRow2, column, indicator.getName(), indicatorHeaderStyle);
+                sheet.setColumnWidth(column, characters(INDICATOR_COLUMN_WIDTH));
+                column++;
             }
         }
-        attributes = new ArrayList<>();
-        for (AttributeGroupDTO group : activity.getAttributeGroups()) {
-            if (group.getAttributes().size() != 0) {
-                createHeaderCell(headerRow1, column, group.getName(), CellStyle.ALIGN_CENTER);
-                sheet.addMergedRegion(new CellRangeAddress(0, 0, column, column + group.getAttributes().size() - 1));
-
-                for (AttributeDTO attrib : group.getAttributes()) {
-                    attributes.add(attrib.getId());
-                    createHeaderCell(headerRow2, column, attrib.getName(), attribHeaderStyle);
-                    sheet.setColumnWidth(column, characters(ATTRIBUTE_COLUMN_WIDTH));
-                    column++;
-                }
+        for (AttributeGroupDTO group : columns.getAttributeGroups()) {
+            createHeaderCell(headerRow1, column, group.getName(), CellStyle.ALIGN_CENTER);
+            sheet.addMergedRegion(new CellRangeAddress(0, 0, column, column + group.getAttributes().size() - 1));
+
+            for (AttributeDTO attrib : group.getAttributes()) {
+                createHeaderCell(headerRow2, column, attrib.getName(), attribHeaderStyle);
+                sheet.setColumnWidth(column, characters(ATTRIBUTE_COLUMN_WIDTH));
+                column++;
             }
         }
 
-        levels = new ArrayList<>();
-        for (AdminLevelDTO level : activity.getAdminLevels()) {
+        for (AdminLevelDTO level : columns.getAdminLevels()) {
             createHeaderCell(headerRow2, column++, "Code " + level.getName());
             createHeaderCell(headerRow2, column++, level.getName());
-            levels.add(level.getId());
         }
         int latColumn = column++;
         int lngColumn = column++;
@@ -345,20 +298,20 @@ public class SiteExporter {
 
         createCell(row, column++, site.getLocationAxe());
 
-        for (Integer indicatorId : indicators) {
-            createIndicatorValueCell(row, column++, site.getIndicatorValue(indicatorId));
+        for (IndicatorDTO indicator : columns.getIndicators()) {
+            createIndicatorValueCell(row, column++, site.getIndicatorValue(indicator.getId()));
         }
 
-        for (Integer attribId : attributes) {
+        for (AttributeDTO attrib : columns.getAttributes()) {
 
-            boolean value = site.getAttributeValue(attribId);
+            boolean value = site.getAttributeValue(attrib.getId());
             Cell valueCell = createCell(row, column, value);
             valueCell.setCellStyle(attribValueStyle);
             column++;
         }
 
-        for (Integer levelId : levels) {
-            AdminEntityDTO entity = site.getAdminEntity(levelId);
+        for (AdminLevelDTO level : columns.getAdminLevels()) {
+            AdminEntityDTO entity = site.getAdminEntity(level.getId());
             if (entity != null) {
                 createCell(row, column, "");
                 createCell(row, column + 1, entity.getName());
@@ -0,0 +1,153 @@
+package org.activityinfo.server.endpoint.export;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * The values of a single site in a streaming export, laid out according to the
+ * activity's {@link SiteColumns}. A single instance is reused for all the sites of an activity.
+ */
+public class SiteRow {
+
+    private int siteId;
+    private Date dateCreated;
+    private Date date1;
+    private Date date2;
+    private String partnerName;
+    private String locationName;
+    private String locationAxe;
+    private Double longitude;
+    private Double latitude;
+    private String comments;
+
+    private final Object[] indicatorValues;
+    private final boolean[] attributeValues;
+    private final String[] adminEntityCodes;
+    private final String[] adminEntityNames;
+
+    SiteRow(SiteColumns columns) {
+        indicatorValues = new Object[columns.getIndicators().size()];
+        attributeValues = new boolean[columns.getAttributes().size()];
+        adminEntityCodes = new String[columns.getAdminLevels().size()];
+        adminEntityNames = new String[columns.getAdminLevels().size()];
+    }
+
+    void clear() {
+        Arrays.fill(indicatorValues, null);
+        Arrays.fill(attributeValues, false);
+    }
+
+    public int getSiteId() {
+        return siteId;
+    }
+
+    void setSiteId(int siteId) {
+        this.siteId = siteId;
+    }
+
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    void setDateCreated(Date dateCreated) {
+        this.dateCreated = dateCreated;
+    }
+
+    public Date getDate1() {
+        return date1;
+    }
+
+    void setDate1(Date date1) {
+        this.date1 = date1;
+    }
+
+    public Date getDate2() {
+        return date2;
+    }
+
+    void setDate2(Date date2) {
+        this.date2 = date2;
+    }
+
+    public String getPartnerName() {
+        return partnerName;
+    }
+
+    void setPartnerName(String partnerName) {
+        this.partnerName = partnerName;
+    }
+
+    public String getLocationName() {
+        return locationName;
+    }
+
+    void setLocationName(String locationName) {
+        this.locationName = locationName;
+    }
+
+    public String getLocationAxe() {
+        return locationAxe;
+    }
+
+    void setLocationAxe(String locationAxe) {
+        this.locationAxe = locationAxe;
+    }
+
+    public boolean hasLatLong() {
+        return latitude != null && longitude != null;
+    }
+
+    public Double getLongitude() {
+        return longitude;
+    }
+
+    public Double getLatitude() {
+        return latitude;
+    }
+
+    void setLatLong(Double latitude, Double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    public String getComments() {
+        return comments;
+    }
+
+    void setComments(String comments) {
+        this.comments = comments;
+    }
+
+    /**
+     * @return the value of the indicator at the given position in {@link SiteColumns#getIndicators()}:
+     * a {@code Double}, {@code String} or {@code Date}, or {@code null} if the site has no value
+     */
+    public Object getIndicatorValue(int index) {
+        return indicatorValues[index];
+    }
+
+    void setIndicatorValue(int index, Object value) {
+        indicatorValues[index] = value;
+    }
+
+    public boolean getAttributeValue(int index) {
+        return attributeValues[index];
+    }
+
+    void setAttributeValue(int index, boolean value) {
+        attributeValues[index] = value;
+    }
+
+    public String getAdminEntityCode(int index) {
+        return adminEntityCodes[index];
+    }
+
+    public String getAdminEntityName(int index) {
+        return adminEntityNames[index];
+    }
+
+    void setAdminEntity(int index, String code, String name) {
+        adminEntityCodes[index] = code;
+        adminEntityNames[index] = name;
+    }
+}
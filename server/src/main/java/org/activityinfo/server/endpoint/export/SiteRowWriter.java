@@ -0,0 +1,20 @@
+package org.activityinfo.server.endpoint.export;
+
+import org.activityinfo.legacy.shared.model.ActivityDTO;
+
+import java.io.IOException;
+
+/**
+ * Receives the sites of a streaming export, one activity after the other.
+ */
+public interface SiteRowWriter {
+
+    void startActivity(ActivityDTO activity, SiteColumns columns) throws IOException;
+
+    void writeRow(SiteRow row) throws IOException;
+
+    /**
+     * Flushes anything buffered. The underlying stream is left open.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,322 @@
+package org.activityinfo.server.endpoint.export;
+
+import com.bedatadriven.rebar.sql.client.query.SqlQuery;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Provider;
+import org.activityinfo.legacy.shared.command.DimensionType;
+import org.activityinfo.legacy.shared.command.Filter;
+import org.activityinfo.legacy.shared.impl.IndicatorSymbolResolver;
+import org.activityinfo.legacy.shared.impl.Tables;
+import org.activityinfo.legacy.shared.model.ActivityDTO;
+import org.activityinfo.legacy.shared.model.AdminLevelDTO;
+import org.activityinfo.legacy.shared.model.SchemaDTO;
+import org.activityinfo.legacy.shared.model.UserDatabaseDTO;
+import org.hibernate.ejb.HibernateEntityManager;
+import org.hibernate.jdbc.Work;
+
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Streams the sites of activities straight from a JDBC cursor to a {@link SiteRowWriter},
+ * without materializing the sites as {@code SiteDTO}s.
+ *
+ * <p>Each activity is read with a single query, ordered by site, which joins the indicator
+ * values of the site's reporting period: consecutive rows with the same site id make up one site.
+ * Only the columns of the activity's {@link SiteColumns} are read.</p>
+ */
+public class SiteStreamExporter {
+
+    private static final Logger LOGGER = Logger.getLogger(SiteStreamExporter.class.getName());
+
+    private final Provider<EntityManager> entityManager;
+    private final SiteRowWriter writer;
+
+    public SiteStreamExporter(Provider<EntityManager> entityManager, SiteRowWriter writer) {
+        this.entityManager = entityManager;
+        this.writer = writer;
+    }
+
+    /**
+     * Exports the sites of the activities in the user's schema which match the filter's activity
+     * and database restrictions.
+     */
+    public void export(SchemaDTO schema, Filter filter) throws IOException {
+        for (ActivityDTO activity : selectActivities(schema, filter)) {
+            export(activity, filter);
+        }
+        writer.close();
+    }
+
+    public static List<ActivityDTO> selectActivities(SchemaDTO schema, Filter filter) {
+        List<ActivityDTO> activities = Lists.newArrayList();
+        for (UserDatabaseDTO db : schema.getDatabases()) {
+            if (!filter.isRestricted(DimensionType.Database) ||
+                    filter.getRestrictions(DimensionType.Database).contains(db.getId())) {
+                for (ActivityDTO activity : db.getActivities()) {
+                    if (!filter.isRestricted(DimensionType.Activity) ||
+                            filter.getRestrictions(DimensionType.Activity).contains(activity.getId())) {
+                        activities.add(activity);
+                    }
+                }
+            }
+        }
+        return activities;
+    }
+
+    private void export(final ActivityDTO activity, Filter filter) throws IOException {
+        final SiteColumns columns = new SiteColumns(activity);
+        final SqlQuery query = composeQuery(activity, columns, filter);
+        if (query == null) {
+            return;
+        }
+
+        writer.startActivity(activity, columns);
+
+        long startTime = System.currentTimeMillis();
+        final int[] siteCount = new int[1];
+
+        try {
+            ((HibernateEntityManager) entityManager.get()).getSession().doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    PreparedStatement statement = connection.prepareStatement(query.sql(),
+                            ResultSet.TYPE_FORWARD_ONLY,
+                            ResultSet.CONCUR_READ_ONLY);
+                    try {
+                        // Instructs MySQL's driver to stream rows rather than reading the whole result
+                        statement.setFetchSize(Integer.MIN_VALUE);
+
+                        int parameterIndex = 1;
+                        for (Object parameter : query.parameters()) {
+                            statement.setObject(parameterIndex++, parameter);
+                        }
+                        siteCount[0] = writeRows(activity, columns, statement.executeQuery());
+
+                    } catch (IOException e) {
+                        // the client has most likely gone away, so there is nothing left to do
+                        throw new SQLException("Failed to write sites", e);
+
+                    } finally {
+                        statement.close();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof SQLException && e.getCause().getCause() instanceof IOException) {
+                throw (IOException) e.getCause().getCause();
+            }
+            throw e;
+        }
+
+        LOGGER.fine("Streamed " + siteCount[0] + " sites of activity " + activity.getId() + " in " +
+                    (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * @return the query, or {@code null} if the user is not allowed to view any of the activity's sites
+     */
+    private SqlQuery composeQuery(ActivityDTO activity, SiteColumns columns, Filter filter) {
+        SqlQuery query = SqlQuery.select()
+                .appendColumn("site.SiteId", "SiteId")
+                .appendColumn("site.DateCreated", "DateCreated")
+                .appendColumn("site.Date1", "Date1")
+                .appendColumn("site.Date2", "Date2")
+                .appendColumn("site.Comments", "Comments")
+                .appendColumn("partner.Name", "PartnerName")
+                .appendColumn("location.Name", "LocationName")
+                .appendColumn("location.Axe", "LocationAxe")
+                .appendColumn("location.X", "X")
+                .appendColumn("location.Y", "Y")
+                .from(Tables.SITE, "site")
+                .leftJoin(Tables.PARTNER, "partner").on("site.PartnerId = partner.PartnerId")
+                .leftJoin(Tables.LOCATION, "location").on("site.LocationId = location.LocationId")
+                .where("site.ActivityId").equalTo(activity.getId())
+                .whereTrue("site.DateDeleted IS NULL")
+                .orderBy("site.SiteId");
+
+        if (!columns.getAttributes().isEmpty()) {
+            query.appendColumn("(SELECT GROUP_CONCAT(av.AttributeId) FROM " + Tables.ATTRIBUTE_VALUE + " av " +
+                               "WHERE av.SiteId = site.SiteId AND av.Value = 1)", "AttributeIds");
+        }
+
+        List<AdminLevelDTO> levels = columns.getAdminLevels();
+        for (int i = 0; i != levels.size(); ++i) {
+            query.appendColumn("admin" + i + ".Code", "AdminCode" + i);
+            query.appendColumn("admin" + i + ".Name", "AdminName" + i);
+            query.leftJoin(locationToAdminTable(levels.get(i).getId()), "admin" + i)
+                 .on("admin" + i + ".LocationId = location.LocationId");
+        }
+
+        if (!columns.getIndicators().isEmpty()) {
+            query.appendColumn("v.IndicatorId", "IndicatorId")
+                 .appendColumn("v.Value", "Value")
+                 .appendColumn("v.TextValue", "TextValue")
+                 .appendColumn("v.DateValue", "DateValue")
+                 .leftJoin(Tables.REPORTING_PERIOD, "period").on("period.SiteId = site.SiteId")
+                 .leftJoin(Tables.INDICATOR_VALUE, "v").on("v.ReportingPeriodId = period.ReportingPeriodId");
+        }
+
+        if (filter.isRestricted(DimensionType.Partner)) {
+            query.where("site.PartnerId").in(filter.getRestrictions(DimensionType.Partner));
+        }
+
+        // The activity is in the user's schema, so the user can at least view the sites of their own partner
+        UserDatabaseDTO db = activity.getDatabase();
+        if (!db.getAmOwner() && !db.isViewAllAllowed() && activity.getPublished() == 0) {
+            if (!db.hasPartnerId()) {
+                return null;
+            }
+            query.where("site.PartnerId").equalTo(db.getMyPartnerId());
+        }
+        return query;
+    }
+
+    private SqlQuery locationToAdminTable(int adminLevelId) {
+        return SqlQuery
+                .select("k.LocationId", "e.Code", "e.Name")
+                .from(Tables.LOCATION_ADMIN_LINK, "k")
+                .leftJoin(Tables.ADMIN_ENTITY, "e")
+                .on("k.AdminEntityId = e.AdminEntityId")
+                .whereTrue("e.AdminLevelId = " + adminLevelId);
+    }
+
+    private int writeRows(ActivityDTO activity, SiteColumns columns, ResultSet rs) throws SQLException, IOException {
+
+        Map<Integer, Integer> indicatorIndex = Maps.newHashMap();
+        for (int i = 0; i != columns.getIndicators().size(); ++i) {
+            indicatorIndex.put(columns.getIndicators().get(i).getId(), i);
+        }
+        Map<Integer, Integer> attributeIndex = Maps.newHashMap();
+        for (int i = 0; i != columns.getAttributes().size(); ++i) {
+            attributeIndex.put(columns.getAttributes().get(i).getId(), i);
+        }
+        Calculator calculator = new Calculator(activity, columns);
+
+        SiteRow row = new SiteRow(columns);
+        int siteCount = 0;
+        int currentSiteId = -1;
+
+        while (rs.next()) {
+            int siteId = rs.getInt("SiteId");
+            if (siteId != currentSiteId) {
+                if (siteCount > 0) {
+                    calculator.calculate(row);
+                    writer.writeRow(row);
+                }
+                readSite(rs, row, columns, attributeIndex);
+                currentSiteId = siteId;
+                siteCount++;
+            }
+            if (!indicatorIndex.isEmpty()) {
+                Integer index = indicatorIndex.get(rs.getInt("IndicatorId"));
+                if (index != null && !rs.wasNull()) {
+                    row.setIndicatorValue(index, readIndicatorValue(rs));
+                }
+            }
+        }
+        if (siteCount > 0) {
+            calculator.calculate(row);
+            writer.writeRow(row);
+        }
+        return siteCount;
+    }
+
+    private void readSite(ResultSet rs, SiteRow row, SiteColumns columns, Map<Integer, Integer> attributeIndex)
+            throws SQLException {
+        row.clear();
+        row.setSiteId(rs.getInt("SiteId"));
+        row.setDateCreated(rs.getTimestamp("DateCreated"));
+        row.setDate1(rs.getDate("Date1"));
+        row.setDate2(rs.getDate("Date2"));
+        row.setComments(rs.getString("Comments"));
+        row.setPartnerName(rs.getString("PartnerName"));
+        row.setLocationName(rs.getString("LocationName"));
+        row.setLocationAxe(rs.getString("LocationAxe"));
+
+        double x = rs.getDouble("X");
+        boolean hasX = !rs.wasNull();
+        double y = rs.getDouble("Y");
+        boolean hasY = !rs.wasNull();
+        row.setLatLong(hasY ? y : null, hasX ? x : null);
+
+        if (!attributeIndex.isEmpty()) {
+            String attributeIds = rs.getString("AttributeIds");
+            if (!Strings.isNullOrEmpty(attributeIds)) {
+                for (String attributeId : Splitter.on(',').split(attributeIds)) {
+                    Integer index = attributeIndex.get(Integer.parseInt(attributeId));
+                    if (index != null) {
+                        row.setAttributeValue(index, true);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i != columns.getAdminLevels().size(); ++i) {
+            row.setAdminEntity(i, rs.getString("AdminCode" + i), rs.getString("AdminName" + i));
+        }
+    }
+
+    private Object readIndicatorValue(ResultSet rs) throws SQLException {
+        double value = rs.getDouble("Value");
+        if (!rs.wasNull()) {
+            return value;
+        }
+        String textValue = rs.getString("TextValue");
+        if (textValue != null) {
+            return textValue;
+        }
+        return rs.getDate("DateValue");
+    }
+
+    /**
+     * Fills in the values of the activity's calculated indicators from those of the other indicators.
+     */
+    private static class Calculator {
+        private final IndicatorSymbolResolver resolver;
+        private final boolean[] calculated;
+        private final double[] values;
+
+        private Calculator(ActivityDTO activity, SiteColumns columns) {
+            int count = columns.getIndicators().size();
+            resolver = new IndicatorSymbolResolver(activity.getId(), columns.getIndicators());
+            calculated = new boolean[count];
+            values = new double[count];
+
+            for (int i = 0; i != count; ++i) {
+                calculated[i] = resolver.isCalculated(i);
+            }
+        }
+
+        private void calculate(SiteRow row) {
+            boolean any = false;
+            for (int i = 0; i != values.length; ++i) {
+                if (calculated[i]) {
+                    any = true;
+                } else {
+                    Object value = row.getIndicatorValue(i);
+                    // workaround until we have default values
+                    values[i] = value instanceof Double ? (Double) value : 0d;
+                }
+            }
+            if (any) {
+                resolver.calculate(values);
+                for (int i = 0; i != values.length; ++i) {
+                    if (calculated[i]) {
+                        row.setIndicatorValue(i, values[i]);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.activityinfo.server.endpoint.export;
+
+import com.bedatadriven.rebar.time.calendar.LocalDate;
+import com.extjs.gxt.ui.client.Style.SortDir;
+import com.extjs.gxt.ui.client.data.SortInfo;
+import com.google.common.base.Strings;
+import org.activityinfo.i18n.shared.I18N;
+import org.activityinfo.legacy.shared.command.DimensionType;
+import org.activityinfo.legacy.shared.command.Filter;
+import org.activityinfo.legacy.shared.command.GetSchema;
+import org.activityinfo.legacy.shared.command.GetSites;
+import org.activityinfo.legacy.shared.command.result.SiteResult;
+import org.activityinfo.legacy.shared.model.*;
+import org.activityinfo.server.command.DispatcherSync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exports sites in Excel 2007 (.xlsx) format, streaming the workbook to an output stream
+ * as the sites are fetched.
+ *
+ * <p>The layout is the same as that of the {@link SiteExporter}, but sites are fetched in pages
+ * ordered by site id, each page starting after the last site of the previous one, and each
+ * page is written out before the next is fetched. Neither the query time per page nor
+ * the memory used grows with the size of the export.</p>
+ */
+public class XlsxSiteExporter {
+
+    private static final Logger LOGGER = Logger.getLogger(XlsxSiteExporter.class.getName());
+
+    public static final String CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
+    private static final int COORD_COLUMN_WIDTH = 12;
+    private static final int ATTRIBUTE_COLUMN_WIDTH = 5;
+    private static final int INDICATOR_COLUMN_WIDTH = 16;
+    private static final int LOCATION_COLUMN_WIDTH = 20;
+    private static final int PARTNER_COLUMN_WIDTH = 16;
+    private static final int HEADER_CELL_HEIGHT = 75;
+    private static final int SITE_BATCH_SIZE = 500;
+
+    private final DispatcherSync dispatcher;
+    private final XlsxWriter writer;
+    private final SheetNames sheetNames = new SheetNames();
+
+    private SiteColumns columns;
+
+    public XlsxSiteExporter(DispatcherSync dispatcher, OutputStream outputStream) {
+        this.dispatcher = dispatcher;
+        this.writer = new XlsxWriter(outputStream);
+    }
+
+    public void export(ActivityDTO activity, Filter filter) throws IOException {
+        writer.startSheet(sheetNames.uniqueName(activity));
+        writer.freeze(4, 2);
+
+        columns = new SiteColumns(activity);
+        defineColumns();
+        createHeaders(activity);
+        createDataRows(activity, filter);
+    }
+
+    private void defineColumns() {
+        writer.setColumnHidden(0);
+        writer.setColumnHidden(1);
+
+        int column = 4;
+        writer.setColumn(column++, PARTNER_COLUMN_WIDTH, false);
+        writer.setColumn(column++, LOCATION_COLUMN_WIDTH, false);
+        column++;
+
+        for (int i = 0; i != columns.getIndicators().size(); ++i) {
+            writer.setColumn(column++, INDICATOR_COLUMN_WIDTH, false);
+        }
+        for (int i = 0; i != columns.getAttributes().size(); ++i) {
+            writer.setColumn(column++, ATTRIBUTE_COLUMN_WIDTH, false);
+        }
+        column += columns.getAdminLevels().size() * 2;
+
+        writer.setColumn(column++, COORD_COLUMN_WIDTH, false);
+        writer.setColumn(column, COORD_COLUMN_WIDTH, false);
+    }
+
+    private void createHeaders(ActivityDTO activity) throws IOException {
+
+        // the first row holds the title and the group names, which are merged across their members
+        writer.startRow(0);
+        writer.writeCell(0, activity.getDatabaseName() + " - " + activity.getName(), XlsxWriter.STYLE_TITLE);
+
+        int column = 7;
+        for (IndicatorGroup group : columns.getIndicatorGroups()) {
+            if (group.getName() != null) {
+                writer.writeCell(column, group.getName(), XlsxWriter.STYLE_HEADER);
+                writer.addMergedRegion(0, 0, column, column + group.getIndicators().size() - 1);
+            }
+            column += group.getIndicators().size();
+        }
+        for (AttributeGroupDTO group : columns.getAttributeGroups()) {
+            writer.writeCell(column, group.getName(), XlsxWriter.STYLE_HEADER_CENTER);
+            writer.addMergedRegion(0, 0, column, column + group.getAttributes().size() - 1);
+            column += group.getAttributes().size();
+        }
+
+        writer.startRow(1, HEADER_CELL_HEIGHT);
+        column = 0;
+
+        writer.writeCell(column++, "SiteId", XlsxWriter.STYLE_HEADER);
+        writer.writeCell(column++, "DateCreated", XlsxWriter.STYLE_HEADER_RIGHT);
+        writer.writeCell(column++, "Date1", XlsxWriter.STYLE_HEADER_RIGHT);
+        writer.writeCell(column++, "Date2", XlsxWriter.STYLE_HEADER_RIGHT);
+        writer.writeCell(column++, "Partner", XlsxWriter.STYLE_HEADER);
+        writer.writeCell(column++, activity.getLocationType().getName(), XlsxWriter.STYLE_HEADER);
+        writer.writeCell(column++, "Axe", XlsxWriter.STYLE_HEADER);
+
+        for (IndicatorDTO indicator : columns.getIndicators()) {
+            writer.writeCell(column++, indicator.getName(), XlsxWriter.STYLE_INDICATOR_HEADER);
+        }
+        for (AttributeDTO attrib : columns.getAttributes()) {
+            writer.writeCell(column++, attrib.getName(), XlsxWriter.STYLE_ATTRIB_HEADER);
+        }
+        for (AdminLevelDTO level : columns.getAdminLevels()) {
+            writer.writeCell(column++, "Code " + level.getName(), XlsxWriter.STYLE_HEADER);
+            writer.writeCell(column++, level.getName(), XlsxWriter.STYLE_HEADER);
+        }
+        writer.writeCell(column++, I18N.CONSTANTS.longitude(), XlsxWriter.STYLE_HEADER_RIGHT);
+        writer.writeCell(column++, I18N.CONSTANTS.latitude(), XlsxWriter.STYLE_HEADER_RIGHT);
+        writer.writeCell(column, I18N.CONSTANTS.comments(), XlsxWriter.STYLE_HEADER);
+    }
+
+    private SiteResult querySites(ActivityDTO activity, Filter filter, Integer afterSiteId) {
+
+        Filter effectiveFilter = new Filter(filter);
+        effectiveFilter.addRestriction(DimensionType.Activity, activity.getId());
+
+        GetSites query = new GetSites();
+        query.setFilter(effectiveFilter);
+        query.setSortInfo(new SortInfo("SiteId", SortDir.ASC));
+        query.setAfterSiteId(afterSiteId);
+        query.setLimit(SITE_BATCH_SIZE);
+
+        return dispatcher.execute(query);
+    }
+
+    private void createDataRows(ActivityDTO activity, Filter filter) throws IOException {
+
+        int rowIndex = 2;
+        Integer lastSiteId = null;
+
+        while (true) {
+            LOGGER.log(Level.FINE, "Fetching batch after site " + lastSiteId);
+
+            SiteResult batch = querySites(activity, filter, lastSiteId);
+            for (SiteDTO site : batch.getData()) {
+                if (rowIndex == XlsxWriter.MAX_ROWS) {
+                    LOGGER.warning("Export of activity " + activity.getId() + " truncated at " + rowIndex + " rows");
+                    return;
+                }
+                addDataRow(rowIndex++, site);
+                lastSiteId = site.getId();
+            }
+            if (batch.getData().size() < SITE_BATCH_SIZE) {
+                break;
+            }
+        }
+    }
+
+    private void addDataRow(int rowIndex, SiteDTO site) throws IOException {
+        writer.startRow(rowIndex);
+        int column = 0;
+
+        writer.writeCell(column++, Integer.toString(site.getId()), XlsxWriter.STYLE_DEFAULT);
+        writer.writeCell(column++, site.getDateCreated(), XlsxWriter.STYLE_DATE);
+        writer.writeCell(column++, toDate(site.getDate1()), XlsxWriter.STYLE_DATE);
+        writer.writeCell(column++, toDate(site.getDate2()), XlsxWriter.STYLE_DATE);
+        writer.writeCell(column++, site.getPartnerName(), XlsxWriter.STYLE_DEFAULT);
+        writer.writeCell(column++, site.getLocationName(), XlsxWriter.STYLE_DEFAULT);
+        writer.writeCell(column++, site.getLocationAxe(), XlsxWriter.STYLE_DEFAULT);
+
+        for (IndicatorDTO indicator : columns.getIndicators()) {
+            writeIndicatorValue(column++, site.getIndicatorValue(indicator.getId()));
+        }
+
+        for (AttributeDTO attrib : columns.getAttributes()) {
+            writer.writeCell(column++, site.getAttributeValue(attrib.getId()), XlsxWriter.STYLE_ATTRIB_VALUE);
+        }
+
+        for (AdminLevelDTO level : columns.getAdminLevels()) {
+            AdminEntityDTO entity = site.getAdminEntity(level.getId());
+            if (entity != null) {
+                writer.writeCell(column + 1, entity.getName(), XlsxWriter.STYLE_DEFAULT);
+            }
+            column += 2;
+        }
+
+        if (site.hasLatLong()) {
+            writer.writeCell(column, site.getLongitude(), XlsxWriter.STYLE_COORD);
+            writer.writeCell(column + 1, site.getLatitude(), XlsxWriter.STYLE_COORD);
+        }
+        column += 2;
+
+        if (!Strings.isNullOrEmpty(site.getComments())) {
+            writer.writeCell(column, site.getComments(), XlsxWriter.STYLE_DEFAULT);
+        }
+    }
+
+    private void writeIndicatorValue(int column, Object value) throws IOException {
+        if (value instanceof Double) {
+            writer.writeCell(column, (Double) value, XlsxWriter.STYLE_INDICATOR_VALUE);
+        } else if (value instanceof String) {
+            writer.writeCell(column, (String) value, XlsxWriter.STYLE_INDICATOR_VALUE);
+        } else if (value instanceof Date) {
+            writer.writeCell(column, (Date) value, XlsxWriter.STYLE_INDICATOR_VALUE);
+        } else if (value instanceof LocalDate) {
+            writer.writeCell(column, ((LocalDate) value).atMidnightInMyTimezone(), XlsxWriter.STYLE_INDICATOR_VALUE);
+        }
+    }
+
+    private static Date toDate(LocalDate date) {
+        return date == null ? null : date.atMidnightInMyTimezone();
+    }
+
+    /**
+     * Finishes the workbook. The output stream is left open.
+     */
+    public void done() throws IOException {
+        // an Excel workbook can't have zero sheets, so we need to
+        // add something here for it to be valid
+        if (writer.getSheetCount() == 0) {
+            writer.startSheet("Sheet1");
+            writer.startRow(0);
+            writer.writeCell(0, "No matching sites.", XlsxWriter.STYLE_DEFAULT);
+        }
+        writer.close();
+    }
+
+    public void exportWorkbook(Filter filter) throws IOException {
+
+        SchemaDTO schema = dispatcher.execute(new GetSchema());
+
+        for (UserDatabaseDTO db : schema.getDatabases()) {
+            if (!filter.isRestricted(DimensionType.Database) ||
+                    filter.getRestrictions(DimensionType.Database).contains(db.getId())) {
+                for (ActivityDTO activity : db.getActivities()) {
+                    if (!filter.isRestricted(DimensionType.Activity) ||
+                            filter.getRestrictions(DimensionType.Activity).contains(activity.getId())) {
+                        export(activity, filter);
+                    }
+                }
+            }
+        }
+        done();
+    }
+}
@@ -0,0 +1,384 @@
+package org.activityinfo.server.endpoint.export;
+
+import com.google.common.base.Charsets;
+import com.google.common.escape.Escaper;
+import com.google.common.xml.XmlEscapers;
+import org.apache.poi.ss.usermodel.DateUtil;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes an Office Open XML (.xlsx) workbook directly to an output stream, one row at a time.
+ *
+ * <p>Each worksheet is written as a zip entry as its rows are added, so memory use is bounded
+ * by the size of a single row regardless of the size of the workbook. In exchange, sheets must
+ * be written one after another, the column layout of a sheet must be set before its first row,
+ * and rows must be added in order.</p>
+ *
+ * <p>POI's SXSSF would offer the same, but buffers rows in temporary files, which are not
+ * available on App Engine.</p>
+ */
+public class XlsxWriter {
+
+    public static final int MAX_ROWS = 1048576;
+
+    public static final int STYLE_DEFAULT = 0;
+    public static final int STYLE_DATE = 1;
+    public static final int STYLE_COORD = 2;
+    public static final int STYLE_INDICATOR_VALUE = 3;
+    public static final int STYLE_HEADER = 4;
+    public static final int STYLE_HEADER_CENTER = 5;
+    public static final int STYLE_HEADER_RIGHT = 6;
+    public static final int STYLE_TITLE = 7;
+    public static final int STYLE_ATTRIB_HEADER = 8;
+    public static final int STYLE_INDICATOR_HEADER = 9;
+    public static final int STYLE_ATTRIB_VALUE = 10;
+
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+    private static final String MAIN_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String REL_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    private static final String STYLES =
+            "<styleSheet xmlns=\"" + MAIN_NS + "\">" +
+            "<numFmts count=\"2\">" +
+            "<numFmt numFmtId=\"164\" formatCode=\"m/d/yy\"/>" +
+            "<numFmt numFmtId=\"165\" formatCode=\"0.000000\"/>" +
+            "</numFmts>" +
+            "<fonts count=\"4\">" +
+            "<font><sz val=\"10\"/><name val=\"Arial\"/></font>" +
+            "<font><b/><sz val=\"10\"/><name val=\"Arial\"/></font>" +
+            "<font><b/><sz val=\"12\"/><name val=\"Arial\"/></font>" +
+            "<font><sz val=\"8\"/><name val=\"Arial\"/></font>" +
+            "</fonts>" +
+            "<fills count=\"2\">" +
+            "<fill><patternFill patternType=\"none\"/></fill>" +
+            "<fill><patternFill patternType=\"gray125\"/></fill>" +
+            "</fills>" +
+            "<borders count=\"1\"><border><left/><right/><top/><bottom/><diagonal/></border></borders>" +
+            "<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>" +
+            "<cellXfs count=\"11\">" +
+            xf(0, 0, null) +
+            xf(164, 0, null) +
+            xf(165, 0, null) +
+            xf(3, 0, null) +
+            xf(0, 1, null) +
+            xf(0, 1, "<alignment horizontal=\"center\"/>") +
+            xf(0, 1, "<alignment horizontal=\"right\"/>") +
+            xf(0, 2, null) +
+            xf(0, 3, "<alignment textRotation=\"45\" wrapText=\"1\"/>") +
+            xf(0, 3, "<alignment horizontal=\"right\" wrapText=\"1\"/>") +
+            xf(0, 3, null) +
+            "</cellXfs>" +
+            "<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>" +
+            "</styleSheet>";
+
+    private final Escaper escaper = XmlEscapers.xmlContentEscaper();
+    private final Escaper attributeEscaper = XmlEscapers.xmlAttributeEscaper();
+
+    private final ZipOutputStream zip;
+    private final Writer writer;
+
+    private final List<String> sheetNames = new ArrayList<>();
+
+    private boolean sheetStarted;
+    private boolean sheetDataStarted;
+    private int frozenColumns;
+    private int frozenRows;
+    private final SortedMap<Integer, String> columns = new TreeMap<>();
+    private final List<String> mergedRegions = new ArrayList<>();
+    private int rowIndex = -1;
+
+    public XlsxWriter(OutputStream out) {
+        this.zip = new ZipOutputStream(out);
+        this.writer = new BufferedWriter(new OutputStreamWriter(zip, Charsets.UTF_8));
+    }
+
+    public int getSheetCount() {
+        return sheetNames.size() + (sheetStarted ? 1 : 0);
+    }
+
+    /**
+     * Starts a new worksheet, ending the current one if necessary.
+     */
+    public void startSheet(String name) throws IOException {
+        if (sheetStarted) {
+            endSheet();
+        }
+        sheetNames.add(name);
+        sheetStarted = true;
+        sheetDataStarted = false;
+        frozenColumns = 0;
+        frozenRows = 0;
+        columns.clear();
+        mergedRegions.clear();
+        rowIndex = -1;
+
+        zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + sheetNames.size() + ".xml"));
+    }
+
+    public void freeze(int columns, int rows) {
+        assertLayoutOpen();
+        this.frozenColumns = columns;
+        this.frozenRows = rows;
+    }
+
+    /**
+     * Sets the width, in characters, of the given column, and optionally hides it.
+     */
+    public void setColumn(int columnIndex, int characters, boolean hidden) {
+        assertLayoutOpen();
+        int col = columnIndex + 1;
+        columns.put(col, "<col min=\"" + col + "\" max=\"" + col + "\" width=\"" + characters + "\"" +
+                    (hidden ? " hidden=\"1\"" : "") + " customWidth=\"1\"/>");
+    }
+
+    public void setColumnHidden(int columnIndex) {
+        setColumn(columnIndex, 0, true);
+    }
+
+    public void addMergedRegion(int firstRow, int lastRow, int firstColumn, int lastColumn) {
+        mergedRegions.add(cellReference(firstRow, firstColumn) + ":" + cellReference(lastRow, lastColumn));
+    }
+
+    public void startRow(int rowIndex) throws IOException {
+        startRow(rowIndex, 0);
+    }
+
+    /**
+     * Starts the row with the given index, which must be greater than that of the previous row.
+     */
+    public void startRow(int rowIndex, float heightInPoints) throws IOException {
+        if (rowIndex <= this.rowIndex) {
+            throw new IllegalArgumentException("Rows must be written in order: " + rowIndex + " <= " + this.rowIndex);
+        }
+        if (!sheetDataStarted) {
+            writeSheetHeader();
+        } else if (this.rowIndex >= 0) {
+            writer.write("</row>");
+        }
+        this.rowIndex = rowIndex;
+        writer.write("<row r=\"");
+        writer.write(Integer.toString(rowIndex + 1));
+        if (heightInPoints > 0) {
+            writer.write("\" ht=\"");
+            writer.write(Float.toString(heightInPoints));
+            writer.write("\" customHeight=\"1");
+        }
+        writer.write("\">");
+    }
+
+    public void writeCell(int columnIndex, String text, int style) throws IOException {
+        if (text != null) {
+            startCell(columnIndex, "inlineStr", style);
+            writer.write("<is><t xml:space=\"preserve\">");
+            writer.write(escaper.escape(text));
+            writer.write("</t></is></c>");
+        }
+    }
+
+    public void writeCell(int columnIndex, double value, int style) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        startCell(columnIndex, null, style);
+        writer.write("<v>");
+        writer.write(Double.toString(value));
+        writer.write("</v></c>");
+    }
+
+    public void writeCell(int columnIndex, boolean value, int style) throws IOException {
+        startCell(columnIndex, "b", style);
+        writer.write(value ? "<v>1</v></c>" : "<v>0</v></c>");
+    }
+
+    public void writeCell(int columnIndex, Date date, int style) throws IOException {
+        if (date == null) {
+            startCell(columnIndex, null, style);
+            writer.write("</c>");
+        } else {
+            writeCell(columnIndex, DateUtil.getExcelDate(date), style);
+        }
+    }
+
+    public void endSheet() throws IOException {
+        if (!sheetDataStarted) {
+            writeSheetHeader();
+        } else if (rowIndex >= 0) {
+            writer.write("</row>");
+        }
+        writer.write("</sheetData>");
+        if (!mergedRegions.isEmpty()) {
+            writer.write("<mergeCells count=\"" + mergedRegions.size() + "\">");
+            for (String region : mergedRegions) {
+                writer.write("<mergeCell ref=\"" + region + "\"/>");
+            }
+            writer.write("</mergeCells>");
+        }
+        writer.write("</worksheet>");
+        closeEntry();
+        sheetStarted = false;
+    }
+
+    /**
+     * Writes the workbook parts and finishes the zip archive. The underlying stream is
+     * flushed, but left open.
+     */
+    public void close() throws IOException {
+        if (sheetStarted) {
+            endSheet();
+        }
+        writeEntry("[Content_Types].xml", contentTypes());
+        writeEntry("_rels/.rels",
+                "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">" +
+                "<Relationship Id=\"rId1\" Target=\"xl/workbook.xml\" " +
+                "Type=\"" + REL_NS + "/officeDocument\"/>" +
+                "</Relationships>");
+        writeEntry("xl/workbook.xml", workbook());
+        writeEntry("xl/_rels/workbook.xml.rels", workbookRelationships());
+        writeEntry("xl/styles.xml", STYLES);
+        zip.finish();
+        zip.flush();
+    }
+
+    private void assertLayoutOpen() {
+        if (!sheetStarted || sheetDataStarted) {
+            throw new IllegalStateException("The layout must be set after starting the sheet and before its first row");
+        }
+    }
+
+    private void writeSheetHeader() throws IOException {
+        writer.write(XML_DECLARATION);
+        writer.write("<worksheet xmlns=\"" + MAIN_NS + "\" xmlns:r=\"" + REL_NS + "\">");
+        if (frozenColumns > 0 || frozenRows > 0) {
+            writer.write("<sheetViews><sheetView workbookViewId=\"0\"><pane");
+            if (frozenColumns > 0) {
+                writer.write(" xSplit=\"" + frozenColumns + "\"");
+            }
+            if (frozenRows > 0) {
+                writer.write(" ySplit=\"" + frozenRows + "\"");
+            }
+            writer.write(" topLeftCell=\"" + cellReference(frozenRows, frozenColumns) + "\"" +
+                         " activePane=\"bottomRight\" state=\"frozen\"/></sheetView></sheetViews>");
+        }
+        if (!columns.isEmpty()) {
+            writer.write("<cols>");
+            for (String column : columns.values()) {
+                writer.write(column);
+            }
+            writer.write("</cols>");
+        }
+        writer.write("<sheetData>");
+        sheetDataStarted = true;
+    }
+
+    private void startCell(int columnIndex, String type, int style) throws IOException {
+        if (rowIndex < 0) {
+            throw new IllegalStateException("No row has been started");
+        }
+        writer.write("<c r=\"");
+        writer.write(cellReference(rowIndex, columnIndex));
+        writer.write("\"");
+        if (type != null) {
+            writer.write(" t=\"");
+            writer.write(type);
+            writer.write("\"");
+        }
+        if (style != STYLE_DEFAULT) {
+            writer.write(" s=\"");
+            writer.write(Integer.toString(style));
+            writer.write("\"");
+        }
+        writer.write(">");
+    }
+
+    private String contentTypes() {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">");
+        xml.append("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>");
+        xml.append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>");
+        xml.append("<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>");
+        xml.append("<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>");
+        for (int i = 1; i <= sheetNames.size(); ++i) {
+            xml.append("<Override PartName=\"/xl/worksheets/sheet").append(i).append(".xml\" ")
+               .append("ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+        }
+        xml.append("</Types>");
+        return xml.toString();
+    }
+
+    private String workbook() {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<workbook xmlns=\"" + MAIN_NS + "\" xmlns:r=\"" + REL_NS + "\"><sheets>");
+        for (int i = 0; i != sheetNames.size(); ++i) {
+            xml.append("<sheet name=\"").append(attributeEscaper.escape(sheetNames.get(i))).append("\" ")
+               .append("sheetId=\"").append(i + 1).append("\" r:id=\"rId").append(i + 1).append("\"/>");
+        }
+        xml.append("</sheets></workbook>");
+        return xml.toString();
+    }
+
+    private String workbookRelationships() {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+        for (int i = 1; i <= sheetNames.size(); ++i) {
+            xml.append("<Relationship Id=\"rId").append(i).append("\" ")
+               .append("Type=\"" + REL_NS + "/worksheet\" Target=\"worksheets/sheet").append(i).append(".xml\"/>");
+        }
+        xml.append("<Relationship Id=\"rId").append(sheetNames.size() + 1).append("\" ")
+           .append("Type=\"" + REL_NS + "/styles\" Target=\"styles.xml\"/>");
+        xml.append("</Relationships>");
+        return xml.toString();
+    }
+
+    private void writeEntry(String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        writer.write(XML_DECLARATION);
+        writer.write(content);
+        closeEntry();
+    }
+
+    private void closeEntry() throws IOException {
+        writer.flush();
+        zip.closeEntry();
+    }
+
+    private static String xf(int numFmtId, int fontId, String alignment) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<xf numFmtId=\"").append(numFmtId).append("\" fontId=\"").append(fontId)
+           .append("\" fillId=\"0\" borderId=\"0\" xfId=\"0\"");
+        if (numFmtId != 0) {
+            xml.append(" applyNumberFormat=\"1\"");
+        }
+        if (fontId != 0) {
+            xml.append(" applyFont=\"1\"");
+        }
+        if (alignment == null) {
+            xml.append("/>");
+        } else {
+            xml.append(" applyAlignment=\"1\">").append(alignment).append("</xf>");
+        }
+        return xml.toString();
+    }
+
+    static String cellReference(int rowIndex, int columnIndex) {
+        StringBuilder column = new StringBuilder();
+        int col = columnIndex + 1;
+        while (col > 0) {
+            int remainder = (col - 1) % 26;
+            column.insert(0, (char) ('A' + remainder));
+            col = (col - 1) / 26;
+        }
+        return column.append(rowIndex + 1).toString();
+    }
+}
@@ -29,15 +29,19 @@ import com.bedatadriven.rebar.sql.server.jdbc.JdbcScheduler;
 import com.bedatadriven.rebar.sql.shared.adapter.SyncTransactionAdapter;
 import com.google.gwt.core.client.Scheduler.ScheduledCommand;
 import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.inject.Binding;
 import com.google.inject.Injector;
+import com.google.inject.Key;
 import org.activityinfo.legacy.shared.auth.AuthenticatedUser;
 import org.activityinfo.legacy.shared.command.Command;
+import org.activityinfo.legacy.shared.command.GetSchema;
 import org.activityinfo.legacy.shared.command.MutatingCommand;
 import org.activityinfo.legacy.shared.command.result.CommandResult;
 import org.activityinfo.legacy.shared.exception.CommandException;
 import org.activityinfo.legacy.shared.impl.AuthorizationHandler;
 import org.activityinfo.legacy.shared.impl.CommandHandlerAsync;
 import org.activityinfo.legacy.shared.impl.ExecutionContext;
+import org.activityinfo.legacy.shared.model.SchemaDTO;
 import org.activityinfo.legacy.shared.util.Commands;
 import org.activityinfo.server.command.handler.CommandHandler;
 import org.activityinfo.server.command.handler.HandlerUtil;
@@ -45,9 +49,12 @@ import org.activityinfo.server.database.hibernate.HibernateExecutor;
 import org.activityinfo.server.database.hibernate.entity.User;
 import org.activityinfo.server.event.CommandEvent;
 import org.activityinfo.server.event.ServerEventBus;
+import org.activityinfo.server.event.schema.SchemaCache;
 import org.hibernate.ejb.HibernateEntityManager;
 
 import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,6 +72,13 @@ public class RemoteExecutionContext implements ExecutionContext {
 
     private ServerEventBus serverEventBus;
 
+    private final List<Runnable> afterCommit = new ArrayList<Runnable>();
+
+    /**
+     * Only available when the event module, which keeps the cache up to date, is installed
+     */
+    private SchemaCache schemaCache;
+
     public RemoteExecutionContext(Injector injector) {
         super();
         this.injector = injector;
@@ -73,6 +87,11 @@ public class RemoteExecutionContext implements ExecutionContext {
         this.scheduler = new JdbcScheduler();
         this.scheduler.allowNestedProcessing();
         this.serverEventBus = injector.getInstance(ServerEventBus.class);
+
+        Binding<SchemaCache> schemaCacheBinding = injector.getExistingBinding(Key.get(SchemaCache.class));
+        if (schemaCacheBinding != null) {
+            this.schemaCache = schemaCacheBinding.getProvider().get();
+        }
     }
 
     @Override
@@ -102,6 +121,14 @@ public class RemoteExecutionContext implements ExecutionContext {
         return CURRENT.get() != null;
     }
 
+    /**
+     * Runs the given task once the transaction of the top-level command has been committed.
+     * The task is dropped if the transaction is rolled back.
+     */
+    public void afterCommit(Runnable task) {
+        afterCommit.add(task);
+    }
+
     /**
      * Executes the top-level command, starting a database transaction
      */
@@ -116,6 +143,8 @@ public class RemoteExecutionContext implements ExecutionContext {
 //            lock = new AdvisoryLock(entityManager);
 //        }
 
+        R result;
+
         try {
             CURRENT.set(this);
             /*
@@ -136,8 +165,6 @@ public class RemoteExecutionContext implements ExecutionContext {
              * Execute the command
              */
 
-            R result;
-
             try {
                 result = execute(command);
 
@@ -171,12 +198,20 @@ public class RemoteExecutionContext implements ExecutionContext {
                 throw new RuntimeException("Commit failed", e);
             }
 
-            return result;
-
         } finally {
             CURRENT.remove();
            // AdvisoryLock.closeQuietly(lock);
         }
+
+        for (Runnable task : afterCommit) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Exception running task after commit", e);
+            }
+        }
+
+        return result;
     }
 
     /**
@@ -238,6 +273,12 @@ public class RemoteExecutionContext implements ExecutionContext {
 
         AsyncCallback<R> callback = new FiringCallback<R>(command, outerCallback);
 
+        if (command instanceof GetSchema && schemaCache != null && !user.isAnonymous()) {
+            callback = (AsyncCallback<R>) cachedSchema((AsyncCallback<SchemaDTO>) callback);
+            if (callback == null) {
+                return;
+            }
+        }
 
         Object handler = injector.getInstance(HandlerUtil.asyncHandlerForCommand(command));
 
@@ -259,6 +300,23 @@ public class RemoteExecutionContext implements ExecutionContext {
         }
     }
 
+    /**
+     * Serves the schema from the cache if it is up to date, or otherwise wraps the callback
+     * so that the schema is cached once it has been built.
+     *
+     * @return the callback to pass to the handler, or {@code null} if the schema was served from the cache
+     */
+    private AsyncCallback<SchemaDTO> cachedSchema(AsyncCallback<SchemaDTO> callback) {
+        String version = SchemaCache.queryVersion(entityManager, user.getUserId());
+        SchemaDTO cached = schemaCache.get(user, version);
+        if (cached != null) {
+            LOGGER.fine("Serving schema of user " + user.getUserId() + " from cache");
+            callback.onSuccess(cached);
+            return null;
+        }
+        return schemaCache.caching(user, version, callback);
+    }
+
     public User retrieveUserEntity() {
         return entityManager.find(User.class, user.getId());
     }
@@ -61,7 +61,7 @@ public class AdminLevelResource {
 
 
     // TODO: create list of geoadmins per country
-    private static final int SUPER_USER_ID = 3;
+    static final int SUPER_USER_ID = 3;
 
     public AdminLevelResource(Provider<EntityManager> entityManager, AdminLevel level) {
         super();
@@ -94,7 +94,7 @@ public class AdminLevelResource {
         return Response.ok().build();
     }
 
-    private void assertAuthorized(AuthenticatedUser user) {
+    static void assertAuthorized(AuthenticatedUser user) {
         if (user.getId() != SUPER_USER_ID) {
             throw new WebApplicationException(Status.FORBIDDEN);
         }
@@ -0,0 +1,106 @@
+package org.activityinfo.server.endpoint.rest;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Maps;
+import com.sun.jersey.api.core.InjectParam;
+import org.activityinfo.legacy.shared.auth.AuthenticatedUser;
+import org.activityinfo.model.resource.ResourceId;
+import org.activityinfo.server.importer.BulkImport;
+import org.activityinfo.server.importer.BulkImportProgress;
+import org.activityinfo.server.importer.BulkImportService;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Imports sites from a CSV or tab-separated table in the background.
+ *
+ * <p>The columns are mapped to fields with {@code map=Column header=Field label} parameters,
+ * or guessed from the column headers if there are none. The progress of the import can then
+ * be polled with the id of the import.</p>
+ */
+public class BulkImportResource {
+
+    private final BulkImportService service;
+
+    public BulkImportResource(BulkImportService service) {
+        this.service = service;
+    }
+
+    @POST
+    @Consumes({MediaType.TEXT_PLAIN, "text/csv", "text/tab-separated-values"})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response start(@InjectParam AuthenticatedUser user,
+                          @QueryParam("formClassId") String formClassId,
+                          @QueryParam("map") List<String> mappings,
+                          String text) {
+
+        if (formClassId == null) {
+            throw new WebApplicationException(Response.status(Status.BAD_REQUEST)
+                                                      .entity("Missing formClassId")
+                                                      .build());
+        }
+
+        Map<String, String> columnMappings = Maps.newLinkedHashMap();
+        for (String mapping : mappings) {
+            int separator = mapping.indexOf('=');
+            if (separator == -1) {
+                throw new WebApplicationException(Response.status(Status.BAD_REQUEST)
+                                                          .entity("Invalid mapping '" + mapping + "'")
+                                                          .build());
+            }
+            columnMappings.put(mapping.substring(0, separator).trim(), mapping.substring(separator + 1).trim());
+        }
+
+        BulkImport bulkImport = service.start(user, ResourceId.create(formClassId), text, columnMappings);
+
+        return Response.status(Status.ACCEPTED).entity(bulkImport.getProgress()).build();
+    }
+
+    @GET @Path("/{id}") @Produces(MediaType.APPLICATION_JSON)
+    public BulkImportProgress getProgress(@InjectParam AuthenticatedUser user, @PathParam("id") String id) {
+        return find(user, id).getProgress();
+    }
+
+    @POST @Path("/{id}/resume") @Produces(MediaType.APPLICATION_JSON)
+    public Response resume(@InjectParam AuthenticatedUser user, @PathParam("id") String id) {
+        BulkImport bulkImport = find(user, id);
+        if (!service.resume(user, bulkImport)) {
+            return Response.status(Status.CONFLICT).entity(bulkImport.getProgress()).build();
+        }
+        return Response.status(Status.ACCEPTED).entity(bulkImport.getProgress()).build();
+    }
+
+    private BulkImport find(AuthenticatedUser user, String id) {
+        BulkImport bulkImport = service.get(user, id);
+        if (bulkImport == null) {
+            throw new WebApplicationException(Status.NOT_FOUND);
+        }
+        return bulkImport;
+    }
+}
@@ -2,6 +2,7 @@ package org.activityinfo.server.endpoint.rest;
 
 import com.sun.jersey.api.core.InjectParam;
 import org.activityinfo.legacy.client.KeyGenerator;
+import org.activityinfo.legacy.shared.auth.AuthenticatedUser;
 import org.activityinfo.legacy.shared.command.GetLocations;
 import org.activityinfo.legacy.shared.command.result.LocationResult;
 import org.activityinfo.legacy.shared.model.AdminEntityDTO;
@@ -11,6 +12,8 @@ import org.activityinfo.server.database.hibernate.entity.AdminEntity;
 import org.activityinfo.server.database.hibernate.entity.Location;
 import org.activityinfo.server.database.hibernate.entity.LocationType;
 import org.activityinfo.server.endpoint.rest.model.NewLocation;
+import org.activityinfo.server.geo.AdminGeocoder;
+import org.activityinfo.server.geo.PlaceNameIndex;
 import org.codehaus.jackson.JsonGenerator;
 
 import javax.persistence.EntityManager;
@@ -26,9 +29,13 @@ import java.util.List;
 public class LocationsResource {
 
     private DispatcherSync dispatcher;
+    private AdminGeocoder geocoder;
+    private PlaceNameIndex placeNameIndex;
 
-    public LocationsResource(DispatcherSync dispatcher) {
+    public LocationsResource(DispatcherSync dispatcher, AdminGeocoder geocoder, PlaceNameIndex placeNameIndex) {
         this.dispatcher = dispatcher;
+        this.geocoder = geocoder;
+        this.placeNameIndex = placeNameIndex;
     }
 
     @GET @Produces(MediaType.APPLICATION_JSON)
@@ -95,7 +102,13 @@ public class LocationsResource {
             location.setY(newLocation.getLatitude());
             location.setTimeEdited(new Date());
             location.setAdminEntities(new HashSet<AdminEntity>());
-            for (int entityId : newLocation.getAdminEntityIds()) {
+
+            List<Integer> adminEntityIds = newLocation.getAdminEntityIds();
+            if (adminEntityIds == null || adminEntityIds.isEmpty()) {
+                adminEntityIds = geocoder.geocode(locationType.getCountry().getId(),
+                        newLocation.getLatitude(), newLocation.getLongitude());
+            }
+            for (int entityId : adminEntityIds) {
                 location.getAdminEntities().add(entityManager.getReference(AdminEntity.class, entityId));
             }
 
@@ -104,7 +117,29 @@ public class LocationsResource {
 
         entityManager.getTransaction().commit();
 
+        // the locations were not created through a command
+        placeNameIndex.invalidateLocationType(locationTypeId);
+
         return Response.ok().build();
     }
+
+    /**
+     * Reassigns the admin entities of all the locations of a type from their coordinates,
+     * typically after the boundaries of the country's admin levels have been updated. The locations
+     * are committed in chunks, so the request can simply be posted again if it is interrupted.
+     */
+    @POST @Path("/{typeId}/adminEntities") @Produces(MediaType.TEXT_PLAIN)
+    public Response reassignAdminEntities(@InjectParam AuthenticatedUser user,
+                                          @PathParam("typeId") int locationTypeId) {
+        AdminLevelResource.assertAuthorized(user);
+
+        int changed = geocoder.reassign(locationTypeId);
+
+        if (changed > 0) {
+            placeNameIndex.invalidateLocationType(locationTypeId);
+        }
+
+        return Response.ok(Integer.toString(changed)).build();
+    }
 }
     
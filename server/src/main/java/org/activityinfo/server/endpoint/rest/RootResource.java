@@ -33,6 +33,9 @@ import org.activityinfo.server.command.DispatcherSync;
 import org.activityinfo.server.database.hibernate.entity.AdminEntity;
 import org.activityinfo.server.database.hibernate.entity.AdminLevel;
 import org.activityinfo.server.database.hibernate.entity.Country;
+import org.activityinfo.server.geo.AdminGeocoder;
+import org.activityinfo.server.geo.PlaceNameIndex;
+import org.activityinfo.server.importer.BulkImportService;
 import org.activityinfo.server.util.config.DeploymentConfiguration;
 import org.codehaus.jackson.map.annotate.JsonView;
 
@@ -49,15 +52,24 @@ public class RootResource {
     private Provider<EntityManager> entityManager;
     private DispatcherSync dispatcher;
     private DeploymentConfiguration config;
+    private BulkImportService bulkImportService;
+    private AdminGeocoder geocoder;
+    private PlaceNameIndex placeNameIndex;
 
     @Inject
     public RootResource(Provider<EntityManager> entityManager,
                         DispatcherSync dispatcher,
-                        DeploymentConfiguration config) {
+                        DeploymentConfiguration config,
+                        BulkImportService bulkImportService,
+                        AdminGeocoder geocoder,
+                        PlaceNameIndex placeNameIndex) {
         super();
         this.entityManager = entityManager;
         this.dispatcher = dispatcher;
         this.config = config;
+        this.bulkImportService = bulkImportService;
+        this.geocoder = geocoder;
+        this.placeNameIndex = placeNameIndex;
     }
 
     @Path("/adminEntity/{id}")
@@ -132,6 +144,11 @@ public class RootResource {
         return new SitesResources(dispatcher);
     }
 
+    @Path("/sites/export")
+    public SiteStreamResource getSiteStream() {
+        return new SiteStreamResource(dispatcher, entityManager);
+    }
+
     @Path("/tile")
     public TileResource getTile() {
         return new TileResource(config);
@@ -139,6 +156,11 @@ public class RootResource {
 
     @Path("/locations")
     public LocationsResource getLocations() {
-        return new LocationsResource(dispatcher);
+        return new LocationsResource(dispatcher, geocoder, placeNameIndex);
+    }
+
+    @Path("/import")
+    public BulkImportResource getImport() {
+        return new BulkImportResource(bulkImportService);
     }
 }
@@ -0,0 +1,100 @@
+package org.activityinfo.server.endpoint.rest;
+
+import com.google.common.base.Charsets;
+import com.google.inject.Provider;
+import org.activityinfo.legacy.shared.command.DimensionType;
+import org.activityinfo.legacy.shared.command.Filter;
+import org.activityinfo.legacy.shared.command.GetSchema;
+import org.activityinfo.legacy.shared.model.ActivityDTO;
+import org.activityinfo.legacy.shared.model.SchemaDTO;
+import org.activityinfo.server.command.DispatcherSync;
+import org.activityinfo.server.endpoint.export.CsvSiteRowWriter;
+import org.activityinfo.server.endpoint.export.JsonLinesSiteRowWriter;
+import org.activityinfo.server.endpoint.export.SiteRowWriter;
+import org.activityinfo.server.endpoint.export.SiteStreamExporter;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.GET;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Bulk export of sites, indicator values and attributes as CSV or newline-delimited JSON.
+ *
+ * <p>The sites are streamed to the response as they are read from the database, so the response
+ * is sent with chunked transfer encoding and can be arbitrarily large.</p>
+ */
+public class SiteStreamResource {
+
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_NDJSON = "ndjson";
+
+    private final DispatcherSync dispatcher;
+    private final Provider<EntityManager> entityManager;
+
+    public SiteStreamResource(DispatcherSync dispatcher, Provider<EntityManager> entityManager) {
+        this.dispatcher = dispatcher;
+        this.entityManager = entityManager;
+    }
+
+    @GET
+    public Response export(@QueryParam("activity") List<Integer> activityIds,
+                           @QueryParam("database") List<Integer> databaseIds,
+                           @QueryParam("partner") List<Integer> partnerIds,
+                           @QueryParam("format") String format) {
+
+        final Filter filter = new Filter();
+        filter.addRestriction(DimensionType.Activity, activityIds);
+        filter.addRestriction(DimensionType.Database, databaseIds);
+        filter.addRestriction(DimensionType.Partner, partnerIds);
+
+        final SchemaDTO schema = dispatcher.execute(new GetSchema());
+        final List<ActivityDTO> activities = SiteStreamExporter.selectActivities(schema, filter);
+        final boolean csv = format == null || FORMAT_CSV.equals(format);
+
+        if (!csv && !FORMAT_NDJSON.equals(format)) {
+            throw badRequest("Unsupported format: " + format);
+        }
+        if (activities.isEmpty()) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        // every activity has its own columns, so a CSV file can hold only one
+        if (csv && activities.size() > 1) {
+            throw badRequest("A CSV export must be restricted to a single activity; use format=ndjson to " +
+                             "export several activities at once");
+        }
+
+        StreamingOutput output = new StreamingOutput() {
+            @Override
+            public void write(OutputStream outputStream) throws IOException, WebApplicationException {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, Charsets.UTF_8));
+                SiteRowWriter rowWriter = csv ? new CsvSiteRowWriter(writer) : new JsonLinesSiteRowWriter(writer);
+
+                new SiteStreamExporter(entityManager, rowWriter).export(schema, filter);
+                writer.flush();
+            }
+        };
+
+        String fileName = csv ? "activity_" + activities.get(0).getId() + ".csv" : "sites.ndjson";
+
+        return Response.ok(output)
+                       .type(csv ? CsvSiteRowWriter.CONTENT_TYPE : JsonLinesSiteRowWriter.CONTENT_TYPE)
+                       .header("Content-Disposition", "attachment; filename=" + fileName)
+                       .build();
+    }
+
+    private WebApplicationException badRequest(String message) {
+        return new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                                                   .type("text/plain")
+                                                   .entity(message)
+                                                   .build());
+    }
+}
@@ -22,10 +22,16 @@ package org.activityinfo.server.event;
  * #L%
  */
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.name.Names;
 import com.google.inject.servlet.ServletModule;
+import org.activityinfo.server.event.schema.SchemaCache;
 import org.activityinfo.server.event.sitehistory.SiteHistoryListener;
 import org.activityinfo.server.event.sitehistory.SiteHistoryProcessor;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 public class EventModule extends ServletModule {
 
     @Override
@@ -35,6 +41,12 @@ public class EventModule extends ServletModule {
 
         // listeners
         bind(SiteHistoryProcessor.class);
+        bind(Executor.class).annotatedWith(Names.named(SiteHistoryProcessor.WRITER_EXECUTOR))
+                            .toInstance(Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                                    .setNameFormat("site-history-%d")
+                                    .setDaemon(true)
+                                    .build()));
         bind(SiteHistoryListener.class).asEagerSingleton();
+        bind(SchemaCache.class).asEagerSingleton();
     }
 }
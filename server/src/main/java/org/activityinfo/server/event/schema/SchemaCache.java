@@ -0,0 +1,284 @@
+package org.activityinfo.server.event.schema;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.extjs.gxt.ui.client.data.RpcMap;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import org.activityinfo.legacy.shared.auth.AuthenticatedUser;
+import org.activityinfo.legacy.shared.command.*;
+import org.activityinfo.legacy.shared.model.SchemaDTO;
+import org.activityinfo.server.event.CommandEvent;
+import org.activityinfo.server.event.CommandEventListener;
+import org.activityinfo.server.event.ServerEventBus;
+
+import javax.persistence.EntityManager;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the result of {@link GetSchema} for each user.
+ *
+ * <p>Each cached schema is stored with the schema version of the user's databases at the time it
+ * was built: the latest version of the databases and permissions visible to the user, together
+ * with their number and the shared version in the {@code schemaversion} table. A cached schema is
+ * only served while this version is unchanged.</p>
+ *
+ * <p>Changes to the schema made through commands are posted on the {@link ServerEventBus}. They
+ * bump the shared version in the transaction of the command, so that the schemas cached by all
+ * servers are invalidated once it commits, including for changes which do not bump a database
+ * version, such as renaming a partner. They also invalidate the schemas cached by this server
+ * which contain the changed entity right away. Changes made outside of commands are only picked
+ * up if they bump the version of a database or permission.</p>
+ *
+ * <p>The cached {@code SchemaDTO}s are shared between requests and must not be modified.</p>
+ */
+@Singleton
+public class SchemaCache extends CommandEventListener {
+
+    public static final int MAX_CACHED_USERS = 2000;
+
+    private final Provider<EntityManager> entityManager;
+
+    private final Cache<Integer, CachedSchema> cache;
+
+    /**
+     * Incremented on every invalidation, so that a schema built concurrently with a change
+     * is not cached.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @Inject @SuppressWarnings("unchecked")
+    public SchemaCache(ServerEventBus serverEventBus, Provider<EntityManager> entityManager) {
+        super(serverEventBus,
+                CreateEntity.class,
+                UpdateEntity.class,
+                Delete.class,
+                AddPartner.class,
+                RemovePartner.class,
+                AddProject.class,
+                RemoveProject.class,
+                CreateLockedPeriod.class,
+                UpdateUserPermissions.class,
+                RequestChange.class);
+
+        this.entityManager = entityManager;
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(MAX_CACHED_USERS)
+                                 .expireAfterWrite(1, TimeUnit.HOURS)
+                                 .build();
+    }
+
+    /**
+     * Queries the current schema version of the given user's databases.
+     */
+    public static String queryVersion(EntityManager entityManager, int userId) {
+        Object[] row = (Object[]) entityManager.createNativeQuery(
+                "SELECT MAX(GREATEST(d.version, COALESCE(p.version, 0))), COUNT(*), " +
+                " COALESCE((SELECT v.Version FROM schemaversion v WHERE v.Id = 1), 0) " +
+                "FROM userdatabase d " +
+                "LEFT JOIN userpermission p ON (p.DatabaseId = d.DatabaseId AND p.UserId = ?1) " +
+                "WHERE d.DateDeleted IS NULL " +
+                " AND (d.OwnerUserId = ?1 OR p.AllowView = 1)")
+                .setParameter(1, userId)
+                .getSingleResult();
+
+        return row[0] + ":" + row[1] + ":" + row[2];
+    }
+
+    /**
+     * @return the cached schema of the user, or {@code null} if there is none for this version
+     */
+    public SchemaDTO get(AuthenticatedUser user, String version) {
+        CachedSchema cached = cache.getIfPresent(user.getUserId());
+        if (cached != null && cached.version.equals(version)) {
+            return cached.schema;
+        }
+        return null;
+    }
+
+    /**
+     * Wraps the callback of a {@code GetSchema} command so that the schema is cached once
+     * it has been built.
+     */
+    public AsyncCallback<SchemaDTO> caching(final AuthenticatedUser user,
+                                            final String version,
+                                            final AsyncCallback<SchemaDTO> callback) {
+
+        final long startGeneration = generation.get();
+
+        return new AsyncCallback<SchemaDTO>() {
+            @Override
+            public void onFailure(Throwable caught) {
+                callback.onFailure(caught);
+            }
+
+            @Override
+            public void onSuccess(SchemaDTO schema) {
+                put(user, version, startGeneration, schema);
+                callback.onSuccess(schema);
+            }
+        };
+    }
+
+    private synchronized void put(AuthenticatedUser user, String version, long startGeneration, SchemaDTO schema) {
+        if (generation.get() == startGeneration) {
+            cache.put(user.getUserId(), new CachedSchema(version, user.getEmail(), schema));
+        }
+    }
+
+    @Override
+    protected void onEvent(CommandEvent event) {
+        Command command = event.getCommand();
+        invalidate();
+
+        // the event is posted before the command commits, so this is committed or rolled back with it
+        entityManager.get()
+                     .createNativeQuery("INSERT INTO schemaversion (Id, Version) VALUES (1, 1) " +
+                                        "ON DUPLICATE KEY UPDATE Version = Version + 1")
+                     .executeUpdate();
+
+        // the user making the change will most likely reload the schema,
+        // and may have created a new database which is not yet in any schema
+        if (event.getUserId() != null) {
+            cache.invalidate(event.getUserId());
+        }
+
+        String email = null;
+        if (command instanceof UpdateUserPermissions) {
+            email = ((UpdateUserPermissions) command).getModel().getEmail();
+        }
+
+        Iterator<Map.Entry<Integer, CachedSchema>> it = cache.asMap().entrySet().iterator();
+        while (it.hasNext()) {
+            CachedSchema cached = it.next().getValue();
+            if (isAffected(cached.schema, command) || (email != null && email.equalsIgnoreCase(cached.email))) {
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    static boolean isAffected(SchemaDTO schema, Command command) {
+        if (command instanceof CreateEntity) {
+            return isAffected(schema, (CreateEntity) command);
+
+        } else if (command instanceof UpdateEntity) {
+            UpdateEntity update = (UpdateEntity) command;
+            return contains(schema, update.getEntityName(), update.getId());
+
+        } else if (command instanceof Delete) {
+            Delete delete = (Delete) command;
+            return contains(schema, delete.getEntityName(), delete.getId());
+
+        } else if (command instanceof AddPartner) {
+            return schema.getDatabaseById(((AddPartner) command).getDatabaseId()) != null;
+
+        } else if (command instanceof RemovePartner) {
+            return schema.getDatabaseById(((RemovePartner) command).getDatabaseId()) != null;
+
+        } else if (command instanceof AddProject) {
+            return schema.getDatabaseById(((AddProject) command).getDatabaseId()) != null;
+
+        } else if (command instanceof RemoveProject) {
+            return schema.getProjectById(((RemoveProject) command).getId()) != null;
+
+        } else if (command instanceof CreateLockedPeriod) {
+            CreateLockedPeriod create = (CreateLockedPeriod) command;
+            return schema.getDatabaseById(create.getUserDatabseId()) != null ||
+                   schema.getActivityById(create.getActivityId()) != null ||
+                   schema.getProjectById(create.getProjectId()) != null;
+
+        } else if (command instanceof UpdateUserPermissions) {
+            return schema.getDatabaseById(((UpdateUserPermissions) command).getDatabaseId()) != null;
+
+        } else {
+            // RequestChange refers to entities by resource id
+            return true;
+        }
+    }
+
+    /**
+     * A new entity is located by the parent it refers to.
+     */
+    private static boolean isAffected(SchemaDTO schema, CreateEntity create) {
+        RpcMap properties = create.getProperties();
+        if ("UserDatabase".equals(create.getEntityName())) {
+            // only visible to its owner, whose schema is always invalidated
+            return false;
+        } else if (properties.get("databaseId") instanceof Number) {
+            return contains(schema, "UserDatabase", ((Number) properties.get("databaseId")).intValue());
+        } else if (properties.get("activityId") instanceof Number) {
+            return contains(schema, "Activity", ((Number) properties.get("activityId")).intValue());
+        } else if (properties.get("attributeGroupId") instanceof Number) {
+            return contains(schema, "AttributeGroup", ((Number) properties.get("attributeGroupId")).intValue());
+        } else {
+            return true;
+        }
+    }
+
+    private static boolean contains(SchemaDTO schema, String entityName, int id) {
+        if ("UserDatabase".equals(entityName)) {
+            return schema.getDatabaseById(id) != null;
+        } else if ("Activity".equals(entityName)) {
+            return schema.getActivityById(id) != null;
+        } else if ("Indicator".equals(entityName)) {
+            return schema.getIndicatorById(id) != null;
+        } else if ("AttributeGroup".equals(entityName)) {
+            return schema.getAttributeGroupById(id) != null;
+        } else if ("Attribute".equals(entityName)) {
+            return schema.getAttributeById(id) != null;
+        } else if ("Partner".equals(entityName)) {
+            return schema.getPartnerById(id) != null;
+        } else if ("Project".equals(entityName)) {
+            return schema.getProjectById(id) != null;
+        } else if ("LocationType".equals(entityName)) {
+            return schema.getLocationTypeById(id) != null;
+        } else if ("Country".equals(entityName)) {
+            return schema.getCountryById(id) != null;
+        } else {
+            return true;
+        }
+    }
+
+    private static class CachedSchema {
+        private final String version;
+        private final String email;
+        private final SchemaDTO schema;
+
+        CachedSchema(String version, String email, SchemaDTO schema) {
+            this.version = version;
+            this.email = email;
+            this.schema = schema;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.activityinfo.server.event.sitehistory;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.activityinfo.legacy.shared.util.JsonUtil;
+
+import java.util.Map;
+
+/**
+ * A change to a site which is waiting to be written to its history
+ */
+class SiteChange {
+    private final int siteId;
+    private final int userId;
+    private final ChangeType type;
+    private String json;
+    private long timeCreated;
+
+    /**
+     * All of the properties of the site, if this is the first change recorded for a site which
+     * was not created through a command
+     */
+    private String baseline;
+
+    SiteChange(int siteId, int userId, ChangeType type, String json, long timeCreated) {
+        this.siteId = siteId;
+        this.userId = userId;
+        this.type = type;
+        this.json = json;
+        this.timeCreated = timeCreated;
+    }
+
+    static SiteChange ofProperties(int siteId, int userId, ChangeType type, Map<String, Object> changes) {
+        String json = changes == null || changes.isEmpty() ? "{}" : JsonUtil.encodeMap(changes).toString();
+        return ofJson(siteId, userId, type, json);
+    }
+
+    static SiteChange ofJson(int siteId, int userId, ChangeType type, String json) {
+        return new SiteChange(siteId, userId, type, json, System.currentTimeMillis());
+    }
+
+    public int getSiteId() {
+        return siteId;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public ChangeType getType() {
+        return type;
+    }
+
+    public long getTimeCreated() {
+        return timeCreated;
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    public String getBaseline() {
+        return baseline;
+    }
+
+    public void setBaseline(String baseline) {
+        this.baseline = baseline;
+    }
+
+    /**
+     * Merges a later update of the same site by the same user into this one.
+     *
+     * @return false if the changes cannot be recorded as one
+     */
+    boolean merge(SiteChange later) {
+        if (type != ChangeType.UPDATE || later.type != ChangeType.UPDATE || userId != later.userId ||
+            later.baseline != null) {
+            return false;
+        }
+        JsonParser parser = new JsonParser();
+        JsonObject merged = parser.parse(json).getAsJsonObject();
+        for (Map.Entry<String, JsonElement> property : parser.parse(later.json).getAsJsonObject().entrySet()) {
+            merged.add(property.getKey(), property.getValue());
+        }
+        json = merged.toString();
+        timeCreated = later.timeCreated;
+        return true;
+    }
+}
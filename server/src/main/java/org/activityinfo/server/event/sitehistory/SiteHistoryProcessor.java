@@ -21,119 +21,162 @@ package org.activityinfo.server.event.sitehistory;
  * <http://www.gnu.org/licenses/gpl-3.0.html>.
  * #L%
  */
-
-import com.google.common.base.Strings;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import org.activityinfo.legacy.shared.command.Command;
 import org.activityinfo.legacy.shared.command.GetSites;
 import org.activityinfo.legacy.shared.command.SiteCommand;
 import org.activityinfo.legacy.shared.command.result.SiteResult;
-import org.activityinfo.legacy.shared.model.SiteDTO;
 import org.activityinfo.legacy.shared.util.JsonUtil;
+import org.activityinfo.server.authentication.ServerSideAuthProvider;
 import org.activityinfo.server.command.DispatcherSync;
+import org.activityinfo.server.database.hibernate.HibernateSessionScope;
 import org.activityinfo.server.database.hibernate.entity.Site;
 import org.activityinfo.server.database.hibernate.entity.SiteHistory;
 import org.activityinfo.server.database.hibernate.entity.User;
+import org.activityinfo.server.endpoint.gwtrpc.RemoteExecutionContext;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
 import javax.persistence.Query;
-import java.util.Date;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Records the changes made to sites in their history.
+ *
+ * <p>By default, changes are written to the history in the caller's session and transaction. When a
+ * {@link #WRITER_EXECUTOR} is bound, changes are only written to the {@code sitehistoryoutbox} table
+ * in the caller's transaction, and moved from there to the history in batches on that executor once
+ * the transaction has committed. Commands then do not wait for the history to be written, and no
+ * change is lost if the server stops before it is written: changes left in the outbox are moved with
+ * the next batch. Consecutive updates of a site by the same user which are moved in the same batch
+ * are written as one record.</p>
+ *
+ * <p>The first record of a site which was not created through a command is a baseline with
+ * all of the site's properties, read in the transaction of the change. The {@code hasHistory} column
+ * of the site tells whether it needs one.</p>
+ */
+@Singleton
 public class SiteHistoryProcessor {
     private static final Logger LOGGER = Logger.getLogger(SiteHistoryProcessor.class.getName());
 
+    public static final String WRITER_EXECUTOR = "siteHistoryWriter";
+
+    /**
+     * The maximum number of changes moved from the outbox in one transaction
+     */
+    public static final int BATCH_SIZE = 500;
+
     private static final String JSON_DELETE = "{\"_DELETE\":{\"type\":\"Boolean\",\"value\":true}}";
 
     private final Provider<EntityManager> entityManager;
-    private final DispatcherSync dispatcher;
+    private final Provider<DispatcherSync> dispatcher;
+    private final ServerSideAuthProvider authProvider;
+
+    private Executor executor;
+    private HibernateSessionScope sessionScope;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition idle = lock.newCondition();
+    private boolean writing;
+
+    /**
+     * Set when changes are added to the outbox while it is being drained
+     */
+    private boolean dirty;
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    private final Runnable scheduleTask = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
 
     @Inject
-    public SiteHistoryProcessor(Provider<EntityManager> entityManager, DispatcherSync dispatcher) {
+    public SiteHistoryProcessor(Provider<EntityManager> entityManager,
+                                Provider<DispatcherSync> dispatcher,
+                                ServerSideAuthProvider authProvider) {
         this.entityManager = entityManager;
         this.dispatcher = dispatcher;
+        this.authProvider = authProvider;
+    }
+
+    @Inject(optional = true)
+    public void setWriter(@Named(WRITER_EXECUTOR) Executor executor, HibernateSessionScope sessionScope) {
+        this.executor = executor;
+        this.sessionScope = sessionScope;
     }
 
     public void process(Command<?> cmd, final int userId, final int siteId) {
         assert (cmd instanceof SiteCommand);
 
-
-        LOGGER.fine("persisting site history (site: " + siteId + ", user: " + userId + ")");
-        EntityManager em = entityManager.get();
-
-
-        // It's important to use getReference() here rather
-        // than find() becuase the site might not actually have
-        // been sent to the database at this point
-        Site site = em.getReference(Site.class, siteId);
-        User user = em.getReference(User.class, userId);
         ChangeType type = ChangeType.getType(cmd);
 
-        if (!type.isNew()) {
-            Query q = em.createQuery("select count(*) from SiteHistory where site = :site");
-            q.setParameter("site", site);
-            Long count = (Long) q.getSingleResult();
-            if (count == 0) {
-                // update, but first entry -> repair history by adding baseline
-                // record with complete site json
-                LOGGER.fine("site is not new, but history was empty. Adding baseline record..");
-                SiteResult siteResult = dispatcher.execute(GetSites.byId(siteId));
-                SiteDTO siteDTO = siteResult.getData().get(0);
-                String fulljson = JsonUtil.encodeMap(siteDTO.getProperties()).toString();
-
-                SiteHistory baseline = new SiteHistory();
-                baseline.setSite(site);
-                baseline.setUser(user);
-                baseline.setJson(fulljson);
-                baseline.setTimeCreated(new Date().getTime());
-                baseline.setInitial(false);
-
-                persist(baseline);
-            }
-        }
-
-
-        String json = null;
-
         if (type.isNewOrUpdate()) {
             Map<String, Object> changeMap = ((SiteCommand) cmd).getProperties().getTransientMap();
             if (!changeMap.isEmpty()) {
-                json = JsonUtil.encodeMap(changeMap).toString();
+                record(SiteChange.ofProperties(siteId, userId, type, changeMap));
             }
         } else if (type.isDelete()) {
-            json = JSON_DELETE;
-        }
-
-        if (!Strings.isNullOrEmpty(json)) {
-            persistHistory(site, user, type, json);
+            record(SiteChange.ofJson(siteId, userId, type, JSON_DELETE));
         }
     }
 
     public void persistHistory(Site site, User user, ChangeType type, Map<String, Object> changeMap) {
-        String json = "{}";
-        if (changeMap != null && !changeMap.isEmpty()) {
-            json = JsonUtil.encodeMap(changeMap).toString();
-        }
-        persistHistory(site, user, type, json);
+        record(SiteChange.ofProperties(site.getId(), user.getId(), type, changeMap));
     }
 
     public void persistHistory(Site site, User user, ChangeType type, String json) {
-        SiteHistory history = new SiteHistory();
-        history.setSite(site);
-        history.setUser(user);
-        history.setJson(json);
-        history.setTimeCreated(new Date().getTime());
-        history.setInitial(type.isNew());
+        record(SiteChange.ofJson(site.getId(), user.getId(), type, json));
+    }
 
-        persist(history);
+    /**
+     * Waits until the changes in the outbox have been moved to the history.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            while (writing) {
+                idle.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private void persist(SiteHistory history) {
+    private void record(SiteChange change) {
+        LOGGER.fine("recording site history (site: " + change.getSiteId() + ", user: " + change.getUserId() + ")");
+
         EntityManager em = entityManager.get();
+
+        // sites which were not created through a command need a baseline first. It is read before
+        // the transaction begins, as the dispatcher runs the query in its own transaction if there is none
+        if (!change.getType().isNew() && !sitesWithoutHistory(em, Collections.singleton(change.getSiteId())).isEmpty()) {
+            LOGGER.fine("site " + change.getSiteId() + " is not new, but has no history. Adding baseline record..");
+            change.setBaseline(queryBaseline(em, change));
+        }
+
         EntityTransaction tx = em.getTransaction();
         boolean manageManually = !tx.isActive();
 
@@ -141,8 +184,16 @@ public class SiteHistoryProcessor {
             if (manageManually) {
                 tx.begin();
             }
-
-            em.persist(history);
+            if (executor == null) {
+                LinkedHashMap<Integer, List<SiteChange>> batch = Maps.newLinkedHashMap();
+                batch.put(change.getSiteId(), Collections.singletonList(change));
+                writeHistory(em, batch);
+            } else {
+                writeToOutbox(em, change);
+            }
+            em.createNativeQuery("UPDATE site SET hasHistory = 1 WHERE hasHistory = 0 AND SiteId = ?1")
+              .setParameter(1, change.getSiteId())
+              .executeUpdate();
 
             if (manageManually) {
                 tx.commit();
@@ -158,5 +209,261 @@ public class SiteHistoryProcessor {
             }
             throw new RuntimeException(e);
         }
+
+        if (executor != null) {
+            if (RemoteExecutionContext.inProgress()) {
+                // the outbox is only worth reading once the command has committed
+                RemoteExecutionContext.current().afterCommit(scheduleTask);
+            } else {
+                schedule();
+            }
+        }
+    }
+
+    private void writeToOutbox(EntityManager em, SiteChange change) {
+        Query insert;
+        if (change.getBaseline() == null) {
+            insert = em.createNativeQuery("INSERT INTO sitehistoryoutbox (SiteId, UserId, ChangeType, Json, TimeCreated) " +
+                                          "VALUES (?1, ?2, ?3, ?4, ?5)");
+        } else {
+            insert = em.createNativeQuery("INSERT INTO sitehistoryoutbox (SiteId, UserId, ChangeType, Json, TimeCreated, " +
+                                          "Baseline) VALUES (?1, ?2, ?3, ?4, ?5, ?6)")
+                       .setParameter(6, change.getBaseline());
+        }
+        insert.setParameter(1, change.getSiteId())
+              .setParameter(2, change.getUserId())
+              .setParameter(3, change.getType().name())
+              .setParameter(4, change.getJson())
+              .setParameter(5, change.getTimeCreated())
+              .executeUpdate();
+    }
+
+    /**
+     * Drains the outbox on the writer, unless it is already being drained.
+     */
+    private void schedule() {
+        lock.lock();
+        try {
+            if (writing) {
+                dirty = true;
+            } else {
+                writing = true;
+                executor.execute(writeTask);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves batches of changes from the outbox to the history until the outbox is empty.
+     */
+    private void writePending() {
+        while (true) {
+            lock.lock();
+            try {
+                dirty = false;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean failed = false;
+            sessionScope.enter();
+            try {
+                int drained;
+                do {
+                    drained = drainBatch(entityManager.get());
+                } while (drained == BATCH_SIZE);
+            } catch (Exception e) {
+                // the changes stay in the outbox until the next change is recorded
+                LOGGER.log(Level.SEVERE, "Failed to read the site history outbox", e);
+                failed = true;
+            } finally {
+                sessionScope.exit();
+            }
+
+            lock.lock();
+            try {
+                if (failed || !dirty) {
+                    writing = false;
+                    idle.signalAll();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Moves the oldest changes of the outbox to the history.
+     *
+     * @return the number of changes read from the outbox
+     */
+    private int drainBatch(EntityManager em) {
+        EntityTransaction tx = em.getTransaction();
+        tx.begin();
+
+        LinkedHashMap<Integer, List<SiteChange>> batch = Maps.newLinkedHashMap();
+        Map<Integer, List<Long>> outboxIds = Maps.newHashMap();
+        List<Object[]> rows;
+        try {
+            // locked, so that other servers draining the outbox skip these changes
+            rows = em.createNativeQuery("SELECT Id, SiteId, UserId, ChangeType, Json, Baseline, TimeCreated " +
+                                        "FROM sitehistoryoutbox ORDER BY Id LIMIT " + BATCH_SIZE + " FOR UPDATE")
+                     .getResultList();
+        } catch (RuntimeException e) {
+            tx.rollback();
+            throw e;
+        }
+        if (rows.isEmpty()) {
+            tx.commit();
+            return 0;
+        }
+        for (Object[] row : rows) {
+            int siteId = ((Number) row[1]).intValue();
+            SiteChange change = new SiteChange(siteId, ((Number) row[2]).intValue(),
+                    ChangeType.valueOf((String) row[3]), (String) row[4], ((Number) row[6]).longValue());
+            change.setBaseline((String) row[5]);
+
+            List<SiteChange> changes = batch.get(siteId);
+            if (changes == null) {
+                changes = Lists.newArrayList();
+                batch.put(siteId, changes);
+                outboxIds.put(siteId, Lists.<Long>newArrayList());
+            }
+            if (changes.isEmpty() || !changes.get(changes.size() - 1).merge(change)) {
+                changes.add(change);
+            }
+            outboxIds.get(siteId).add(((Number) row[0]).longValue());
+        }
+
+        try {
+            writeHistory(em, batch);
+            deleteFromOutbox(em, batch.keySet(), outboxIds);
+            tx.commit();
+
+        } catch (Exception e) {
+            try {
+                tx.rollback();
+            } catch (Exception rollbackException) {
+                LOGGER.log(Level.SEVERE, "Exception rolling back failed transaction", rollbackException);
+            }
+            em.clear();
+
+            // write the sites one by one, so that one failing site does not hold up the others
+            LOGGER.log(Level.WARNING, "Failed to write the history of sites " + batch.keySet() +
+                                      ", retrying site by site", e);
+            for (Map.Entry<Integer, List<SiteChange>> entry : batch.entrySet()) {
+                writeSite(em, entry.getKey(), entry.getValue(), outboxIds);
+            }
+        }
+        return rows.size();
+    }
+
+    private void writeSite(EntityManager em, int siteId, List<SiteChange> changes, Map<Integer, List<Long>> outboxIds) {
+        LinkedHashMap<Integer, List<SiteChange>> single = Maps.newLinkedHashMap();
+        single.put(siteId, changes);
+
+        EntityTransaction tx = em.getTransaction();
+        try {
+            tx.begin();
+            writeHistory(em, single);
+            deleteFromOutbox(em, single.keySet(), outboxIds);
+            tx.commit();
+            return;
+
+        } catch (Exception e) {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            em.clear();
+            LOGGER.log(Level.SEVERE, "Failed to write the history of site " + siteId + ", dropping " +
+                                     changes.size() + " change(s): " + describe(changes), e);
+        }
+
+        // drop the changes, so that they do not fail again with every batch
+        tx.begin();
+        deleteFromOutbox(em, single.keySet(), outboxIds);
+        tx.commit();
+    }
+
+    private static String describe(List<SiteChange> changes) {
+        List<String> jsons = Lists.newArrayList();
+        for (SiteChange change : changes) {
+            jsons.add(change.getType() + " by user " + change.getUserId() + " " + change.getJson());
+        }
+        return Joiner.on("; ").join(jsons);
+    }
+
+    private static void deleteFromOutbox(EntityManager em, Iterable<Integer> siteIds,
+                                         Map<Integer, List<Long>> outboxIds) {
+        List<Long> ids = Lists.newArrayList();
+        for (int siteId : siteIds) {
+            ids.addAll(outboxIds.get(siteId));
+        }
+        em.createNativeQuery("DELETE FROM sitehistoryoutbox WHERE Id IN (" + Joiner.on(',').join(ids) + ")")
+          .executeUpdate();
+    }
+
+    private static void writeHistory(EntityManager em, LinkedHashMap<Integer, List<SiteChange>> batch) {
+        for (Map.Entry<Integer, List<SiteChange>> entry : batch.entrySet()) {
+            // It's important to use getReference() here rather
+            // than find() becuase the site might not actually have
+            // been sent to the database at this point
+            Site site = em.getReference(Site.class, entry.getKey());
+
+            for (SiteChange change : entry.getValue()) {
+                if (change.getBaseline() != null) {
+                    em.persist(newHistory(em, site, change, change.getBaseline(), false));
+                }
+                em.persist(newHistory(em, site, change, change.getJson(), change.getType().isNew()));
+            }
+        }
+        em.flush();
+    }
+
+    private List<Integer> sitesWithoutHistory(EntityManager em, Iterable<Integer> siteIds) {
+        List<Number> rows = em.createNativeQuery("SELECT SiteId FROM site WHERE hasHistory = 0 AND SiteId IN (" +
+                                                 Joiner.on(',').join(siteIds) + ")")
+                              .getResultList();
+        List<Integer> ids = Lists.newArrayList();
+        for (Number row : rows) {
+            ids.add(row.intValue());
+        }
+        return ids;
+    }
+
+    /**
+     * @return all of the properties of the site as seen by the user who changed it, or {@code null}
+     * if the site can no longer be read
+     */
+    private String queryBaseline(EntityManager em, SiteChange change) {
+        boolean authenticate = !authProvider.isAuthenticated();
+        if (authenticate) {
+            authProvider.set(em.find(User.class, change.getUserId()));
+        }
+        try {
+            SiteResult siteResult = dispatcher.get().execute(GetSites.byId(change.getSiteId()));
+            if (siteResult.getData().isEmpty()) {
+                return null;
+            }
+            return JsonUtil.encodeMap(siteResult.getData().get(0).getProperties()).toString();
+        } finally {
+            if (authenticate) {
+                authProvider.clear();
+            }
+        }
+    }
+
+    private static SiteHistory newHistory(EntityManager em, Site site, SiteChange change, String json,
+                                          boolean initial) {
+        SiteHistory history = new SiteHistory();
+        history.setSite(site);
+        history.setUser(em.getReference(User.class, change.getUserId()));
+        history.setJson(json);
+        history.setTimeCreated(change.getTimeCreated());
+        history.setInitial(initial);
+        return history;
     }
 }
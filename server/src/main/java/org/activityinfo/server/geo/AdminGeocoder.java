@@ -0,0 +1,260 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Assigns admin entities to locations by the admin entity polygons which contain them.
+ *
+ * <p>The full resolution geometry of each admin level is loaded into an {@link AdminGeometryIndex}
+ * on first use, and reloaded when the version of the level changes. At most {@link #MAX_CACHED_LEVELS}
+ * levels are kept. Levels without geometry are ignored, so the admin entities of those levels must
+ * still be matched by name.</p>
+ */
+@Singleton
+public class AdminGeocoder {
+
+    private static final Logger LOGGER = Logger.getLogger(AdminGeocoder.class.getName());
+
+    /**
+     * The number of locations reassigned in one transaction
+     */
+    public static final int REASSIGN_CHUNK_SIZE = 500;
+
+    /**
+     * The maximum number of admin levels whose full resolution geometry is kept in memory
+     */
+    public static final int MAX_CACHED_LEVELS = 16;
+
+    private final Provider<EntityManager> entityManager;
+    private final AdminGeometryProvider geometryProvider;
+
+    private final Cache<Integer, AdminGeometryIndex> levels = CacheBuilder.newBuilder()
+                                                                          .maximumSize(MAX_CACHED_LEVELS)
+                                                                          .build();
+
+    @Inject
+    public AdminGeocoder(Provider<EntityManager> entityManager, MysqlGeometryProvider geometryProvider) {
+        this.entityManager = entityManager;
+        this.geometryProvider = geometryProvider;
+    }
+
+    /**
+     * @return the ids of the admin entities of the country's levels which contain the point
+     */
+    public List<Integer> geocode(int countryId, double latitude, double longitude) {
+        List<Integer> entityIds = Lists.newArrayList();
+        for (AdminGeometryIndex level : getCountryLevels(countryId)) {
+            int entityId = level.locate(latitude, longitude);
+            if (entityId != -1) {
+                entityIds.add(entityId);
+            }
+        }
+        return entityIds;
+    }
+
+    /**
+     * Reassigns the admin entities of every location of a location type which has coordinates,
+     * for instance after the boundaries of an admin level have been updated. Links to admin
+     * entities of levels without geometry are left as they are.
+     *
+     * <p>The locations are reassigned in chunks of {@link #REASSIGN_CHUNK_SIZE}, each in its own
+     * transaction, so that the locations and their links are only locked for the time of a chunk.
+     * Reassigning is idempotent, so an interrupted run can simply be started again. Must not be
+     * called within a transaction. The location type should then be invalidated in the
+     * {@link PlaceNameIndex}.</p>
+     *
+     * @return the number of locations whose admin entities have changed
+     */
+    public int reassign(int locationTypeId) {
+        EntityManager em = entityManager.get();
+        List<Object[]> types = em.createNativeQuery(
+                "SELECT CountryId, BoundAdminLevelId FROM locationtype WHERE LocationTypeId = ?1")
+                .setParameter(1, locationTypeId)
+                .getResultList();
+        if (types.isEmpty() || types.get(0)[1] != null) {
+            // the locations of a bound location type are the admin entities themselves
+            return 0;
+        }
+        List<AdminGeometryIndex> countryLevels = getCountryLevels(((Number) types.get(0)[0]).intValue());
+        if (countryLevels.isEmpty()) {
+            return 0;
+        }
+
+        List<Object[]> locations = em.createNativeQuery(
+                "SELECT LocationId, Y, X FROM location " +
+                "WHERE LocationTypeId = ?1 AND X IS NOT NULL AND Y IS NOT NULL " +
+                "ORDER BY LocationId")
+                .setParameter(1, locationTypeId)
+                .getResultList();
+
+        int changed = 0;
+        for (List<Object[]> chunk : Lists.partition(locations, REASSIGN_CHUNK_SIZE)) {
+            EntityTransaction tx = em.getTransaction();
+            tx.begin();
+            try {
+                changed += reassignChunk(em, chunk, countryLevels);
+                tx.commit();
+            } catch (RuntimeException e) {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+                throw e;
+            }
+        }
+
+        LOGGER.info("Reassigned admin entities of " + changed + " of " + locations.size() +
+                    " locations of location type " + locationTypeId);
+
+        return changed;
+    }
+
+    private int reassignChunk(EntityManager em, List<Object[]> locations, List<AdminGeometryIndex> countryLevels) {
+        Set<Integer> levelIds = Sets.newHashSet();
+        for (AdminGeometryIndex level : countryLevels) {
+            levelIds.add(level.getLevelId());
+        }
+        List<Integer> locationIds = Lists.newArrayList();
+        for (Object[] location : locations) {
+            locationIds.add(((Number) location[0]).intValue());
+        }
+
+        // current links to the entities of the levels we can geocode
+        List<Object[]> links = em.createNativeQuery(
+                "SELECT k.LocationId, k.AdminEntityId, e.AdminLevelId FROM locationadminlink k " +
+                "INNER JOIN adminentity e ON (e.AdminEntityId = k.AdminEntityId) " +
+                "WHERE k.LocationId IN (" + Joiner.on(", ").join(locationIds) + ")")
+                .getResultList();
+
+        Map<Integer, Set<Integer>> currentLinks = Maps.newHashMap();
+        for (Object[] link : links) {
+            if (levelIds.contains(((Number) link[2]).intValue())) {
+                int locationId = ((Number) link[0]).intValue();
+                Set<Integer> entityIds = currentLinks.get(locationId);
+                if (entityIds == null) {
+                    entityIds = Sets.newHashSet();
+                    currentLinks.put(locationId, entityIds);
+                }
+                entityIds.add(((Number) link[1]).intValue());
+            }
+        }
+
+        List<Integer> changed = Lists.newArrayList();
+        for (Object[] location : locations) {
+            int locationId = ((Number) location[0]).intValue();
+            double latitude = ((Number) location[1]).doubleValue();
+            double longitude = ((Number) location[2]).doubleValue();
+
+            Set<Integer> entityIds = Sets.newHashSet();
+            for (AdminGeometryIndex level : countryLevels) {
+                int entityId = level.locate(latitude, longitude);
+                if (entityId != -1) {
+                    entityIds.add(entityId);
+                }
+            }
+
+            Set<Integer> current = currentLinks.get(locationId);
+            if (current == null) {
+                current = Sets.newHashSet();
+            }
+            if (!current.equals(entityIds)) {
+                updateLinks(em, locationId, Sets.difference(current, entityIds),
+                        Sets.difference(entityIds, current));
+                changed.add(locationId);
+            }
+        }
+
+        // so that the locations are synchronized and re-indexed. The stamp is taken just before
+        // the commit, for the incremental refreshes which rely on it
+        if (!changed.isEmpty()) {
+            em.createNativeQuery("UPDATE location SET timeEdited = ?1 WHERE LocationId IN (" +
+                                 Joiner.on(", ").join(changed) + ")")
+              .setParameter(1, new Date().getTime())
+              .executeUpdate();
+        }
+        return changed.size();
+    }
+
+    private void updateLinks(EntityManager em, int locationId, Set<Integer> removed, Set<Integer> added) {
+        if (!removed.isEmpty()) {
+            em.createNativeQuery("DELETE FROM locationadminlink WHERE LocationId = ?1 AND AdminEntityId IN (" +
+                                 Joiner.on(", ").join(removed) + ")")
+              .setParameter(1, locationId)
+              .executeUpdate();
+        }
+        if (!added.isEmpty()) {
+            List<String> rows = Lists.newArrayList();
+            for (Integer entityId : added) {
+                rows.add("(" + locationId + ", " + entityId + ")");
+            }
+            em.createNativeQuery("INSERT INTO locationadminlink (LocationId, AdminEntityId) VALUES " +
+                                 Joiner.on(", ").join(rows))
+              .executeUpdate();
+        }
+    }
+
+    /**
+     * @return the indexes of the current versions of the country's levels which have geometry
+     */
+    private List<AdminGeometryIndex> getCountryLevels(int countryId) {
+        List<Object[]> rows = entityManager.get().createNativeQuery(
+                "SELECT AdminLevelId, version FROM adminlevel WHERE CountryId = ?1 AND NOT deleted")
+                .setParameter(1, countryId)
+                .getResultList();
+
+        List<AdminGeometryIndex> indexes = Lists.newArrayList();
+        for (Object[] row : rows) {
+            AdminGeometryIndex index = getLevel(((Number) row[0]).intValue(), ((Number) row[1]).intValue());
+            if (index.hasGeometry()) {
+                indexes.add(index);
+            }
+        }
+        return indexes;
+    }
+
+    private AdminGeometryIndex getLevel(int levelId, int version) {
+        AdminGeometryIndex index = levels.getIfPresent(levelId);
+        if (index == null || index.getVersion() != version) {
+            index = new AdminGeometryIndex(levelId, version, geometryProvider.getGeometries(levelId));
+            levels.put(levelId, index);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,124 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import java.util.List;
+
+/**
+ * Spatial index of the geometry of the entities of one version of an admin level.
+ *
+ * <p>The polygons of each entity are kept in an {@link STRtree} by bounding box, so that
+ * locating a point only tests the few polygons whose bounding box contains it. Those are
+ * prepared, as most are tested many times when a whole location type is reassigned. The
+ * index is safe to query from several threads.</p>
+ */
+public class AdminGeometryIndex {
+
+    private final int levelId;
+    private final int version;
+    private final STRtree tree;
+    private int partCount;
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    AdminGeometryIndex(int levelId, int version, List<AdminGeo> geometries) {
+        this.levelId = levelId;
+        this.version = version;
+        this.tree = new STRtree();
+        for (AdminGeo geo : geometries) {
+            insert(geo.getId(), geo.getGeometry());
+        }
+        // build now rather than lazily on the first, possibly concurrent, query
+        this.tree.build();
+    }
+
+    private void insert(int entityId, Geometry geometry) {
+        // MySQL stores our multipolygons as GeometryCollections, which can't be tested directly
+        if (geometry instanceof GeometryCollection) {
+            for (int i = 0; i != geometry.getNumGeometries(); ++i) {
+                insert(entityId, geometry.getGeometryN(i));
+            }
+        } else if (!geometry.isEmpty()) {
+            tree.insert(geometry.getEnvelopeInternal(),
+                    new Part(entityId, PreparedGeometryFactory.prepare(geometry)));
+            partCount++;
+        }
+    }
+
+    public int getLevelId() {
+        return levelId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return false if none of the entities of the level has geometry
+     */
+    public boolean hasGeometry() {
+        return partCount > 0;
+    }
+
+    /**
+     * @return the id of the admin entity which contains the point, or -1 if the point is outside
+     * all of the entities of the level
+     */
+    public int locate(double latitude, double longitude) {
+        Coordinate coordinate = new Coordinate(longitude, latitude);
+        Point point = geometryFactory.createPoint(coordinate);
+        List<Part> parts = tree.query(new Envelope(coordinate));
+        for (Part part : parts) {
+            if (part.covers(point)) {
+                return part.entityId;
+            }
+        }
+        return -1;
+    }
+
+    private static class Part {
+        private final int entityId;
+        private final PreparedGeometry geometry;
+
+        Part(int entityId, PreparedGeometry geometry) {
+            this.entityId = entityId;
+            this.geometry = geometry;
+        }
+
+        /**
+         * Prepared geometry builds its own indexes on first use, without synchronization
+         */
+        synchronized boolean covers(Point point) {
+            return geometry.covers(point);
+        }
+    }
+}
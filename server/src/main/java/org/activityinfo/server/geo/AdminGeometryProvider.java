@@ -33,4 +33,10 @@ public interface AdminGeometryProvider {
 
     List<AdminGeo> getGeometries(int adminLevelId);
 
+    /**
+     * Provides the geometry for rendering at the given zoom level, which may be
+     * simplified to the resolution of a pixel at that zoom level.
+     */
+    List<AdminGeo> getGeometries(int adminLevelId, int zoom);
+
 }
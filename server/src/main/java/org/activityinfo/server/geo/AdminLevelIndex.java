@@ -0,0 +1,123 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Maps;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Names of the entities of an admin level, at a given version of the level.
+ *
+ * <p>Immutable once loaded, and so safe to share between threads.</p>
+ */
+public class AdminLevelIndex {
+
+    private final int levelId;
+    private final Integer parentLevelId;
+    private final int version;
+
+    private final NameIndex names = new NameIndex();
+    private final int[] ids;
+    private final int[] parentIds;
+    private final Map<Integer, Integer> positions = Maps.newHashMap();
+
+    AdminLevelIndex(int levelId, Integer parentLevelId, int version, List<Object[]> entities) {
+        this.levelId = levelId;
+        this.parentLevelId = parentLevelId;
+        this.version = version;
+        this.ids = new int[entities.size()];
+        this.parentIds = new int[entities.size()];
+
+        for (Object[] entity : entities) {
+            int position = names.add((String) entity[1]);
+            ids[position] = ((Number) entity[0]).intValue();
+            parentIds[position] = entity[2] == null ? 0 : ((Number) entity[2]).intValue();
+            positions.put(ids[position], position);
+        }
+    }
+
+    static AdminLevelIndex load(EntityManager em, int levelId, Integer parentLevelId, int version) {
+        List<Object[]> entities = em.createNativeQuery(
+                "SELECT AdminEntityId, Name, AdminEntityParentId FROM adminentity " +
+                "WHERE AdminLevelId = ?1 AND NOT deleted " +
+                "ORDER BY AdminEntityId")
+                .setParameter(1, levelId)
+                .getResultList();
+
+        return new AdminLevelIndex(levelId, parentLevelId, version, entities);
+    }
+
+    public int getLevelId() {
+        return levelId;
+    }
+
+    /**
+     * @return the id of the parent level, or {@code null} if this is a root level
+     */
+    public Integer getParentLevelId() {
+        return parentLevelId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean contains(int entityId) {
+        return positions.containsKey(entityId);
+    }
+
+    public String getName(int entityId) {
+        return names.getName(positions.get(entityId));
+    }
+
+    /**
+     * @return the id of the entity's parent, or {@code null} if it has none
+     */
+    public Integer getParentId(int entityId) {
+        int parentId = parentIds[positions.get(entityId)];
+        return parentId == 0 ? null : parentId;
+    }
+
+    /**
+     * Finds the entity which best matches {@code name}.
+     *
+     * @param parentId if not {@code null}, only the children of this entity are considered
+     * @return the id of the best matching entity, or {@code null} if none is similar
+     */
+    public Integer match(String name, final Integer parentId) {
+        NameIndex.Scope scope = NameIndex.ALL;
+        if (parentId != null) {
+            scope = new NameIndex.Scope() {
+                @Override
+                public boolean contains(int position) {
+                    return parentIds[position] == parentId;
+                }
+            };
+        }
+        int position = names.match(name, scope);
+        return position == -1 ? null : ids[position];
+    }
+}
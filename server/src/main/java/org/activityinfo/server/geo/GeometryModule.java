@@ -23,11 +23,14 @@ package org.activityinfo.server.geo;
  */
 
 import com.google.inject.servlet.ServletModule;
+import org.activityinfo.legacy.shared.impl.SearchLocationsHandler;
+import org.activityinfo.server.command.handler.IndexedSearchLocationsHandler;
 
 public class GeometryModule extends ServletModule {
 
     @Override
     protected void configureServlets() {
-        bind(AdminGeometryProvider.class).to(MysqlGeometryProvider.class);
+        bind(AdminGeometryProvider.class).to(SimplifiedGeometryCache.class);
+        bind(SearchLocationsHandler.class).to(IndexedSearchLocationsHandler.class);
     }
 }
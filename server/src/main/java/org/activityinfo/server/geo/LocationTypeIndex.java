@@ -0,0 +1,421 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+
+import javax.persistence.EntityManager;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Names and admin memberships of the locations of a location type, used both to match
+ * locations and to search them.
+ *
+ * <p>The index is loaded once and then refreshed incrementally with the locations edited since
+ * the latest {@code timeEdited} already seen. The refresh re-reads an overlap of
+ * {@link #REFRESH_OVERLAP_MILLIS}, so that locations committed by slower transactions are not
+ * missed.</p>
+ */
+public class LocationTypeIndex {
+
+    public static final long REFRESH_OVERLAP_MILLIS = 60 * 1000;
+
+    private final int locationTypeId;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final NameIndex names = new NameIndex();
+    private final List<LocationEntry> entries = Lists.newArrayList();
+    private final Map<Integer, Integer> positions = Maps.newHashMap();
+    private final Map<Integer, PositionList> byAdminEntity = Maps.newHashMap();
+
+    private boolean loaded;
+    private long lastTimeEdited;
+    private int removedCount;
+
+    public LocationTypeIndex(int locationTypeId) {
+        this.locationTypeId = locationTypeId;
+    }
+
+    public int getLocationTypeId() {
+        return locationTypeId;
+    }
+
+    /**
+     * Reads the locations edited since the last refresh.
+     */
+    public synchronized void refresh(EntityManager em) {
+        long since = loaded ? lastTimeEdited - REFRESH_OVERLAP_MILLIS : Long.MIN_VALUE;
+
+        List<Object[]> rows = em.createNativeQuery(
+                "SELECT LocationId, Name, Axe, Y, X, workflowstatusid, timeEdited FROM location " +
+                "WHERE LocationTypeId = ?1 AND timeEdited > ?2 " +
+                "ORDER BY LocationId")
+                .setParameter(1, locationTypeId)
+                .setParameter(2, since)
+                .getResultList();
+
+        List<Object[]> links = em.createNativeQuery(
+                "SELECT k.LocationId, k.AdminEntityId FROM locationadminlink k " +
+                "INNER JOIN location l ON (l.LocationId = k.LocationId) " +
+                "WHERE l.LocationTypeId = ?1 AND l.timeEdited > ?2")
+                .setParameter(1, locationTypeId)
+                .setParameter(2, since)
+                .getResultList();
+
+        Map<Integer, List<Integer>> adminEntities = Maps.newHashMap();
+        for (Object[] link : links) {
+            int locationId = ((Number) link[0]).intValue();
+            List<Integer> entityIds = adminEntities.get(locationId);
+            if (entityIds == null) {
+                entityIds = Lists.newArrayList();
+                adminEntities.put(locationId, entityIds);
+            }
+            entityIds.add(((Number) link[1]).intValue());
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (Object[] row : rows) {
+                int id = ((Number) row[0]).intValue();
+                List<Integer> entityIds = adminEntities.get(id);
+                int[] sortedIds = entityIds == null ? new int[0] : Ints.toArray(entityIds);
+                Arrays.sort(sortedIds);
+
+                update(new LocationEntry(id, (String) row[1], (String) row[2], toDouble(row[3]), toDouble(row[4]),
+                        (String) row[5], sortedIds));
+                lastTimeEdited = Math.max(lastTimeEdited, ((Number) row[6]).longValue());
+            }
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if more positions are taken by the previous versions of updated locations
+     * than by the current ones, which every search still has to skip, so that the index is better
+     * reloaded
+     */
+    public boolean isFragmented() {
+        lock.readLock().lock();
+        try {
+            return removedCount > positions.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void update(LocationEntry entry) {
+        Integer previous = positions.get(entry.getId());
+        if (previous != null) {
+            if (entries.get(previous).equals(entry)) {
+                return;
+            }
+            names.remove(previous);
+            removedCount++;
+        }
+        int position = names.add(entry.getName(), entry.getAxe());
+        entries.add(entry);
+        positions.put(entry.getId(), position);
+        for (int adminEntityId : entry.getAdminEntityIds()) {
+            PositionList list = byAdminEntity.get(adminEntityId);
+            if (list == null) {
+                list = new PositionList();
+                byAdminEntity.put(adminEntityId, list);
+            }
+            list.add(position);
+        }
+    }
+
+    private static Double toDouble(Object value) {
+        return value == null ? null : ((Number) value).doubleValue();
+    }
+
+    /**
+     * Finds the location which best matches {@code name} among the locations which belong
+     * to all of the given admin entities.
+     *
+     * @return the best match, or {@code null} if no location is similar, or if there
+     * are no admin entities
+     */
+    public LocationEntry match(String name, Collection<Integer> adminEntityIds) {
+        if (adminEntityIds.isEmpty()) {
+            return null;
+        }
+        final int[] required = Ints.toArray(adminEntityIds);
+
+        lock.readLock().lock();
+        try {
+            int position = names.match(name, new NameIndex.Scope() {
+                @Override
+                public boolean contains(int position) {
+                    return entries.get(position).belongsToAll(required);
+                }
+            });
+            return position == -1 ? null : entries.get(position);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches the locations whose name or alternate name contains {@code query}, ignoring case
+     * and diacritics, and which belong to all of the given admin entities.
+     *
+     * <p>Locations whose name starts with the query come first, then those with a word which starts
+     * with it, then the other matches. Locations are in order of name within each group.</p>
+     *
+     * @param query the text to search, or {@code null} to search all locations
+     * @param statusId if not {@code null}, only locations with this workflow status are searched
+     */
+    public SearchResult search(String query, Collection<Integer> adminEntityIds, String statusId,
+                               int offset, int limit) {
+        String normalizedQuery = query == null ? "" : NameIndex.normalize(query);
+
+        lock.readLock().lock();
+        try {
+            int[] candidates = null;
+            if (!normalizedQuery.isEmpty()) {
+                candidates = names.candidatesContaining(normalizedQuery);
+            }
+
+            int[] required = new int[0];
+            if (adminEntityIds != null && !adminEntityIds.isEmpty()) {
+                required = Ints.toArray(adminEntityIds);
+                PositionList smallest = null;
+                for (int adminEntityId : required) {
+                    PositionList list = byAdminEntity.get(adminEntityId);
+                    if (list == null) {
+                        return new SearchResult(Lists.<LocationEntry>newArrayList(), 0);
+                    }
+                    if (smallest == null || list.size() < smallest.size()) {
+                        smallest = list;
+                    }
+                }
+                candidates = candidates == null ? smallest.toArray() : smallest.intersect(candidates);
+            }
+
+            // keep the best offset + limit matches
+            int capacity = offset + limit;
+            PriorityQueue<SearchMatch> best = new PriorityQueue<>(Math.max(1, capacity), Collections.reverseOrder());
+            int count = 0;
+            int candidateCount = candidates == null ? names.size() : candidates.length;
+            for (int i = 0; i != candidateCount; ++i) {
+                int position = candidates == null ? i : candidates[i];
+                LocationEntry entry = entries.get(position);
+                if (names.isRemoved(position) ||
+                    (statusId != null && !statusId.equals(entry.getWorkflowStatusId())) ||
+                    !entry.belongsToAll(required)) {
+                    continue;
+                }
+                int rank = rank(position, normalizedQuery);
+                if (rank == -1) {
+                    continue;
+                }
+                count++;
+                if (capacity > 0) {
+                    best.add(new SearchMatch(rank, names.getNormalizedName(position), entry));
+                    if (best.size() > capacity) {
+                        best.poll();
+                    }
+                }
+            }
+
+            List<SearchMatch> matches = Lists.newArrayList(best);
+            Collections.sort(matches);
+            List<LocationEntry> page = Lists.newArrayList();
+            for (int i = offset; i < matches.size(); ++i) {
+                page.add(matches.get(i).entry);
+            }
+            return new SearchResult(page, count);
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the rank of the name at this position for the query, or -1 if it does not match
+     */
+    private int rank(int position, String normalizedQuery) {
+        if (normalizedQuery.isEmpty()) {
+            return 0;
+        }
+        String name = names.getNormalizedName(position);
+        if (name.startsWith(normalizedQuery)) {
+            return 0;
+        } else if (name.contains(" " + normalizedQuery)) {
+            return 1;
+        } else if (name.contains(normalizedQuery)) {
+            return 2;
+        }
+        String alternateName = names.getNormalizedAlternateName(position);
+        if (alternateName != null && alternateName.contains(normalizedQuery)) {
+            return 3;
+        }
+        return -1;
+    }
+
+    public static class SearchResult {
+        private final List<LocationEntry> locations;
+        private final int totalCount;
+
+        SearchResult(List<LocationEntry> locations, int totalCount) {
+            this.locations = locations;
+            this.totalCount = totalCount;
+        }
+
+        /**
+         * @return the requested page of matching locations
+         */
+        public List<LocationEntry> getLocations() {
+            return locations;
+        }
+
+        public int getTotalCount() {
+            return totalCount;
+        }
+    }
+
+    private static class SearchMatch implements Comparable<SearchMatch> {
+        private final int rank;
+        private final String normalizedName;
+        private final LocationEntry entry;
+
+        SearchMatch(int rank, String normalizedName, LocationEntry entry) {
+            this.rank = rank;
+            this.normalizedName = normalizedName;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(SearchMatch other) {
+            if (rank != other.rank) {
+                return Integer.compare(rank, other.rank);
+            }
+            int byName = normalizedName.compareTo(other.normalizedName);
+            if (byName != 0) {
+                return byName;
+            }
+            return Integer.compare(entry.getId(), other.entry.getId());
+        }
+    }
+
+    public static class LocationEntry {
+        private final int id;
+        private final String name;
+        private final String axe;
+        private final Double latitude;
+        private final Double longitude;
+        private final String workflowStatusId;
+        private final int[] adminEntityIds;
+
+        LocationEntry(int id, String name, String axe, Double latitude, Double longitude,
+                      String workflowStatusId, int[] adminEntityIds) {
+            this.id = id;
+            this.name = name;
+            this.axe = axe;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.workflowStatusId = workflowStatusId;
+            this.adminEntityIds = adminEntityIds;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the alternate name of the location, or {@code null}
+         */
+        public String getAxe() {
+            return axe;
+        }
+
+        public String getWorkflowStatusId() {
+            return workflowStatusId;
+        }
+
+        public Double getLatitude() {
+            return latitude;
+        }
+
+        public Double getLongitude() {
+            return longitude;
+        }
+
+        /**
+         * @return the ids of the admin entities of the location, in ascending order
+         */
+        public int[] getAdminEntityIds() {
+            return adminEntityIds;
+        }
+
+        boolean belongsToAll(int[] entityIds) {
+            for (int entityId : entityIds) {
+                if (Arrays.binarySearch(adminEntityIds, entityId) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof LocationEntry)) {
+                return false;
+            }
+            LocationEntry other = (LocationEntry) o;
+            return id == other.id &&
+                   name.equals(other.name) &&
+                   Objects.equal(axe, other.axe) &&
+                   Objects.equal(workflowStatusId, other.workflowStatusId) &&
+                   Objects.equal(latitude, other.latitude) &&
+                   Objects.equal(longitude, other.longitude) &&
+                   Arrays.equals(adminEntityIds, other.adminEntityIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+}
@@ -34,4 +34,9 @@ public class MysqlGeometryProvider implements AdminGeometryProvider {
         return resultList;
     }
 
+    @Override
+    public List<AdminGeo> getGeometries(int adminLevelId, int zoom) {
+        return getGeometries(adminLevelId);
+    }
+
 }
@@ -0,0 +1,273 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.activityinfo.server.util.Jaro;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of place names for approximate matching.
+ *
+ * <p>Names are looked up first by their normalized form: lower case, without diacritics or
+ * punctuation. If there is no exact match, the names which share at least one trigram with
+ * the normalized name are scored with {@link Jaro}, and the best one is returned.</p>
+ *
+ * <p>The normalized names, and optional alternate names, can also be searched by substring: the
+ * names which contain a substring of at least three characters are among the names which have
+ * all its trigrams.</p>
+ *
+ * <p>Names are identified by their position in the index, in order of addition. Removed names keep
+ * their position. The index is not thread-safe.</p>
+ */
+public class NameIndex {
+
+    /**
+     * Limits the candidates for a match to names in a subset of the index
+     */
+    public interface Scope {
+        boolean contains(int position);
+    }
+
+    public static final Scope ALL = new Scope() {
+        @Override
+        public boolean contains(int position) {
+            return true;
+        }
+    };
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final Jaro jaro = new Jaro();
+
+    private String[] names = new String[16];
+    private String[] normalizedNames = new String[16];
+    private String[] normalizedAlternateNames = new String[16];
+    private int size;
+    private final BitSet removed = new BitSet();
+
+    private final Map<String, PositionList> byNormalizedName = Maps.newHashMap();
+    private final Map<String, PositionList> trigrams = Maps.newHashMap();
+
+    /**
+     * @return the position of the added name
+     */
+    public int add(String name) {
+        return add(name, null);
+    }
+
+    /**
+     * @param alternateName another name which can be searched, but is not matched
+     * @return the position of the added name
+     */
+    public int add(String name, String alternateName) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            normalizedNames = Arrays.copyOf(normalizedNames, size * 2);
+            normalizedAlternateNames = Arrays.copyOf(normalizedAlternateNames, size * 2);
+        }
+        int position = size++;
+        String normalized = normalize(name);
+        names[position] = name;
+        normalizedNames[position] = normalized;
+
+        Set<String> nameTrigrams = trigrams(normalized);
+        if (alternateName != null) {
+            normalizedAlternateNames[position] = normalize(alternateName);
+            nameTrigrams.addAll(trigrams(normalizedAlternateNames[position]));
+        }
+
+        positions(byNormalizedName, normalized).add(position);
+        for (String trigram : nameTrigrams) {
+            positions(trigrams, trigram).add(position);
+        }
+        return position;
+    }
+
+    public void remove(int position) {
+        removed.set(position);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getName(int position) {
+        return names[position];
+    }
+
+    public String getNormalizedName(int position) {
+        return normalizedNames[position];
+    }
+
+    /**
+     * @return the normalized alternate name, or {@code null} if there is none
+     */
+    public String getNormalizedAlternateName(int position) {
+        return normalizedAlternateNames[position];
+    }
+
+    public boolean isRemoved(int position) {
+        return removed.get(position);
+    }
+
+    /**
+     * Finds the name in scope which best matches {@code name}.
+     *
+     * @return the position of the best match, or -1 if no name in scope is similar at all
+     */
+    public int match(String name, Scope scope) {
+        String normalized = normalize(name);
+
+        PositionList exact = byNormalizedName.get(normalized);
+        if (exact != null) {
+            for (int i = 0; i != exact.size(); ++i) {
+                if (accept(exact.get(i), scope)) {
+                    return exact.get(i);
+                }
+            }
+        }
+
+        String lowerCaseName = name.toLowerCase();
+        Set<Integer> scored = Sets.newHashSet();
+        int bestMatch = -1;
+        float bestScore = 0;
+        for (String trigram : trigrams(normalized)) {
+            PositionList postings = trigrams.get(trigram);
+            if (postings != null) {
+                for (int i = 0; i != postings.size(); ++i) {
+                    int position = postings.get(i);
+                    if (accept(position, scope) && scored.add(position)) {
+                        float score = similarity(lowerCaseName, position);
+                        if (score > bestScore) {
+                            bestScore = score;
+                            bestMatch = position;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (scored.isEmpty()) {
+            // nothing in common with the indexed names, though they may still be similar
+            for (int position = 0; position != size; ++position) {
+                if (accept(position, scope)) {
+                    float score = similarity(lowerCaseName, position);
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestMatch = position;
+                    }
+                }
+            }
+        }
+        return bestMatch;
+    }
+
+    /**
+     * Finds the names, or alternate names, which may contain a normalized substring.
+     * The candidates must still be checked, and may include removed names.
+     *
+     * @return the candidate positions in ascending order, or {@code null} if the substring
+     * is too short to use the index
+     */
+    public int[] candidatesContaining(String normalizedSubstring) {
+        if (normalizedSubstring.length() < 3) {
+            return null;
+        }
+        List<PositionList> lists = Lists.newArrayList();
+        for (int i = 0; i + 3 <= normalizedSubstring.length(); ++i) {
+            PositionList postings = trigrams.get(normalizedSubstring.substring(i, i + 3));
+            if (postings == null) {
+                return new int[0];
+            }
+            lists.add(postings);
+        }
+
+        // start with the rarest trigram
+        Collections.sort(lists, new Comparator<PositionList>() {
+            @Override
+            public int compare(PositionList a, PositionList b) {
+                return Integer.compare(a.size(), b.size());
+            }
+        });
+        int[] candidates = lists.get(0).toArray();
+        for (int i = 1; i < lists.size() && candidates.length > 0; ++i) {
+            candidates = lists.get(i).intersect(candidates);
+        }
+        return candidates;
+    }
+
+    private boolean accept(int position, Scope scope) {
+        return !removed.get(position) && scope.contains(position);
+    }
+
+    private float similarity(String lowerCaseName, int position) {
+        return jaro.getSimilarity(lowerCaseName, names[position].toLowerCase());
+    }
+
+    /**
+     * @return the name in lower case, without diacritics, and with punctuation
+     * and runs of whitespace replaced by a single space
+     */
+    public static String normalize(String name) {
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        String stripped = COMBINING_MARKS.matcher(decomposed).replaceAll("");
+        return SEPARATORS.matcher(stripped.toLowerCase()).replaceAll(" ").trim();
+    }
+
+    /**
+     * @return the trigrams of a normalized name, padded with a space at either end
+     * so that short names have at least one trigram
+     */
+    public static Set<String> trigrams(String normalized) {
+        Set<String> trigrams = Sets.newHashSet();
+        if (!normalized.isEmpty()) {
+            String padded = " " + normalized + " ";
+            for (int i = 0; i + 3 <= padded.length(); ++i) {
+                trigrams.add(padded.substring(i, i + 3));
+            }
+        }
+        return trigrams;
+    }
+
+    private static PositionList positions(Map<String, PositionList> map, String key) {
+        PositionList positions = map.get(key);
+        if (positions == null) {
+            positions = new PositionList();
+            map.put(key, positions);
+        }
+        return positions;
+    }
+}
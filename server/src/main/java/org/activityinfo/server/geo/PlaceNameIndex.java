@@ -0,0 +1,206 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import org.activityinfo.legacy.shared.command.CreateLocation;
+import org.activityinfo.server.endpoint.gwtrpc.RemoteExecutionContext;
+import org.activityinfo.server.event.CommandEvent;
+import org.activityinfo.server.event.CommandEventListener;
+import org.activityinfo.server.event.ServerEventBus;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.List;
+
+/**
+ * Caches the names of admin entities and locations, so that they can be matched without
+ * loading the entities and their collections into the session.
+ *
+ * <p>Admin levels and location types are indexed on first use, and the least recently used
+ * are dropped beyond {@link #MAX_ADMIN_LEVELS} and {@link #MAX_LOCATION_TYPES}. An admin level
+ * is reloaded when its version changes, which it does whenever its entities are updated.</p>
+ *
+ * <p>Location types are read in a transaction of their own, so that the shared index only
+ * holds committed locations. They are refreshed incrementally once a command which creates or
+ * updates a location has committed, and at most {@link #REFRESH_INTERVAL_MILLIS} after a change
+ * made by other means, such as another server. As the incremental refresh relies on
+ * {@code timeEdited}, they are also reloaded in full every {@link #RELOAD_INTERVAL_MILLIS}, which
+ * picks up the locations committed too long after they were stamped, or sooner once most of
+ * their positions belong to previous versions of updated locations.</p>
+ */
+@Singleton
+public class PlaceNameIndex extends CommandEventListener {
+
+    public static final long REFRESH_INTERVAL_MILLIS = 5000;
+    public static final long RELOAD_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    public static final int MAX_ADMIN_LEVELS = 500;
+    public static final int MAX_LOCATION_TYPES = 200;
+
+    private final Provider<EntityManager> entityManager;
+    private final EntityManagerFactory emf;
+
+    private final Cache<Integer, AdminLevelIndex> levels = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ADMIN_LEVELS)
+            .build();
+
+    private final LoadingCache<Integer, CachedLocationType> locationTypes = CacheBuilder.newBuilder()
+            .maximumSize(MAX_LOCATION_TYPES)
+            .build(new CacheLoader<Integer, CachedLocationType>() {
+                @Override
+                public CachedLocationType load(Integer locationTypeId) {
+                    return new CachedLocationType(locationTypeId);
+                }
+            });
+
+    @Inject @SuppressWarnings("unchecked")
+    public PlaceNameIndex(ServerEventBus serverEventBus, Provider<EntityManager> entityManager,
+                          EntityManagerFactory emf) {
+        super(serverEventBus, CreateLocation.class);
+        this.entityManager = entityManager;
+        this.emf = emf;
+    }
+
+    /**
+     * @return the index of the current version of the admin level, or {@code null}
+     * if there is no such level
+     */
+    public AdminLevelIndex getAdminLevel(int levelId) {
+        EntityManager em = entityManager.get();
+        List<Object[]> rows = em.createNativeQuery(
+                "SELECT ParentId, version FROM adminlevel WHERE AdminLevelId = ?1")
+                .setParameter(1, levelId)
+                .getResultList();
+
+        if (rows.isEmpty()) {
+            return null;
+        }
+        Integer parentLevelId = rows.get(0)[0] == null ? null : ((Number) rows.get(0)[0]).intValue();
+        int version = ((Number) rows.get(0)[1]).intValue();
+
+        AdminLevelIndex index = levels.getIfPresent(levelId);
+        if (index == null || index.getVersion() != version) {
+            index = AdminLevelIndex.load(em, levelId, parentLevelId, version);
+            levels.put(levelId, index);
+        }
+        return index;
+    }
+
+    public LocationTypeIndex getLocationType(int locationTypeId) {
+        return locationTypes.getUnchecked(locationTypeId).get();
+    }
+
+    /**
+     * Refreshes the index of the location type on its next use, after its locations
+     * have been changed by other means than a command.
+     */
+    public void invalidateLocationType(int locationTypeId) {
+        CachedLocationType cached = locationTypes.getIfPresent(locationTypeId);
+        if (cached != null) {
+            cached.dirty = true;
+        }
+    }
+
+    @Override
+    protected void onEvent(CommandEvent event) {
+        final CreateLocation command = (CreateLocation) event.getCommand();
+        if (RemoteExecutionContext.inProgress()) {
+            // refreshing before the command has committed would not see its location
+            RemoteExecutionContext.current().afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    invalidate(command);
+                }
+            });
+        } else {
+            invalidate(command);
+        }
+    }
+
+    private void invalidate(CreateLocation command) {
+        if (command.getProperties().get("locationTypeId") instanceof Integer) {
+            invalidateLocationType(command.getLocationTypeId());
+        } else {
+            // an update of an existing location, whose type we don't know
+            for (CachedLocationType cached : locationTypes.asMap().values()) {
+                cached.dirty = true;
+            }
+        }
+    }
+
+    private void refresh(LocationTypeIndex index) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            index.refresh(em);
+            em.getTransaction().commit();
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    private class CachedLocationType {
+        private final int locationTypeId;
+        private LocationTypeIndex index;
+        private volatile boolean dirty;
+        private long lastRefresh;
+        private long lastReload;
+
+        CachedLocationType(int locationTypeId) {
+            this.locationTypeId = locationTypeId;
+        }
+
+        synchronized LocationTypeIndex get() {
+            long now = System.currentTimeMillis();
+            if (index == null || now - lastReload > RELOAD_INTERVAL_MILLIS || index.isFragmented()) {
+                LocationTypeIndex reloaded = new LocationTypeIndex(locationTypeId);
+                dirty = false;
+                refresh(reloaded);
+                index = reloaded;
+                lastReload = now;
+                lastRefresh = now;
+
+            } else if (dirty || now - lastRefresh > REFRESH_INTERVAL_MILLIS) {
+                dirty = false;
+                try {
+                    refresh(index);
+                } catch (RuntimeException e) {
+                    dirty = true;
+                    throw e;
+                }
+                lastRefresh = now;
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * Growable list of positions in an index, in the order they were added
+ */
+class PositionList {
+    private int[] positions = new int[2];
+    private int size;
+
+    void add(int position) {
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+        positions[size++] = position;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int i) {
+        return positions[i];
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(positions, size);
+    }
+
+    /**
+     * @return the positions in both {@code sorted} and this list, which must also be in ascending order
+     */
+    int[] intersect(int[] sorted) {
+        int[] result = new int[Math.min(size, sorted.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size && j < sorted.length) {
+            if (positions[i] < sorted[j]) {
+                i++;
+            } else if (positions[i] > sorted[j]) {
+                j++;
+            } else {
+                result[count++] = sorted[j];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
@@ -0,0 +1,210 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the geometry of each admin level simplified for the zoom level at which it is rendered.
+ *
+ * <p>The geometry is simplified with a tolerance of half a pixel at the requested zoom level,
+ * preserving the topology of each polygon, and kept as WKB so that a country-wide level takes a
+ * fraction of the memory of the JTS objects. The full geometry is only read to simplify it for
+ * {@link #MAX_SIMPLIFIED_ZOOM}; lower zoom levels are simplified from that. The least recently
+ * used levels are evicted once the cache holds more than {@link #MAX_CACHED_BYTES} of WKB.</p>
+ *
+ * <p>Levels are cached by their version, which is incremented whenever their entities are
+ * updated, so that updated geometry is drawn as soon as it is committed, on every server.</p>
+ */
+@Singleton
+public class SimplifiedGeometryCache implements AdminGeometryProvider {
+
+    private static final Logger LOGGER = Logger.getLogger(SimplifiedGeometryCache.class.getName());
+
+    /**
+     * Above this zoom level, the geometry is close enough to full resolution that it is
+     * not worth simplifying.
+     */
+    public static final int MAX_SIMPLIFIED_ZOOM = 12;
+
+    public static final long MAX_CACHED_BYTES = 64L * 1024 * 1024;
+
+    private static final int TILE_SIZE = 256;
+
+    private final AdminGeometryProvider source;
+    private final Provider<EntityManager> entityManager;
+
+    private final LoadingCache<String, CachedLevel> cache;
+
+    @Inject
+    public SimplifiedGeometryCache(MysqlGeometryProvider source, Provider<EntityManager> entityManager) {
+        this((AdminGeometryProvider) source, entityManager);
+    }
+
+    public SimplifiedGeometryCache(AdminGeometryProvider source, Provider<EntityManager> entityManager) {
+        this.source = source;
+        this.entityManager = entityManager;
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumWeight(MAX_CACHED_BYTES)
+                                 .weigher(new Weigher<String, CachedLevel>() {
+                                     @Override
+                                     public int weigh(String key, CachedLevel level) {
+                                         return level.getByteCount();
+                                     }
+                                 })
+                                 .build(new CacheLoader<String, CachedLevel>() {
+                                     @Override
+                                     public CachedLevel load(String key) throws Exception {
+                                         String[] parts = key.split("/");
+                                         return simplify(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                                                 Integer.parseInt(parts[2]));
+                                     }
+                                 });
+    }
+
+    @Override
+    public List<AdminGeo> getGeometries(int adminLevelId) {
+        return source.getGeometries(adminLevelId);
+    }
+
+    @Override
+    public List<AdminGeo> getGeometries(int adminLevelId, int zoom) {
+        if (zoom > MAX_SIMPLIFIED_ZOOM) {
+            return source.getGeometries(adminLevelId);
+        }
+        return get(adminLevelId, queryVersion(adminLevelId), Math.max(0, zoom)).read();
+    }
+
+    /**
+     * @return the current version of the admin level
+     */
+    protected int queryVersion(int adminLevelId) {
+        List<?> versions = entityManager.get()
+                                        .createNativeQuery("SELECT version FROM adminlevel WHERE AdminLevelId = ?1")
+                                        .setParameter(1, adminLevelId)
+                                        .getResultList();
+        return versions.isEmpty() ? 0 : ((Number) versions.get(0)).intValue();
+    }
+
+    private CachedLevel get(int adminLevelId, int version, int zoom) {
+        return cache.getUnchecked(adminLevelId + "/" + version + "/" + zoom);
+    }
+
+    /**
+     * @return the width of half a pixel at the given zoom level, in degrees of longitude
+     */
+    static double tolerance(int zoom) {
+        return 360d / (TILE_SIZE * Math.pow(2, zoom)) / 2d;
+    }
+
+    private CachedLevel simplify(int adminLevelId, int version, int zoom) {
+        List<AdminGeo> geometries;
+        if (zoom == MAX_SIMPLIFIED_ZOOM) {
+            geometries = source.getGeometries(adminLevelId);
+        } else {
+            // simplifying the most detailed level again is a fraction of the work of reading
+            // and simplifying the full geometry, and only adds a fraction of its tolerance
+            geometries = get(adminLevelId, version, MAX_SIMPLIFIED_ZOOM).read();
+        }
+        double tolerance = tolerance(zoom);
+
+        WKBWriter writer = new WKBWriter();
+        int[] ids = new int[geometries.size()];
+        byte[][] wkb = new byte[geometries.size()][];
+        long sourcePoints = 0;
+        long simplifiedPoints = 0;
+
+        for (int i = 0; i != geometries.size(); ++i) {
+            Geometry geometry = geometries.get(i).getGeometry();
+            Geometry simplified = simplify(geometry, tolerance);
+            sourcePoints += geometry.getNumPoints();
+            simplifiedPoints += simplified.getNumPoints();
+
+            ids[i] = geometries.get(i).getId();
+            wkb[i] = writer.write(simplified);
+        }
+
+        LOGGER.info("Simplified version " + version + " of admin level " + adminLevelId + " for zoom " + zoom +
+                    ": " + sourcePoints + " points reduced to " + simplifiedPoints);
+
+        return new CachedLevel(ids, wkb);
+    }
+
+    private Geometry simplify(Geometry geometry, double tolerance) {
+        try {
+            return TopologyPreservingSimplifier.simplify(geometry, tolerance);
+        } catch (RuntimeException e) {
+            // invalid geometry: better to draw it at full resolution than not at all
+            LOGGER.log(Level.WARNING, "Could not simplify geometry, using full resolution", e);
+            return geometry;
+        }
+    }
+
+    private static class CachedLevel {
+        private final int[] ids;
+        private final byte[][] wkb;
+
+        CachedLevel(int[] ids, byte[][] wkb) {
+            this.ids = ids;
+            this.wkb = wkb;
+        }
+
+        int getByteCount() {
+            int count = ids.length * 4;
+            for (byte[] bytes : wkb) {
+                count += bytes.length;
+            }
+            return count;
+        }
+
+        List<AdminGeo> read() {
+            WKBReader reader = new WKBReader();
+            List<AdminGeo> geometries = Lists.newArrayList();
+            for (int i = 0; i != ids.length; ++i) {
+                try {
+                    geometries.add(new AdminGeo(ids[i], reader.read(wkb[i])));
+                } catch (ParseException e) {
+                    throw new IllegalStateException("Could not read cached geometry of admin entity " + ids[i], e);
+                }
+            }
+            return geometries;
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package org.activityinfo.server.importer;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.inject.Provider;
+import org.activityinfo.core.client.form.tree.AsyncFormTreeBuilder;
+import org.activityinfo.core.server.type.converter.JvmConverterFactory;
+import org.activityinfo.core.shared.form.FormInstance;
+import org.activityinfo.core.shared.importing.model.ImportModel;
+import org.activityinfo.core.shared.importing.model.MapExistingAction;
+import org.activityinfo.core.shared.importing.match.ColumnMappingGuesser;
+import org.activityinfo.core.shared.importing.source.SourceColumn;
+import org.activityinfo.core.shared.importing.source.SourceRow;
+import org.activityinfo.core.shared.importing.strategy.ColumnAccessor;
+import org.activityinfo.core.shared.importing.strategy.FieldImportStrategies;
+import org.activityinfo.core.shared.importing.strategy.FieldImportStrategy;
+import org.activityinfo.core.shared.importing.strategy.FieldImporter;
+import org.activityinfo.core.shared.importing.strategy.ImportTarget;
+import org.activityinfo.core.shared.importing.strategy.TargetSiteId;
+import org.activityinfo.core.shared.importing.validation.ValidatedRow;
+import org.activityinfo.core.shared.importing.validation.ValidationResult;
+import org.activityinfo.legacy.shared.adapter.CuidAdapter;
+import org.activityinfo.legacy.shared.adapter.ResourceLocatorAdaptor;
+import org.activityinfo.legacy.shared.adapter.SitePersister;
+import org.activityinfo.legacy.shared.adapter.bindings.SiteBinding;
+import org.activityinfo.legacy.shared.adapter.bindings.SiteBindingFactory;
+import org.activityinfo.legacy.shared.command.BatchCommand;
+import org.activityinfo.legacy.shared.command.Command;
+import org.activityinfo.legacy.shared.command.GetAdminEntities;
+import org.activityinfo.legacy.shared.command.GetSchema;
+import org.activityinfo.legacy.shared.model.AdminEntityDTO;
+import org.activityinfo.model.formTree.FormTree;
+import org.activityinfo.model.resource.ResourceId;
+import org.activityinfo.promise.Promise;
+import org.activityinfo.server.command.DispatcherAdapter;
+import org.activityinfo.server.command.DispatcherSync;
+import org.activityinfo.ui.client.component.importDialog.data.PastedRow;
+import org.activityinfo.ui.client.component.importDialog.data.PastedTable;
+
+import javax.persistence.EntityManager;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Imports a table of sites into an activity on the server.
+ *
+ * <p>The table is parsed in chunks of {@link #CHUNK_SIZE} rows. Each chunk is validated and matched
+ * against the reference instances on a fork-join pool while the next chunk is being parsed. Once
+ * all the rows are validated, the valid rows are committed in batches of {@link #COMMIT_BATCH_SIZE}
+ * sites, each batch in its own transaction.</p>
+ *
+ * <p>If a batch fails, it is rolled back and its sites are committed one by one instead, so that only
+ * the failing rows are skipped. Those rows are recorded in the progress of the import. If the import
+ * itself fails or is interrupted, it can be run again: it then continues with the first batch which
+ * was not committed.</p>
+ */
+public class BulkImport {
+
+    private static final Logger LOGGER = Logger.getLogger(BulkImport.class.getName());
+
+    public enum Status {
+        PENDING,
+        PREPARING,
+        VALIDATING,
+        COMMITTING,
+        COMPLETED,
+        FAILED
+    }
+
+    public static final int CHUNK_SIZE = 1000;
+
+    public static final int COMMIT_BATCH_SIZE = 200;
+
+    /**
+     * Chunks are split until each task validates at most this number of rows
+     */
+    static final int TASK_SIZE = 100;
+
+    private final String id;
+    private final int userId;
+    private final DispatcherSync dispatcher;
+    private final Provider<EntityManager> entityManager;
+    private final ForkJoinPool pool;
+    private final ResourceId formClassId;
+    private final String text;
+    private final Map<String, String> columnMappings;
+
+    private final AtomicReference<Status> status = new AtomicReference<>(Status.PENDING);
+    private volatile String error;
+
+    private final AtomicInteger parsedRows = new AtomicInteger();
+    private final AtomicInteger validatedRows = new AtomicInteger();
+    private final AtomicInteger validRows = new AtomicInteger();
+    private volatile int committedRows;
+
+    /**
+     * The numbers of the valid rows which could not be committed
+     */
+    private final List<Integer> failedRows = Collections.synchronizedList(Lists.<Integer>newArrayList());
+
+    /**
+     * The instances built from the valid rows, in the order of the table, once all rows are validated
+     */
+    private List<FormInstance> instances;
+
+    /**
+     * The number of the row of each instance
+     */
+    private List<Integer> instanceRows;
+
+    /**
+     * The index of the first instance which has not been committed or recorded as failed
+     */
+    private int nextInstance;
+
+    /**
+     * @param columnMappings the label of the target field of each column, by column header. If empty,
+     *                       the mapping is guessed from the headers.
+     */
+    public BulkImport(String id, int userId, DispatcherSync dispatcher, Provider<EntityManager> entityManager,
+                      ForkJoinPool pool, ResourceId formClassId, String text, Map<String, String> columnMappings) {
+        this.id = id;
+        this.userId = userId;
+        this.dispatcher = dispatcher;
+        this.entityManager = entityManager;
+        this.pool = pool;
+        this.formClassId = formClassId;
+        this.text = text;
+        this.columnMappings = columnMappings;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public Status getStatus() {
+        return status.get();
+    }
+
+    public BulkImportProgress getProgress() {
+        return new BulkImportProgress(id, status.get(), parsedRows.get(), validatedRows.get(), validRows.get(),
+                committedRows, Lists.newArrayList(failedRows), error);
+    }
+
+    /**
+     * Queues a failed import to be run again.
+     *
+     * @return false if the import has not failed, or has already been queued again
+     */
+    public boolean requeue() {
+        return status.compareAndSet(Status.FAILED, Status.PENDING);
+    }
+
+    /**
+     * Runs the import on the calling thread, or continues it after a failure. The user's session
+     * must be set up by the caller.
+     */
+    public synchronized void run() {
+        error = null;
+        try {
+            if (instances == null) {
+                validate();
+            }
+            commit();
+            status.set(Status.COMPLETED);
+
+            LOGGER.info("Bulk import " + id + " completed: " + committedRows + " sites imported from " +
+                        parsedRows.get() + " rows, " + failedRows.size() + " rows failed");
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Bulk import " + id + " failed", e);
+            error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+            status.set(Status.FAILED);
+        }
+    }
+
+    private void validate() throws Exception {
+        status.set(Status.PREPARING);
+        parsedRows.set(0);
+        validatedRows.set(0);
+        validRows.set(0);
+
+        if (formClassId.getDomain() != CuidAdapter.ACTIVITY_DOMAIN) {
+            throw new IllegalArgumentException("Only activities can be imported, not " + formClassId);
+        }
+
+        ResourceLocatorAdaptor locator = new ResourceLocatorAdaptor(new DispatcherAdapter(dispatcher));
+        FormTree formTree = resolve(new AsyncFormTreeBuilder(locator).apply(formClassId));
+
+        PastedTable source = new PastedTable(text);
+        ImportModel model = new ImportModel(formTree);
+        model.setSource(source);
+
+        FieldImportStrategies strategies = FieldImportStrategies.get(JvmConverterFactory.get());
+        List<ImportTarget> targets = Lists.newArrayList();
+        for (FormTree.Node rootField : formTree.getRootFields()) {
+            targets.addAll(strategies.forField(rootField).getImportSites(rootField));
+        }
+        mapColumns(model, targets);
+
+        List<FieldImporter> importers = Lists.newArrayList();
+        for (FormTree.Node rootField : formTree.getRootFields()) {
+            Map<TargetSiteId, ColumnAccessor> mappings = model.getMappedColumns(rootField.getFieldId());
+            if (!mappings.isEmpty()) {
+                FieldImportStrategy strategy = strategies.forField(rootField);
+                importers.add(strategy.createImporter(rootField, mappings));
+            }
+        }
+
+        // the importers fetch all the reference instances, whatever the rows
+        for (FieldImporter importer : importers) {
+            resolve(importer.prepare(locator, Collections.<SourceRow>emptyList()));
+        }
+
+        status.set(Status.VALIDATING);
+
+        List<ValidateTask> chunks = Lists.newArrayList();
+        List<PastedRow> rows;
+        while (!(rows = source.parseNextRows(CHUNK_SIZE)).isEmpty()) {
+            parsedRows.addAndGet(rows.size());
+            ValidateTask chunk = new ValidateTask(importers, rows, new FormInstance[rows.size()], 0, rows.size());
+            pool.execute(chunk);
+            chunks.add(chunk);
+        }
+
+        List<FormInstance> valid = Lists.newArrayList();
+        List<Integer> validRowNumbers = Lists.newArrayList();
+        for (ValidateTask chunk : chunks) {
+            chunk.join();
+            for (int i = 0; i != chunk.results.length; ++i) {
+                if (chunk.results[i] != null) {
+                    valid.add(chunk.results[i]);
+                    validRowNumbers.add(chunk.rows.get(i).getRowIndex());
+                }
+            }
+        }
+        instances = valid;
+        instanceRows = validRowNumbers;
+        nextInstance = 0;
+        committedRows = 0;
+        failedRows.clear();
+    }
+
+    private void mapColumns(ImportModel model, List<ImportTarget> targets) {
+        if (columnMappings.isEmpty()) {
+            new ColumnMappingGuesser(model, targets).guess();
+            return;
+        }
+        for (Map.Entry<String, String> mapping : columnMappings.entrySet()) {
+            model.setColumnAction(findColumn(model, mapping.getKey()).getIndex(),
+                    new MapExistingAction(findTarget(targets, mapping.getValue())));
+        }
+    }
+
+    private static SourceColumn findColumn(ImportModel model, String header) {
+        for (SourceColumn column : model.getSource().getColumns()) {
+            if (column.getHeader().equalsIgnoreCase(header)) {
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("No column with header '" + header + "'");
+    }
+
+    private static ImportTarget findTarget(List<ImportTarget> targets, String label) {
+        for (ImportTarget target : targets) {
+            if (target.getLabel().equalsIgnoreCase(label)) {
+                return target;
+            }
+        }
+        throw new IllegalArgumentException("No field with label '" + label + "'");
+    }
+
+    /**
+     * Builds the instance for the row, or returns {@code null} if the row is not valid.
+     */
+    private FormInstance validate(List<FieldImporter> importers, SourceRow row) {
+        List<ValidationResult> results = Lists.newArrayList();
+        for (FieldImporter importer : importers) {
+            importer.validateInstance(row, results);
+        }
+        if (!new ValidatedRow(row, results).isValid()) {
+            return null;
+        }
+        FormInstance instance = new FormInstance(CuidAdapter.newLegacyFormInstanceId(formClassId), formClassId);
+        for (FieldImporter importer : importers) {
+            importer.updateInstance(row, instance);
+        }
+        validRows.incrementAndGet();
+        return instance;
+    }
+
+    private void commit() throws Exception {
+        status.set(Status.COMMITTING);
+
+        int activityId = CuidAdapter.getLegacyIdFromCuid(formClassId);
+        SiteBinding binding = new SiteBindingFactory(activityId).apply(dispatcher.execute(new GetSchema()));
+        SitePersister persister = new SitePersister(new DispatcherAdapter(dispatcher));
+
+        while (nextInstance < instances.size()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Interrupted after " + committedRows + " sites");
+            }
+            int end = Math.min(nextInstance + COMMIT_BATCH_SIZE, instances.size());
+            List<FormInstance> batchInstances = instances.subList(nextInstance, end);
+            Map<Integer, AdminEntityDTO> adminEntities = fetchAdminEntities(binding, batchInstances);
+
+            try {
+                BatchCommand batch = new BatchCommand();
+                for (FormInstance instance : batchInstances) {
+                    batch.add(persister.createCommand(binding, instance, adminEntities));
+                }
+                // executed as a single command, so the batch is committed or rolled back as a whole
+                dispatcher.execute(batch);
+                committedRows += batchInstances.size();
+
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Bulk import " + id + ": batch of rows " + instanceRows.get(nextInstance) +
+                                          " to " + instanceRows.get(end - 1) + " failed, committing them one by one", e);
+                commitEach(persister, binding, adminEntities, nextInstance, end);
+            }
+            nextInstance = end;
+
+            // the committed entities are not needed any more
+            entityManager.get().clear();
+        }
+    }
+
+    /**
+     * Commits the sites of a failed batch one by one, recording the rows which fail again.
+     */
+    private void commitEach(SitePersister persister, SiteBinding binding, Map<Integer, AdminEntityDTO> adminEntities,
+                            int start, int end) {
+        for (int i = start; i != end; ++i) {
+            try {
+                Command command = persister.createCommand(binding, instances.get(i), adminEntities);
+                dispatcher.execute(command);
+                committedRows++;
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Bulk import " + id + ": row " + instanceRows.get(i) + " failed", e);
+                failedRows.add(instanceRows.get(i));
+            }
+        }
+    }
+
+    /**
+     * Fetches the admin entities of the sites, and their parents, with one query per admin level,
+     * if the sites are located by admin entity.
+     */
+    private Map<Integer, AdminEntityDTO> fetchAdminEntities(SiteBinding binding, List<FormInstance> batch) {
+        Map<Integer, AdminEntityDTO> entities = Maps.newHashMap();
+        if (!binding.getLocationType().isAdminLevel()) {
+            return entities;
+        }
+        Set<Integer> entityIds = Sets.newHashSet();
+        for (FormInstance instance : batch) {
+            entityIds.add(binding.getAdminEntityId(instance));
+        }
+        // the entities of the sites are all on the bound level, so their names are not qualified by level
+        GetAdminEntities query = new GetAdminEntities(binding.getLocationType().getBoundAdminLevelId());
+        while (!entityIds.isEmpty()) {
+            query.setEntityIds(entityIds);
+            Set<Integer> parentIds = Sets.newHashSet();
+            for (AdminEntityDTO entity : dispatcher.execute(query).getData()) {
+                entities.put(entity.getId(), entity);
+                if (entity.getParentId() != null && !entities.containsKey(entity.getParentId())) {
+                    parentIds.add(entity.getParentId());
+                }
+            }
+            entityIds = parentIds;
+            query = new GetAdminEntities();
+        }
+        return entities;
+    }
+
+    /**
+     * Returns the value of a promise which has already been settled by the synchronous dispatcher.
+     */
+    private static <T> T resolve(Promise<T> promise) throws Exception {
+        final Throwable[] failure = new Throwable[1];
+        promise.then(new AsyncCallback<T>() {
+            @Override
+            public void onFailure(Throwable caught) {
+                failure[0] = caught;
+            }
+
+            @Override
+            public void onSuccess(T result) {
+            }
+        });
+        if (failure[0] instanceof Exception) {
+            throw (Exception) failure[0];
+        } else if (failure[0] != null) {
+            throw new IllegalStateException(failure[0]);
+        } else if (promise.getState() != Promise.State.FULFILLED) {
+            throw new IllegalStateException("Expected the promise to be settled");
+        }
+        return promise.get();
+    }
+
+    /**
+     * Validates a range of rows of a chunk, splitting it until it is small enough.
+     */
+    private class ValidateTask extends RecursiveAction {
+        private final List<FieldImporter> importers;
+        private final List<PastedRow> rows;
+        private final FormInstance[] results;
+        private final int from;
+        private final int to;
+
+        ValidateTask(List<FieldImporter> importers, List<PastedRow> rows, FormInstance[] results, int from, int to) {
+            this.importers = importers;
+            this.rows = rows;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TASK_SIZE) {
+                for (int i = from; i != to; ++i) {
+                    results[i] = validate(importers, rows.get(i));
+                }
+                validatedRows.addAndGet(to - from);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ValidateTask(importers, rows, results, from, middle),
+                          new ValidateTask(importers, rows, results, middle, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.activityinfo.server.importer;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.List;
+
+/**
+ * Snapshot of the progress of a {@link BulkImport}
+ */
+public class BulkImportProgress {
+    private final String id;
+    private final BulkImport.Status status;
+    private final int parsedRows;
+    private final int validatedRows;
+    private final int validRows;
+    private final int committedRows;
+    private final List<Integer> failedRows;
+    private final String error;
+
+    public BulkImportProgress(String id, BulkImport.Status status, int parsedRows, int validatedRows,
+                              int validRows, int committedRows, List<Integer> failedRows, String error) {
+        this.id = id;
+        this.status = status;
+        this.parsedRows = parsedRows;
+        this.validatedRows = validatedRows;
+        this.validRows = validRows;
+        this.committedRows = committedRows;
+        this.failedRows = failedRows;
+        this.error = error;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public BulkImport.Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the number of rows parsed so far, excluding the header
+     */
+    public int getParsedRows() {
+        return parsedRows;
+    }
+
+    public int getValidatedRows() {
+        return validatedRows;
+    }
+
+    /**
+     * @return the number of validated rows which will be imported
+     */
+    public int getValidRows() {
+        return validRows;
+    }
+
+    /**
+     * @return the number of sites committed to the database
+     */
+    public int getCommittedRows() {
+        return committedRows;
+    }
+
+    /**
+     * @return the numbers of the valid rows which could not be committed, the first row after the
+     * header being row 1
+     */
+    public List<Integer> getFailedRows() {
+        return failedRows;
+    }
+
+    /**
+     * @return the reason the import failed, or {@code null}
+     */
+    public String getError() {
+        return error;
+    }
+
+    public boolean isResumable() {
+        return status == BulkImport.Status.FAILED;
+    }
+}
@@ -0,0 +1,151 @@
+package org.activityinfo.server.importer;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import org.activityinfo.legacy.shared.auth.AuthenticatedUser;
+import org.activityinfo.model.resource.ResourceId;
+import org.activityinfo.server.authentication.ServerSideAuthProvider;
+import org.activityinfo.server.command.DispatcherSync;
+import org.activityinfo.server.database.hibernate.HibernateSessionScope;
+
+import javax.persistence.EntityManager;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link BulkImport}s in the background and keeps track of them until they are no longer
+ * polled.
+ *
+ * <p>At most {@link #MAX_CONCURRENT_IMPORTS} imports run at a time, each on its own thread with
+ * its own hibernate session. The rows of all imports are validated on a shared fork-join pool.</p>
+ */
+@Singleton
+public class BulkImportService {
+
+    private static final Logger LOGGER = Logger.getLogger(BulkImportService.class.getName());
+
+    public static final int MAX_CONCURRENT_IMPORTS = 2;
+
+    private final Provider<DispatcherSync> dispatcher;
+    private final Provider<EntityManager> entityManager;
+    private final HibernateSessionScope sessionScope;
+    private final ServerSideAuthProvider authProvider;
+
+    private final ExecutorService executor;
+    private final ForkJoinPool pool = new ForkJoinPool();
+
+    private final Cache<String, BulkImport> imports = CacheBuilder.newBuilder()
+                                                                  .expireAfterAccess(1, TimeUnit.DAYS)
+                                                                  .build();
+
+    private final SecureRandom random = new SecureRandom();
+
+    @Inject
+    public BulkImportService(Provider<DispatcherSync> dispatcher,
+                             Provider<EntityManager> entityManager,
+                             HibernateSessionScope sessionScope,
+                             ServerSideAuthProvider authProvider) {
+        this.dispatcher = dispatcher;
+        this.entityManager = entityManager;
+        this.sessionScope = sessionScope;
+        this.authProvider = authProvider;
+        this.executor = Executors.newFixedThreadPool(MAX_CONCURRENT_IMPORTS, new ThreadFactoryBuilder()
+                .setNameFormat("bulk-import-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Queues the import of {@code text} into the given activity.
+     */
+    public BulkImport start(AuthenticatedUser user, ResourceId formClassId, String text,
+                            Map<String, String> columnMappings) {
+        String id = Long.toString(Math.abs(random.nextLong()), 16);
+        BulkImport bulkImport = new BulkImport(id, user.getUserId(), dispatcher.get(), entityManager, pool,
+                formClassId, text, columnMappings);
+        imports.put(id, bulkImport);
+        submit(user, bulkImport);
+        return bulkImport;
+    }
+
+    /**
+     * @return the import started by the user with this id, or {@code null} if there is none
+     */
+    public BulkImport get(AuthenticatedUser user, String id) {
+        BulkImport bulkImport = imports.getIfPresent(id);
+        if (bulkImport == null || bulkImport.getUserId() != user.getUserId()) {
+            return null;
+        }
+        return bulkImport;
+    }
+
+    /**
+     * Queues a failed import to continue from where it failed.
+     *
+     * @return false if the import has not failed
+     */
+    public boolean resume(AuthenticatedUser user, BulkImport bulkImport) {
+        if (!bulkImport.requeue()) {
+            return false;
+        }
+        submit(user, bulkImport);
+        return true;
+    }
+
+    /**
+     * Interrupts the running imports and stops the import threads and the validation pool.
+     * Interrupted imports are left failed.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        pool.shutdownNow();
+        LOGGER.info("Bulk imports shut down");
+    }
+
+    private void submit(final AuthenticatedUser user, final BulkImport bulkImport) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sessionScope.enter();
+                authProvider.set(user);
+                try {
+                    bulkImport.run();
+                } finally {
+                    authProvider.clear();
+                    sessionScope.exit();
+                }
+            }
+        });
+    }
+}
@@ -23,9 +23,9 @@ package org.activityinfo.server.report.generator.map;
  */
 
 import org.activityinfo.server.report.generator.map.cluster.genetic.MarkerGraph;
-import org.activityinfo.server.report.generator.map.cluster.genetic.MarkerGraph.IntersectionCalculator;
+import org.activityinfo.server.report.generator.map.cluster.genetic.MarkerGraph.BoundedIntersectionCalculator;
 
-public class BubbleIntersectionCalculator implements IntersectionCalculator {
+public class BubbleIntersectionCalculator implements BoundedIntersectionCalculator {
     private int radius;
 
     public BubbleIntersectionCalculator(int radius) {
@@ -37,4 +37,9 @@ public class BubbleIntersectionCalculator implements IntersectionCalculator {
         return a.getPoint().distance(b.getPoint()) < radius * 2 &&
                a.getPointValue().getSymbol().equals(b.getPointValue().getSymbol());
     }
+
+    @Override
+    public int getMaxDistance() {
+        return radius * 2;
+    }
 }
\ No newline at end of file
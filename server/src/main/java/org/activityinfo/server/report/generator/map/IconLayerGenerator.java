@@ -36,6 +36,7 @@ import org.activityinfo.server.database.hibernate.entity.Indicator;
 import org.activityinfo.server.report.generator.map.cluster.Cluster;
 import org.activityinfo.server.report.generator.map.cluster.Clusterer;
 import org.activityinfo.server.report.generator.map.cluster.ClustererFactory;
+import org.activityinfo.server.report.generator.map.cluster.genetic.MarkerGraph.BoundedIntersectionCalculator;
 import org.activityinfo.server.report.generator.map.cluster.genetic.MarkerGraph.IntersectionCalculator;
 import org.activityinfo.server.report.generator.map.cluster.genetic.MarkerGraph.Node;
 
@@ -97,11 +98,16 @@ public class IconLayerGenerator extends PointLayerGenerator<IconMapLayer> {
         List<PointValue> points = new ArrayList<PointValue>();
         IconRectCalculator rectCalculator = new IconRectCalculator(icon);
 
-        IntersectionCalculator intersectionCalculator = new IntersectionCalculator() {
+        IntersectionCalculator intersectionCalculator = new BoundedIntersectionCalculator() {
             @Override
             public boolean intersects(Node a, Node b) {
                 return a.getPointValue().getIconRect().intersects(b.getPointValue().getIconRect());
             }
+
+            @Override
+            public int getMaxDistance() {
+                return Math.max(icon.getWidth(), icon.getHeight());
+            }
         };
 
         Clusterer clusterer = ClustererFactory.fromClustering(layer.getClustering(),
@@ -174,7 +174,7 @@ public class PiechartLayerGenerator extends PointLayerGenerator<PiechartMapLayer
         }
     }
 
-    public static class IntersectionCalculator implements MarkerGraph.IntersectionCalculator {
+    public static class IntersectionCalculator implements MarkerGraph.BoundedIntersectionCalculator {
         private int radius;
 
         public IntersectionCalculator(int radius) {
@@ -186,6 +186,11 @@ public class PiechartLayerGenerator extends PointLayerGenerator<PiechartMapLayer
             return a.getPoint().distance(b.getPoint()) < radius * 2 &&
                    a.getPointValue().getSymbol().equals(b.getPointValue().getSymbol());
         }
+
+        @Override
+        public int getMaxDistance() {
+            return radius * 2;
+        }
     }
 
     private void calulateSlices(PointValue pv, SiteDTO site) {
@@ -24,6 +24,9 @@ package org.activityinfo.server.report.generator.map;
 
 public interface TileProvider {
 
+    /**
+     * @return the url of the tile's image, or {@code null} if no image is available
+     */
     String getImageUrl(int zoom, int tileX, int tileY);
 
 }
@@ -93,7 +93,9 @@ public class TiledMap {
             while (y < height) {
 
                 String url = source.getImageUrl(zoom, tileX, tileY);
-                drawer.addTile(url, x, y, TILE_SIZE, TILE_SIZE);
+                if (url != null) {
+                    drawer.addTile(url, x, y, TILE_SIZE, TILE_SIZE);
+                }
 
                 y += TILE_SIZE;
                 tileY++;
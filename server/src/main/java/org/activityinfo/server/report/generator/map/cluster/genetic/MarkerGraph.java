@@ -26,7 +26,10 @@ import org.activityinfo.legacy.shared.reports.content.Point;
 import org.activityinfo.legacy.shared.reports.model.PointValue;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Graph structure used to determine which groups of PointValues (nodes) could
@@ -44,6 +47,7 @@ public class MarkerGraph {
         private Node a;
         private Node b;
         private int subgraph = -1;
+        private boolean removed;
 
         public Edge(Node a, Node b) {
             this.a = a;
@@ -105,29 +109,63 @@ public class MarkerGraph {
         public boolean intersects(Node a, Node b);
     }
 
+    /**
+     * An <code>IntersectionCalculator</code> for markers that can only intersect if their
+     * points are less than a fixed number of pixels apart horizontally and vertically. This
+     * allows the graph to compare each node only with the nodes that lie nearby.
+     */
+    public interface BoundedIntersectionCalculator extends IntersectionCalculator {
+
+        /**
+         * @return the horizontal or vertical distance, in pixels, at or beyond which two
+         * markers can never intersect
+         */
+        public int getMaxDistance();
+    }
+
     private List<Node> nodes;
     private List<Edge> edges;
 
     /**
      * Constructs a graph of <code>PointValue</code>
      *
+     * <p>If <code>icalculator</code> is a {@link BoundedIntersectionCalculator}, the points are
+     * first bucketed into a grid of cells as wide as its maximum distance, and each node is
+     * only tested against the nodes in its own and the eight surrounding cells. Otherwise every
+     * pair of nodes is tested.</p>
+     *
      * @param points
      */
     public MarkerGraph(List<PointValue> points, IntersectionCalculator icalculator) {
 
-        nodes = new ArrayList<Node>();
-        edges = new ArrayList<Edge>();
-
+        List<Node> allNodes = new ArrayList<Node>();
         for (PointValue pv : points) {
-            nodes.add(new Node(pv));
+            allNodes.add(new Node(pv));
+        }
+
+        NodeGrid grid = null;
+        if (icalculator instanceof BoundedIntersectionCalculator) {
+            grid = new NodeGrid(allNodes, ((BoundedIntersectionCalculator) icalculator).getMaxDistance());
         }
 
-        for (int i = 0; i != nodes.size(); ++i) {
-            Node ni = nodes.get(i);
+        boolean[] merged = new boolean[allNodes.size()];
+        List<Edge> allEdges = new ArrayList<Edge>();
+
+        for (int i = 0; i != allNodes.size(); ++i) {
+            if (merged[i]) {
+                continue;
+            }
+            Node ni = allNodes.get(i);
 
-            int j = i + 1;
-            while (j < nodes.size()) {
-                Node nj = nodes.get(j);
+            List<Integer> candidates = grid == null ? null : grid.candidatesFollowing(i);
+            int candidateCount = candidates == null ? allNodes.size() - i - 1 : candidates.size();
+
+            for (int k = 0; k != candidateCount; ++k) {
+                int j = candidates == null ? i + 1 + k : candidates.get(k);
+                if (merged[j]) {
+                    continue;
+                }
+                Node nj = allNodes.get(j);
 
                 if (icalculator.intersects(ni, nj)) {
 
@@ -138,23 +176,33 @@ public class MarkerGraph {
                         ni.getPointValue().setValue(ni.getPointValue().getValue() + nj.getPointValue().getValue());
                         for (Edge edge : nj.getEdges()) {
                             edge.neighbor(nj).getEdges().remove(edge);
-                            edges.remove(edge);
+                            edge.removed = true;
                         }
-                        nodes.remove(j);
+                        merged[j] = true;
                     } else {
                         // otherwise connect them in the graph
                         Edge e = new Edge(ni, nj);
                         ni.addEdge(e);
                         nj.addEdge(e);
-                        edges.add(e);
-                        j++;
+                        allEdges.add(e);
                     }
-                } else {
-                    j++;
                 }
             }
         }
 
+        nodes = new ArrayList<Node>();
+        for (int i = 0; i != allNodes.size(); ++i) {
+            if (!merged[i]) {
+                nodes.add(allNodes.get(i));
+            }
+        }
+        edges = new ArrayList<Edge>();
+        for (Edge edge : allEdges) {
+            if (!edge.removed) {
+                edges.add(edge);
+            }
+        }
+
         subgraphs = new ArrayList<List<Node>>();
 
         int nextSubgraph = 0;
@@ -172,6 +220,66 @@ public class MarkerGraph {
         }
     }
 
+    /**
+     * Uniform grid over the nodes' pixel positions, used as a broad phase to find the
+     * pairs of nodes that could possibly intersect.
+     */
+    private static class NodeGrid {
+        private final int cellSize;
+        private final Map<Long, List<Integer>> cells = new HashMap<Long, List<Integer>>();
+        private final List<Node> nodes;
+
+        NodeGrid(List<Node> nodes, int maxDistance) {
+            this.nodes = nodes;
+            this.cellSize = Math.max(1, maxDistance);
+            for (int i = 0; i != nodes.size(); ++i) {
+                Point p = nodes.get(i).getPoint();
+                Long key = key(cell(p.getX()), cell(p.getY()));
+                List<Integer> cell = cells.get(key);
+                if (cell == null) {
+                    cell = new ArrayList<Integer>();
+                    cells.put(key, cell);
+                }
+                cell.add(i);
+            }
+        }
+
+        private int cell(int coordinate) {
+            return (int) Math.floor((double) coordinate / cellSize);
+        }
+
+        private static Long key(int cx, int cy) {
+            return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+        }
+
+        /**
+         * @return the indexes greater than {@code i} of the nodes in the same or an adjacent
+         * cell as node {@code i}, in ascending order so that coincident points are merged into
+         * the same node as when all pairs are compared
+         */
+        List<Integer> candidatesFollowing(int i) {
+            Point p = nodes.get(i).getPoint();
+            int cx = cell(p.getX());
+            int cy = cell(p.getY());
+
+            List<Integer> candidates = new ArrayList<Integer>();
+            for (int x = cx - 1; x <= cx + 1; ++x) {
+                for (int y = cy - 1; y <= cy + 1; ++y) {
+                    List<Integer> cell = cells.get(key(x, y));
+                    if (cell != null) {
+                        for (Integer j : cell) {
+                            if (j > i) {
+                                candidates.add(j);
+                            }
+                        }
+                    }
+                }
+            }
+            Collections.sort(candidates);
+            return candidates;
+        }
+    }
+
     private void assignToSubgraph(Node node, List<Node> subgraph) {
         for (Edge edge : node.getEdges()) {
             if (edge.subgraph < 0) {
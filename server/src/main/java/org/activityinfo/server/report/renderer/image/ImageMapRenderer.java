@@ -87,12 +87,19 @@ public class ImageMapRenderer {
 
     private final AdminGeometryProvider geometryProvider;
 
+    private TileCache tileCache;
+
     @Inject
     public ImageMapRenderer(AdminGeometryProvider geometryProvider, @MapIconPath String mapIconPath) {
         this.geometryProvider = geometryProvider;
         this.mapIconRoot = mapIconPath;
     }
 
+    @Inject
+    public void setTileCache(TileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
     public String getMapIconRoot() {
         return mapIconRoot;
     }
@@ -142,7 +149,7 @@ public class ImageMapRenderer {
     @LogSlow(threshold = 50)
     protected void drawAdminOverlay(TiledMap map, Graphics2D g2d, AdminOverlay overlay) {
 
-        List<AdminGeo> geometry = geometryProvider.getGeometries(overlay.getAdminLevelId());
+        List<AdminGeo> geometry = geometryProvider.getGeometries(overlay.getAdminLevelId(), map.getZoom());
 
         Color strokeColor = ColorUtil.colorFromString(overlay.getOutlineColor());
         g2d.setStroke(new BasicStroke(1, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
@@ -302,7 +309,16 @@ public class ImageMapRenderer {
 
     private void drawTiledBaseMap(TileHandler handler, TiledMap map, BaseMap baseMap) {
         TileProvider tileProvider = new RemoteTileProvider((TileBaseMap) baseMap);
-        map.drawLayer(handler, tileProvider);
+        if (tileCache != null && tileCache.isEnabled()) {
+            TileCache.Tiles tiles = tileCache.prefetch(map, tileProvider);
+            try {
+                map.drawLayer(handler, tiles);
+            } finally {
+                tiles.release();
+            }
+        } else {
+            map.drawLayer(handler, tileProvider);
+        }
     }
 
     public static Color bubbleFillColor(Color colorRgb) {
@@ -24,8 +24,6 @@ public class PathUtils {
     }
 
     private static void addRingToPath(TiledMap map, GeneralPath path, Coordinate[] coordinates) {
-        System.out.println("--ring--");
-
         float lastX = Float.NaN;
         float lastY = Float.NaN;
         for (int j = 0; j != coordinates.length; ++j) {
@@ -34,7 +32,6 @@ public class PathUtils {
             float y = point.getY();
 
             if (x != lastX || y != lastY) {
-                System.out.println(point.getX() + "," + point.getY());
                 if (j == 0) {
                     path.moveTo(x, y);
                 } else {
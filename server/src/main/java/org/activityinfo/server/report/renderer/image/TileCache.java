@@ -0,0 +1,384 @@
+package org.activityinfo.server.report.renderer.image;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.activityinfo.server.report.generator.map.TileProvider;
+import org.activityinfo.server.report.generator.map.TiledMap;
+import org.activityinfo.server.util.config.DeploymentConfiguration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Disk cache of base map tiles, shared by all the map renderers.
+ *
+ * <p>The tiles of a map are fetched in parallel before the map is drawn, and the tile handlers then
+ * read them from the cache directory. Concurrent requests for the same tile share a single fetch.
+ * Once the cached tiles exceed the maximum size, the least recently used tiles are deleted, except
+ * for the tiles of maps which are still being drawn: these are pinned until the map releases them.</p>
+ *
+ * <p>In offline mode, tiles are only ever read from the cache directory, which can then be
+ * filled in advance, for example with a fixed set of tiles in tests.</p>
+ */
+@Singleton
+public class TileCache {
+
+    public static final String DIRECTORY_PROPERTY = "tiles.cache.dir";
+    public static final String MAX_SIZE_PROPERTY = "tiles.cache.maxMegabytes";
+    public static final String OFFLINE_PROPERTY = "tiles.cache.offline";
+    public static final String THREADS_PROPERTY = "tiles.cache.threads";
+
+    private static final Logger LOGGER = Logger.getLogger(TileCache.class.getName());
+
+    private static final String SUFFIX = ".tile";
+
+    private final File directory;
+    private final long maxBytes;
+    private final boolean offline;
+    private final ExecutorService executor;
+
+    private final ConcurrentMap<String, Future<File>> fetches = new ConcurrentHashMap<String, Future<File>>();
+
+    /**
+     * Size in bytes of each cached file, in order of last access
+     */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * Number of maps using each cached file, which must not be deleted until they are released
+     */
+    private final Map<String, Integer> pins = Maps.newHashMap();
+
+    @Inject
+    public TileCache(DeploymentConfiguration config) {
+        this(directory(config),
+             Long.parseLong(config.getProperty(MAX_SIZE_PROPERTY, "512")) * 1024 * 1024,
+             Boolean.parseBoolean(config.getProperty(OFFLINE_PROPERTY, "false")),
+             Integer.parseInt(config.getProperty(THREADS_PROPERTY, "8")));
+    }
+
+    public TileCache(File directory, long maxBytes, boolean offline, int threads) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.offline = offline;
+
+        if (directory == null) {
+            this.executor = null;
+        } else {
+            directory.mkdirs();
+            loadIndex();
+            this.executor = offline ? null : Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                    .setNameFormat("tile-fetch-%d")
+                    .setDaemon(true)
+                    .build());
+
+            LOGGER.info("Caching map tiles in " + directory + (offline ? " (offline)" : ""));
+        }
+    }
+
+    private static File directory(DeploymentConfiguration config) {
+        String path = config.getProperty(DIRECTORY_PROPERTY);
+        return path == null ? null : new File(path);
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Fetches all the tiles of {@code map} that are not yet cached, and returns a provider
+     * that refers to the cached copies. The tiles are kept until {@link Tiles#release()} is called.
+     */
+    public Tiles prefetch(TiledMap map, TileProvider source) {
+        final List<String> urls = Lists.newArrayList();
+        map.drawLayer(new TileHandler() {
+            @Override
+            public void addTile(String tileUrl, int x, int y, int width, int height) {
+                urls.add(tileUrl);
+            }
+        }, source);
+
+        return prefetch(urls, source);
+    }
+
+    Tiles prefetch(Collection<String> tileUrls, TileProvider source) {
+        Tiles tiles = new Tiles(source);
+        for (String tileUrl : tileUrls) {
+            tiles.pin(tileUrl);
+        }
+        prefetch(tileUrls);
+        return tiles;
+    }
+
+    /**
+     * Fetches the given tiles in parallel, and waits until they have all been fetched or failed.
+     */
+    public void prefetch(Collection<String> tileUrls) {
+        List<Future<File>> pending = Lists.newArrayList();
+        for (String tileUrl : tileUrls) {
+            if (!offline && !cached(tileUrl).exists()) {
+                pending.add(fetch(tileUrl, true));
+            }
+        }
+        for (Future<File> future : pending) {
+            await(future);
+        }
+    }
+
+    /**
+     * @return a {@code file:} URL to the cached copy of the tile, or {@code null} if the tile
+     * is not cached and could not be fetched. Unless the tile is pinned, the file can be
+     * deleted at any time to make room for other tiles.
+     */
+    public String getLocalUrl(String tileUrl) {
+        File file = cached(tileUrl);
+        if (file.exists()) {
+            touch(file);
+        } else if (offline) {
+            return null;
+        } else {
+            file = await(fetch(tileUrl, false));
+            if (file == null) {
+                return null;
+            }
+        }
+        try {
+            return file.toURI().toURL().toString();
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private File cached(String tileUrl) {
+        return new File(directory, Hashing.sha1().hashString(tileUrl, Charsets.UTF_8).toString() + SUFFIX);
+    }
+
+    /**
+     * Starts fetching the tile, unless it is already being fetched, in which case the
+     * pending fetch is returned.
+     */
+    private Future<File> fetch(final String tileUrl, boolean async) {
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                try {
+                    return download(tileUrl);
+                } finally {
+                    fetches.remove(tileUrl);
+                }
+            }
+        });
+        Future<File> pending = fetches.putIfAbsent(tileUrl, task);
+        if (pending != null) {
+            return pending;
+        }
+        if (async) {
+            executor.execute(task);
+        } else {
+            task.run();
+        }
+        return task;
+    }
+
+    private File await(Future<File> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Could not fetch tile", e.getCause());
+            return null;
+        }
+    }
+
+    private File download(String tileUrl) throws IOException {
+        File file = cached(tileUrl);
+        if (file.exists()) {
+            return file;
+        }
+
+        InputStream in = new URL(tileUrl).openStream();
+        File tempFile = File.createTempFile("tile", ".tmp", directory);
+        try {
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                ByteStreams.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not move " + tempFile + " to " + file);
+        }
+        added(file);
+        return file;
+    }
+
+    private void loadIndex() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                added(file);
+            } else {
+                // left behind by an interrupted download
+                file.delete();
+            }
+        }
+    }
+
+    private synchronized void touch(File file) {
+        index.get(file.getName());
+    }
+
+    private synchronized void added(File file) {
+        Long previous = index.put(file.getName(), file.length());
+        if (previous != null) {
+            totalBytes -= previous;
+        }
+        totalBytes += file.length();
+
+        evict(file.getName());
+    }
+
+    private synchronized void pin(String fileName) {
+        Integer count = pins.get(fileName);
+        pins.put(fileName, count == null ? 1 : count + 1);
+    }
+
+    private synchronized void unpin(String fileName) {
+        Integer count = pins.get(fileName);
+        if (count == null || count == 1) {
+            pins.remove(fileName);
+        } else {
+            pins.put(fileName, count - 1);
+        }
+        evict(null);
+    }
+
+    /**
+     * Deletes the least recently used files which are not pinned until the cache fits in its
+     * maximum size.
+     *
+     * @param keep the name of a file which must not be deleted, or {@code null}
+     */
+    private synchronized void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (!eldest.getKey().equals(keep) && !pins.containsKey(eldest.getKey())) {
+                new File(directory, eldest.getKey()).delete();
+                totalBytes -= eldest.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * The cached tiles of a map being drawn, which are not deleted until they are released.
+     * Not thread-safe.
+     */
+    public class Tiles implements TileProvider {
+        private final TileProvider source;
+        private final Set<String> pinned = Sets.newHashSet();
+
+        private Tiles(TileProvider source) {
+            this.source = source;
+        }
+
+        @Override
+        public String getImageUrl(int zoom, int tileX, int tileY) {
+            String tileUrl = source.getImageUrl(zoom, tileX, tileY);
+            pin(tileUrl);
+            return getLocalUrl(tileUrl);
+        }
+
+        private void pin(String tileUrl) {
+            // pinned before the file is checked, so that it cannot be deleted in between
+            String fileName = cached(tileUrl).getName();
+            if (pinned.add(fileName)) {
+                TileCache.this.pin(fileName);
+            }
+        }
+
+        /**
+         * Allows the tiles to be deleted again.
+         */
+        public void release() {
+            for (String fileName : pinned) {
+                unpin(fileName);
+            }
+            pinned.clear();
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.activityinfo.server.geo.AdminGeometryProvider;
 import org.activityinfo.server.report.generator.MapIconPath;
 import org.activityinfo.server.report.renderer.Renderer;
 import org.activityinfo.server.report.renderer.image.ImageCreator;
+import org.activityinfo.server.report.renderer.image.TileCache;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -51,9 +52,11 @@ public abstract class ItextReportRenderer implements Renderer {
 
     private final Map<Class, ItextRenderer> renderers = new HashMap<Class, ItextRenderer>();
 
+    private final ItextMapRenderer itextMapRenderer;
+
     @Inject
     protected ItextReportRenderer(AdminGeometryProvider geometryProvider, @MapIconPath String mapIconPath) {
-        ItextMapRenderer itextMapRenderer = new ItextMapRenderer(geometryProvider, mapIconPath, getImageCreator());
+        itextMapRenderer = new ItextMapRenderer(geometryProvider, mapIconPath, getImageCreator());
 
         renderers.put(PivotTableReportElement.class, new ItextPivotTableRenderer());
         renderers.put(PivotChartReportElement.class, new ItextChartRenderer(getImageCreator()));
@@ -63,6 +66,11 @@ public abstract class ItextReportRenderer implements Renderer {
         renderers.put(ImageReportElement.class, new ItextImageRenderer());
     }
 
+    @Inject
+    public void setTileCache(TileCache tileCache) {
+        itextMapRenderer.setTileCache(tileCache);
+    }
+
     @Override
     public void render(ReportElement element, OutputStream os) throws IOException {
         try {
@@ -0,0 +1,110 @@
+package org.activityinfo.server.schedule;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import org.activityinfo.server.database.hibernate.entity.ReportSubscription;
+
+import java.util.List;
+
+/**
+ * A report which is generated and rendered once, and mailed to all of the subscribers who
+ * would receive the same report.
+ */
+class MailingJob {
+    private final int templateId;
+    private final String xml;
+    private final List<ReportSubscription> subscriptions = Lists.newArrayList();
+
+    private long generateMillis;
+    private long renderMillis;
+    private long mailMillis;
+    private int mailed;
+    private boolean failed;
+
+    MailingJob(int templateId, String xml) {
+        this.templateId = templateId;
+        this.xml = xml;
+    }
+
+    public int getTemplateId() {
+        return templateId;
+    }
+
+    public String getXml() {
+        return xml;
+    }
+
+    public List<ReportSubscription> getSubscriptions() {
+        return subscriptions;
+    }
+
+    void add(ReportSubscription subscription) {
+        subscriptions.add(subscription);
+    }
+
+    void generated(long millis) {
+        generateMillis = millis;
+    }
+
+    void rendered(long millis) {
+        renderMillis = millis;
+    }
+
+    void mailed(long millis, int count) {
+        mailMillis = millis;
+        mailed = count;
+    }
+
+    void failed() {
+        failed = true;
+    }
+
+    public long getGenerateMillis() {
+        return generateMillis;
+    }
+
+    public long getRenderMillis() {
+        return renderMillis;
+    }
+
+    public long getMailMillis() {
+        return mailMillis;
+    }
+
+    public int getMailedCount() {
+        return mailed;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    @Override
+    public String toString() {
+        return "report " + templateId + " for " + subscriptions.size() + " subscriber(s): " +
+               (failed ? "failed, " : "") +
+               "generated in " + generateMillis + " ms, rendered in " + renderMillis + " ms, " +
+               mailed + " mailed in " + mailMillis + " ms";
+    }
+}
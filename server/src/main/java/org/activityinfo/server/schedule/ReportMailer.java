@@ -21,15 +21,20 @@ package org.activityinfo.server.schedule;
  * <http://www.gnu.org/licenses/gpl-3.0.html>.
  * #L%
  */
-
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import org.activityinfo.legacy.shared.reports.model.DateRange;
 import org.activityinfo.legacy.shared.reports.model.Report;
 import org.activityinfo.server.authentication.ServerSideAuthProvider;
+import org.activityinfo.server.database.hibernate.HibernateSessionScope;
 import org.activityinfo.server.database.hibernate.entity.DomainFilters;
 import org.activityinfo.server.database.hibernate.entity.ReportSubscription;
+import org.activityinfo.server.database.hibernate.entity.User;
 import org.activityinfo.server.mail.MailSender;
 import org.activityinfo.server.mail.Message;
 import org.activityinfo.server.report.ReportParserJaxb;
@@ -42,85 +47,270 @@ import javax.persistence.EntityManager;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Mails the reports to which users are subscribed.
+ *
+ * <p>Subscribers who would receive identical reports share one {@link MailingJob}, which generates
+ * and renders the report once. Jobs run on at most {@link #MAX_CONCURRENT_JOBS} threads, each with
+ * its own hibernate session, and their timings are logged.</p>
+ */
 public class ReportMailer {
 
     private static final Logger LOGGER = Logger.getLogger(ReportMailer.class.getName());
 
-    private final EntityManager em;
-    private final ReportGenerator reportGenerator;
-    private final RtfReportRenderer rtfReportRenderer;
-    private final MailSender mailer;
+    public static final int MAX_CONCURRENT_JOBS = 4;
+
+    private final Provider<EntityManager> entityManager;
+    private final Provider<ReportGenerator> reportGenerator;
+    private final Provider<RtfReportRenderer> rtfReportRenderer;
+    private final Provider<MailSender> mailer;
 
     private final ServerSideAuthProvider authProvider;
+    private final HibernateSessionScope sessionScope;
 
 
     @Inject
-    public ReportMailer(EntityManager em,
-                        ReportGenerator reportGenerator,
-                        RtfReportRenderer rtfReportRenderer,
-                        MailSender mailer,
-                        ServerSideAuthProvider authProvider) {
+    public ReportMailer(Provider<EntityManager> entityManager,
+                        Provider<ReportGenerator> reportGenerator,
+                        Provider<RtfReportRenderer> rtfReportRenderer,
+                        Provider<MailSender> mailer,
+                        ServerSideAuthProvider authProvider,
+                        HibernateSessionScope sessionScope) {
         super();
-        this.em = em;
+        this.entityManager = entityManager;
         this.reportGenerator = reportGenerator;
         this.rtfReportRenderer = rtfReportRenderer;
         this.mailer = mailer;
         this.authProvider = authProvider;
+        this.sessionScope = sessionScope;
     }
 
     public void execute(Date today) {
         execute(today, Predicates.<ReportSubscription>alwaysTrue());
     }
 
-    public void execute(Date today, Predicate<ReportSubscription> filter) {
+    public void execute(final Date today, Predicate<ReportSubscription> filter) {
 
         LOGGER.info("Starting nightly mailing job for " + today);
+        long start = System.currentTimeMillis();
 
-        List<ReportSubscription> subscriptions = em.createQuery("select t from ReportSubscription t").getResultList();
+        // the subscriptions are read by the job threads, so their users and templates are fetched here
+        List<ReportSubscription> subscriptions = entityManager.get()
+                .createQuery("select t from ReportSubscription t " +
+                             "join fetch t.user join fetch t.template left join fetch t.invitingUser")
+                .getResultList();
 
+        List<ReportSubscription> due = new ArrayList<ReportSubscription>();
         for (ReportSubscription subscription : subscriptions) {
             try {
                 if (ReportMailerHelper.mailToday(today, subscription) && filter.apply(subscription)) {
-
-                    Report report = ReportParserJaxb.parseXml(subscription.getTemplate().getXml());
-                    execute(today, subscription, report);
+                    due.add(subscription);
                 }
             } catch (Exception caught) {
                 LOGGER.log(Level.SEVERE, "Exception thrown while processing report " + subscription.getId(), caught);
             }
         }
+        if (due.isEmpty()) {
+            LOGGER.info("No reports to mail for " + today);
+            return;
+        }
+
+        List<MailingJob> jobs = createJobs(due);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs.size(), MAX_CONCURRENT_JOBS),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("report-mailer-%d")
+                        .setDaemon(true)
+                        .build());
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final MailingJob job : jobs) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        execute(today, job);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.SEVERE, "Exception thrown while mailing reports", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.SEVERE, "Interrupted while mailing reports", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logSummary(jobs, due.size(), System.currentTimeMillis() - start);
     }
 
-    public void execute(Date today, ReportSubscription sub, Report report) throws IOException {
+    /**
+     * Groups the subscriptions by template, locale and the data which their users can see.
+     */
+    private List<MailingJob> createJobs(List<ReportSubscription> subscriptions) {
+        Set<Integer> userIds = Sets.newHashSet();
+        for (ReportSubscription subscription : subscriptions) {
+            userIds.add(subscription.getUser().getId());
+        }
+        Map<Integer, SortedSet<String>> grants = findGrants(userIds);
 
-        // set up authentication for the subscriber of this report
+        LinkedHashMap<String, MailingJob> jobs = Maps.newLinkedHashMap();
+        for (ReportSubscription subscription : subscriptions) {
+            SortedSet<String> userGrants = grants.get(subscription.getUser().getId());
+            String key = ReportMailerHelper.mailingKey(subscription,
+                    userGrants == null ? Sets.<String>newTreeSet() : userGrants);
+            MailingJob job = jobs.get(key);
+            if (job == null) {
+                job = new MailingJob(subscription.getTemplate().getId(), subscription.getTemplate().getXml());
+                jobs.put(key, job);
+            }
+            job.add(subscription);
+        }
+        return new ArrayList<MailingJob>(jobs.values());
+    }
 
-        authProvider.set(sub.getUser());
-        DomainFilters.applyUserFilter(sub.getUser(), em);
+    /**
+     * @return the databases visible to each user, as "databaseId:all" if the user owns the database or can
+     * view all of its partners, or "databaseId:partnerId" otherwise
+     */
+    private Map<Integer, SortedSet<String>> findGrants(Set<Integer> userIds) {
+        Map<Integer, SortedSet<String>> grants = Maps.newHashMap();
 
-        // render the report to a temp file
-        // generate the report
-        reportGenerator.generate(sub.getUser(), report, null, new DateRange());
+        List<Object[]> owned = entityManager.get()
+                .createQuery("select d.owner.id, d.id from UserDatabase d " +
+                             "where d.owner.id in (:users) and d.dateDeleted is null")
+                .setParameter("users", userIds)
+                .getResultList();
+        for (Object[] row : owned) {
+            grant(grants, (Integer) row[0], row[1] + ":all");
+        }
 
-        ByteArrayOutputStream rtf = new ByteArrayOutputStream();
-        rtfReportRenderer.render(report, rtf);
-        rtf.close();
+        List<Object[]> permissions = entityManager.get()
+                .createQuery("select p.user.id, p.database.id, p.allowViewAll, p.partner.id from UserPermission p " +
+                             "where p.user.id in (:users) and p.allowView = true")
+                .setParameter("users", userIds)
+                .getResultList();
+        for (Object[] row : permissions) {
+            boolean viewAll = (Boolean) row[2];
+            grant(grants, (Integer) row[0], row[1] + ":" + (viewAll ? "all" : row[3]));
+        }
+        return grants;
+    }
+
+    private static void grant(Map<Integer, SortedSet<String>> grants, int userId, String grant) {
+        SortedSet<String> userGrants = grants.get(userId);
+        if (userGrants == null) {
+            userGrants = Sets.newTreeSet();
+            grants.put(userId, userGrants);
+        }
+        userGrants.add(grant);
+    }
+
+    /**
+     * Generates and renders the report of the job as its first subscriber, then mails it to all
+     * of its subscribers.
+     */
+    private void execute(Date today, MailingJob job) {
+        Report report;
+        byte[] content;
 
+        sessionScope.enter();
         try {
-            mailReport(sub, report, today, rtf.toByteArray());
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE,
-                    "Report mailing of " + sub.getTemplate().getId() + " failed for user " + sub.getUser().getEmail(),
-                    e);
+            EntityManager em = entityManager.get();
+            User user = em.find(User.class, job.getSubscriptions().get(0).getUser().getId());
+
+            // set up authentication for the subscriber of this report
+            authProvider.set(user);
+            DomainFilters.applyUserFilter(user, em);
+
+            long start = System.currentTimeMillis();
+            report = ReportParserJaxb.parseXml(job.getXml());
+            reportGenerator.get().generate(user, report, null, new DateRange());
+            job.generated(System.currentTimeMillis() - start);
+
+            start = System.currentTimeMillis();
+            ByteArrayOutputStream rtf = new ByteArrayOutputStream();
+            rtfReportRenderer.get().render(report, rtf);
+            rtf.close();
+            content = rtf.toByteArray();
+            job.rendered(System.currentTimeMillis() - start);
+
+        } catch (Exception caught) {
+            job.failed();
+            LOGGER.log(Level.SEVERE, "Exception thrown while processing report " + job.getTemplateId(), caught);
+            return;
+
+        } finally {
+            authProvider.clear();
+            sessionScope.exit();
+        }
+
+        long start = System.currentTimeMillis();
+        MailSender sender = mailer.get();
+        int mailed = 0;
+        for (ReportSubscription sub : job.getSubscriptions()) {
+            try {
+                mailReport(sender, sub, report, today, content);
+                mailed++;
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE,
+                        "Report mailing of " + sub.getTemplate().getId() + " failed for user " +
+                        sub.getUser().getEmail(), e);
+            }
+        }
+        job.mailed(System.currentTimeMillis() - start, mailed);
+
+        LOGGER.info("Mailed " + job);
+    }
+
+    private void logSummary(List<MailingJob> jobs, int subscriptionCount, long elapsedMillis) {
+        long generateMillis = 0;
+        long renderMillis = 0;
+        long mailMillis = 0;
+        int mailed = 0;
+        int failed = 0;
+        MailingJob slowest = null;
+        for (MailingJob job : jobs) {
+            generateMillis += job.getGenerateMillis();
+            renderMillis += job.getRenderMillis();
+            mailMillis += job.getMailMillis();
+            mailed += job.getMailedCount();
+            if (job.isFailed()) {
+                failed++;
+            }
+            if (slowest == null || job.getGenerateMillis() + job.getRenderMillis() >
+                                   slowest.getGenerateMillis() + slowest.getRenderMillis()) {
+                slowest = job;
+            }
         }
+        LOGGER.info("Nightly mailing job finished in " + elapsedMillis + " ms: " +
+                    mailed + " of " + subscriptionCount + " subscription(s) mailed, " +
+                    jobs.size() + " distinct report(s), " + failed + " failed. " +
+                    "Total generation " + generateMillis + " ms, rendering " + renderMillis + " ms, " +
+                    "mailing " + mailMillis + " ms. Slowest " + slowest);
     }
 
-    private void mailReport(ReportSubscription sub,
+    private void mailReport(MailSender sender,
+                            ReportSubscription sub,
                             Report report,
                             Date today,
                             byte[] content) throws IOException, SAXException, MessagingException {
@@ -140,6 +330,6 @@ public class ReportMailer {
              .withFileName(report.getContent().getFileName() + " " +
                            reportDateFormat.format(today) + ".rtf");
 
-        mailer.send(email);
+        sender.send(email);
     }
 }
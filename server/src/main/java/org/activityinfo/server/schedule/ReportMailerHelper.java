@@ -22,6 +22,7 @@ package org.activityinfo.server.schedule;
  * #L%
  */
 
+import com.google.common.base.Joiner;
 import org.activityinfo.legacy.shared.reports.model.EmailDelivery;
 import org.activityinfo.legacy.shared.reports.model.Report;
 import org.activityinfo.server.database.hibernate.entity.ReportSubscription;
@@ -31,6 +32,7 @@ import java.text.MessageFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.ResourceBundle;
+import java.util.SortedSet;
 
 public class ReportMailerHelper {
 
@@ -59,6 +61,16 @@ public class ReportMailerHelper {
         return false;
     }
 
+    /**
+     * Identifies the subscriptions which receive identical reports: subscriptions to the same template,
+     * by users with the same locale who see the same data.
+     *
+     * @param grants the data visible to the subscriber, as one string per database
+     */
+    public static String mailingKey(ReportSubscription sub, SortedSet<String> grants) {
+        return sub.getTemplate().getId() + "/" + sub.getUser().getLocale() + "/" + Joiner.on(',').join(grants);
+    }
+
     public static String frequencyString(ResourceBundle messages, EmailDelivery frequency) {
         if (frequency == EmailDelivery.WEEKLY) {
             return messages.getString("weekly");
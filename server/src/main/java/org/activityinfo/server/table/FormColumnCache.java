@@ -0,0 +1,61 @@
+package org.activityinfo.server.table;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Singleton;
+import org.activityinfo.model.resource.ResourceId;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the columns loaded for each form between requests. The
+ * columns of a form are dropped as soon as its data changes.
+ */
+@Singleton
+public class FormColumnCache {
+
+    public static final int MAX_CACHED_FORMS = 200;
+
+    private final Cache<ResourceId, FormColumns> cache = CacheBuilder.newBuilder()
+                                                                    .maximumSize(MAX_CACHED_FORMS)
+                                                                    .expireAfterAccess(1, TimeUnit.HOURS)
+                                                                    .build();
+
+    /**
+     * @return the columns of the given form if they are for the current
+     * {@code version}, or {@code null}
+     */
+    FormColumns get(ResourceId formClassId, String version) {
+        FormColumns columns = cache.getIfPresent(formClassId);
+        if (columns != null && columns.getVersion().equals(version)) {
+            return columns;
+        }
+        return null;
+    }
+
+    void put(ResourceId formClassId, FormColumns columns) {
+        cache.put(formClassId, columns);
+    }
+}
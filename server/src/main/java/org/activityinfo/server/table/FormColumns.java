@@ -0,0 +1,85 @@
+package org.activityinfo.server.table;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.activityinfo.model.table.ColumnView;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The columns of a form which have been loaded so far, for a given
+ * version of the form's data.
+ *
+ * <p>The rows are the form's sites in order of id. Columns are only loaded
+ * when they are first requested, and are shared by all the tables built
+ * from this version.</p>
+ */
+class FormColumns {
+
+    private final String version;
+    private final int[] siteIds;
+    private final int[] partnerIds;
+
+    private final ConcurrentMap<String, ColumnView> columns = new ConcurrentHashMap<String, ColumnView>();
+
+    FormColumns(String version, int[] siteIds, int[] partnerIds) {
+        this.version = version;
+        this.siteIds = siteIds;
+        this.partnerIds = partnerIds;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public int getNumRows() {
+        return siteIds.length;
+    }
+
+    public int getSiteId(int row) {
+        return siteIds[row];
+    }
+
+    public int getPartnerId(int row) {
+        return partnerIds[row];
+    }
+
+    /**
+     * @return the row of the given site, or a negative number if the
+     * site is not part of this version
+     */
+    public int getRow(int siteId) {
+        return Arrays.binarySearch(siteIds, siteId);
+    }
+
+    public ColumnView getColumn(String key) {
+        return columns.get(key);
+    }
+
+    public ColumnView putColumn(String key, ColumnView view) {
+        ColumnView existing = columns.putIfAbsent(key, view);
+        return existing == null ? view : existing;
+    }
+}
@@ -0,0 +1,332 @@
+package org.activityinfo.server.table;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.bedatadriven.rebar.sql.client.query.SqlQuery;
+import org.activityinfo.legacy.shared.adapter.CuidAdapter;
+import org.activityinfo.legacy.shared.impl.Tables;
+import org.activityinfo.legacy.shared.model.ActivityDTO;
+import org.activityinfo.legacy.shared.model.IndicatorDTO;
+import org.activityinfo.model.resource.ResourceId;
+import org.activityinfo.model.table.ColumnView;
+import org.activityinfo.model.table.columns.DateArrayColumnView;
+import org.activityinfo.model.table.columns.DictionaryColumnView;
+import org.activityinfo.model.table.columns.DoubleArrayColumnView;
+import org.activityinfo.model.table.columns.NullBitmap;
+import org.activityinfo.model.table.columns.StringArrayColumnView;
+import org.activityinfo.server.command.handler.sync.SqlQueryUtil;
+import org.hibernate.ejb.HibernateEntityManager;
+import org.hibernate.jdbc.Work;
+
+import javax.persistence.EntityManager;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Loads the columns of an activity's form directly from the site tables,
+ * one field at a time.
+ */
+class SiteColumnLoader {
+
+    private final EntityManager entityManager;
+    private final ActivityDTO activity;
+    private final ResourceId formClassId;
+
+    SiteColumnLoader(EntityManager entityManager, ActivityDTO activity) {
+        this.entityManager = entityManager;
+        this.activity = activity;
+        this.formClassId = CuidAdapter.activityFormClass(activity.getId());
+    }
+
+    /**
+     * Queries the current version of the activity's data, which changes whenever a site
+     * or location is edited, or the activity's database is changed.
+     *
+     * <p>Partners and projects can be renamed, and attribute groups shared with other databases,
+     * without touching the version of this activity's database, so the version also includes a
+     * checksum of the partner, project and attribute names that the loaded columns show.</p>
+     */
+    public String queryVersion() {
+        SqlQuery query = SqlQuery.select()
+                                 .appendColumn("COUNT(*)", "siteCount")
+                                 .appendColumn("MAX(s.timeEdited)", "siteVersion")
+                                 .appendColumn("MAX(l.timeEdited)", "locationVersion")
+                                 .appendColumn("(SELECT d.version FROM activity a " +
+                                               "INNER JOIN userdatabase d ON (a.DatabaseId = d.DatabaseId) " +
+                                               "WHERE a.ActivityId = " + activity.getId() + ")", "schemaVersion")
+                                 .appendColumn("(SELECT COALESCE(BIT_XOR(CRC32(label)), 0) FROM (" +
+                                               labels(Tables.PARTNER, "PartnerId") + " UNION ALL " +
+                                               labels(Tables.PROJECT, "ProjectId") + " UNION ALL " +
+                                               "SELECT CONCAT_WS(':', 'attribute', a.AttributeId, a.Name, " +
+                                               "a.SortOrder) label FROM attribute a " +
+                                               "INNER JOIN attributegroupinactivity g " +
+                                               "ON (a.AttributeGroupId = g.AttributeGroupId) " +
+                                               "WHERE g.ActivityId = " + activity.getId() +
+                                               ") labels)", "labelVersion")
+                                 .from(Tables.SITE, "s")
+                                 .leftJoin(Tables.LOCATION, "l")
+                                 .on("s.LocationId = l.LocationId")
+                                 .where("s.ActivityId").equalTo(activity.getId())
+                                 .where("s.DateDeleted").isNull();
+
+        final StringBuilder version = new StringBuilder();
+        execute(query, new RowHandler() {
+            @Override
+            public void handle(ResultSet rs) throws SQLException {
+                version.append(rs.getLong(1)).append(':')
+                       .append(rs.getLong(2)).append(':')
+                       .append(rs.getLong(3)).append(':')
+                       .append(rs.getLong(4)).append(':')
+                       .append(rs.getLong(5));
+            }
+        });
+        return version.toString();
+    }
+
+    /**
+     * @return a query of the names of the partners or projects referenced by the activity's sites
+     */
+    private String labels(String table, String idColumn) {
+        return "SELECT CONCAT_WS(':', '" + table + "', r." + idColumn + ", r.Name) label FROM " + table + " r " +
+               "WHERE r." + idColumn + " IN (SELECT " + idColumn + " FROM site " +
+               "WHERE ActivityId = " + activity.getId() + " AND DateDeleted IS NULL)";
+    }
+
+    public FormColumns loadRows(String version) {
+        SqlQuery query = SqlQuery.select("s.SiteId", "s.PartnerId")
+                                 .from(Tables.SITE, "s")
+                                 .where("s.ActivityId").equalTo(activity.getId())
+                                 .where("s.DateDeleted").isNull()
+                                 .orderBy("s.SiteId");
+
+        final int[][] rows = new int[][] { new int[64], new int[64] };
+        final int[] count = new int[1];
+        execute(query, new RowHandler() {
+            @Override
+            public void handle(ResultSet rs) throws SQLException {
+                if (count[0] == rows[0].length) {
+                    rows[0] = Arrays.copyOf(rows[0], count[0] * 2);
+                    rows[1] = Arrays.copyOf(rows[1], count[0] * 2);
+                }
+                rows[0][count[0]] = rs.getInt(1);
+                rows[1][count[0]] = rs.getInt(2);
+                count[0]++;
+            }
+        });
+
+        return new FormColumns(version,
+                Arrays.copyOf(rows[0], count[0]),
+                Arrays.copyOf(rows[1], count[0]));
+    }
+
+    /**
+     * @return the column of the given field, or {@code null} if the field is not stored
+     * in the site tables
+     */
+    public ColumnView load(FormColumns rows, ResourceId fieldId) {
+        if (fieldId.equals(CuidAdapter.partnerField(activity.getId()))) {
+            return loadNames(rows, Tables.PARTNER, "PartnerId");
+
+        } else if (fieldId.equals(CuidAdapter.projectField(activity.getId()))) {
+            return loadNames(rows, Tables.PROJECT, "ProjectId");
+
+        } else if (fieldId.equals(CuidAdapter.locationField(activity.getId()))) {
+            return loadNames(rows, Tables.LOCATION, "LocationId");
+
+        } else if (fieldId.equals(CuidAdapter.field(formClassId, CuidAdapter.START_DATE_FIELD))) {
+            return loadDates(rows, "Date1");
+
+        } else if (fieldId.equals(CuidAdapter.field(formClassId, CuidAdapter.END_DATE_FIELD))) {
+            return loadDates(rows, "Date2");
+
+        } else if (fieldId.equals(CuidAdapter.commentsField(activity.getId()))) {
+            return loadComments(rows);
+
+        } else if (fieldId.getDomain() == CuidAdapter.INDICATOR_DOMAIN) {
+            IndicatorDTO indicator = activity.getIndicatorById(CuidAdapter.getLegacyIdFromCuid(fieldId));
+            if (indicator != null) {
+                return loadIndicator(rows, indicator);
+            }
+
+        } else if (fieldId.getDomain() == CuidAdapter.ATTRIBUTE_GROUP_FIELD_DOMAIN) {
+            int attributeGroupId = CuidAdapter.getLegacyIdFromCuid(fieldId);
+            if (activity.getAttributeGroupById(attributeGroupId) != null) {
+                return loadAttributes(rows, attributeGroupId);
+            }
+        }
+        return null;
+    }
+
+    public ColumnView loadIds(FormColumns rows) {
+        String[] ids = new String[rows.getNumRows()];
+        for (int row = 0; row != ids.length; ++row) {
+            ids[row] = CuidAdapter.cuid(CuidAdapter.SITE_DOMAIN, rows.getSiteId(row)).asString();
+        }
+        return new StringArrayColumnView(ids);
+    }
+
+    private ColumnView loadNames(final FormColumns rows, String table, String idColumn) {
+        SqlQuery query = SqlQuery.select("s.SiteId", "r.Name")
+                                 .from(Tables.SITE, "s")
+                                 .innerJoin(table, "r")
+                                 .on("s." + idColumn + " = r." + idColumn)
+                                 .where("s.ActivityId").equalTo(activity.getId())
+                                 .where("s.DateDeleted").isNull();
+
+        final DictionaryColumnView.Builder builder = new DictionaryColumnView.Builder(rows.getNumRows());
+        execute(query, new RowHandler() {
+            @Override
+            public void handle(ResultSet rs) throws SQLException {
+                int row = rows.getRow(rs.getInt(1));
+                if (row >= 0) {
+                    builder.set(row, rs.getString(2));
+                }
+            }
+        });
+        return builder.build();
+    }
+
+    private ColumnView loadDates(final FormColumns rows, String column) {
+        SqlQuery query = SqlQuery.select("s.SiteId", "s." + column)
+                                 .from(Tables.SITE, "s")
+                                 .where("s.ActivityId").equalTo(activity.getId())
+                                 .where("s.DateDeleted").isNull();
+
+        final long[] times = new long[rows.getNumRows()];
+        final boolean[] present = new boolean[times.length];
+        execute(query, new RowHandler() {
+            @Override
+            public void handle(ResultSet rs) throws SQLException {
+                int row = rows.getRow(rs.getInt(1));
+                Date date = rs.getDate(2);
+                if (row >= 0 && date != null) {
+                    times[row] = date.getTime();
+                    present[row] = true;
+                }
+            }
+        });
+        NullBitmap missing = new NullBitmap(times.length);
+        for (int row = 0; row != times.length; ++row) {
+            if (!present[row]) {
+                missing.setNull(row);
+            }
+        }
+        return new DateArrayColumnView(times, missing);
+    }
+
+    private ColumnView loadComments(final FormColumns rows) {
+        SqlQuery query = SqlQuery.select("s.SiteId", "s.Comments")
+                                 .from(Tables.SITE, "s")
+                                 .where("s.ActivityId").equalTo(activity.getId())
+                                 .where("s.DateDeleted").isNull();
+
+        final String[] comments = new String[rows.getNumRows()];
+        execute(query, new RowHandler() {
+            @Override
+            public void handle(ResultSet rs) throws SQLException {
+                int row = rows.getRow(rs.getInt(1));
+                if (row >= 0) {
+                    comments[row] = rs.getString(2);
+                }
+            }
+        });
+        return new StringArrayColumnView(comments);
+    }
+
+    private ColumnView loadIndicator(final FormColumns rows, IndicatorDTO indicator) {
+        String aggregate = indicator.getAggregation() == IndicatorDTO.AGGREGATE_AVG ? "AVG" : "SUM";
+        SqlQuery query = SqlQuery.select("p.SiteId")
+                                 .appendColumn(aggregate + "(v.Value)", "value")
+                                 .from(Tables.INDICATOR_VALUE, "v")
+                                 .innerJoin(Tables.REPORTING_PERIOD, "p")
+                                 .on("v.ReportingPeriodId = p.ReportingPeriodId")
+                                 .where("v.IndicatorId").equalTo(indicator.getId())
+                                 .groupBy("p.SiteId");
+
+        final double[] values = new double[rows.getNumRows()];
+        Arrays.fill(values, Double.NaN);
+        execute(query, new RowHandler() {
+            @Override
+            public void handle(ResultSet rs) throws SQLException {
+                int row = rows.getRow(rs.getInt(1));
+                double value = rs.getDouble(2);
+                if (row >= 0 && !rs.wasNull()) {
+                    values[row] = value;
+                }
+            }
+        });
+        return new DoubleArrayColumnView(values);
+    }
+
+    private ColumnView loadAttributes(final FormColumns rows, int attributeGroupId) {
+        SqlQuery query = SqlQuery.select("v.SiteId", "a.Name")
+                                 .from(Tables.ATTRIBUTE_VALUE, "v")
+                                 .innerJoin(Tables.ATTRIBUTE, "a")
+                                 .on("v.AttributeId = a.AttributeId")
+                                 .where("a.AttributeGroupId").equalTo(attributeGroupId)
+                                 .where("v.Value").equalTo(1)
+                                 .orderBy("a.SortOrder");
+
+        final String[] names = new String[rows.getNumRows()];
+        execute(query, new RowHandler() {
+            @Override
+            public void handle(ResultSet rs) throws SQLException {
+                int row = rows.getRow(rs.getInt(1));
+                if (row >= 0) {
+                    String name = rs.getString(2);
+                    names[row] = names[row] == null ? name : names[row] + ", " + name;
+                }
+            }
+        });
+
+        DictionaryColumnView.Builder builder = new DictionaryColumnView.Builder(names.length);
+        for (int row = 0; row != names.length; ++row) {
+            builder.set(row, names[row]);
+        }
+        return builder.build();
+    }
+
+    private interface RowHandler {
+        void handle(ResultSet rs) throws SQLException;
+    }
+
+    private void execute(final SqlQuery query, final RowHandler handler) {
+        ((HibernateEntityManager) entityManager).getSession().doWork(new Work() {
+
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                ResultSet rs = SqlQueryUtil.query(connection, query);
+                try {
+                    while (rs.next()) {
+                        handler.handle(rs);
+                    }
+                } finally {
+                    rs.close();
+                }
+            }
+        });
+    }
+}
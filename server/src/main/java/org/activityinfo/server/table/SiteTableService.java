@@ -0,0 +1,214 @@
+package org.activityinfo.server.table;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import org.activityinfo.legacy.shared.adapter.ActivityUserFormBuilder;
+import org.activityinfo.legacy.shared.adapter.CuidAdapter;
+import org.activityinfo.legacy.shared.command.GetSchema;
+import org.activityinfo.legacy.shared.exception.IllegalAccessCommandException;
+import org.activityinfo.legacy.shared.model.ActivityDTO;
+import org.activityinfo.legacy.shared.model.UserDatabaseDTO;
+import org.activityinfo.model.form.FormClass;
+import org.activityinfo.model.form.FormField;
+import org.activityinfo.model.formTree.FormTree;
+import org.activityinfo.model.resource.ResourceId;
+import org.activityinfo.model.table.*;
+import org.activityinfo.model.table.columns.DateArrayColumnView;
+import org.activityinfo.model.table.columns.DictionaryColumnView;
+import org.activityinfo.model.table.columns.DoubleArrayColumnView;
+import org.activityinfo.model.table.columns.EmptyColumnView;
+import org.activityinfo.model.table.columns.NullBitmap;
+import org.activityinfo.server.command.DispatcherSync;
+
+import javax.persistence.EntityManager;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Builds tables of the sites of an activity, column by column.
+ *
+ * <p>Only the requested columns are loaded, each with a single query, into arrays of primitives
+ * or dictionary-encoded strings. The loaded columns are cached for each form until its data
+ * changes, so that tables showing other columns of the same form only need to load the new
+ * columns.</p>
+ */
+public class SiteTableService implements TableService {
+
+    private static final Logger LOGGER = Logger.getLogger(SiteTableService.class.getName());
+
+    private static final String ID_COLUMN = "_id";
+
+    private final DispatcherSync dispatcher;
+    private final Provider<EntityManager> entityManager;
+    private final FormColumnCache cache;
+
+    @Inject
+    public SiteTableService(DispatcherSync dispatcher, Provider<EntityManager> entityManager, FormColumnCache cache) {
+        this.dispatcher = dispatcher;
+        this.entityManager = entityManager;
+        this.cache = cache;
+    }
+
+    @Override
+    public TableData buildTable(TableModel tableModel) {
+        Preconditions.checkArgument(tableModel.getRowSources().size() == 1, "Expected a single row source");
+
+        ResourceId formClassId = tableModel.getRowSources().get(0).getRootFormClass();
+        Preconditions.checkArgument(formClassId.getDomain() == CuidAdapter.ACTIVITY_DOMAIN,
+                "Not an activity form: %s", formClassId);
+
+        ActivityDTO activity = dispatcher.execute(new GetSchema())
+                                         .getActivityById(CuidAdapter.getLegacyIdFromCuid(formClassId));
+        if (activity == null) {
+            throw new IllegalAccessCommandException("No access to form " + formClassId);
+        }
+
+        SiteColumnLoader loader = new SiteColumnLoader(entityManager.get(), activity);
+        FormColumns columns = columnsOf(formClassId, loader);
+        FormTree tree = buildTree(activity);
+
+        Map<String, ColumnView> views = Maps.newHashMap();
+        for (ColumnModel column : tableModel.getColumns()) {
+            views.put(column.getId(), buildColumn(columns, loader, tree, column));
+        }
+
+        int[] visibleRows = visibleRows(activity.getDatabase(), columns);
+        if (visibleRows == null) {
+            return new TableData(columns.getNumRows(), views);
+        }
+        for (Map.Entry<String, ColumnView> view : views.entrySet()) {
+            view.setValue(select(view.getValue(), visibleRows));
+        }
+        return new TableData(visibleRows.length, views);
+    }
+
+    private FormColumns columnsOf(ResourceId formClassId, SiteColumnLoader loader) {
+        String version = loader.queryVersion();
+        FormColumns columns = cache.get(formClassId, version);
+        if (columns == null) {
+            columns = loader.loadRows(version);
+            cache.put(formClassId, columns);
+
+            LOGGER.fine("Loaded " + columns.getNumRows() + " rows of " + formClassId + ", version " + version);
+        }
+        return columns;
+    }
+
+    private FormTree buildTree(ActivityDTO activity) {
+        FormClass formClass = new ActivityUserFormBuilder(activity).build();
+        FormTree tree = new FormTree();
+        for (FormField field : formClass.getFields()) {
+            tree.addRootField(formClass, field);
+        }
+        return tree;
+    }
+
+    private ColumnView buildColumn(FormColumns columns, SiteColumnLoader loader, FormTree tree, ColumnModel model) {
+        if (model.getSource() instanceof ResourceIdSource) {
+            return column(columns, loader, ID_COLUMN, null);
+        }
+
+        Set<ColumnView> views = Sets.newLinkedHashSet();
+        if (model.getSource() instanceof FieldSource) {
+            for (FormTree.Node node : ((FieldSource) model.getSource()).select(tree)) {
+                ColumnView view = column(columns, loader, node.getFieldId().asString(), node.getFieldId());
+                if (view != null) {
+                    views.add(view);
+                }
+            }
+        }
+        if (views.isEmpty()) {
+            return new EmptyColumnView(model.getType(), columns.getNumRows());
+        }
+        return model.getSummaryFunction().combine(views);
+    }
+
+    private ColumnView column(FormColumns columns, SiteColumnLoader loader, String key, ResourceId fieldId) {
+        ColumnView view = columns.getColumn(key);
+        if (view == null) {
+            view = fieldId == null ? loader.loadIds(columns) : loader.load(columns, fieldId);
+            if (view == null) {
+                return null;
+            }
+            view = columns.putColumn(key, view);
+        }
+        return view;
+    }
+
+    /**
+     * @return the rows visible to the user, or {@code null} if the user can see all the rows
+     */
+    private int[] visibleRows(UserDatabaseDTO database, FormColumns columns) {
+        if (database.isViewAllAllowed()) {
+            return null;
+        }
+        int count = 0;
+        int[] rows = new int[columns.getNumRows()];
+        for (int row = 0; row != columns.getNumRows(); ++row) {
+            if (columns.getPartnerId(row) == database.getMyPartnerId()) {
+                rows[count++] = row;
+            }
+        }
+        int[] visible = new int[count];
+        System.arraycopy(rows, 0, visible, 0, count);
+        return visible;
+    }
+
+    private static ColumnView select(ColumnView view, int[] rows) {
+        switch (view.getType()) {
+            case NUMBER:
+                double[] values = new double[rows.length];
+                for (int i = 0; i != rows.length; ++i) {
+                    values[i] = view.getDouble(rows[i]);
+                }
+                return new DoubleArrayColumnView(values);
+
+            case DATE:
+                long[] times = new long[rows.length];
+                NullBitmap missing = new NullBitmap(rows.length);
+                for (int i = 0; i != rows.length; ++i) {
+                    Date date = view.getDate(rows[i]);
+                    if (date == null) {
+                        missing.setNull(i);
+                    } else {
+                        times[i] = date.getTime();
+                    }
+                }
+                return new DateArrayColumnView(times, missing);
+
+            default:
+                DictionaryColumnView.Builder strings = new DictionaryColumnView.Builder(rows.length);
+                for (int i = 0; i != rows.length; ++i) {
+                    strings.set(i, view.getString(rows[i]));
+                }
+                return strings.build();
+        }
+    }
+}
@@ -26,6 +26,7 @@ import com.bedatadriven.rebar.async.AsyncCommand;
 import com.bedatadriven.rebar.sql.client.SqlDatabase;
 import com.bedatadriven.rebar.sql.client.SqlException;
 import com.bedatadriven.rebar.sql.client.SqlTransactionCallback;
+import com.google.common.collect.Lists;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -34,29 +35,59 @@ import org.activityinfo.legacy.client.Dispatcher;
 import org.activityinfo.legacy.client.remote.Remote;
 import org.activityinfo.legacy.shared.Log;
 import org.activityinfo.legacy.shared.command.GetSyncRegionUpdates;
+import org.activityinfo.legacy.shared.command.GetSyncRegionUpdatesBatch;
 import org.activityinfo.legacy.shared.command.GetSyncRegions;
 import org.activityinfo.legacy.shared.command.result.SyncRegion;
 import org.activityinfo.legacy.shared.command.result.SyncRegionUpdate;
+import org.activityinfo.legacy.shared.command.result.SyncRegionUpdateBatch;
 import org.activityinfo.legacy.shared.command.result.SyncRegions;
 import org.activityinfo.ui.client.EventBus;
 import org.activityinfo.ui.client.local.command.CommandQueue;
 
-import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Synchronizes the local database by retriving updates from the remote server.
+ * <p/>
+ * The updates of several regions are fetched at once with
+ * {@link GetSyncRegionUpdatesBatch}, and the next batch is fetched while the
+ * previous one is applied to the local database. Batches are still applied one
+ * at a time, in the order of the regions.
  */
 @Singleton
 public class DownSynchronizer implements AsyncCommand {
 
+    /**
+     * The maximum number of regions to request at once. The server may return
+     * fewer, depending on the size of their updates.
+     */
+    public static final int MAX_REGIONS_PER_BATCH = 50;
+
     private final Dispatcher dispatch;
     private final EventBus eventBus;
     private final SqlDatabase conn;
     private final UiConstants uiConstants;
 
-    private ProgressTrackingIterator<SyncRegion> regionIt;
+    private Iterator<SyncRegion> regionIt;
+
+    /**
+     * Regions which are out of date, and have not yet been requested
+     */
+    private final LinkedList<PendingRegion> pending = new LinkedList<PendingRegion>();
+
+    /**
+     * Updates received from the server, which are waiting for the previous batch to be applied
+     */
+    private FetchedBatch fetched;
+
+    private boolean fetching;
+    private boolean applying;
+
+    private int regionCount;
+    private int regionsCompleted;
 
     private AsyncCallback<Void> callback;
 
@@ -65,6 +96,7 @@ public class DownSynchronizer implements AsyncCommand {
     private SyncRegionTable localVerisonTable;
     private SyncHistoryTable historyTable;
     private CommandQueue commandQueueTable;
+    private SyncTableInserter tableInserter;
 
     private SynchronizerStats stats = new SynchronizerStats();
 
@@ -78,6 +110,7 @@ public class DownSynchronizer implements AsyncCommand {
         this.localVerisonTable = new SyncRegionTable(conn);
         this.historyTable = new SyncHistoryTable(conn);
         this.commandQueueTable = new CommandQueue(eventBus, conn);
+        this.tableInserter = new SyncTableInserter(conn);
     }
 
     @Override
@@ -85,11 +118,15 @@ public class DownSynchronizer implements AsyncCommand {
         this.callback = callback;
         fireStatusEvent(uiConstants.requestingSyncRegions(), 0);
         running = true;
+        pending.clear();
+        fetched = null;
+        fetching = false;
+        applying = false;
+        regionsCompleted = 0;
         stats.onStart();
         retrieveSyncRegions();
     }
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
     private void retrieveSyncRegions() {
         dispatch.execute(new GetSyncRegions(), new AsyncCallback<SyncRegions>() {
             @Override
@@ -99,9 +136,9 @@ public class DownSynchronizer implements AsyncCommand {
 
             @Override
             public void onSuccess(SyncRegions syncRegions) {
-                DownSynchronizer.this.regionIt = new ProgressTrackingIterator(syncRegions.getList());
+                DownSynchronizer.this.regionIt = syncRegions.getList().iterator();
                 fireStatusEvent("Received sync regions...", 0);
-                doNextUpdate();
+                checkNextLocalVersion();
             }
         });
     }
@@ -111,37 +148,69 @@ public class DownSynchronizer implements AsyncCommand {
         eventBus.fireEvent(SyncStatusEvent.TYPE, new SyncStatusEvent(task, percentComplete));
     }
 
-    private void doNextUpdate() {
+    /**
+     * Compares the local version of each region to its current version, to find the
+     * regions which need to be updated.
+     */
+    private void checkNextLocalVersion() {
         if (!running) {
             return;
         }
         if (regionIt.hasNext()) {
             final SyncRegion region = regionIt.next();
-            updateLocalVersion(region);
+            localVerisonTable.get(region.getId(), new DefaultCallback<String>() {
+
+                @Override
+                public void onSuccess(String localVersion) {
+                    if (localVersion == null ||
+                        region.getCurrentVersion() == null ||
+                        !localVersion.equals(region.getCurrentVersion())) {
+
+                        pending.add(new PendingRegion(region, localVersion));
+                    } else {
+                        Log.debug("Region " + region.getId() + " is up to date");
+                    }
+                    checkNextLocalVersion();
+                }
+            });
         } else {
-            onSynchronizationComplete();
+            regionCount = pending.size();
+            pump();
         }
     }
 
-    private void updateLocalVersion(final SyncRegion region) {
-        localVerisonTable.get(region.getId(), new DefaultCallback<String>() {
-
-            @Override
-            public void onSuccess(String localVersion) {
-                if (localVersion == null ||
-                    region.getCurrentVersion() == null ||
-                    !localVersion.equals(region.getCurrentVersion())) {
-
-                    doUpdate(region, localVersion);
-                } else {
-                    Log.debug("Region " + region.getId() + " is up to date");
-                    doNextUpdate();
-                }
-            }
-        });
+    /**
+     * Starts applying the fetched batch and fetching the next one, whichever are possible.
+     * Callbacks may be invoked before the dispatcher or database returns, so the state is
+     * checked again after each step.
+     */
+    private void pump() {
+        if (!running) {
+            return;
+        }
+        if (!applying && fetched != null) {
+            FetchedBatch batch = fetched;
+            fetched = null;
+            applying = true;
+            stats.onDbUpdateStarted();
+            applyUpdate(batch, 0);
+        }
+        if (!running) {
+            return;
+        }
+        if (!fetching && fetched == null && !pending.isEmpty()) {
+            fetchNextBatch();
+        }
+        if (!running) {
+            return;
+        }
+        if (!fetching && !applying && fetched == null && pending.isEmpty()) {
+            onSynchronizationComplete();
+        }
     }
 
     private void onSynchronizationComplete() {
+        running = false;
         stats.onFinished();
         setLastUpdateTime();
         fireStatusEvent(uiConstants.synchronizationComplete(), 100);
@@ -151,73 +220,147 @@ public class DownSynchronizer implements AsyncCommand {
         }
     }
 
-    private void doUpdate(final SyncRegion region, String localVersion) {
-
-        fireStatusEvent(uiConstants.downSyncProgress(), regionIt.percentComplete());
-        Log.info("Synchronizer: Region " + region.getId() + ": localVersion=" + localVersion);
+    private void fetchNextBatch() {
+        final List<PendingRegion> requested = Lists.newArrayList();
+        GetSyncRegionUpdatesBatch batch = new GetSyncRegionUpdatesBatch();
+        while (!pending.isEmpty() && requested.size() < MAX_REGIONS_PER_BATCH) {
+            PendingRegion region = pending.removeFirst();
+            Log.info("Synchronizer: Region " + region.getId() + ": localVersion=" + region.localVersion);
+
+            GetSyncRegionUpdates request = new GetSyncRegionUpdates(region.getId(), region.localVersion);
+            request.setColumnar(true);
+            batch.add(request);
+            requested.add(region);
+        }
 
+        fetching = true;
         stats.onRemoteCallStarted();
-        dispatch.execute(new GetSyncRegionUpdates(region.getId(), localVersion), new AsyncCallback<SyncRegionUpdate>() {
+        dispatch.execute(batch, new AsyncCallback<SyncRegionUpdateBatch>() {
             @Override
             public void onFailure(Throwable throwable) {
-                handleException("GetSyncRegionUpdates for region id " + region.getId() + " failed.", throwable);
+                handleException("GetSyncRegionUpdatesBatch for " + requested.size() + " regions failed.", throwable);
             }
 
             @Override
-            public void onSuccess(SyncRegionUpdate update) {
+            public void onSuccess(SyncRegionUpdateBatch result) {
                 stats.onRemoteCallFinished();
-                persistUpdates(region, update);
+                fetching = false;
+                onBatchFetched(requested, result.getUpdates());
             }
         });
     }
 
-    private void persistUpdates(final SyncRegion region, final SyncRegionUpdate update) {
-        if (update.getSql() == null) {
+    private void onBatchFetched(List<PendingRegion> requested, List<SyncRegionUpdate> updates) {
+        // request the rest of incomplete regions, as well as the regions the server left out,
+        // before any other
+        List<PendingRegion> requeued = Lists.newArrayList();
+        for (int i = 0; i != requested.size(); ++i) {
+            if (i >= updates.size()) {
+                requeued.add(requested.get(i));
+            } else if (!updates.get(i).isComplete()) {
+                requeued.add(new PendingRegion(requested.get(i).region, updates.get(i).getVersion()));
+            }
+        }
+        pending.addAll(0, requeued);
+
+        fetched = new FetchedBatch(requested.subList(0, updates.size()), updates);
+        pump();
+    }
+
+    private void applyUpdate(final FetchedBatch batch, final int index) {
+        if (index == batch.updates.size()) {
+            stats.onDbUpdateFinished();
+            applying = false;
+            pump();
+            return;
+        }
+
+        SyncRegion region = batch.regions.get(index).region;
+        SyncRegionUpdate update = batch.updates.get(index);
+
+        if (update.getSql() == null && update.getStatements().isEmpty() && update.getTables().isEmpty()) {
             Log.debug("Synchronizer: Region " + region.getId() + " is up to date");
-            doNextUpdate();
+            updateLocalVersion(batch, index);
 
         } else {
             Log.debug("Synchronizer: persisting updates for region " + region.getId());
+            executeStatements(batch, index);
+        }
+    }
 
-            stats.onDbUpdateStarted();
-            conn.executeUpdates(update.getSql(), new AsyncCallback<Integer>() {
-                @Override
-                public void onFailure(Throwable throwable) {
-                    handleException("Synchronizer: Async execution of region " + region.getId() + " failed." +
-                                    "\nMessage: " + throwable.getMessage(), throwable);
-                }
-
-                @Override
-                public void onSuccess(Integer rows) {
-                    Log.debug("Synchronizer: updates to region " + region.getId() + " succeeded, " + rows +
-                              " row(s) affected");
-                    stats.onDbUpdateFinished();
-                    updateLocalVersion(region, update);
-                }
-            });
+    private void executeStatements(final FetchedBatch batch, final int index) {
+        final SyncRegion region = batch.regions.get(index).region;
+        SyncRegionUpdate update = batch.updates.get(index);
+        if (update.getSql() == null) {
+            applyColumnar(batch, index);
+            return;
         }
+        conn.executeUpdates(update.getSql(), new AsyncCallback<Integer>() {
+            @Override
+            public void onFailure(Throwable throwable) {
+                handleException("Synchronizer: Async execution of region " + region.getId() + " failed." +
+                                "\nMessage: " + throwable.getMessage(), throwable);
+            }
+
+            @Override
+            public void onSuccess(Integer rows) {
+                Log.debug("Synchronizer: updates to region " + region.getId() + " succeeded, " + rows +
+                          " row(s) affected");
+                updateLocalVersion(batch, index);
+            }
+        });
+    }
+
+    private void applyColumnar(final FetchedBatch batch, final int index) {
+        final SyncRegion region = batch.regions.get(index).region;
+        SyncRegionUpdate update = batch.updates.get(index);
+        tableInserter.apply(region.getId(), update, new AsyncCallback<Integer>() {
+            @Override
+            public void onFailure(Throwable throwable) {
+                handleException("Synchronizer: Update of region " + region.getId() + " failed." +
+                                "\nMessage: " + throwable.getMessage(), throwable);
+            }
+
+            @Override
+            public void onSuccess(Integer rows) {
+                Log.debug("Synchronizer: inserted " + rows + " row(s) into region " + region.getId());
+                onRegionUpdated(batch, index);
+            }
+        });
     }
 
-    private void updateLocalVersion(final SyncRegion region, final SyncRegionUpdate update) {
+    private void updateLocalVersion(final FetchedBatch batch, final int index) {
+        final SyncRegion region = batch.regions.get(index).region;
+        final SyncRegionUpdate update = batch.updates.get(index);
         localVerisonTable.put(region.getId(), update.getVersion(), new AsyncCallback<Void>() {
 
             @Override
             public void onSuccess(Void result) {
-                if (!update.isComplete()) {
-                    doUpdate(region, update.getVersion());
-                } else {
-                    doNextUpdate();
-                }
+                onRegionUpdated(batch, index);
             }
 
             @Override
             public void onFailure(Throwable caught) {
-                callback.onFailure(caught);
+                handleException("Synchronizer: Could not update the local version of region " + region.getId(),
+                        caught);
             }
         });
     }
 
+    private void onRegionUpdated(FetchedBatch batch, int index) {
+        if (batch.updates.get(index).isComplete()) {
+            regionsCompleted++;
+            fireStatusEvent(uiConstants.downSyncProgress(), percentComplete());
+        }
+        applyUpdate(batch, index + 1);
+    }
+
+    private double percentComplete() {
+        return regionCount == 0 ? 100d : (double) regionsCompleted / regionCount * 100d;
+    }
+
     private void handleException(String message, Throwable throwable) {
+        running = false;
         Log.error("Synchronizer: " + message, throwable);
         if (callback != null) {
             callback.onFailure(throwable);
@@ -242,35 +385,27 @@ public class DownSynchronizer implements AsyncCommand {
         }
     }
 
-    private static final class ProgressTrackingIterator<T> implements Iterator<T> {
-        private double total;
-        private double completed;
-        private Iterator<T> delegateIterator;
-
-        private ProgressTrackingIterator(Collection<T> collection) {
-            total = collection.size();
-            completed = 0;
-            delegateIterator = collection.iterator();
-        }
+    private static final class PendingRegion {
+        private final SyncRegion region;
+        private final String localVersion;
 
-        @Override
-        public boolean hasNext() {
-            completed++;
-            return delegateIterator.hasNext();
+        private PendingRegion(SyncRegion region, String localVersion) {
+            this.region = region;
+            this.localVersion = localVersion;
         }
 
-        @Override
-        public T next() {
-            return delegateIterator.next();
+        public String getId() {
+            return region.getId();
         }
+    }
 
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
-        }
+    private static final class FetchedBatch {
+        private final List<PendingRegion> regions;
+        private final List<SyncRegionUpdate> updates;
 
-        public double percentComplete() {
-            return completed / total * 100d;
+        private FetchedBatch(List<PendingRegion> regions, List<SyncRegionUpdate> updates) {
+            this.regions = regions;
+            this.updates = updates;
         }
     }
 
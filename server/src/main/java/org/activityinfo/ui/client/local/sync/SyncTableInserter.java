@@ -0,0 +1,112 @@
+package org.activityinfo.ui.client.local.sync;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.bedatadriven.rebar.sql.client.SqlDatabase;
+import com.bedatadriven.rebar.sql.client.SqlException;
+import com.bedatadriven.rebar.sql.client.SqlResultCallback;
+import com.bedatadriven.rebar.sql.client.SqlResultSet;
+import com.bedatadriven.rebar.sql.client.SqlTransaction;
+import com.bedatadriven.rebar.sql.client.SqlTransactionCallback;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import org.activityinfo.legacy.shared.command.result.SyncRegionUpdate;
+import org.activityinfo.legacy.shared.command.result.SyncTable;
+
+/**
+ * Applies a columnar {@link SyncRegionUpdate} to the local database in a single transaction: its
+ * statements, the rows of its {@link SyncTable}s and the new local version of the region, so that
+ * a region is never left half updated.
+ *
+ * <p>Rows are inserted several at a time, within SQLite's limits on the number of parameters
+ * and of compound selects in a statement.</p>
+ */
+class SyncTableInserter {
+
+    static final int MAX_PARAMETERS = 999;
+    static final int MAX_ROWS_PER_STATEMENT = 500;
+
+    private static final SqlResultCallback IGNORE_RESULT = new SqlResultCallback() {
+        @Override
+        public void onSuccess(SqlTransaction tx, SqlResultSet results) {
+        }
+    };
+
+    private final SqlDatabase database;
+
+    SyncTableInserter(SqlDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Applies the update to the region, calling back with the number of rows inserted.
+     */
+    public void apply(final String regionId, final SyncRegionUpdate update, final AsyncCallback<Integer> callback) {
+        database.transaction(new SqlTransactionCallback() {
+
+            private int rowCount = 0;
+
+            @Override
+            public void begin(SqlTransaction tx) {
+                for (String statement : update.getStatements()) {
+                    tx.executeSql(statement, new Object[0], IGNORE_RESULT);
+                }
+                for (SyncTable table : update.getTables()) {
+                    insertRows(tx, table);
+                    rowCount += table.getRowCount();
+                }
+                // the same as SyncRegionTable.put(), but within this transaction
+                tx.executeSql("DELETE FROM sync_regions WHERE id = ?", new Object[]{regionId}, IGNORE_RESULT);
+                tx.executeSql("INSERT INTO sync_regions (id, localVersion) VALUES (?, ?)",
+                        new Object[]{regionId, update.getVersion()}, IGNORE_RESULT);
+            }
+
+            @Override
+            public void onSuccess() {
+                callback.onSuccess(rowCount);
+            }
+
+            @Override
+            public void onError(SqlException e) {
+                callback.onFailure(e);
+            }
+        });
+    }
+
+    private void insertRows(SqlTransaction tx, SyncTable table) {
+        Object[][] rows = table.decodeRows();
+        int columnCount = table.getColumns().size();
+        int rowsPerStatement = Math.max(1, Math.min(MAX_ROWS_PER_STATEMENT, MAX_PARAMETERS / columnCount));
+        String fullStatement = table.insertStatement(rowsPerStatement);
+
+        for (int start = 0; start < rows.length; start += rowsPerStatement) {
+            int count = Math.min(rowsPerStatement, rows.length - start);
+            String statement = count == rowsPerStatement ? fullStatement : table.insertStatement(count);
+
+            Object[] parameters = new Object[count * columnCount];
+            for (int i = 0; i != count; ++i) {
+                System.arraycopy(rows[start + i], 0, parameters, i * columnCount, columnCount);
+            }
+            tx.executeSql(statement, parameters, IGNORE_RESULT);
+        }
+    }
+}
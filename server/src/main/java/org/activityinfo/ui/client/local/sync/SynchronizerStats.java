@@ -29,50 +29,92 @@ import java.util.Date;
 /**
  * Logging utility to track where time is spent during sychronization. Should
  * compile out when logging is turned off.
+ * <p/>
+ * As the next batch of updates is fetched while the previous one is applied, the
+ * time waiting for the server and the time updating the local database may overlap.
+ * Time is attributed to either, or to both, or to neither, so that the benefit of
+ * the overlap is visible.
  */
 public class SynchronizerStats {
 
     private double timeStarted;
-    private double timeWaitingForServer = 0;
-    private double timeWaitingForLocalDatabase = 0;
+    private double lastChange;
+
+    private boolean waitingForServer;
+    private boolean updatingDatabase;
+
+    private double timeWaitingForServerOnly;
+    private double timeUpdatingDatabaseOnly;
+    private double timeOverlapped;
 
     public void onStart() {
         if (Log.isDebugEnabled()) {
             timeStarted = now();
+            lastChange = timeStarted;
+            waitingForServer = false;
+            updatingDatabase = false;
+            timeWaitingForServerOnly = 0;
+            timeUpdatingDatabaseOnly = 0;
+            timeOverlapped = 0;
         }
     }
 
     public void onRemoteCallStarted() {
         if (Log.isDebugEnabled()) {
-            timeWaitingForServer -= now();
+            accumulate();
+            waitingForServer = true;
         }
     }
 
     public void onRemoteCallFinished() {
         if (Log.isDebugEnabled()) {
-            timeWaitingForServer += now();
+            accumulate();
+            waitingForServer = false;
         }
     }
 
     public void onDbUpdateStarted() {
         if (Log.isDebugEnabled()) {
-            timeWaitingForLocalDatabase -= now();
+            accumulate();
+            updatingDatabase = true;
         }
     }
 
     public void onDbUpdateFinished() {
         if (Log.isDebugEnabled()) {
-            timeWaitingForLocalDatabase += now();
+            accumulate();
+            updatingDatabase = false;
+        }
+    }
+
+    /**
+     * Attributes the time since the last change of state to the activities which were under way
+     */
+    private void accumulate() {
+        double now = now();
+        double elapsed = now - lastChange;
+        if (waitingForServer && updatingDatabase) {
+            timeOverlapped += elapsed;
+        } else if (waitingForServer) {
+            timeWaitingForServerOnly += elapsed;
+        } else if (updatingDatabase) {
+            timeUpdatingDatabaseOnly += elapsed;
         }
+        lastChange = now;
     }
 
     public void onFinished() {
         if (Log.isDebugEnabled()) {
+            accumulate();
             double totalLength = now() - timeStarted;
+            double idle = totalLength - timeWaitingForServerOnly - timeUpdatingDatabaseOnly - timeOverlapped;
             Log.debug("Sync stats: total time: " + totalLength / 1000 + " s");
-            Log.debug("Sync stats: time waiting for remote server: " + timeWaitingForServer / 1000d + " s");
-            Log.debug("Sync stats: time waiting for local database updates: " + timeWaitingForLocalDatabase / 1000d +
-                      " s");
+            Log.debug("Sync stats: time waiting for remote server: " +
+                      (timeWaitingForServerOnly + timeOverlapped) / 1000d + " s");
+            Log.debug("Sync stats: time waiting for local database updates: " +
+                      (timeUpdatingDatabaseOnly + timeOverlapped) / 1000d + " s");
+            Log.debug("Sync stats: time waiting for both at once: " + timeOverlapped / 1000d + " s");
+            Log.debug("Sync stats: time waiting for neither: " + idle / 1000d + " s");
         }
     }
 
@@ -0,0 +1,76 @@
+package org.activityinfo.core.shared.expr;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class ExprCompilerTest {
+
+    private static final Map<String, Integer> SLOTS = ImmutableMap.of("a", 0, "b", 1, "c", 2);
+
+    private final ExprCompiler compiler = new ExprCompiler(new ExprCompiler.SlotResolver() {
+        @Override
+        public int getSlot(String placeholder) {
+            Integer slot = SLOTS.get(placeholder);
+            if (slot == null) {
+                throw new UnsupportedOperationException(placeholder);
+            }
+            return slot;
+        }
+    });
+
+    @Test
+    public void constants() {
+        evaluate("1", 1);
+        evaluate("1+2", 3);
+        evaluate("(5+5)/2", 5);
+        evaluate("2*3-1", 5);
+    }
+
+    @Test
+    public void placeholders() {
+        double[] slots = {3, 4, 10};
+        assertEquals(7, compile("{a}+{b}").evaluate(slots), 0);
+        assertEquals(0.7, compile("({a}+{b})/{c}").evaluate(slots), 0);
+
+        slots[2] = 0;
+        assertEquals(Double.POSITIVE_INFINITY, compile("{a}/{c}").evaluate(slots), 0);
+    }
+
+    @Test
+    public void sameAsTreeWalking() {
+        String[] expressions = {"{a}-{b}-{c}", "{a}/{b}*{c}", "(({a}+1)*({b}-2))/{c}", "{a}*2+{b}/3-{c}"};
+        double[] slots = {17, 5, 3};
+
+        for (String expression : expressions) {
+            ExprNode tree = parse(expression, slots);
+            assertEquals(expression, tree.evalReal(), compiler.compile(tree).evaluate(slots), 0);
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void unknownPlaceholder() {
+        compile("{a}+{d}");
+    }
+
+    private CompiledExpr compile(String expression) {
+        return compiler.compile(new ExprParser(new ExprLexer(expression)).parse());
+    }
+
+    private void evaluate(String expression, double expectedValue) {
+        assertEquals(expression, expectedValue, compile(expression).evaluate(new double[0]), 0);
+    }
+
+    private static ExprNode parse(String expression, final double[] slots) {
+        ExprParser parser = new ExprParser(new ExprLexer(expression), new PlaceholderExprResolver() {
+            @Override
+            public void resolve(PlaceholderExpr placeholderExpr) {
+                placeholderExpr.setValue(slots[SLOTS.get(placeholderExpr.getPlaceholder())]);
+            }
+        });
+        return parser.parse();
+    }
+}
@@ -0,0 +1,111 @@
+package org.activityinfo.core.shared.importing.strategy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.activityinfo.core.shared.importing.match.names.LatinPlaceNameScorer;
+import org.activityinfo.core.shared.importing.source.SourceRow;
+import org.activityinfo.model.resource.ResourceId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static com.google.common.io.Resources.getResource;
+import static com.google.common.io.Resources.readLines;
+import static org.junit.Assert.assertEquals;
+
+public class InstanceScorerTest {
+
+    private List<String> imported;
+    private List<String> reference;
+
+    @Before
+    public void setUp() throws IOException {
+        imported = Lists.newArrayList();
+        reference = Lists.newArrayList();
+        for (String resource : new String[]{"lebanon.txt", "philipines.txt", "mali.txt"}) {
+            for (String pair : readLines(getResource(LatinPlaceNameScorer.class, resource), Charsets.UTF_8)) {
+                String[] columns = pair.split("\\|");
+                imported.add(columns[0]);
+                reference.add(columns[1]);
+            }
+        }
+        // names which only match exactly or by number
+        imported.add("-");
+        reference.add("-");
+        imported.add("Commune 2");
+        reference.add("Commune II");
+    }
+
+    @Test
+    public void indexFindsSameMatchesAsFullScan() {
+        InstanceScorer scorer = new InstanceScorer(scoreSource(reference));
+        LatinPlaceNameScorer nameScorer = new LatinPlaceNameScorer();
+
+        for (String name : imported) {
+            InstanceScorer.Score score = scorer.score(new Row(name));
+
+            double bestScore = 0;
+            int bestMatchIndex = -1;
+            for (int i = 0; i != reference.size(); ++i) {
+                double s = nameScorer.score(name, reference.get(i));
+                if (s > InstanceScorer.MINIMUM_SCORE && s > bestScore) {
+                    bestScore = s;
+                    bestMatchIndex = i;
+                }
+            }
+            assertEquals(name, bestMatchIndex, score.getBestMatchIndex());
+            assertEquals(name, bestScore, score.getBestScore(), 0d);
+        }
+    }
+
+    private InstanceScoreSource scoreSource(List<String> names) {
+        List<ResourceId> ids = Lists.newArrayList();
+        List<String[]> values = Lists.newArrayList();
+        for (int i = 0; i != names.size(); ++i) {
+            ids.add(ResourceId.create("i" + i));
+            values.add(new String[]{names.get(i)});
+        }
+        List<ColumnAccessor> columns = Lists.<ColumnAccessor>newArrayList(new ColumnAccessor() {
+            @Override
+            public String getHeading() {
+                return "Name";
+            }
+
+            @Override
+            public String getValue(SourceRow row) {
+                return row.getColumnValue(0);
+            }
+
+            @Override
+            public boolean isMissing(SourceRow row) {
+                return row.isColumnValueMissing(0);
+            }
+        });
+        return new InstanceScoreSource(columns, ids, values);
+    }
+
+    private static class Row implements SourceRow {
+        private final String name;
+
+        private Row(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public int getRowIndex() {
+            return 0;
+        }
+
+        @Override
+        public String getColumnValue(int columnIndex) {
+            return name;
+        }
+
+        @Override
+        public boolean isColumnValueMissing(int columnIndex) {
+            return name == null || name.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.activityinfo.legacy.shared.adapter;
+
+import com.bedatadriven.rebar.time.calendar.LocalDate;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import org.activityinfo.core.client.InstanceQuery;
+import org.activityinfo.core.shared.Projection;
+import org.activityinfo.core.shared.criteria.ClassCriteria;
+import org.activityinfo.core.shared.criteria.Criteria;
+import org.activityinfo.core.shared.criteria.CriteriaIntersection;
+import org.activityinfo.core.shared.criteria.CriteriaUnion;
+import org.activityinfo.core.shared.criteria.FieldCriteria;
+import org.activityinfo.core.shared.criteria.IdCriteria;
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.legacy.client.Dispatcher;
+import org.activityinfo.legacy.client.remote.AbstractDispatcher;
+import org.activityinfo.legacy.shared.command.Command;
+import org.activityinfo.legacy.shared.command.DimensionType;
+import org.activityinfo.legacy.shared.command.Filter;
+import org.activityinfo.legacy.shared.command.GetAdminEntities;
+import org.activityinfo.legacy.shared.command.GetSites;
+import org.activityinfo.legacy.shared.command.result.CommandResult;
+import org.activityinfo.model.formTree.FieldPath;
+import org.activityinfo.model.resource.ResourceId;
+import org.activityinfo.server.command.CommandTestCase2;
+import org.activityinfo.server.database.OnDataSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+import static org.activityinfo.core.client.PromiseMatchers.assertResolves;
+import static org.activityinfo.legacy.shared.adapter.CuidAdapter.*;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+@RunWith(InjectionSupport.class)
+@OnDataSet("/dbunit/sites-simple1.db.xml")
+public class JoinerTest extends CommandTestCase2 {
+
+    private static final int NFI_DIST_ID = 1;
+
+    private static final ResourceId NFI_DIST_FORM_CLASS = activityFormClass(NFI_DIST_ID);
+
+    private static final FieldPath END_DATE = new FieldPath(field(NFI_DIST_FORM_CLASS, END_DATE_FIELD));
+
+    private static final int TERRITOIRE_LEVEL_ID = 2;
+
+    @Inject
+    private Provider<Connection> connectionProvider;
+
+    private final List<Command> executed = Lists.newArrayList();
+
+    private ResourceLocatorAdaptor resourceLocator;
+
+    @Before
+    public final void setup() {
+        final Dispatcher dispatcher = getDispatcher();
+        resourceLocator = new ResourceLocatorAdaptor(new AbstractDispatcher() {
+            @Override
+            public <T extends CommandResult> void execute(Command<T> command, AsyncCallback<T> callback) {
+                executed.add(command);
+                dispatcher.execute(command, callback);
+            }
+        });
+    }
+
+    @Test
+    public void siteIdsArePushedDown() {
+        List<Projection> projections = querySites(new CriteriaIntersection(
+                new ClassCriteria(NFI_DIST_FORM_CLASS),
+                new IdCriteria(cuid(SITE_DOMAIN, 1), cuid(SITE_DOMAIN, 2)),
+                new FieldCriteria(END_DATE, new LocalDate(2009, 1, 16))));
+
+        assertThat(siteIds(projections), containsInAnyOrder(2));
+        assertThat(siteFilter().getRestrictions(DimensionType.Site), containsInAnyOrder(1, 2));
+    }
+
+    @Test
+    public void unionOfIdsIsPushedDown() {
+        List<Projection> projections = querySites(new CriteriaIntersection(
+                new ClassCriteria(NFI_DIST_FORM_CLASS),
+                new CriteriaUnion(asList(
+                        new IdCriteria(cuid(SITE_DOMAIN, 1)),
+                        new IdCriteria(cuid(SITE_DOMAIN, 3))))));
+
+        assertThat(siteIds(projections), containsInAnyOrder(1, 3));
+        assertThat(siteFilter().getRestrictions(DimensionType.Site), containsInAnyOrder(1, 3));
+    }
+
+    @Test
+    public void idsWithinUnionAreNotPushedDown() {
+        List<Projection> projections = querySites(new CriteriaIntersection(
+                new ClassCriteria(NFI_DIST_FORM_CLASS),
+                new CriteriaUnion(asList(
+                        new IdCriteria(cuid(SITE_DOMAIN, 3)),
+                        new FieldCriteria(END_DATE, new LocalDate(2009, 1, 2))))));
+
+        assertThat(siteIds(projections), containsInAnyOrder(1, 3));
+        assertFalse(siteFilter().isRestricted(DimensionType.Site));
+    }
+
+    @Test
+    public void joinsAreFetchedInBatches() throws SQLException {
+        int count = Joiner.JOIN_BATCH_SIZE + 100;
+        insertProvincesWithTerritoires(count);
+
+        ResourceId territoireClass = adminLevelFormClass(TERRITOIRE_LEVEL_ID);
+        FieldPath name = new FieldPath(field(territoireClass, NAME_FIELD));
+        FieldPath parentName = new FieldPath(field(territoireClass, ADMIN_PARENT_FIELD),
+                field(adminLevelFormClass(1), NAME_FIELD));
+
+        List<Projection> projections = assertResolves(resourceLocator.query(
+                new InstanceQuery(asList(name, parentName), new ClassCriteria(territoireClass))));
+
+        int joined = 0;
+        for (Projection projection : projections) {
+            String territoire = projection.getStringValue(name);
+            if (territoire.startsWith("Territoire ")) {
+                assertThat(projection.getStringValue(parentName),
+                        equalTo("Province " + territoire.substring("Territoire ".length())));
+                joined++;
+            }
+        }
+        assertThat(joined, equalTo(count));
+
+        int batches = 0;
+        for (Command command : executed) {
+            if (command instanceof GetAdminEntities && ((GetAdminEntities) command).getEntityIds() != null) {
+                assertThat(((GetAdminEntities) command).getEntityIds().size(),
+                        lessThanOrEqualTo(Joiner.JOIN_BATCH_SIZE));
+                batches++;
+            }
+        }
+        assertThat(batches, equalTo(2));
+    }
+
+    private List<Projection> querySites(Criteria criteria) {
+        return assertResolves(resourceLocator.query(new InstanceQuery(asList(END_DATE), criteria)));
+    }
+
+    private Set<Integer> siteIds(List<Projection> projections) {
+        Set<Integer> ids = Sets.newHashSet();
+        for (Projection projection : projections) {
+            ids.add(getLegacyIdFromCuid(projection.getRootInstanceId()));
+        }
+        return ids;
+    }
+
+    private Filter siteFilter() {
+        for (Command command : executed) {
+            if (command instanceof GetSites) {
+                return ((GetSites) command).getFilter();
+            }
+        }
+        throw new AssertionError("GetSites was not executed");
+    }
+
+    private void insertProvincesWithTerritoires(int count) throws SQLException {
+        Connection connection = connectionProvider.get();
+        try {
+            PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO adminentity (AdminLevelId, AdminEntityId, AdminEntityParentId, Name, Code, " +
+                    "X1, Y1, X2, Y2) VALUES (?, ?, ?, ?, '0', 0, 0, 0, 0)");
+            for (int i = 0; i < count; i++) {
+                insert.setInt(1, 1);
+                insert.setInt(2, 1000 + i);
+                insert.setNull(3, java.sql.Types.INTEGER);
+                insert.setString(4, "Province " + i);
+                insert.addBatch();
+
+                insert.setInt(1, TERRITOIRE_LEVEL_ID);
+                insert.setInt(2, 10000 + i);
+                insert.setInt(3, 1000 + i);
+                insert.setString(4, "Territoire " + i);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            insert.close();
+        } finally {
+            connection.close();
+        }
+    }
+}
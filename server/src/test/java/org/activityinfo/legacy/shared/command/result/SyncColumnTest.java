@@ -0,0 +1,50 @@
+package org.activityinfo.legacy.shared.command.result;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SyncColumnTest {
+
+    @Test
+    public void integers() {
+        SyncColumn column = SyncColumn.integers("SiteId", Arrays.asList(1001, 1002, null, 1005, -3));
+        assertArrayEquals(new Object[]{1001, 1002, null, 1005, -3}, column.decode());
+    }
+
+    @Test
+    public void integralRealsAreDeltaEncoded() {
+        Double[] values = {1412770000123d, 1412770000456d, null, 1412770000999d};
+        SyncColumn column = SyncColumn.reals("timeEdited", Arrays.asList(values));
+        assertArrayEquals(values, column.decode());
+    }
+
+    @Test
+    public void fractionalReals() {
+        Double[] values = {0.1, 0.2, 1e300, null};
+        SyncColumn column = SyncColumn.reals("Value", Arrays.asList(values));
+        assertArrayEquals(values, column.decode());
+    }
+
+    @Test
+    public void text() {
+        String[] values = {"Goma", null, "Bukavu", "Goma", ""};
+        SyncColumn column = SyncColumn.text("Name", Arrays.asList(values));
+        assertArrayEquals(values, column.decode());
+    }
+
+    @Test
+    public void table() {
+        SyncTable table = new SyncTable("site", 2);
+        table.addColumn(SyncColumn.integers("SiteId", Arrays.asList(1, 2)));
+        table.addColumn(SyncColumn.text("Comments", Arrays.asList("a", null)));
+
+        assertEquals("INSERT OR REPLACE INTO site (SiteId,Comments) VALUES (?,?)", table.insertStatement());
+        assertEquals("INSERT OR REPLACE INTO site (SiteId,Comments) SELECT ?,? UNION ALL SELECT ?,?",
+                table.insertStatement(2));
+        assertArrayEquals(new Object[][]{{1, "a"}, {2, null}}, table.decodeRows());
+    }
+}
@@ -40,6 +40,9 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.Matchers.closeTo;
 import static org.junit.Assert.assertThat;
@@ -199,6 +202,45 @@ public class GetSitesTest extends CommandTestCase2 {
 
     }
 
+    @Test
+    public void testKeysetPaging() throws CommandException {
+
+        setUser(DATABASE_OWNER);
+
+        GetSites all = new GetSites();
+        all.setSortInfo(new SortInfo("SiteId", SortDir.ASC));
+
+        List<Integer> expected = new ArrayList<>();
+        for (SiteDTO site : execute(all).getData()) {
+            expected.add(site.getId());
+        }
+        assertThat("more than one page", expected.size() > 2, equalTo(true));
+
+        List<Integer> paged = new ArrayList<>();
+        Integer afterSiteId = null;
+        while (true) {
+            GetSites cmd = new GetSites();
+            cmd.setSortInfo(new SortInfo("SiteId", SortDir.ASC));
+            cmd.setAfterSiteId(afterSiteId);
+            cmd.setLimit(2);
+
+            List<SiteDTO> page = execute(cmd).getData();
+            if (page.isEmpty()) {
+                break;
+            }
+            assertThat("page size", page.size() <= 2, equalTo(true));
+            for (SiteDTO site : page) {
+                if (afterSiteId != null) {
+                    assertThat("ascending after " + afterSiteId, site.getId() > afterSiteId, equalTo(true));
+                }
+                paged.add(site.getId());
+                afterSiteId = site.getId();
+            }
+        }
+
+        assertThat(paged, equalTo(expected));
+    }
+
     @Test
     public void testDatabase() throws CommandException {
 
@@ -175,6 +175,30 @@ public class SyncIntegrationTest extends LocalHandlerTestCase {
 
     }
 
+    @Test
+    @OnDataSet("/dbunit/sites-simple1.db.xml")
+    public void schemaDeletionsAreSynced() throws SQLException, InterruptedException {
+        synchronizeFirstTime();
+
+        assertThat(queryInt("select count(*) from Indicator where IndicatorId=103"), equalTo(1));
+        assertThat(queryInt("select count(*) from Activity where ActivityId=5"), equalTo(1));
+
+        Thread.sleep(1000);
+
+        executeRemotely(new Delete("Indicator", 103));
+        executeRemotely(new Delete("Activity", 5));
+
+        synchronize();
+
+        assertThat(queryInt("select count(*) from Indicator where IndicatorId=103"), equalTo(0));
+        assertThat(queryInt("select count(*) from Activity where ActivityId=5"), equalTo(0));
+
+        // the rest of the changed databases is sent again
+        assertThat(queryString("select Name from Indicator where IndicatorId=1"), equalTo("beneficiaries"));
+        assertThat(queryString("select Name from Indicator where IndicatorId=6"), equalTo("Number of children"));
+        assertThat(queryInt("select PartnerId from partnerInDatabase where databaseid=2"), equalTo(1));
+    }
+
     @Test
     @OnDataSet("/dbunit/locations.db.xml")
     public void locationsAreChunked() throws SQLException, InterruptedException {
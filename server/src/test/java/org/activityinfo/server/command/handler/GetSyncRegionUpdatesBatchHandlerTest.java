@@ -0,0 +1,79 @@
+package org.activityinfo.server.command.handler;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.inject.Inject;
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.fixtures.MockHibernateModule;
+import org.activityinfo.fixtures.Modules;
+import org.activityinfo.legacy.shared.command.GetSyncRegionUpdates;
+import org.activityinfo.legacy.shared.command.GetSyncRegionUpdatesBatch;
+import org.activityinfo.legacy.shared.command.result.SyncRegionUpdateBatch;
+import org.activityinfo.server.database.OnDataSet;
+import org.activityinfo.server.database.hibernate.entity.User;
+import org.activityinfo.server.util.logging.LoggingModule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(InjectionSupport.class)
+@Modules({
+        MockHibernateModule.class,
+        LoggingModule.class
+})
+public class GetSyncRegionUpdatesBatchHandlerTest {
+
+    @Inject
+    private GetSyncRegionUpdatesBatchHandler handler;
+
+    @Test
+    @OnDataSet("/dbunit/sites-simple1.db.xml")
+    public void allRegionsWithinBudget() throws Exception {
+        SyncRegionUpdateBatch result = (SyncRegionUpdateBatch) handler.execute(locationBatch(), new User());
+
+        assertThat(result.getUpdates().size(), equalTo(2));
+        assertThat(result.getUpdates().get(0).getSql(), containsString("Shabunda"));
+    }
+
+    @Test
+    @OnDataSet("/dbunit/sites-simple1.db.xml")
+    public void stopsAtBudget() throws Exception {
+        GetSyncRegionUpdatesBatch batch = locationBatch();
+        batch.setMaxBytes(1);
+
+        SyncRegionUpdateBatch result = (SyncRegionUpdateBatch) handler.execute(batch, new User());
+
+        // always at least one update, so that the client makes progress
+        assertThat(result.getUpdates().size(), equalTo(1));
+    }
+
+    private GetSyncRegionUpdatesBatch locationBatch() {
+        GetSyncRegionUpdatesBatch batch = new GetSyncRegionUpdatesBatch();
+        batch.add(new GetSyncRegionUpdates("location/3", null));
+        batch.add(new GetSyncRegionUpdates("location/1", null));
+        return batch;
+    }
+}
@@ -0,0 +1,157 @@
+package org.activityinfo.server.command.handler;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.fixtures.MockHibernateModule;
+import org.activityinfo.fixtures.Modules;
+import org.activityinfo.legacy.shared.command.GetSyncRegions;
+import org.activityinfo.legacy.shared.command.result.SyncRegion;
+import org.activityinfo.legacy.shared.command.result.SyncRegions;
+import org.activityinfo.server.database.OnDataSet;
+import org.activityinfo.server.database.hibernate.entity.User;
+import org.activityinfo.server.util.logging.LoggingModule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.persistence.EntityManager;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * The versions are maintained by the triggers on the site and location tables, so these
+ * tests write to the tables directly.
+ */
+@RunWith(InjectionSupport.class)
+@Modules({
+        MockHibernateModule.class,
+        LoggingModule.class
+})
+public class GetSyncRegionsHandlerTest {
+
+    @Inject
+    private GetSyncRegionsHandler handler;
+
+    @Inject
+    private EntityManager em;
+
+    @Test
+    @OnDataSet("/dbunit/sites-simple1.db.xml")
+    public void versionsOfLoadedSitesAndLocations() throws Exception {
+        Map<String, String> versions = listVersions();
+
+        assertThat(versions.get("form-submissions/1"), equalTo("330"));
+        assertThat(versions.get("form-submissions/2"), equalTo("530"));
+        assertThat(versions.get("form-submissions/3"), equalTo("420"));
+        assertThat(versions.get("form-submissions/4"), equalTo("660"));
+        assertThat(versions.get("location/1"), equalTo("500"));
+        assertThat(versions.get("location/2"), equalTo("400"));
+        assertThat(versions.get("location/3"), equalTo("600"));
+
+        // no sites
+        assertThat(versions.get("form-submissions/5"), nullValue());
+    }
+
+    @Test
+    @OnDataSet("/dbunit/sites-simple1.db.xml")
+    public void versionsFollowWrites() throws Exception {
+        em.getTransaction().begin();
+        update("UPDATE site SET timeEdited = 1000 WHERE SiteId = 1");
+        update("UPDATE site SET timeEdited = 100 WHERE SiteId = 6");
+        update("UPDATE site SET hasHistory = 1 WHERE SiteId = 4");
+        update("UPDATE location SET timeEdited = 2000 WHERE LocationId = 9");
+        update("UPDATE location SET name = 'Boga II' WHERE LocationId = 4");
+        update("INSERT INTO site (SiteId, ActivityId, LocationId, PartnerId, Date1, Date2, " +
+               "DateCreated, DateEdited, timeEdited) " +
+               "VALUES (10, 5, 1, 1, '2009-01-01', '2009-01-31', '2009-02-01', '2009-02-01', 1500)");
+        em.getTransaction().commit();
+
+        Map<String, String> versions = listVersions();
+
+        assertThat(versions.get("form-submissions/1"), equalTo("1000"));
+        // versions never go back
+        assertThat(versions.get("form-submissions/4"), equalTo("660"));
+        assertThat(versions.get("form-submissions/2"), equalTo("530"));
+        assertThat(versions.get("form-submissions/5"), equalTo("1500"));
+        assertThat(versions.get("location/2"), equalTo("2000"));
+        assertThat(versions.get("location/1"), equalTo("500"));
+    }
+
+    @Test
+    @OnDataSet("/dbunit/sites-simple1.db.xml")
+    public void locationRegionListedOnceUsedBySite() throws Exception {
+        em.getTransaction().begin();
+        update("INSERT INTO locationtype (LocationTypeId, CountryId, Name, reuse) VALUES (4, 1, 'Ecole', 1)");
+        update("INSERT INTO location (LocationId, LocationTypeId, Name, timeEdited) VALUES (10, 4, 'EP Kalehe', 700)");
+        em.getTransaction().commit();
+
+        assertThat(listVersions().get("location/4"), nullValue());
+
+        em.getTransaction().begin();
+        update("UPDATE site SET LocationId = 10, timeEdited = 800 WHERE SiteId = 7");
+        em.getTransaction().commit();
+
+        Map<String, String> versions = listVersions();
+        assertThat(versions.get("location/4"), equalTo("700"));
+        assertThat(versions.get("form-submissions/4"), equalTo("800"));
+
+        em.getTransaction().begin();
+        update("UPDATE location SET timeEdited = 900 WHERE LocationId = 10");
+        em.getTransaction().commit();
+
+        assertThat(listVersions().get("location/4"), equalTo("900"));
+    }
+
+    @Test
+    @OnDataSet("/dbunit/sites-simple1.db.xml")
+    public void movesUpdateBothRegions() throws Exception {
+        em.getTransaction().begin();
+        update("UPDATE site SET ActivityId = 2, timeEdited = 700 WHERE SiteId = 6");
+        update("UPDATE location SET LocationTypeId = 3, timeEdited = 800 WHERE LocationId = 9");
+        em.getTransaction().commit();
+
+        Map<String, String> versions = listVersions();
+        assertThat(versions.get("form-submissions/2"), equalTo("700"));
+        assertThat(versions.get("form-submissions/4"), equalTo("700"));
+        assertThat(versions.get("location/2"), equalTo("800"));
+        assertThat(versions.get("location/3"), equalTo("800"));
+    }
+
+    private void update(String sql) {
+        em.createNativeQuery(sql).executeUpdate();
+    }
+
+    private Map<String, String> listVersions() throws Exception {
+        SyncRegions regions = (SyncRegions) handler.execute(new GetSyncRegions(), new User());
+        Map<String, String> versions = Maps.newHashMap();
+        for (SyncRegion region : regions) {
+            versions.put(region.getId(), region.getCurrentVersion());
+        }
+        return versions;
+    }
+}
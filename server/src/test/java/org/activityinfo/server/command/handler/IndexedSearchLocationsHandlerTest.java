@@ -0,0 +1,116 @@
+package org.activityinfo.server.command.handler;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.fixtures.Modules;
+import org.activityinfo.legacy.shared.command.SearchLocations;
+import org.activityinfo.legacy.shared.command.result.LocationResult;
+import org.activityinfo.legacy.shared.model.LocationDTO;
+import org.activityinfo.server.command.CommandTestCase2;
+import org.activityinfo.server.database.OnDataSet;
+import org.activityinfo.server.geo.GeometryModule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(InjectionSupport.class)
+@Modules({GeometryModule.class})
+@OnDataSet("/dbunit/location-search.db.xml")
+public class IndexedSearchLocationsHandlerTest extends CommandTestCase2 {
+
+    private static final int VILLAGE_TYPE_ID = 1;
+    private static final int CAMP_TYPE_ID = 2;
+    private static final int SUD_KIVU = 2;
+
+    @Test
+    public void validatedLocationsAreRanked() {
+        LocationResult result = execute(new SearchLocations()
+                .setLocationTypeId(VILLAGE_TYPE_ID)
+                .setName("kal"));
+
+        assertThat(names(result), contains("Kalehe", "Kâlungu", "Bukavu Kalembe", "Nyakalonge", "Goma"));
+        assertThat(result.getTotalLength(), equalTo(5));
+    }
+
+    @Test
+    public void filteredByAdminEntity() {
+        LocationResult result = execute(new SearchLocations()
+                .setLocationTypeId(VILLAGE_TYPE_ID)
+                .setAdminEntityIds(asList(SUD_KIVU))
+                .setName("kal"));
+
+        assertThat(names(result), contains("Kalehe", "Bukavu Kalembe", "Nyakalonge"));
+    }
+
+    @Test
+    public void paged() {
+        LocationResult result = execute(new SearchLocations()
+                .setLocationTypeId(VILLAGE_TYPE_ID)
+                .setName("kal")
+                .setOffset(1)
+                .setLimit(2));
+
+        assertThat(names(result), contains("Kâlungu", "Bukavu Kalembe"));
+        assertThat(result.getOffset(), equalTo(1));
+        assertThat(result.getTotalLength(), equalTo(5));
+    }
+
+    @Test
+    public void tooManyMatchesAreNotListed() {
+        LocationResult result = execute(new SearchLocations()
+                .setLocationTypeId(CAMP_TYPE_ID)
+                .setName("camp"));
+
+        assertThat(names(result), empty());
+        assertThat(result.getTotalLength(), equalTo(30));
+    }
+
+    @Test
+    public void tooManyMatchesArePagedWhenLimited() {
+        LocationResult result = execute(new SearchLocations()
+                .setLocationTypeId(CAMP_TYPE_ID)
+                .setName("camp")
+                .setOffset(25)
+                .setLimit(10));
+
+        assertThat(result.getData().size(), equalTo(5));
+        assertThat(result.getTotalLength(), equalTo(30));
+    }
+
+    private static List<String> names(LocationResult result) {
+        List<String> names = Lists.newArrayList();
+        for (LocationDTO location : result.getData()) {
+            names.add(location.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,100 @@
+package org.activityinfo.server.command.handler.pivot;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.activityinfo.legacy.shared.command.DimensionType;
+import org.activityinfo.legacy.shared.command.Filter;
+import org.activityinfo.legacy.shared.command.PivotSites;
+import org.activityinfo.legacy.shared.reports.model.AdminDimension;
+import org.activityinfo.legacy.shared.reports.model.DateDimension;
+import org.activityinfo.legacy.shared.reports.model.DateUnit;
+import org.activityinfo.legacy.shared.reports.model.Dimension;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CubeIndicatorValuesTest {
+
+    private final CubeIndicatorValues cube = new CubeIndicatorValues();
+
+    @Test
+    public void rollUpOfGrain() {
+        PivotSites command = new PivotSites();
+        command.setDimensions(new Dimension(DimensionType.Indicator),
+                new Dimension(DimensionType.Partner),
+                new DateDimension(DateUnit.QUARTER),
+                new AdminDimension(1));
+        command.setFilter(Filter.filter().onDatabase(1));
+
+        assertTrue(cube.accept(command));
+    }
+
+    @Test
+    public void finerThanGrain() {
+        PivotSites command = new PivotSites();
+        command.setDimensions(new Dimension(DimensionType.Indicator), new Dimension(DimensionType.Site));
+        command.setFilter(Filter.filter().onDatabase(1));
+
+        assertFalse(cube.accept(command));
+
+        command.setDimensions(new Dimension(DimensionType.Indicator), new DateDimension(DateUnit.DAY));
+        assertFalse(cube.accept(command));
+
+        command.setDimensions(new Dimension(DimensionType.Indicator), new AdminDimension(1), new AdminDimension(2));
+        assertFalse(cube.accept(command));
+    }
+
+    @Test
+    public void incompatibleFilter() {
+        PivotSites command = new PivotSites();
+        command.setDimensions(new Dimension(DimensionType.Indicator));
+        command.setFilter(Filter.filter().onSite(1));
+
+        assertFalse(cube.accept(command));
+    }
+
+    @Test
+    public void dateRangeAlignedToMonths() {
+        PivotSites command = new PivotSites();
+        command.setDimensions(new Dimension(DimensionType.Indicator));
+
+        Filter filter = Filter.filter().onActivity(1);
+        filter.setMinDate(date(2014, Calendar.JANUARY, 1));
+        filter.setMaxDate(date(2014, Calendar.FEBRUARY, 28));
+        command.setFilter(filter);
+
+        assertTrue(cube.accept(command));
+
+        filter.setMaxDate(date(2014, Calendar.FEBRUARY, 15));
+        assertFalse(cube.accept(command));
+    }
+
+    private static Date date(int year, int month, int day) {
+        return new GregorianCalendar(year, month, day).getTime();
+    }
+}
@@ -0,0 +1,57 @@
+package org.activityinfo.server.command.handler.pivot;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import org.activityinfo.legacy.shared.impl.PivotSitesHandler;
+import org.activityinfo.server.database.TestConnectionProvider;
+import org.activityinfo.server.util.config.DeploymentConfiguration;
+
+import java.util.Properties;
+
+/**
+ * Binds the server-side pivot handler, with a {@link PivotQueryExecutor}
+ * forking queries to its own connections to the test database.
+ */
+public class ForkedPivotModuleStub extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(PivotSitesHandler.class).to(ServerPivotSitesHandler.class);
+    }
+
+    @Provides
+    @Singleton
+    public PivotQueryExecutor provideExecutor() {
+        Properties properties = new Properties();
+        properties.setProperty(PivotQueryExecutor.CONNECTIONS_PROPERTY, "2");
+        properties.setProperty(PivotQueryExecutor.TIMEOUT_PROPERTY, "30");
+        properties.setProperty("hibernate.connection.driver_class", "com.mysql.jdbc.Driver");
+        properties.setProperty("hibernate.connection.url", TestConnectionProvider.databaseUrl());
+        properties.setProperty("hibernate.connection.username", TestConnectionProvider.USERNAME);
+        properties.setProperty("hibernate.connection.password", TestConnectionProvider.PASSWORD);
+        return new PivotQueryExecutor(new DeploymentConfiguration(properties));
+    }
+}
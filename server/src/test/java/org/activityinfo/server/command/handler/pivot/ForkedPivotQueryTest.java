@@ -0,0 +1,127 @@
+package org.activityinfo.server.command.handler.pivot;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import org.activityinfo.legacy.shared.command.PivotSites;
+import org.activityinfo.legacy.shared.command.result.Bucket;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ForkedPivotQueryTest {
+
+    private final ForkingPivotQueryContext queryContext = new ForkingPivotQueryContext(new PivotSites(), null, null);
+
+    @After
+    public void clearInterrupt() {
+        Thread.interrupted();
+    }
+
+    @Test
+    public void failureCancelsSiblings() {
+        SettableFuture<List<Bucket>> failing = fork();
+        SettableFuture<List<Bucket>> sibling = fork();
+
+        failing.setException(new RuntimeException("query failed"));
+
+        Callback callback = new Callback();
+        query(failing, 30).execute(callback);
+
+        assertNotNull(callback.caught);
+        assertTrue(sibling.isCancelled());
+    }
+
+    @Test
+    public void timeoutCancelsSiblings() {
+        SettableFuture<List<Bucket>> slow = fork();
+        SettableFuture<List<Bucket>> sibling = fork();
+
+        Callback callback = new Callback();
+        query(slow, 0).execute(callback);
+
+        assertNotNull(callback.caught);
+        assertTrue(slow.isCancelled());
+        assertTrue(sibling.isCancelled());
+    }
+
+    @Test
+    public void interruptIsRestored() {
+        SettableFuture<List<Bucket>> pending = fork();
+        SettableFuture<List<Bucket>> sibling = fork();
+
+        Thread.currentThread().interrupt();
+
+        Callback callback = new Callback();
+        query(pending, 30).execute(callback);
+
+        assertNotNull(callback.caught);
+        assertTrue(Thread.currentThread().isInterrupted());
+        assertTrue(pending.isCancelled());
+        assertTrue(sibling.isCancelled());
+    }
+
+    @Test
+    public void bucketsAreMerged() {
+        SettableFuture<List<Bucket>> done = fork();
+        done.set(Lists.newArrayList(new Bucket(42)));
+
+        Callback callback = new Callback();
+        query(done, 30).execute(callback);
+
+        assertTrue(callback.succeeded);
+        assertEquals(1, queryContext.getBuckets().size());
+    }
+
+    private SettableFuture<List<Bucket>> fork() {
+        SettableFuture<List<Bucket>> future = SettableFuture.create();
+        queryContext.addForkedQuery(future);
+        return future;
+    }
+
+    private ForkedPivotQuery query(SettableFuture<List<Bucket>> future, long timeoutSeconds) {
+        return new ForkedPivotQuery(queryContext, new CubeIndicatorValues(), future, timeoutSeconds);
+    }
+
+    private static class Callback implements AsyncCallback<Void> {
+        private Throwable caught;
+        private boolean succeeded;
+
+        @Override
+        public void onFailure(Throwable caught) {
+            this.caught = caught;
+        }
+
+        @Override
+        public void onSuccess(Void result) {
+            this.succeeded = true;
+        }
+    }
+}
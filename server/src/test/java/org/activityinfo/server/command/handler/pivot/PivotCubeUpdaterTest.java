@@ -0,0 +1,180 @@
+package org.activityinfo.server.command.handler.pivot;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.legacy.shared.command.Filter;
+import org.activityinfo.server.command.CommandTestCase2;
+import org.activityinfo.server.database.OnDataSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(InjectionSupport.class)
+@OnDataSet("/dbunit/sites-simple1.db.xml")
+public class PivotCubeUpdaterTest extends CommandTestCase2 {
+
+    private static final int NFI_ACTIVITY_ID = 1;
+
+    @Inject
+    private PivotCubeUpdater updater;
+
+    @Inject
+    private Provider<Connection> connectionProvider;
+
+    @Test
+    public void lateCommitsAreApplied() throws SQLException {
+        Filter filter = Filter.filter().onActivity(NFI_ACTIVITY_ID);
+
+        assertTrue(updater.build(NFI_ACTIVITY_ID));
+        assertTrue(updater.refresh(filter));
+        assertCubeMatchesSites();
+
+        // Site 1 is edited by a transaction which stamped it long before the refresh
+        // but only committed after it
+        update("UPDATE indicatorvalue SET Value = 2500 WHERE ReportingPeriodId = 1 AND IndicatorId = 1");
+        update("UPDATE site SET timeEdited = 1 WHERE SiteId = 1");
+
+        assertTrue(updater.refresh(filter));
+        assertCubeMatchesSites();
+        assertEquals(0, count("SELECT COUNT(*) FROM pivotcubechange"));
+    }
+
+    @Test
+    public void changesAreQueuedOnlyOnceTheSliceExists() throws SQLException {
+        update("UPDATE site SET timeEdited = 400 WHERE SiteId = 1");
+        assertEquals(0, count("SELECT COUNT(*) FROM pivotcubechange"));
+
+        assertTrue(updater.build(NFI_ACTIVITY_ID));
+        assertEquals(0, count("SELECT COUNT(*) FROM pivotcubechange"));
+
+        update("UPDATE site SET timeEdited = 410 WHERE SiteId = 1");
+        assertEquals(1, count("SELECT COUNT(*) FROM pivotcubechange WHERE ActivityId = " + NFI_ACTIVITY_ID));
+    }
+
+    @Test
+    public void partnerChangesAndDeletionsAreApplied() throws SQLException {
+        Filter filter = Filter.filter().onActivity(NFI_ACTIVITY_ID);
+
+        assertTrue(updater.build(NFI_ACTIVITY_ID));
+
+        // Site 2 moves from NRC to Solidarites, and site 3 is deleted
+        update("UPDATE site SET PartnerId = 2, timeEdited = 400 WHERE SiteId = 2");
+        update("UPDATE site SET DateDeleted = '2009-03-01', timeEdited = 410 WHERE SiteId = 3");
+
+        assertTrue(updater.refresh(filter));
+        assertCubeMatchesSites();
+    }
+
+    @Test
+    public void locationEditsAfterRefreshAreApplied() throws SQLException {
+        Filter filter = Filter.filter().onActivity(NFI_ACTIVITY_ID);
+
+        assertTrue(updater.build(NFI_ACTIVITY_ID));
+
+        // Boga is moved from Ituri to Sud Kivu
+        update("UPDATE locationadminlink SET AdminEntityId = 2 WHERE LocationId = 3 AND AdminEntityId = 4");
+        update("UPDATE location SET timeEdited = 350 WHERE LocationId = 3");
+
+        assertTrue(updater.refresh(filter));
+        assertCubeMatchesSites();
+    }
+
+    private void assertCubeMatchesSites() throws SQLException {
+        assertEquals(
+                query("SELECT Site.PartnerId, V.IndicatorId, 0, 0, LAST_DAY(Period.Date2), SUM(V.Value) " +
+                      "FROM indicatorvalue V " +
+                      "INNER JOIN reportingperiod Period ON (Period.ReportingPeriodId = V.ReportingPeriodId) " +
+                      "INNER JOIN site Site ON (Period.SiteId = Site.SiteId) " +
+                      "WHERE Site.ActivityId = " + NFI_ACTIVITY_ID + " AND Site.DateDeleted IS NULL " +
+                      "GROUP BY Site.PartnerId, V.IndicatorId, LAST_DAY(Period.Date2) " +
+                      "UNION ALL " +
+                      "SELECT Site.PartnerId, V.IndicatorId, E.AdminLevelId, E.AdminEntityId, " +
+                      "LAST_DAY(Period.Date2), SUM(V.Value) " +
+                      "FROM indicatorvalue V " +
+                      "INNER JOIN reportingperiod Period ON (Period.ReportingPeriodId = V.ReportingPeriodId) " +
+                      "INNER JOIN site Site ON (Period.SiteId = Site.SiteId) " +
+                      "INNER JOIN locationadminlink Link ON (Link.LocationId = Site.LocationId) " +
+                      "INNER JOIN adminentity E ON (E.AdminEntityId = Link.AdminEntityId) " +
+                      "WHERE Site.ActivityId = " + NFI_ACTIVITY_ID + " AND Site.DateDeleted IS NULL " +
+                      "GROUP BY Site.PartnerId, V.IndicatorId, E.AdminLevelId, E.AdminEntityId, " +
+                      "LAST_DAY(Period.Date2)"),
+                query("SELECT PartnerId, IndicatorId, AdminLevelId, AdminEntityId, PeriodEnd, Total " +
+                      "FROM pivotcube " +
+                      "WHERE ActivityId = " + NFI_ACTIVITY_ID + " AND (AdminLevelId = 0 OR AdminEntityId <> 0)"));
+    }
+
+    private Map<String, Double> query(String sql) throws SQLException {
+        Map<String, Double> totals = Maps.newHashMap();
+        Connection connection = connectionProvider.get();
+        try {
+            Statement statement = connection.createStatement();
+            ResultSet rs = statement.executeQuery(sql);
+            while (rs.next()) {
+                String key = rs.getInt(1) + "/" + rs.getInt(2) + "/" + rs.getInt(3) + "/" + rs.getInt(4) + "/" +
+                             rs.getDate(5);
+                totals.put(key, rs.getDouble(6));
+            }
+            statement.close();
+        } finally {
+            connection.close();
+        }
+        return totals;
+    }
+
+    private int count(String sql) throws SQLException {
+        Connection connection = connectionProvider.get();
+        try {
+            Statement statement = connection.createStatement();
+            ResultSet rs = statement.executeQuery(sql);
+            rs.next();
+            int count = rs.getInt(1);
+            statement.close();
+            return count;
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void update(String sql) throws SQLException {
+        Connection connection = connectionProvider.get();
+        try {
+            Statement statement = connection.createStatement();
+            statement.executeUpdate(sql);
+            statement.close();
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.activityinfo.server.command.handler.pivot;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.fixtures.Modules;
+import org.activityinfo.legacy.shared.command.PivotSitesHandlerTest;
+import org.activityinfo.server.database.OnDataSet;
+import org.junit.runner.RunWith;
+
+/**
+ * Runs the pivot tests against the server-side handler as configured by default,
+ * with calculated indicators aggregated by {@link StreamingCalculatedIndicatorsQuery}
+ * and base table queries executed on the command's own connection.
+ */
+@RunWith(InjectionSupport.class)
+@Modules({PivotModule.class})
+@OnDataSet("/dbunit/sites-simple1.db.xml")
+public class StreamingPivotSitesHandlerTest extends PivotSitesHandlerTest {
+
+}
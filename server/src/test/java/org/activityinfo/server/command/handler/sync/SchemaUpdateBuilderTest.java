@@ -30,6 +30,7 @@ import org.activityinfo.legacy.shared.command.GetSyncRegionUpdates;
 import org.activityinfo.legacy.shared.command.result.SyncRegionUpdate;
 import org.activityinfo.server.database.OnDataSet;
 import org.activityinfo.server.database.hibernate.entity.User;
+import org.activityinfo.server.database.hibernate.entity.UserDatabase;
 import org.activityinfo.server.endpoint.gwtrpc.GwtRpcModule;
 import org.activityinfo.server.util.logging.LoggingModule;
 import org.json.JSONException;
@@ -38,8 +39,14 @@ import org.junit.runner.RunWith;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import java.util.Date;
 import java.util.concurrent.TimeUnit;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
 /**
  * @author yuriyz on 01/22/2015.
  */
@@ -81,4 +88,27 @@ public class SchemaUpdateBuilderTest {
 //        System.out.println(statistics.getSessionOpenCount());
 
     }
+
+    @Test
+    public void onlyChangedDatabasesAreSent() throws JSONException {
+        EntityManager em = emFactory.createEntityManager();
+        User user = em.find(User.class, USER_ID);
+
+        SyncRegionUpdate initial = new SchemaUpdateBuilder(emFactory).build(user, new GetSyncRegionUpdates());
+        assertThat(initial.getSql(), containsString("PEAR Plus"));
+        assertThat(initial.getSql(), containsString("Alpha"));
+
+        SyncRegionUpdate upToDate = new SchemaUpdateBuilder(emFactory).build(user,
+                new GetSyncRegionUpdates("schema", initial.getVersion()));
+        assertThat(upToDate.getSql(), nullValue());
+
+        em.getTransaction().begin();
+        em.find(UserDatabase.class, 3).setLastSchemaUpdate(new Date());
+        em.getTransaction().commit();
+
+        SyncRegionUpdate update = new SchemaUpdateBuilder(emFactory).build(user,
+                new GetSyncRegionUpdates("schema", initial.getVersion()));
+        assertThat(update.getSql(), containsString("Alpha"));
+        assertThat(update.getSql(), not(containsString("PEAR Plus")));
+    }
 }
@@ -26,6 +26,7 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import org.activityinfo.legacy.shared.command.GetSyncRegionUpdates;
 import org.activityinfo.legacy.shared.command.result.SyncRegionUpdate;
+import org.activityinfo.legacy.shared.command.result.SyncTable;
 import org.activityinfo.fixtures.InjectionSupport;
 import org.activityinfo.fixtures.MockHibernateModule;
 import org.activityinfo.fixtures.Modules;
@@ -90,4 +91,66 @@ public class SiteUpdateBuilderTest {
         assertThat(subsequentUpdate.getVersion(),
                 equalTo(initialUpdate.getVersion()));
     }
+
+    @Test
+    @OnDataSet("/dbunit/sites-simple1.db.xml")
+    public void columnarUpdate() throws Exception {
+
+        User user = new User();
+        user.setId(1);
+
+        GetSyncRegionUpdates request = new GetSyncRegionUpdates("sites/1/1", null);
+        request.setColumnar(true);
+
+        SyncRegionUpdate update = builder.get().build(user, request);
+        assertThat(update.isComplete(), equalTo(true));
+        assertThat(update.getSql(), not(containsString("INSERT")));
+
+        SyncTable sites = null;
+        for (SyncTable table : update.getTables()) {
+            if (table.getTableName().equals("site")) {
+                sites = table;
+            }
+        }
+        assertThat(sites, not(nullValue()));
+        assertThat(sites.insertStatement(), containsString("INSERT OR REPLACE INTO site ("));
+
+        Object[][] rows = sites.decodeRows();
+        assertThat(rows.length, equalTo(sites.getRowCount()));
+        assertThat(rows[0][0], instanceOf(Integer.class));
+    }
+
+    @Test
+    @OnDataSet("/dbunit/sites-simple1.db.xml")
+    public void chunking() throws Exception {
+
+        // sites 1 and 2 were both edited at time 3, site 3 at time 330
+        EntityManager em = emf.createEntityManager();
+        SiteUpdateBuilder builder = new SiteUpdateBuilder(em, 1);
+        User user = new User();
+        user.setId(1);
+
+        GetSyncRegionUpdates request = new GetSyncRegionUpdates("sites/1", null);
+        SyncRegionUpdate update = builder.build(user, request);
+        assertThat(update.isComplete(), equalTo(false));
+        assertThat(update.getVersion(), equalTo("3:1"));
+        assertThat(update.getSql(), containsString("booyah"));
+
+        request.setLocalVersion(update.getVersion());
+        update = builder.build(user, request);
+        assertThat(update.isComplete(), equalTo(false));
+        assertThat(update.getVersion(), equalTo("3:2"));
+        assertThat(update.getSql(), not(containsString("booyah")));
+
+        request.setLocalVersion(update.getVersion());
+        update = builder.build(user, request);
+        assertThat(update.isComplete(), equalTo(true));
+        assertThat(update.getVersion(), equalTo("330"));
+
+        request.setLocalVersion(update.getVersion());
+        update = builder.build(user, request);
+        assertThat(update.isComplete(), equalTo(true));
+        assertThat(update.getVersion(), equalTo("330"));
+        assertThat(update.getSql(), nullValue());
+    }
 }
@@ -133,6 +133,13 @@ public class TestConnectionProvider implements ConnectionProvider, Provider<Conn
         }
     }
     
+    /**
+     * @return the JDBC url of the test database, for components which open their own connections
+     */
+    public static String databaseUrl() {
+        return connectionUrl(DATABASE_NAME);
+    }
+
     private static String connectionUrl(String dbName) {
         return String.format("jdbc:mysql://localhost/%s?useUnicode=true&characterEncoding=UTF-8", dbName);
     }
@@ -31,6 +31,7 @@ import org.activityinfo.server.database.OnDataSet;
 import org.activityinfo.server.database.TestDatabaseModule;
 import org.activityinfo.server.database.hibernate.entity.User;
 import org.activityinfo.server.database.hibernate.entity.UserDatabase;
+import org.activityinfo.server.digest.DatabaseDigestKey;
 import org.activityinfo.server.digest.TestDigestModule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -142,4 +143,16 @@ public class GeoDigestModelBuilderTest {
         assertTrue(sites.contains(1));
         assertTrue(sites.contains(2));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testUsersOfTheSamePartnerShareVisibility() {
+        UserDatabase db = em.find(UserDatabase.class, 1);
+        int owner = geoDigestModelBuilder.findVisibility(em.find(User.class, 1), db);
+        int partnerUser = geoDigestModelBuilder.findVisibility(em.find(User.class, 3), db);
+        int samePartnerUser = geoDigestModelBuilder.findVisibility(em.find(User.class, 4), db);
+
+        assertThat(owner, is(equalTo(DatabaseDigestKey.ALL_PARTNERS)));
+        assertThat(partnerUser, is(equalTo(1)));
+        assertThat(samePartnerUser, is(equalTo(partnerUser)));
+    }
+}
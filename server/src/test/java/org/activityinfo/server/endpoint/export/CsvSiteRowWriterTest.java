@@ -0,0 +1,100 @@
+package org.activityinfo.server.endpoint.export;
+
+import com.google.common.collect.Lists;
+import com.teklabs.gwt.i18n.server.LocaleProxy;
+import org.activityinfo.i18n.shared.I18N;
+import org.activityinfo.legacy.shared.model.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CsvSiteRowWriterTest {
+
+    @Test
+    public void valuesAreQuoted() throws IOException {
+        LocaleProxy.initialize();
+
+        ActivityDTO activity = activity();
+        SiteColumns columns = new SiteColumns(activity);
+
+        StringWriter out = new StringWriter();
+        CsvSiteRowWriter writer = new CsvSiteRowWriter(out);
+        writer.startActivity(activity, columns);
+
+        SiteRow row = new SiteRow(columns);
+        row.setSiteId(1);
+        row.setDateCreated(new Date(0));
+        row.setPartnerName("NRC, \"Goma\"");
+        row.setLocationName("Goma");
+        row.setIndicatorValue(0, 42d);
+        row.setIndicatorValue(1, Double.NaN);
+        row.setAttributeValue(1, true);
+        row.setAdminEntity(0, "NK", "Nord Kivu");
+        row.setLatLong(-1.5, 29.25);
+        row.setComments("line 1\nline 2");
+        writer.writeRow(row);
+
+        row.clear();
+        row.setSiteId(2);
+        row.setDateCreated(null);
+        row.setPartnerName("UNICEF");
+        row.setLocationName("Bukavu");
+        row.setAdminEntity(0, null, null);
+        row.setLatLong(null, null);
+        row.setComments(null);
+        writer.writeRow(row);
+        writer.close();
+
+        String csv = out.toString();
+        String header = "\"SiteId\",\"DateCreated\",\"Date1\",\"Date2\",\"Partner\",\"Village\",\"Axe\"," +
+                "\"Kits, \"\"distributed\"\"\",\"Ratio\",\"War\",\"Flood\",\"Code Province\",\"Province\"," +
+                "\"" + I18N.CONSTANTS.longitude() + "\"," +
+                "\"" + I18N.CONSTANTS.latitude() + "\"," +
+                "\"" + I18N.CONSTANTS.comments() + "\"\n";
+
+        assertTrue(csv.startsWith(header));
+        assertEquals(
+                "1,1970-01-01T00:00:00Z,,,\"NRC, \"\"Goma\"\"\",\"Goma\",,42.0,,0,1,\"NK\",\"Nord Kivu\"," +
+                        "29.25,-1.5,\"line 1\nline 2\"\n" +
+                "2,,,,\"UNICEF\",\"Bukavu\",,,,0,0,,,,,\n",
+                csv.substring(header.length()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void singleActivity() throws IOException {
+        LocaleProxy.initialize();
+
+        ActivityDTO activity = activity();
+        CsvSiteRowWriter writer = new CsvSiteRowWriter(new StringWriter());
+        writer.startActivity(activity, new SiteColumns(activity));
+        writer.startActivity(activity, new SiteColumns(activity));
+    }
+
+    private ActivityDTO activity() {
+        ActivityDTO activity = new ActivityDTO(33, "Distribution");
+        activity.setDatabase(new UserDatabaseDTO(0, "Database"));
+
+        IndicatorDTO kits = new IndicatorDTO("Kits, \"distributed\"", "kits");
+        kits.setId(11);
+        IndicatorDTO ratio = new IndicatorDTO("Ratio", "%");
+        ratio.setId(12);
+        activity.getIndicators().add(kits);
+        activity.getIndicators().add(ratio);
+
+        AttributeGroupDTO cause = new AttributeGroupDTO(90);
+        cause.setName("Cause");
+        cause.setAttributes(Lists.newArrayList(new AttributeDTO(91, "War"), new AttributeDTO(92, "Flood")));
+        activity.getAttributeGroups().add(cause);
+
+        LocationTypeDTO locationType = new LocationTypeDTO(1, "Village");
+        locationType.setAdminLevels(Lists.newArrayList(new AdminLevelDTO(5, "Province")));
+        activity.setLocationType(locationType);
+
+        return activity;
+    }
+}
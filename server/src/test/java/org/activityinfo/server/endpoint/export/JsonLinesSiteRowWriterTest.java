@@ -0,0 +1,87 @@
+package org.activityinfo.server.endpoint.export;
+
+import com.google.common.collect.Lists;
+import org.activityinfo.legacy.shared.model.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonLinesSiteRowWriterTest {
+
+    @Test
+    public void oneObjectPerLine() throws IOException {
+        ActivityDTO activity = activity();
+        SiteColumns columns = new SiteColumns(activity);
+
+        StringWriter out = new StringWriter();
+        JsonLinesSiteRowWriter writer = new JsonLinesSiteRowWriter(out);
+        writer.startActivity(activity, columns);
+
+        SiteRow row = new SiteRow(columns);
+        row.setSiteId(1);
+        row.setPartnerName("NRC");
+        row.setLocationName("Goma");
+        row.setIndicatorValue(0, 42d);
+        row.setIndicatorValue(1, Double.NaN);
+        row.setAttributeValue(1, true);
+        row.setAdminEntity(0, "NK", "Nord \"Kivu\"");
+        row.setComments("line 1\nline 2");
+        writer.writeRow(row);
+
+        row.clear();
+        row.setSiteId(2);
+        row.setPartnerName("UNICEF");
+        row.setLocationName("Bukavu");
+        row.setAdminEntity(0, null, null);
+        row.setComments(null);
+        writer.writeRow(row);
+        writer.close();
+
+        String[] lines = out.toString().split("\n", -1);
+        assertEquals(3, lines.length);
+        assertEquals("", lines[2]);
+
+        assertEquals("{\"id\":1,\"activity\":33,\"database\":0," +
+                        "\"location\":{\"name\":\"Goma\",\"code\":null}," +
+                        "\"partner\":{\"name\":\"NRC\"}," +
+                        "\"attributes\":[92]," +
+                        "\"indicatorValues\":{\"11\":42.0}," +
+                        "\"adminEntities\":{\"5\":{\"code\":\"NK\",\"name\":\"Nord \\\"Kivu\\\"\"}}," +
+                        "\"comments\":\"line 1\\nline 2\"}",
+                lines[0]);
+
+        assertEquals("{\"id\":2,\"activity\":33,\"database\":0," +
+                        "\"location\":{\"name\":\"Bukavu\",\"code\":null}," +
+                        "\"partner\":{\"name\":\"UNICEF\"}," +
+                        "\"attributes\":[]," +
+                        "\"indicatorValues\":{}," +
+                        "\"adminEntities\":{}}",
+                lines[1]);
+    }
+
+    private ActivityDTO activity() {
+        ActivityDTO activity = new ActivityDTO(33, "Distribution");
+        activity.setDatabase(new UserDatabaseDTO(0, "Database"));
+
+        IndicatorDTO kits = new IndicatorDTO("Kits", "kits");
+        kits.setId(11);
+        IndicatorDTO ratio = new IndicatorDTO("Ratio", "%");
+        ratio.setId(12);
+        activity.getIndicators().add(kits);
+        activity.getIndicators().add(ratio);
+
+        AttributeGroupDTO cause = new AttributeGroupDTO(90);
+        cause.setName("Cause");
+        cause.setAttributes(Lists.newArrayList(new AttributeDTO(91, "War"), new AttributeDTO(92, "Flood")));
+        activity.getAttributeGroups().add(cause);
+
+        LocationTypeDTO locationType = new LocationTypeDTO(1, "Village");
+        locationType.setAdminLevels(Lists.newArrayList(new AdminLevelDTO(5, "Province")));
+        activity.setLocationType(locationType);
+
+        return activity;
+    }
+}
@@ -0,0 +1,80 @@
+package org.activityinfo.server.endpoint.export;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+public class XlsxWriterTest {
+
+    @Test
+    public void cellReferences() {
+        assertEquals("A1", XlsxWriter.cellReference(0, 0));
+        assertEquals("Z2", XlsxWriter.cellReference(1, 25));
+        assertEquals("AA3", XlsxWriter.cellReference(2, 26));
+        assertEquals("AZ1", XlsxWriter.cellReference(0, 51));
+        assertEquals("BA1", XlsxWriter.cellReference(0, 52));
+    }
+
+    @Test
+    public void workbookParts() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XlsxWriter writer = new XlsxWriter(out);
+
+        writer.startSheet("First & Second");
+        writer.freeze(4, 2);
+        writer.setColumnHidden(0);
+        writer.startRow(0);
+        writer.writeCell(0, "<Title>", XlsxWriter.STYLE_TITLE);
+        writer.addMergedRegion(0, 0, 1, 3);
+        writer.startRow(2);
+        writer.writeCell(1, 42.5, XlsxWriter.STYLE_INDICATOR_VALUE);
+        writer.writeCell(2, true, XlsxWriter.STYLE_DEFAULT);
+
+        writer.startSheet("Empty");
+        writer.close();
+
+        Map<String, String> entries = unzip(out.toByteArray());
+
+        assertThat(entries.get("xl/workbook.xml"), containsString("<sheet name=\"First &amp; Second\""));
+        assertThat(entries.get("[Content_Types].xml"), containsString("/xl/worksheets/sheet2.xml"));
+
+        String sheet = entries.get("xl/worksheets/sheet1.xml");
+        assertThat(sheet, containsString("<pane xSplit=\"4\" ySplit=\"2\" topLeftCell=\"E3\""));
+        assertThat(sheet, containsString("<col min=\"1\" max=\"1\" width=\"0\" hidden=\"1\""));
+        assertThat(sheet, containsString("<c r=\"A1\" t=\"inlineStr\" s=\"7\"><is><t xml:space=\"preserve\">&lt;Title&gt;</t></is></c>"));
+        assertThat(sheet, containsString("<row r=\"3\"><c r=\"B3\" s=\"3\"><v>42.5</v></c><c r=\"C3\" t=\"b\"><v>1</v></c></row>"));
+        assertThat(sheet, containsString("<mergeCell ref=\"B1:D1\"/>"));
+
+        assertThat(entries.get("xl/worksheets/sheet2.xml"), containsString("<sheetData></sheetData>"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rowsMustBeOrdered() throws IOException {
+        XlsxWriter writer = new XlsxWriter(new ByteArrayOutputStream());
+        writer.startSheet("Sheet1");
+        writer.startRow(1);
+        writer.startRow(0);
+    }
+
+    private Map<String, String> unzip(byte[] bytes) throws IOException {
+        Map<String, String> entries = new HashMap<>();
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(bytes));
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            entries.put(entry.getName(), new String(ByteStreams.toByteArray(zip), Charsets.UTF_8));
+        }
+        return entries;
+    }
+}
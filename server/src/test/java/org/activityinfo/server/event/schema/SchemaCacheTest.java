@@ -0,0 +1,76 @@
+package org.activityinfo.server.event.schema;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableMap;
+import org.activityinfo.legacy.shared.command.*;
+import org.activityinfo.legacy.shared.model.*;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SchemaCacheTest {
+
+    @Test
+    public void changesInvalidateOnlySchemasContainingThem() {
+        SchemaDTO schema = schema();
+
+        assertTrue(SchemaCache.isAffected(schema, new UpdateEntity("Indicator", 11, Collections.<String, Object>emptyMap())));
+        assertFalse(SchemaCache.isAffected(schema, new UpdateEntity("Indicator", 12, Collections.<String, Object>emptyMap())));
+
+        assertTrue(SchemaCache.isAffected(schema, new Delete("Partner", 5)));
+        assertFalse(SchemaCache.isAffected(schema, new Delete("Activity", 34)));
+
+        assertTrue(SchemaCache.isAffected(schema, new RemovePartner(1, 5)));
+        assertFalse(SchemaCache.isAffected(schema, new RemovePartner(2, 5)));
+
+        assertTrue(SchemaCache.isAffected(schema, new CreateEntity("Indicator", ImmutableMap.of("activityId", 33))));
+        assertFalse(SchemaCache.isAffected(schema, new CreateEntity("Indicator", ImmutableMap.of("activityId", 34))));
+        assertFalse(SchemaCache.isAffected(schema, new CreateEntity("UserDatabase", ImmutableMap.of("name", "New"))));
+    }
+
+    @Test
+    public void unknownEntitiesInvalidateEverything() {
+        assertTrue(SchemaCache.isAffected(schema(), new Delete("Target", 99)));
+        assertTrue(SchemaCache.isAffected(schema(), new CreateEntity("Target", ImmutableMap.of("name", "2014"))));
+    }
+
+    private SchemaDTO schema() {
+        IndicatorDTO indicator = new IndicatorDTO("Kits", "kits");
+        indicator.setId(11);
+
+        ActivityDTO activity = new ActivityDTO(33, "Distribution");
+        activity.getIndicators().add(indicator);
+
+        UserDatabaseDTO database = new UserDatabaseDTO(1, "NFI");
+        database.getActivities().add(activity);
+        database.getPartners().add(new PartnerDTO(5, "NRC"));
+
+        SchemaDTO schema = new SchemaDTO();
+        schema.getDatabases().add(database);
+        return schema;
+    }
+}
@@ -0,0 +1,61 @@
+package org.activityinfo.server.event.schema;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.fixtures.Modules;
+import org.activityinfo.legacy.shared.command.UpdateEntity;
+import org.activityinfo.server.command.CommandTestCase2;
+import org.activityinfo.server.database.OnDataSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.persistence.EntityManager;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+@RunWith(InjectionSupport.class)
+@Modules({SchemaCacheModuleStub.class})
+@OnDataSet("/dbunit/sites-simple1.db.xml")
+public class SchemaVersionTest extends CommandTestCase2 {
+
+    // can only see database 2
+    private static final int PACIFIQUE = 21;
+
+    @Test
+    public void schemaChangesBumpTheVersionOfAllUsers() {
+        String before = SchemaCache.queryVersion(em(), PACIFIQUE);
+
+        execute(new UpdateEntity("Activity", 1, Collections.<String, Object>singletonMap("name", "Renamed")));
+
+        // another server only sees the version, not the event
+        assertThat(SchemaCache.queryVersion(em(), PACIFIQUE), not(equalTo(before)));
+    }
+
+    private EntityManager em() {
+        return injector.getInstance(EntityManager.class);
+    }
+}
@@ -0,0 +1,61 @@
+package org.activityinfo.server.event.sitehistory;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SiteChangeTest {
+
+    @Test
+    public void consecutiveUpdatesByTheSameUserAreMerged() {
+        SiteChange first = SiteChange.ofProperties(1, 2, ChangeType.UPDATE, properties("comments", "first"));
+        SiteChange second = SiteChange.ofProperties(1, 2, ChangeType.UPDATE, properties("comments", "second"));
+
+        assertTrue(first.merge(second));
+        assertEquals(SiteChange.ofProperties(1, 2, ChangeType.UPDATE, properties("comments", "second")).getJson(),
+                first.getJson());
+    }
+
+    @Test
+    public void otherChangesAreNotMerged() {
+        SiteChange update = SiteChange.ofProperties(1, 2, ChangeType.UPDATE, properties("comments", "first"));
+
+        assertFalse(update.merge(SiteChange.ofProperties(1, 3, ChangeType.UPDATE, properties("comments", "x"))));
+        assertFalse(update.merge(SiteChange.ofJson(1, 2, ChangeType.DELETE, "{}")));
+        assertFalse(SiteChange.ofProperties(1, 2, ChangeType.CREATE, properties("comments", "new"))
+                .merge(update));
+    }
+
+    private static Map<String, Object> properties(String name, Object value) {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put(name, value);
+        return map;
+    }
+}
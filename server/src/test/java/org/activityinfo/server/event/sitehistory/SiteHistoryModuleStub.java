@@ -0,0 +1,77 @@
+package org.activityinfo.server.event.sitehistory;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Singleton;
+import com.google.inject.name.Names;
+import org.activityinfo.server.database.hibernate.HibernateSessionScope;
+import org.activityinfo.server.event.ServerEventBus;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Records the history of site commands, with a writer executor which only runs
+ * the queued writes when the test asks for it.
+ */
+public class SiteHistoryModuleStub extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(ServerEventBus.class).asEagerSingleton();
+        bind(HibernateSessionScope.class).toInstance(new HibernateSessionScope());
+        bind(Executor.class).annotatedWith(Names.named(SiteHistoryProcessor.WRITER_EXECUTOR))
+                            .to(ManualExecutor.class);
+        bind(SiteHistoryListener.class).asEagerSingleton();
+    }
+
+    @Singleton
+    public static class ManualExecutor implements Executor {
+
+        private final List<Runnable> tasks = Lists.newArrayList();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        public synchronized int getTaskCount() {
+            return tasks.size();
+        }
+
+        public void runAll() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    if (tasks.isEmpty()) {
+                        return;
+                    }
+                    task = tasks.remove(0);
+                }
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.activityinfo.server.event.sitehistory;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.fixtures.Modules;
+import org.activityinfo.legacy.shared.command.BatchCommand;
+import org.activityinfo.legacy.shared.command.CreateSite;
+import org.activityinfo.legacy.shared.command.UpdateSite;
+import org.activityinfo.server.command.CommandTestCase2;
+import org.activityinfo.server.database.OnDataSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(InjectionSupport.class)
+@Modules({SiteHistoryModuleStub.class})
+@OnDataSet("/dbunit/sites-simple1.db.xml")
+public class SiteHistoryProcessorTest extends CommandTestCase2 {
+
+    // site 3 has no history yet
+    private static final int SITE_ID = 3;
+
+    @Inject
+    private SiteHistoryProcessor processor;
+
+    @Inject
+    private SiteHistoryModuleStub.ManualExecutor writer;
+
+    @Test
+    public void queuedUpdatesAreWrittenAfterBaseline() {
+        execute(new UpdateSite(SITE_ID, comments("first comment")));
+        execute(new UpdateSite(SITE_ID, comments("second comment")));
+
+        assertThat(queryHistory().size(), equalTo(0));
+        assertThat(countOutbox(), equalTo(2));
+
+        writer.runAll();
+        processor.flush();
+
+        assertThat(countOutbox(), equalTo(0));
+
+        List<String> history = queryHistory();
+        assertThat(history.size(), equalTo(2));
+
+        // the baseline has all of the properties of the site
+        assertThat(history.get(0), containsString("\"activityId\""));
+
+        // the updates are merged while they wait in the queue
+        assertThat(history.get(1), containsString("second comment"));
+        assertThat(history.get(1), not(containsString("first comment")));
+
+        Number hasHistory = (Number) em().createNativeQuery("SELECT hasHistory FROM site WHERE SiteId = ?1")
+                                         .setParameter(1, SITE_ID)
+                                         .getSingleResult();
+        assertThat(hasHistory.intValue(), equalTo(1));
+    }
+
+    @Test
+    public void changesLeftInOutboxAreWrittenWithNextChange() {
+        // as if the server had stopped before writing this change
+        EntityManager em = em();
+        em.getTransaction().begin();
+        em.createNativeQuery("INSERT INTO sitehistoryoutbox (SiteId, UserId, ChangeType, Json, TimeCreated) " +
+                             "VALUES (4, 1, 'UPDATE', '{}', 1)")
+          .executeUpdate();
+        em.getTransaction().commit();
+
+        execute(new UpdateSite(SITE_ID, comments("comment")));
+
+        writer.runAll();
+        processor.flush();
+
+        assertThat(countOutbox(), equalTo(0));
+        assertThat(queryHistory().size(), equalTo(2));
+
+        Number leftOver = (Number) em.createNativeQuery("SELECT count(*) FROM sitehistory WHERE siteId = 4")
+                                     .getSingleResult();
+        assertThat(leftOver.intValue(), equalTo(1));
+    }
+
+    @Test
+    public void rolledBackChangesAreDropped() {
+        Map<String, Object> site = Maps.newHashMap();
+        site.put("id", 99);
+        site.put("activityId", 999);
+        site.put("partnerId", 1);
+
+        try {
+            execute(new BatchCommand(new UpdateSite(SITE_ID, comments("rolled back")), new CreateSite(site)));
+            fail("the site of an unknown activity should not be created");
+        } catch (RuntimeException expected) {
+        }
+
+        assertThat(writer.getTaskCount(), equalTo(0));
+        assertThat(countOutbox(), equalTo(0));
+
+        writer.runAll();
+        processor.flush();
+
+        assertThat(queryHistory().size(), equalTo(0));
+    }
+
+    private Map<String, Object> comments(String comments) {
+        Map<String, Object> changes = Maps.newHashMap();
+        changes.put("comments", comments);
+        return changes;
+    }
+
+    private List<String> queryHistory() {
+        return em().createNativeQuery("SELECT json FROM sitehistory WHERE siteId = ?1 ORDER BY id")
+                   .setParameter(1, SITE_ID)
+                   .getResultList();
+    }
+
+    private int countOutbox() {
+        Number count = (Number) em().createNativeQuery("SELECT count(*) FROM sitehistoryoutbox").getSingleResult();
+        return count.intValue();
+    }
+
+    private EntityManager em() {
+        return injector.getInstance(EntityManager.class);
+    }
+}
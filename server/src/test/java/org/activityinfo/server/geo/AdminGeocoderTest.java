@@ -0,0 +1,146 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.fixtures.MockHibernateModule;
+import org.activityinfo.fixtures.Modules;
+import org.activityinfo.server.database.OnDataSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.persistence.EntityManager;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Geocodes against the governorate boundaries of Jordan
+ */
+@RunWith(InjectionSupport.class)
+@Modules({MockHibernateModule.class})
+@OnDataSet("/dbunit/jordan.db.xml")
+public class AdminGeocoderTest {
+
+    private static final int JORDAN = 360;
+    private static final int LOCATION_TYPE_ID = 1;
+
+    private static final int AJLUN = 1701;
+    private static final int AQABA = 1703;
+    private static final int AMMAN = 1705;
+    private static final int IRBID = 1707;
+    private static final int ZARQA = 1712;
+
+    @Inject
+    private AdminGeocoder geocoder;
+
+    @Inject
+    private EntityManager em;
+
+    @Test
+    public void geocode() {
+        assertThat(geocoder.geocode(JORDAN, 31.95, 35.93), equalTo(Collections.singletonList(AMMAN)));
+        assertThat(geocoder.geocode(JORDAN, 32.55, 35.85), equalTo(Collections.singletonList(IRBID)));
+        assertThat(geocoder.geocode(JORDAN, 29.53, 35.0), equalTo(Collections.singletonList(AQABA)));
+
+        // in the Mediterranean
+        assertThat(geocoder.geocode(JORDAN, 33.0, 34.0), equalTo(Collections.<Integer>emptyList()));
+    }
+
+    @Test
+    public void reassign() {
+        em.getTransaction().begin();
+        update("INSERT INTO locationtype (LocationTypeId, CountryId, Name, Reuse) VALUES (1, 360, 'Village', 1)");
+        update("INSERT INTO location (LocationId, LocationTypeId, Name, Y, X, timeEdited) VALUES " +
+               "(1, 1, 'Wrongly in Aqaba', 31.95, 35.93, 1), " +
+               "(2, 1, 'Already in Irbid', 32.55, 35.85, 1), " +
+               "(3, 1, 'No coordinates', NULL, NULL, 1), " +
+               "(4, 1, 'Offshore', 33.0, 34.0, 1)");
+        update("INSERT INTO locationadminlink (LocationId, AdminEntityId) VALUES " +
+               "(1, " + AQABA + "), (2, " + IRBID + "), (3, " + AJLUN + "), (4, " + ZARQA + ")");
+        em.getTransaction().commit();
+
+        assertThat(geocoder.reassign(LOCATION_TYPE_ID), equalTo(2));
+
+        assertThat(queryLinks(1), equalTo(Collections.singletonList(AMMAN)));
+        assertThat(queryLinks(2), equalTo(Collections.singletonList(IRBID)));
+        assertThat(queryLinks(3), equalTo(Collections.singletonList(AJLUN)));
+        assertThat(queryLinks(4), equalTo(Collections.<Integer>emptyList()));
+
+        // only the changed locations are stamped
+        assertThat(queryTimeEdited(2), equalTo(1L));
+        assertThat(queryTimeEdited(1) > 1, equalTo(true));
+
+        // nothing left to change
+        assertThat(geocoder.reassign(LOCATION_TYPE_ID), equalTo(0));
+    }
+
+    @Test
+    public void reassignInChunks() {
+        int count = AdminGeocoder.REASSIGN_CHUNK_SIZE + 100;
+
+        List<String> rows = Lists.newArrayList();
+        for (int i = 1; i <= count; ++i) {
+            rows.add("(" + i + ", 1, 'Camp " + i + "', 31.95, 35.93, 1)");
+        }
+        em.getTransaction().begin();
+        update("INSERT INTO locationtype (LocationTypeId, CountryId, Name, Reuse) VALUES (1, 360, 'Camp', 1)");
+        update("INSERT INTO location (LocationId, LocationTypeId, Name, Y, X, timeEdited) VALUES " +
+               com.google.common.base.Joiner.on(", ").join(rows));
+        em.getTransaction().commit();
+
+        assertThat(geocoder.reassign(LOCATION_TYPE_ID), equalTo(count));
+
+        Number linked = (Number) em.createNativeQuery(
+                "SELECT COUNT(*) FROM locationadminlink WHERE AdminEntityId = ?1")
+                .setParameter(1, AMMAN)
+                .getSingleResult();
+        assertThat(linked.intValue(), equalTo(count));
+    }
+
+    private void update(String sql) {
+        em.createNativeQuery(sql).executeUpdate();
+    }
+
+    private List<Integer> queryLinks(int locationId) {
+        List<Integer> entityIds = Lists.newArrayList();
+        for (Object id : em.createNativeQuery(
+                "SELECT AdminEntityId FROM locationadminlink WHERE LocationId = ?1 ORDER BY AdminEntityId")
+                .setParameter(1, locationId)
+                .getResultList()) {
+            entityIds.add(((Number) id).intValue());
+        }
+        return entityIds;
+    }
+
+    private long queryTimeEdited(int locationId) {
+        return ((Number) em.createNativeQuery("SELECT timeEdited FROM location WHERE LocationId = ?1")
+                           .setParameter(1, locationId)
+                           .getSingleResult()).longValue();
+    }
+}
@@ -0,0 +1,63 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AdminGeometryIndexTest {
+
+    @Test
+    public void locate() throws ParseException {
+        WKTReader reader = new WKTReader();
+        List<AdminGeo> geometries = Lists.newArrayList();
+        geometries.add(new AdminGeo(1, reader.read("POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0))")));
+        geometries.add(new AdminGeo(2, reader.read(
+                "GEOMETRYCOLLECTION (POLYGON ((10 0, 20 0, 20 10, 10 10, 10 0)), " +
+                "POLYGON ((30 0, 40 0, 40 10, 30 10, 30 0)))")));
+
+        AdminGeometryIndex index = new AdminGeometryIndex(1, 1, geometries);
+
+        // latitude first
+        assertEquals(1, index.locate(5, 5));
+        assertEquals(2, index.locate(5, 15));
+        assertEquals(2, index.locate(5, 35));
+        assertEquals(-1, index.locate(5, 25));
+        assertEquals(-1, index.locate(50, 5));
+    }
+
+    @Test
+    public void levelWithoutGeometry() {
+        AdminGeometryIndex index = new AdminGeometryIndex(1, 1, Lists.<AdminGeo>newArrayList());
+
+        assertFalse(index.hasGeometry());
+        assertEquals(-1, index.locate(5, 5));
+    }
+}
@@ -0,0 +1,146 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import org.activityinfo.core.shared.workflow.Workflow;
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.fixtures.MockHibernateModule;
+import org.activityinfo.fixtures.Modules;
+import org.activityinfo.server.database.OnDataSet;
+import org.activityinfo.server.geo.LocationTypeIndex.LocationEntry;
+import org.activityinfo.server.geo.LocationTypeIndex.SearchResult;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.persistence.EntityManager;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(InjectionSupport.class)
+@Modules({MockHibernateModule.class})
+@OnDataSet("/dbunit/location-search.db.xml")
+public class LocationTypeIndexTest {
+
+    private static final int VILLAGE_TYPE_ID = 1;
+    private static final int NORD_KIVU = 1;
+    private static final int SUD_KIVU = 2;
+
+    @Inject
+    private EntityManager em;
+
+    @Test
+    public void matchesAreRanked() {
+        SearchResult result = villages().search("kal", null, null, 0, 10);
+
+        // prefix, then word prefix, then infix, then alternate name; by name within each
+        assertThat(names(result), contains("Kalehe", "Kalima", "Kâlungu", "Bukavu Kalembe", "Nyakalonge", "Goma"));
+        assertThat(result.getTotalCount(), equalTo(6));
+    }
+
+    @Test
+    public void caseAndDiacriticsAreIgnored() {
+        assertThat(names(villages().search("KALU", null, null, 0, 10)), contains("Kâlungu"));
+    }
+
+    @Test
+    public void filteredByAdminEntity() {
+        LocationTypeIndex index = villages();
+
+        assertThat(names(index.search("kal", asList(SUD_KIVU), null, 0, 10)),
+                contains("Kalehe", "Kalima", "Bukavu Kalembe", "Nyakalonge"));
+        assertThat(names(index.search("kal", asList(NORD_KIVU, SUD_KIVU), null, 0, 10)), empty());
+        assertThat(names(index.search(null, asList(NORD_KIVU), null, 0, 10)), contains("Goma", "Kâlungu"));
+    }
+
+    @Test
+    public void filteredByWorkflowStatus() {
+        SearchResult result = villages().search("kal", Collections.<Integer>emptyList(), Workflow.VALIDATED, 0, 10);
+
+        assertThat(names(result), contains("Kalehe", "Kâlungu", "Bukavu Kalembe", "Nyakalonge", "Goma"));
+        assertThat(result.getTotalCount(), equalTo(5));
+    }
+
+    @Test
+    public void paged() {
+        LocationTypeIndex index = villages();
+
+        SearchResult page = index.search("kal", null, Workflow.VALIDATED, 1, 2);
+        assertThat(names(page), contains("Kâlungu", "Bukavu Kalembe"));
+        assertThat(page.getTotalCount(), equalTo(5));
+
+        SearchResult last = index.search("kal", null, Workflow.VALIDATED, 4, 2);
+        assertThat(names(last), contains("Goma"));
+        assertThat(last.getTotalCount(), equalTo(5));
+
+        SearchResult countOnly = index.search("kal", null, Workflow.VALIDATED, 0, 0);
+        assertThat(names(countOnly), empty());
+        assertThat(countOnly.getTotalCount(), equalTo(5));
+    }
+
+    @Test
+    public void fragmentedOnceMostLocationsAreUpdatedTwice() {
+        LocationTypeIndex index = villages();
+
+        renameVillages(" (1)", 100);
+        index.refresh(em);
+        assertThat(index.isFragmented(), equalTo(false));
+
+        renameVillages(" (2)", 200);
+        index.refresh(em);
+        assertThat(index.isFragmented(), equalTo(true));
+        assertThat(names(index.search("goma", null, null, 0, 10)), contains("Goma (1) (2)"));
+    }
+
+    private void renameVillages(String suffix, int timeEdited) {
+        em.getTransaction().begin();
+        em.createNativeQuery("UPDATE location SET Name = CONCAT(Name, ?1), timeEdited = timeEdited + ?2 " +
+                             "WHERE LocationTypeId = ?3")
+          .setParameter(1, suffix)
+          .setParameter(2, timeEdited)
+          .setParameter(3, VILLAGE_TYPE_ID)
+          .executeUpdate();
+        em.getTransaction().commit();
+    }
+
+    private LocationTypeIndex villages() {
+        LocationTypeIndex index = new LocationTypeIndex(VILLAGE_TYPE_ID);
+        index.refresh(em);
+        return index;
+    }
+
+    private static List<String> names(SearchResult result) {
+        List<String> names = Lists.newArrayList();
+        for (LocationEntry entry : result.getLocations()) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,104 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NameIndexTest {
+
+    @Test
+    public void normalize() {
+        assertEquals("kasai oriental", NameIndex.normalize("  Kasaï-Oriental "));
+        assertEquals("bas uele", NameIndex.normalize("Bas-Uélé"));
+        assertEquals("", NameIndex.normalize("--"));
+    }
+
+    @Test
+    public void exactMatchIgnoresCaseAndDiacritics() {
+        NameIndex index = new NameIndex();
+        index.add("Kasai Occidental");
+        int oriental = index.add("Kasaï-Oriental");
+
+        assertEquals(oriental, index.match("KASAI ORIENTAL", NameIndex.ALL));
+    }
+
+    @Test
+    public void approximateMatch() {
+        NameIndex index = new NameIndex();
+        index.add("Kinshasa");
+        int kivu = index.add("Sud Kivu");
+        index.add("Nord Kivu");
+
+        assertEquals(kivu, index.match("Sud-Kivou", NameIndex.ALL));
+    }
+
+    @Test
+    public void matchWithinScope() {
+        NameIndex index = new NameIndex();
+        index.add("Bukavu");
+        final int other = index.add("Bukavu");
+
+        assertEquals(other, index.match("Bukavu", new NameIndex.Scope() {
+            @Override
+            public boolean contains(int position) {
+                return position == other;
+            }
+        }));
+    }
+
+    @Test
+    public void removedNamesAreNotMatched() {
+        NameIndex index = new NameIndex();
+        int old = index.add("Uvira");
+        int updated = index.add("Uvira");
+        index.remove(old);
+
+        assertEquals(updated, index.match("Uvira", NameIndex.ALL));
+    }
+
+    @Test
+    public void fallsBackToScanWithoutCommonTrigrams() {
+        NameIndex index = new NameIndex();
+        int goma = index.add("Goma");
+
+        assertEquals(goma, index.match("Gm", NameIndex.ALL));
+        assertEquals(-1, new NameIndex().match("Goma", NameIndex.ALL));
+    }
+
+    @Test
+    public void candidatesContainingSubstring() {
+        NameIndex index = new NameIndex();
+        int kasai = index.add("Kasaï-Oriental", "KOR");
+        index.add("Kinshasa", "KIN");
+        int lomami = index.add("Lomami", "KOR-2");
+
+        assertArrayEquals(new int[] { kasai }, index.candidatesContaining("orie"));
+        assertArrayEquals(new int[] { kasai, lomami }, index.candidatesContaining("kor"));
+        assertArrayEquals(new int[0], index.candidatesContaining("goma"));
+        assertNull(index.candidatesContaining("ka"));
+    }
+}
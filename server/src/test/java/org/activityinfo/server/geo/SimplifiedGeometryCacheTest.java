@@ -0,0 +1,100 @@
+package org.activityinfo.server.geo;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SimplifiedGeometryCacheTest {
+
+    private static final int LEVEL_ID = 1383;
+
+    private static class CountingProvider extends WkbGeometryProvider {
+        private int loads;
+
+        @Override
+        public List<AdminGeo> getGeometries(int adminLevelId) {
+            loads++;
+            return super.getGeometries(adminLevelId);
+        }
+    }
+
+    private static class VersionedCache extends SimplifiedGeometryCache {
+        private int version = 1;
+
+        VersionedCache(AdminGeometryProvider source) {
+            super(source, null);
+        }
+
+        @Override
+        protected int queryVersion(int adminLevelId) {
+            return version;
+        }
+    }
+
+    @Test
+    public void simplifiedOncePerZoom() {
+        CountingProvider source = new CountingProvider();
+        SimplifiedGeometryCache cache = new VersionedCache(source);
+
+        List<AdminGeo> original = source.getGeometries(LEVEL_ID);
+        List<AdminGeo> simplified = cache.getGeometries(LEVEL_ID, 5);
+        cache.getGeometries(LEVEL_ID, 5);
+
+        assertEquals(2, source.loads);
+        assertEquals(original.size(), simplified.size());
+
+        int originalPoints = 0;
+        int simplifiedPoints = 0;
+        for (int i = 0; i != original.size(); ++i) {
+            assertEquals(original.get(i).getId(), simplified.get(i).getId());
+            assertFalse(simplified.get(i).getGeometry().isEmpty());
+            originalPoints += original.get(i).getGeometry().getNumPoints();
+            simplifiedPoints += simplified.get(i).getGeometry().getNumPoints();
+        }
+        assertTrue(simplifiedPoints < originalPoints);
+
+        // simplified from the geometry already read for the most detailed zoom level
+        cache.getGeometries(LEVEL_ID, 6);
+        assertEquals(2, source.loads);
+    }
+
+    @Test
+    public void reloadedWhenLevelIsUpdated() {
+        CountingProvider source = new CountingProvider();
+        VersionedCache cache = new VersionedCache(source);
+
+        cache.getGeometries(LEVEL_ID, 5);
+        cache.getGeometries(LEVEL_ID, 5);
+        assertEquals(1, source.loads);
+
+        cache.version++;
+        cache.getGeometries(LEVEL_ID, 5);
+        assertEquals(2, source.loads);
+    }
+}
@@ -73,6 +73,11 @@ public class WkbGeometryProvider implements AdminGeometryProvider {
         }
     }
 
+    @Override
+    public List<AdminGeo> getGeometries(int adminLevelId, int zoom) {
+        return getGeometries(adminLevelId);
+    }
+
     public InputStream openWkb(int adminLevelId) {
         InputStream in = getClass().getResourceAsStream(
                 "/" + adminLevelId + ".wkb");
@@ -0,0 +1,163 @@
+package org.activityinfo.server.importer;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Resources;
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.legacy.shared.adapter.CuidAdapter;
+import org.activityinfo.legacy.shared.command.BatchCommand;
+import org.activityinfo.legacy.shared.command.Command;
+import org.activityinfo.legacy.shared.command.DimensionType;
+import org.activityinfo.legacy.shared.command.Filter;
+import org.activityinfo.legacy.shared.command.GetSites;
+import org.activityinfo.legacy.shared.command.result.CommandResult;
+import org.activityinfo.legacy.shared.command.result.SiteResult;
+import org.activityinfo.model.resource.ResourceId;
+import org.activityinfo.server.command.CommandTestCase2;
+import org.activityinfo.server.command.DispatcherSync;
+import org.activityinfo.server.database.OnDataSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.google.common.io.Resources.getResource;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+@RunWith(InjectionSupport.class)
+@OnDataSet("/dbunit/brac-import.db.xml")
+public class BulkImportTest extends CommandTestCase2 {
+
+    private static final ResourceId HOUSEHOLD_SURVEY_FORM_CLASS = CuidAdapter.activityFormClass(1);
+
+    public static final int MODHUPUR = 24;
+
+    @Test
+    public void importInBackground() throws IOException {
+        BulkImport bulkImport = newImport(mappings());
+        bulkImport.run();
+
+        BulkImportProgress progress = bulkImport.getProgress();
+        assertThat(progress.getError(), progress.getStatus(), equalTo(BulkImport.Status.COMPLETED));
+        assertThat(progress.getParsedRows(), equalTo(63));
+        assertThat(progress.getValidatedRows(), equalTo(63));
+        assertThat(progress.getCommittedRows(), equalTo(progress.getValidRows()));
+
+        Filter filter = new Filter();
+        filter.addRestriction(DimensionType.AdminLevel, MODHUPUR);
+
+        SiteResult sites = execute(new GetSites(filter));
+        assertThat(sites.getTotalLength(), equalTo(1));
+    }
+
+    @Test
+    public void resumeAfterInterruption() throws IOException {
+        final DispatcherSync dispatcher = getDispatcherSync();
+        DispatcherSync interrupting = new DispatcherSync() {
+            @Override
+            public <C extends Command<R>, R extends CommandResult> R execute(C command) {
+                R result = dispatcher.execute(command);
+                // as if the import thread were interrupted by a shutdown once a full batch is committed
+                if (command instanceof BatchCommand &&
+                    ((BatchCommand) command).getCommands().size() == BulkImport.COMMIT_BATCH_SIZE) {
+                    Thread.currentThread().interrupt();
+                }
+                return result;
+            }
+        };
+
+        // 5 times the table, so that there are two batches of sites to commit
+        String text = readTable();
+        String rows = text.substring(text.indexOf('\n') + 1);
+        text = text + rows + rows + rows + rows;
+
+        BulkImport bulkImport = new BulkImport("test", 1, interrupting, injector.getProvider(EntityManager.class),
+                new ForkJoinPool(), HOUSEHOLD_SURVEY_FORM_CLASS, text, mappings());
+        bulkImport.run();
+
+        BulkImportProgress progress = bulkImport.getProgress();
+        assertThat(progress.getStatus(), equalTo(BulkImport.Status.FAILED));
+        assertThat(progress.getValidRows(), greaterThan(BulkImport.COMMIT_BATCH_SIZE));
+        assertThat(progress.getCommittedRows(), equalTo(BulkImport.COMMIT_BATCH_SIZE));
+        assertThat(countSites(), equalTo(BulkImport.COMMIT_BATCH_SIZE));
+
+        assertThat(bulkImport.requeue(), equalTo(true));
+        bulkImport.run();
+
+        progress = bulkImport.getProgress();
+        assertThat(progress.getError(), progress.getStatus(), equalTo(BulkImport.Status.COMPLETED));
+        assertThat(progress.getCommittedRows(), equalTo(progress.getValidRows()));
+        assertThat(progress.getFailedRows(), empty());
+
+        // the first batch is not committed again
+        assertThat(countSites(), equalTo(progress.getValidRows()));
+    }
+
+    @Test
+    public void unknownColumnFails() throws IOException {
+        BulkImport bulkImport = newImport(Collections.singletonMap("NoSuchColumn", "Partner Name"));
+        bulkImport.run();
+
+        BulkImportProgress progress = bulkImport.getProgress();
+        assertThat(progress.getStatus(), equalTo(BulkImport.Status.FAILED));
+        assertThat(progress.getError(), notNullValue());
+        assertThat(progress.isResumable(), equalTo(true));
+        assertThat(bulkImport.requeue(), equalTo(true));
+        assertThat(bulkImport.requeue(), equalTo(false));
+    }
+
+    private int countSites() {
+        SiteResult sites = execute(new GetSites(Filter.filter().onActivity(1)));
+        return sites.getTotalLength();
+    }
+
+    private static Map<String, String> mappings() {
+        Map<String, String> mappings = Maps.newHashMap();
+        mappings.put("MEMBER_NO_ADULT_FEMALE", "NumAdultFemale");
+        mappings.put("_CREATION_DATE", "Start Date");
+        mappings.put("_SUBMISSION_DATE", "End Date");
+        mappings.put("district", "District Name");
+        mappings.put("upazila", "Upzilla Name");
+        mappings.put("Partner", "Partner Name");
+        return mappings;
+    }
+
+    private static String readTable() throws IOException {
+        return Resources.toString(getResource("org/activityinfo/core/shared/importing/qis.csv"), Charsets.UTF_8);
+    }
+
+    private BulkImport newImport(Map<String, String> mappings) throws IOException {
+        return new BulkImport("test", 1, getDispatcherSync(), injector.getProvider(EntityManager.class),
+                new ForkJoinPool(), HOUSEHOLD_SURVEY_FORM_CLASS, readTable(), mappings);
+    }
+}
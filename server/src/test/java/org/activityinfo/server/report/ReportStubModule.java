@@ -28,6 +28,7 @@ import org.activityinfo.legacy.shared.auth.AuthenticatedUser;
 import org.activityinfo.server.report.generator.MapIconPath;
 import org.activityinfo.server.report.output.LocalStorageProvider;
 import org.activityinfo.server.report.output.StorageProvider;
+import org.activityinfo.server.report.renderer.image.TileCache;
 
 public class ReportStubModule extends AbstractModule {
 
@@ -36,6 +37,9 @@ public class ReportStubModule extends AbstractModule {
         bind(String.class)
                 .annotatedWith(MapIconPath.class)
                 .toInstance("");
+
+        // no cache directory, so tiles are always fetched
+        bind(TileCache.class).toInstance(new TileCache(null, 0, false, 0));
     }
 
     @Provides
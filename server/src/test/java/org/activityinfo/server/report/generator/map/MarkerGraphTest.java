@@ -0,0 +1,81 @@
+package org.activityinfo.server.report.generator.map;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.activityinfo.legacy.shared.model.SiteDTO;
+import org.activityinfo.legacy.shared.reports.content.Point;
+import org.activityinfo.legacy.shared.reports.model.MapSymbol;
+import org.activityinfo.legacy.shared.reports.model.PointValue;
+import org.activityinfo.server.report.generator.map.cluster.genetic.MarkerGraph;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class MarkerGraphTest {
+
+    private static final int RADIUS = 10;
+
+    @Test
+    public void gridFindsSameGraphAsPairwise() {
+        final BubbleIntersectionCalculator bounded = new BubbleIntersectionCalculator(RADIUS);
+        MarkerGraph.IntersectionCalculator pairwise = new MarkerGraph.IntersectionCalculator() {
+            @Override
+            public boolean intersects(MarkerGraph.Node a, MarkerGraph.Node b) {
+                return bounded.intersects(a, b);
+            }
+        };
+
+        // include negative coordinates and many coincident points
+        MarkerGraph expected = new MarkerGraph(randomPoints(2000, 300, -150), pairwise);
+        MarkerGraph actual = new MarkerGraph(randomPoints(2000, 300, -150), bounded);
+
+        assertEquals(describe(expected), describe(actual));
+        assertEquals(expected.getSubgraphs().size(), actual.getSubgraphs().size());
+    }
+
+    private List<PointValue> randomPoints(int count, int extent, int offset) {
+        Random random = new Random(42);
+        MapSymbol symbol = new MapSymbol();
+        List<PointValue> points = new ArrayList<PointValue>();
+        for (int i = 0; i != count; ++i) {
+            Point px = new Point(offset + random.nextInt(extent), offset + random.nextInt(extent));
+            points.add(new PointValue(new SiteDTO(), symbol, 1 + random.nextInt(100), px));
+        }
+        return points;
+    }
+
+    private String describe(MarkerGraph graph) {
+        StringBuilder sb = new StringBuilder();
+        for (MarkerGraph.Node node : graph.getNodes()) {
+            sb.append(node.getPoint()).append('=').append(node.getValue()).append('\n');
+        }
+        for (MarkerGraph.Edge edge : graph.getEdges()) {
+            sb.append(edge.getA().getPoint()).append(" - ").append(edge.getB().getPoint()).append('\n');
+        }
+        return sb.toString();
+    }
+}
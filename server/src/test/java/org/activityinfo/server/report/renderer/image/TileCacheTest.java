@@ -0,0 +1,113 @@
+package org.activityinfo.server.report.renderer.image;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.io.Files;
+import org.activityinfo.server.report.generator.map.TileProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TileCacheTest {
+
+    private File tiles;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        // local directory standing in for the tile server
+        tiles = Files.createTempDir();
+        for (int i = 0; i != 3; ++i) {
+            Files.write(new byte[100], new File(tiles, i + ".png"));
+        }
+        cacheDir = Files.createTempDir();
+    }
+
+    @Test
+    public void fetchesOnceThenServesOffline() throws IOException {
+        TileCache cache = new TileCache(cacheDir, 1024, false, 2);
+        cache.prefetch(Arrays.asList(tileUrl(0), tileUrl(1)));
+        assertEquals(2, cacheDir.listFiles().length);
+
+        // the tile server goes away
+        new File(tiles, "0.png").delete();
+
+        TileCache offline = new TileCache(cacheDir, 1024, true, 1);
+        assertNotNull(offline.getLocalUrl(tileUrl(0)));
+        assertNull(offline.getLocalUrl(tileUrl(2)));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        TileCache cache = new TileCache(cacheDir, 250, false, 1);
+        String first = cache.getLocalUrl(tileUrl(0));
+        String second = cache.getLocalUrl(tileUrl(1));
+        cache.getLocalUrl(tileUrl(0));
+        cache.getLocalUrl(tileUrl(2));
+
+        assertEquals(2, cacheDir.listFiles().length);
+        assertEquals(first, cache.getLocalUrl(tileUrl(0)));
+        assertEquals(false, new File(second.substring("file:".length())).exists());
+    }
+
+    @Test
+    public void pinnedTilesAreNotEvicted() throws IOException {
+        TileCache cache = new TileCache(cacheDir, 250, false, 1);
+        TileCache.Tiles tiles = cache.prefetch(Arrays.asList(tileUrl(0), tileUrl(1)), new TileProvider() {
+            @Override
+            public String getImageUrl(int zoom, int tileX, int tileY) {
+                try {
+                    return tileUrl(tileX);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        // the map is still being drawn
+        cache.getLocalUrl(tileUrl(2));
+        assertEquals(3, cacheDir.listFiles().length);
+        assertNotNull(tiles.getImageUrl(0, 0, 0));
+        assertNotNull(tiles.getImageUrl(0, 1, 0));
+
+        tiles.release();
+        assertEquals(2, cacheDir.listFiles().length);
+    }
+
+    @Test
+    public void missingTile() throws IOException {
+        TileCache cache = new TileCache(cacheDir, 1024, false, 1);
+        assertNull(cache.getLocalUrl(new File(tiles, "missing.png").toURI().toURL().toString()));
+    }
+
+    private String tileUrl(int i) throws IOException {
+        return new File(tiles, i + ".png").toURI().toURL().toString();
+    }
+}
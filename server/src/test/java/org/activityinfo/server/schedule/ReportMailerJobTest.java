@@ -0,0 +1,108 @@
+package org.activityinfo.server.schedule;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.inject.Inject;
+import com.google.inject.util.Providers;
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.fixtures.MockHibernateModule;
+import org.activityinfo.fixtures.Modules;
+import org.activityinfo.legacy.shared.command.Filter;
+import org.activityinfo.legacy.shared.reports.content.ReportContent;
+import org.activityinfo.legacy.shared.reports.model.DateRange;
+import org.activityinfo.legacy.shared.reports.model.Report;
+import org.activityinfo.server.authentication.ServerSideAuthProvider;
+import org.activityinfo.server.database.OnDataSet;
+import org.activityinfo.server.database.hibernate.HibernateSessionScope;
+import org.activityinfo.server.database.hibernate.entity.Domain;
+import org.activityinfo.server.database.hibernate.entity.User;
+import org.activityinfo.server.mail.MailSender;
+import org.activityinfo.server.mail.MailSenderStub;
+import org.activityinfo.server.report.generator.ReportGenerator;
+import org.activityinfo.server.report.renderer.itext.RtfReportRenderer;
+import org.activityinfo.server.util.TemplateModule;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.persistence.EntityManager;
+import java.util.Calendar;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(InjectionSupport.class)
+@Modules({MockHibernateModule.class})
+public class ReportMailerJobTest {
+
+    @Inject
+    private EntityManager em;
+
+    @Test
+    @OnDataSet("/dbunit/report-mailing.db.xml")
+    public void subscribersWithTheSameGrantsShareOneGeneration() throws Exception {
+        ReportGenerator generator = createMock(ReportGenerator.class);
+        generator.generate(anyObject(User.class), anyObject(Report.class), EasyMock.<Filter>isNull(),
+                anyObject(DateRange.class));
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                Report report = (Report) getCurrentArguments()[1];
+                report.setContent(new ReportContent());
+                report.getContent().setFileName("Report 1");
+                return null;
+            }
+        }).once();
+        replay(generator);
+
+        RtfReportRenderer renderer = createNiceMock(RtfReportRenderer.class);
+        replay(renderer);
+
+        MailSenderStub mailer = new MailSenderStub(new TemplateModule().provideConfiguration(
+                Providers.of(Domain.DEFAULT)));
+
+        // the jobs run on their own threads, outside of the test scope, so they are given
+        // the test's entity manager, which they do not use at the same time as the caller
+        ReportMailer reportMailer = new ReportMailer(Providers.of(em),
+                Providers.of(generator),
+                Providers.of(renderer),
+                Providers.<MailSender>of(mailer),
+                new ServerSideAuthProvider(),
+                new HibernateSessionScope());
+
+        Calendar today = Calendar.getInstance();
+        today.set(2009, Calendar.DECEMBER, 11);
+        reportMailer.execute(today.getTime());
+
+        verify(generator);
+        assertThat(mailer.sentMails.size(), equalTo(2));
+    }
+}
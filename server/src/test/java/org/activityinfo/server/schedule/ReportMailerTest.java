@@ -30,7 +30,10 @@ import org.activityinfo.server.database.hibernate.entity.User;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 /**
  * @author Alex Bertram
@@ -141,4 +144,28 @@ public class ReportMailerTest {
                 text.contains("#report/5040"));
     }
 
+    @Test
+    public void testSubscribersWithTheSameGrantsShareMailing() {
+        SortedSet<String> grants = new TreeSet<String>(Arrays.asList("1:all", "2:7"));
+
+        String key = ReportMailerHelper.mailingKey(subscription(5040, "en"), grants);
+
+        Assert.assertEquals(key, ReportMailerHelper.mailingKey(subscription(5040, "en"),
+                new TreeSet<String>(Arrays.asList("2:7", "1:all"))));
+        Assert.assertFalse(key.equals(ReportMailerHelper.mailingKey(subscription(5040, "fr"), grants)));
+        Assert.assertFalse(key.equals(ReportMailerHelper.mailingKey(subscription(5041, "en"), grants)));
+        Assert.assertFalse(key.equals(ReportMailerHelper.mailingKey(subscription(5040, "en"),
+                new TreeSet<String>(Arrays.asList("1:all", "2:8")))));
+    }
+
+    private ReportSubscription subscription(int templateId, String locale) {
+        User user = new User();
+        user.setLocale(locale);
+
+        ReportSubscription sub = new ReportSubscription();
+        sub.setTemplate(new ReportDefinition());
+        sub.getTemplate().setId(templateId);
+        sub.setUser(user);
+        return sub;
+    }
 }
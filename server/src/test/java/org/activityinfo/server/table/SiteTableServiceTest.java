@@ -0,0 +1,143 @@
+package org.activityinfo.server.table;
+
+/*
+ * #%L
+ * ActivityInfo Server
+ * %%
+ * Copyright (C) 2009 - 2013 UNICEF
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import org.activityinfo.fixtures.InjectionSupport;
+import org.activityinfo.legacy.shared.adapter.CuidAdapter;
+import org.activityinfo.model.formTree.FormTree;
+import org.activityinfo.model.resource.ResourceId;
+import org.activityinfo.model.table.*;
+import org.activityinfo.server.command.CommandTestCase2;
+import org.activityinfo.server.database.OnDataSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(InjectionSupport.class)
+@OnDataSet("/dbunit/sites-simple1.db.xml")
+public class SiteTableServiceTest extends CommandTestCase2 {
+
+    private static final ResourceId NFI_FORM = CuidAdapter.activityFormClass(1);
+
+    @Test
+    public void columnsAreLoaded() {
+        TableData table = newService().buildTable(nfiTable());
+
+        assertThat(table.getNumRows(), equalTo(3));
+
+        ColumnView ids = table.getColumnView("id");
+        assertThat(ids.getString(0), equalTo(CuidAdapter.cuid(CuidAdapter.SITE_DOMAIN, 1).asString()));
+
+        ColumnView partners = table.getColumnView("partner");
+        assertThat(partners.getType(), equalTo(ColumnType.STRING));
+        assertThat(partners.getString(0), equalTo("NRC"));
+        assertThat(partners.getString(1), equalTo("NRC"));
+        assertThat(partners.getString(2), equalTo("Solidarites"));
+
+        ColumnView beneficiaries = table.getColumnView("beneficiaries");
+        assertThat(beneficiaries.getType(), equalTo(ColumnType.NUMBER));
+        assertThat(beneficiaries.getDouble(0), equalTo(1500d));
+        assertThat(beneficiaries.getDouble(2), equalTo(10000d));
+
+        ColumnView comments = table.getColumnView("comments");
+        assertThat(comments.getString(0), equalTo("He said 'booyah'"));
+        assertThat(comments.getString(1), nullValue());
+
+        assertThat(table.getColumnView("startDate").getType(), equalTo(ColumnType.DATE));
+    }
+
+    @Test
+    public void columnsAreReusedForTheSameVersion() {
+        FormColumnCache cache = new FormColumnCache();
+        SiteTableService service = newService(cache);
+        ColumnView first = service.buildTable(nfiTable()).getColumnView("beneficiaries");
+        ColumnView second = service.buildTable(nfiTable()).getColumnView("beneficiaries");
+
+        assertThat(second == first, equalTo(true));
+        assertThat(cache.get(NFI_FORM, "another version"), nullValue());
+    }
+
+    @Test
+    public void renamedPartnerIsReloaded() {
+        SiteTableService service = newService(new FormColumnCache());
+        assertThat(service.buildTable(nfiTable()).getColumnView("partner").getString(0), equalTo("NRC"));
+
+        EntityManager em = injector.getInstance(EntityManager.class);
+        em.getTransaction().begin();
+        em.createNativeQuery("UPDATE partner SET Name = 'NRC Kivu' WHERE PartnerId = 1").executeUpdate();
+        em.getTransaction().commit();
+
+        assertThat(service.buildTable(nfiTable()).getColumnView("partner").getString(0), equalTo("NRC Kivu"));
+    }
+
+    @Test
+    public void restrictedToOwnPartner() {
+        setUser(2);
+
+        TableData table = newService().buildTable(nfiTable());
+
+        assertThat(table.getNumRows(), equalTo(2));
+        assertThat(table.getColumnView("partner").getString(1), equalTo("NRC"));
+        assertThat(table.getColumnView("beneficiaries").getDouble(1), equalTo(3600d));
+    }
+
+    private SiteTableService newService() {
+        return newService(new FormColumnCache());
+    }
+
+    private SiteTableService newService(FormColumnCache cache) {
+        return new SiteTableService(getDispatcherSync(), injector.getProvider(EntityManager.class), cache);
+    }
+
+    private TableModel nfiTable() {
+        TableModel table = new TableModel();
+        table.getRowSources().add(new RowSource().setRootFormClass(NFI_FORM));
+        table.addColumn("id").selectId();
+        addField(table, "partner", ColumnType.STRING, CuidAdapter.partnerField(1));
+        addField(table, "beneficiaries", ColumnType.NUMBER, CuidAdapter.indicatorField(1));
+        addField(table, "comments", ColumnType.STRING, CuidAdapter.commentsField(1));
+        addField(table, "startDate", ColumnType.DATE, CuidAdapter.field(NFI_FORM, CuidAdapter.START_DATE_FIELD));
+        return table;
+    }
+
+    private void addField(TableModel table, String id, ColumnType type, final ResourceId fieldId) {
+        table.addColumn(id).select(type).getSelectors().add(new FieldSelector() {
+            @Override
+            public List<FormTree.Node> select(FormTree tree) {
+                List<FormTree.Node> nodes = Lists.newArrayList();
+                FormTree.Node node = tree.getRootField(fieldId);
+                if (node != null) {
+                    nodes.add(node);
+                }
+                return nodes;
+            }
+        });
+    }
+}